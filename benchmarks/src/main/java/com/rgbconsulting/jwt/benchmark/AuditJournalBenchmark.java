@@ -0,0 +1,111 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.audit.AuditEvent;
+import com.rgbconsulting.jwt.audit.AuditJournal;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost per al fil de la petició de deixar constància d'un login: la línia
+ * "Login saved" que escrivia JdbcTokenStore amb System.out.println (un
+ * PrintStream sincronitzat sobre un fitxer, com la consola redirigida) davant
+ * d'un registre a l'anell de l'AuditJournal, que escriu el seu fil propi.
+ *
+ * Cada operació simula també la resta de la petició ("requestWork" unitats
+ * de Blackhole.consumeCPU), de manera que el fil escriptor té temps de
+ * buidar l'anell com en un servidor real; el cost del registre és la
+ * diferència amb "request". Sense aquesta feina els fils només omplirien
+ * l'anell i es mesuraria sobretot el descart. El temps inclou la CPU que
+ * gasta el fil escriptor.
+ *
+ * En acabar s'escriuen els registres acceptats, escrits i descartats
+ * (l'anell és ple si el fil escriptor no dona l'abast).
+ *
+ * java -jar target/benchmarks.jar AuditJournalBenchmark -prof gc
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AuditJournalBenchmark {
+
+    private static final String TOKEN = UUID.randomUUID().toString();
+
+    @Param({"1000"})
+    public long requestWork;
+
+    private Path dir;
+    private PrintStream console;
+    private AuditJournal journal;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("jwt-audit");
+        console = new PrintStream(new FileOutputStream(dir.resolve("console.log").toFile()), true);
+        journal = new AuditJournal(dir.toString(), 65536, 64 << 20, 3_600_000, 3_600_000, 1000);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        journal.shutdown();
+        System.out.println("\n" + journal.getMetrics());
+        console.close();
+        try (var files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Referència: la petició sense deixar-ne constància.
+     */
+    @Benchmark
+    public void request() {
+        Blackhole.consumeCPU(requestWork);
+    }
+
+    /**
+     * La línia que escrivia cada login.
+     */
+    @Benchmark
+    public void println() {
+        Blackhole.consumeCPU(requestWork);
+        console.println("Login saved");
+    }
+
+    /**
+     * Registre d'auditoria complet d'un login: usuari, adreça i empremta del
+     * token.
+     */
+    @Benchmark
+    public boolean record() {
+        Blackhole.consumeCPU(requestWork);
+        return journal.record(AuditEvent.LOGIN, 200, "user", "10.0.0.7", TOKEN, null);
+    }
+}
@@ -0,0 +1,83 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.metrics.AuthMetrics;
+import io.micrometer.core.instrument.observation.DefaultMeterObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost de la instrumentació d'AuthMetrics sobre un registre Prometheus,
+ * comparat amb només llegir el rellotge (el mínim que necessita qualsevol
+ * temporitzador). Amb diversos fils mesura també la contenció dels
+ * comptadors compartits.
+ *
+ * java -jar target/benchmarks.jar AuthMetricsBenchmark -prof gc
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class AuthMetricsBenchmark {
+
+    private static final String FOUND = "found";
+
+    private AuthMetrics metrics;
+
+    @Setup
+    public void setup() {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        ObservationRegistry observations = ObservationRegistry.create();
+        observations.observationConfig().observationHandler(new DefaultMeterObservationHandler(registry));
+        metrics = new AuthMetrics(registry, observations, "memory");
+    }
+
+    /**
+     * Referència: les dues lectures del rellotge d'una mesura.
+     */
+    @Benchmark
+    public long clockOnly() {
+        long start = System.nanoTime();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Mesura d'un endpoint amb histograma de percentils.
+     */
+    @Benchmark
+    public void recordEndpoint() {
+        long start = System.nanoTime();
+        metrics.endpoint(AuthMetrics.Endpoint.SECURE_PING, start);
+    }
+
+    /**
+     * Camí complet d'un secure ping validat contra el magatzem: endpoint,
+     * Observation de l'operació del magatzem (amb el temporitzador del
+     * DefaultMeterObservationHandler, com a l'aplicació) i comptador de
+     * validació.
+     */
+    @Benchmark
+    public void recordSecurePing() {
+        long start = System.nanoTime();
+        metrics.store(AuthMetrics.StoreOperation.FIND_BY_TOKEN, () -> FOUND);
+        metrics.validation(AuthMetrics.Validation.VALID);
+        metrics.endpoint(AuthMetrics.Endpoint.SECURE_PING, start);
+    }
+}
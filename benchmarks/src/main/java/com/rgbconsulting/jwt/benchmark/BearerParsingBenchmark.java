@@ -0,0 +1,81 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.cache.TokenCache;
+import com.rgbconsulting.jwt.token.SignedTokenService;
+import com.rgbconsulting.jwt.token.SignedTokenVerifier;
+import com.rgbconsulting.jwt.token.SigningKeys;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark del tractament de la capçalera Authorization a getSecurePing:
+ * extreure el token del "Bearer ..." i validar-lo contra la cache (mode
+ * UUID) o verificar-ne la signatura (mode signat).
+ *
+ * java -jar target/benchmarks.jar BearerParsingBenchmark -prof gc
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BearerParsingBenchmark {
+
+    private TokenCache cache;
+    private SignedTokenVerifier verifier;
+    private String uuidHeader;
+    private String signedHeader;
+
+    @Setup
+    public void setup() {
+        long now = System.currentTimeMillis();
+        String token = UUID.randomUUID().toString();
+        cache = new TokenCache(100_000);
+        cache.put(token, "sergi", "ADMIN", Long.MAX_VALUE, now);
+        uuidHeader = "Bearer " + token;
+
+        SigningKeys keys = new SigningKeys("k1:benchmark-secret-benchmark-secret", "k1", "signed");
+        verifier = new SignedTokenVerifier(keys);
+        signedHeader = "Bearer " + new SignedTokenService(keys, verifier).issue("sergi", "ADMIN", now, now + 3_600_000L);
+    }
+
+    /**
+     * Només l'extracció del token, com a getSecurePing (startsWith +
+     * substring).
+     */
+    @Benchmark
+    public String substring() {
+        return uuidHeader.startsWith("Bearer ") ? uuidHeader.substring(7) : null;
+    }
+
+    /**
+     * Extracció i consulta a la cache (validació en mode UUID sense base de
+     * dades).
+     */
+    @Benchmark
+    public TokenCache.Entry substringAndCacheLookup() {
+        String token = uuidHeader.startsWith("Bearer ") ? uuidHeader.substring(7) : null;
+        return cache.get(token, System.currentTimeMillis());
+    }
+
+    /**
+     * Verificació directa sobre la capçalera (mode signat).
+     */
+    @Benchmark
+    public long verifySignedHeader() {
+        return verifier.verifyBearer(signedHeader).getExpiresAt();
+    }
+}
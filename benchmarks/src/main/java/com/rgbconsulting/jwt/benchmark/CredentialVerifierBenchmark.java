@@ -0,0 +1,91 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.credential.CredentialVerifier;
+import com.rgbconsulting.jwt.credential.PasswordHasher;
+import com.rgbconsulting.jwt.persistence.InMemoryCredentialStore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost de verificar una contrasenya al login: el hash PBKDF2 directament al
+ * fil que fa la petició, el mateix hash passant pel pool de
+ * CredentialVerifier (sense cache), i un login repetit resolt per la cache de
+ * verificacions.
+ *
+ * java -jar target/benchmarks.jar CredentialVerifierBenchmark -prof gc
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialVerifierBenchmark {
+
+    private static final String USERNAME = "user";
+    private static final String PASSWORD = "pepitodelospalotes1234";
+
+    @Param({"100000", "600000"})
+    public int iterations;
+
+    private PasswordHasher hasher;
+    private String stored;
+    private CredentialVerifier uncached;
+    private CredentialVerifier cached;
+
+    @Setup
+    public void setup() {
+        hasher = new PasswordHasher(iterations);
+        uncached = new CredentialVerifier(new InMemoryCredentialStore(), hasher, 1, 64, 60_000, 0, 10_000, true);
+        cached = new CredentialVerifier(new InMemoryCredentialStore(), hasher, 1, 64, 60_000, 60_000, 10_000, true);
+        // el primer login dona d'alta l'usuari
+        uncached.authenticate(USERNAME, PASSWORD);
+        cached.authenticate(USERNAME, PASSWORD);
+        stored = hasher.hash(PASSWORD);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println("\nuncached " + uncached.getMetrics() + "\ncached " + cached.getMetrics());
+        uncached.shutdown();
+        cached.shutdown();
+    }
+
+    /**
+     * Referència: PBKDF2 al fil de la petició.
+     */
+    @Benchmark
+    public boolean hashInline() {
+        return hasher.verify(PASSWORD, stored);
+    }
+
+    /**
+     * PBKDF2 al pool de verificació, esperant-ne el resultat.
+     */
+    @Benchmark
+    public boolean hashOnPool() {
+        return uncached.authenticate(USERNAME, PASSWORD);
+    }
+
+    /**
+     * Login repetit amb la mateixa contrasenya: HMAC de la clau i consulta a
+     * la cache.
+     */
+    @Benchmark
+    public boolean cacheHit() {
+        return cached.authenticate(USERNAME, PASSWORD);
+    }
+}
@@ -0,0 +1,116 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.persistence.JdbcBulkhead;
+import com.rgbconsulting.jwt.persistence.StoreBusyException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compara l'execució de peticions amb un pool de fils de plataforma (com el
+ * de Tomcat) i amb un fil virtual per petició, amb moltes peticions en curs.
+ *
+ * Cada petició simula una operació del JdbcTokenStore: obté permís del
+ * JdbcBulkhead i es bloqueja durant la latència de la base de dades. Es
+ * mostren el throughput i els percentils p50/p99/p999 de latència, mesurada
+ * des que la petició arriba fins que acaba (inclou la cua de l'executor).
+ * Els fils virtuals requereixen Java 21; amb versions anteriors només
+ * s'executa el mode de plataforma.
+ *
+ * Arguments: peticions en curs, total de peticions, latència de la base de
+ * dades en ms, permisos del bulkhead i fils de plataforma.
+ *
+ * java -cp target/benchmarks.jar com.rgbconsulting.jwt.benchmark.ExecutionModeBenchmark 10000 200000 5 1000 200
+ *
+ * @author sergi
+ */
+public class ExecutionModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        long dbLatencyMs = args.length > 2 ? Long.parseLong(args[2]) : 5;
+        int permits = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int platformThreads = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+
+        System.out.printf("concurrency=%d requests=%d db_latency_ms=%d bulkhead=%d platform_threads=%d%n",
+                concurrency, requests, dbLatencyMs, permits, platformThreads);
+
+        run("platform", Executors.newFixedThreadPool(platformThreads), concurrency, requests, dbLatencyMs, permits);
+
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null) {
+            run("virtual", virtual, concurrency, requests, dbLatencyMs, permits);
+        } else {
+            System.out.println("virtual: not available on Java " + Runtime.version().feature() + " (requires 21)");
+        }
+    }
+
+    private static void run(String mode, ExecutorService executor, int concurrency, int requests,
+            long dbLatencyMs, int permits) throws InterruptedException {
+        JdbcBulkhead bulkhead = new JdbcBulkhead(permits, 60_000);
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(requests);
+        long[] latencies = new long[requests];
+        AtomicInteger completed = new AtomicInteger();
+        LongAdder rejected = new LongAdder();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            long arrival = System.nanoTime();
+            executor.execute(() -> {
+                try {
+                    bulkhead.acquire();
+                    try {
+                        Thread.sleep(dbLatencyMs);
+                    } finally {
+                        bulkhead.release();
+                    }
+                } catch (StoreBusyException e) {
+                    rejected.increment();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latencies[completed.getAndIncrement()] = System.nanoTime() - arrival;
+                    inFlight.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        Arrays.sort(latencies);
+        System.out.printf("%s: %.0f req/s, p50=%.2f ms, p99=%.2f ms, p999=%.2f ms, max=%.2f ms, rejected=%d%n",
+                mode, requests / (elapsed / 1e9),
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                latencies[latencies.length - 1] / 1e6, rejected.sum());
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Crea l'executor de fils virtuals per reflexió perquè el projecte
+     * compila amb Java 17.
+     *
+     * @return Executor, o null si la JVM no suporta fils virtuals
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import com.rgbconsulting.jwt.persistence.InMemoryTokenStore;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark de l'emmagatzematge de tokens en memòria comparat amb un
+ * ConcurrentHashMap de String a Jwt, amb "size" tokens vius.
+ *
+ * Per reproduir la mesura a 10M tokens:
+ *
+ * java -Xmx8g -jar target/benchmarks.jar InMemoryTokenStoreBenchmark -p size=10000000 -t 8
+ *
+ * El consum de memòria es mesura a part amb TokenStoreFootprint.
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Threads(4)
+public class InMemoryTokenStoreBenchmark {
+
+    @Param({"1000000"})
+    private int size;
+
+    private InMemoryTokenStore store;
+    private ConcurrentHashMap<String, Jwt> map;
+    private String[] tokens;
+
+    @Setup
+    public void setup() {
+        long now = System.currentTimeMillis();
+        store = new InMemoryTokenStore(64, Long.MAX_VALUE / 2);
+        map = new ConcurrentHashMap<>();
+        tokens = new String[size];
+        for (int i = 0; i < size; i++) {
+            String token = UUID.randomUUID().toString();
+            String username = "user" + (i % 10_000);
+            String role = i % 10 == 0 ? "ADMIN" : "USER";
+            tokens[i] = token;
+            store.saveLogin(username, token, 30, now, role);
+
+            Jwt jwt = new Jwt();
+            jwt.setUsername(username);
+            jwt.setRole(role);
+            jwt.setAccess_token(token);
+            jwt.setTime_generated(now);
+            map.put(token, jwt);
+        }
+    }
+
+    @Benchmark
+    public Jwt lookupStore() {
+        return store.findByToken(tokens[ThreadLocalRandom.current().nextInt(size)]);
+    }
+
+    @Benchmark
+    public Jwt lookupMap() {
+        return map.get(tokens[ThreadLocalRandom.current().nextInt(size)]);
+    }
+
+    /**
+     * Refresc: substitueix un token viu per un de nou i el torna a deixar,
+     * de manera que el nombre de tokens vius no canvia.
+     */
+    @Benchmark
+    public String refreshStore() {
+        String token = tokens[ThreadLocalRandom.current().nextInt(size)];
+        String temp = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis();
+        store.updateToken(token, temp, now);
+        return store.updateToken(temp, token, now);
+    }
+
+    @Benchmark
+    public Jwt refreshMap() {
+        String token = tokens[ThreadLocalRandom.current().nextInt(size)];
+        String temp = UUID.randomUUID().toString();
+        Jwt jwt = map.remove(token);
+        if (jwt == null) {
+            return null;
+        }
+        map.put(temp, jwt);
+        map.remove(temp);
+        return map.put(token, jwt);
+    }
+}
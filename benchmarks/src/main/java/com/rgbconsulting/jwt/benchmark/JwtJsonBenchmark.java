@@ -0,0 +1,79 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.rgbconsulting.jwt.model.Jwt;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark de la serialització JSON de Jwt amb Jackson: la petició de login
+ * que es llegeix i la resposta que s'escriu.
+ *
+ * java -jar target/benchmarks.jar JwtJsonBenchmark -prof gc
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtJsonBenchmark {
+
+    private ObjectMapper mapper;
+    private ObjectReader reader;
+    private ObjectWriter writer;
+    private Jwt response;
+    private byte[] requestJson;
+
+    @Setup
+    public void setup() {
+        mapper = new ObjectMapper();
+        reader = mapper.readerFor(Jwt.class);
+        writer = mapper.writerFor(Jwt.class);
+
+        response = new Jwt();
+        response.setUsername("sergi");
+        response.setAccess_token(UUID.randomUUID().toString());
+        response.setExpires_in(30_000);
+        response.setTime_generated(System.currentTimeMillis());
+        response.setRole("ADMIN");
+
+        requestJson = "{\"username\":\"sergi\",\"password\":\"pepitodelospalotes1234\"}".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] serializeResponse() throws IOException {
+        return mapper.writeValueAsBytes(response);
+    }
+
+    @Benchmark
+    public byte[] serializeResponseWithWriter() throws IOException {
+        return writer.writeValueAsBytes(response);
+    }
+
+    @Benchmark
+    public Jwt deserializeRequest() throws IOException {
+        return mapper.readValue(requestJson, Jwt.class);
+    }
+
+    @Benchmark
+    public Jwt deserializeRequestWithReader() throws IOException {
+        return reader.readValue(requestJson);
+    }
+}
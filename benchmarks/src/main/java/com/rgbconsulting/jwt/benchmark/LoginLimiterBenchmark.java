@@ -0,0 +1,87 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.limit.LoginLimiter;
+import com.rgbconsulting.jwt.limit.LoginRateLimitedException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost de l'admissió de LoginLimiter amb diversos fils: logins admesos
+ * d'usuaris i adreces diferents (posicions diferents de les taules) i logins
+ * rebutjats d'un sol usuari que en fa una tempesta (la mateixa posició des
+ * de tots els fils).
+ *
+ * java -jar target/benchmarks.jar LoginLimiterBenchmark -prof gc
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class LoginLimiterBenchmark {
+
+    private static final int KEYS = 4096;
+
+    private LoginLimiter limiter;
+    private LoginLimiter stormLimiter;
+    private String[] users;
+    private String[] addresses;
+
+    /**
+     * Posició de cada fil dins les claus.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+    }
+
+    @Setup
+    public void setup() {
+        // ritme i ràfega (un segon) alts perquè les claus distribuïdes no
+        // s'exhaureixin mai, tampoc quan un fil queda aturat entre llegir el
+        // rellotge i actualitzar el cubell
+        limiter = new LoginLimiter(1e6, 1_000_000, 1e6, 1_000_000, Integer.MAX_VALUE, 65536);
+        users = new String[KEYS];
+        addresses = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            users[i] = "user" + i;
+            addresses[i] = "10.0." + (i >> 8) + "." + (i & 255);
+        }
+        // l'usuari de la tempesta ja ha exhaurit el cubell
+        stormLimiter = new LoginLimiter(1, 1, 1e9, 1000, Integer.MAX_VALUE, 65536);
+        stormLimiter.acquire("storm", "10.1.0.1");
+    }
+
+    @Benchmark
+    public void admitDistinct(Cursor cursor) {
+        int i = cursor.next = (cursor.next + 1) & (KEYS - 1);
+        limiter.acquire(users[i], addresses[i]);
+        limiter.release();
+    }
+
+    @Benchmark
+    public long rejectHotUser() {
+        try {
+            stormLimiter.acquire("storm", "10.1.0.1");
+            stormLimiter.release();
+            return 0;
+        } catch (LoginRateLimitedException e) {
+            return e.getRetryAfterSeconds();
+        }
+    }
+}
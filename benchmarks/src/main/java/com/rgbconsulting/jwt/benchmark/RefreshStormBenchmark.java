@@ -0,0 +1,126 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.cache.RefreshCoalescer;
+import com.rgbconsulting.jwt.cache.TokenCache;
+import com.rgbconsulting.jwt.controller.JwtController;
+import com.rgbconsulting.jwt.limit.LoginGate;
+import com.rgbconsulting.jwt.metrics.AuthMetrics;
+import com.rgbconsulting.jwt.model.Jwt;
+import com.rgbconsulting.jwt.persistence.InMemoryTokenStore;
+import com.rgbconsulting.jwt.token.SignedTokenService;
+import com.rgbconsulting.jwt.token.SignedTokenVerifier;
+import com.rgbconsulting.jwt.token.SigningKeys;
+import io.micrometer.core.instrument.observation.DefaultMeterObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Tempesta de refrescos: diversos fils comparteixen una sessió i, com els
+ * clients que reben 401 alhora, refresquen tots el token actual i fan un
+ * secure ping amb el token que han rebut. L'UPDATE del magatzem porta una
+ * latència simulada de base de dades.
+ *
+ * Sense agrupació cada refresc substitueix el token del refresc anterior i
+ * els pings dels altres fils fallen; amb el RefreshCoalescer els refrescos
+ * del mateix token fan un sol UPDATE i tots reben el mateix token. En acabar
+ * s'escriuen els UPDATE i els 401 per refresc.
+ *
+ * java -jar target/benchmarks.jar RefreshStormBenchmark
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RefreshStormBenchmark {
+
+    @Param({"true", "false"})
+    public boolean coalesce;
+
+    @Param({"200"})
+    public long updateLatencyMicros;
+
+    private JwtController controller;
+    private final AtomicReference<String> current = new AtomicReference<>();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder unauthorized = new LongAdder();
+
+    @Setup
+    public void setup() {
+        long latency = TimeUnit.MICROSECONDS.toNanos(updateLatencyMicros);
+        InMemoryTokenStore store = new InMemoryTokenStore(64, TimeUnit.MINUTES.toMillis(10)) {
+            @Override
+            public String updateToken(String oldToken, String newToken, long time_generated) {
+                updates.increment();
+                LockSupport.parkNanos(latency);
+                return super.updateToken(oldToken, newToken, time_generated);
+            }
+        };
+        SigningKeys keys = new SigningKeys("k1:benchmark-secret-benchmark-secret", "k1", "signed");
+        SignedTokenVerifier verifier = new SignedTokenVerifier(keys);
+        TokenCache tokenCache = new TokenCache(100_000);
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        ObservationRegistry observations = ObservationRegistry.create();
+        observations.observationConfig().observationHandler(new DefaultMeterObservationHandler(registry));
+        AuthMetrics metrics = new AuthMetrics(registry, observations, "memory");
+        // gràcia 0: cada ronda de refrescos és un refresc nou, no una repetició
+        Optional<RefreshCoalescer> coalescer = coalesce ? Optional.of(new RefreshCoalescer(0, 2000)) : Optional.empty();
+        controller = new JwtController(store, tokenCache, new SignedTokenService(keys, verifier), "uuid", metrics, 1000,
+                new LoginGate(Optional.empty(), Optional.empty()), Optional.empty(), coalescer, Optional.empty());
+
+        Jwt request = new Jwt();
+        request.setUsername("user");
+        current.set(controller.login(request).getAccess_token());
+    }
+
+    @TearDown
+    public void tearDown() {
+        double n = refreshes.sum();
+        System.out.printf("%nrefreshes=%d updates/refresh=%.3f 401/refresh=%.3f%n",
+                refreshes.sum(), updates.sum() / n, unauthorized.sum() / n);
+    }
+
+    /**
+     * Refresc del token compartit seguit d'un secure ping amb el token rebut.
+     */
+    @Benchmark
+    public String refreshAndPing() {
+        String token = current.get();
+        Jwt request = new Jwt();
+        request.setAccess_token(token);
+        String fresh = controller.refresh(request);
+        current.compareAndSet(token, fresh);
+        refreshes.increment();
+        try {
+            return controller.getSecurePing("Bearer " + fresh);
+        } catch (ResponseStatusException e) {
+            unauthorized.increment();
+            return null;
+        }
+    }
+}
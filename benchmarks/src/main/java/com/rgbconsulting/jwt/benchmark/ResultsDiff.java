@@ -0,0 +1,86 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compara dos fitxers de resultats JMH en format JSON (-rf json) i mostra el
+ * canvi de cada benchmark, per detectar regressions entre commits.
+ *
+ * Un canvi es marca com a significatiu si els intervals d'error de les dues
+ * mesures no se solapen. Per als modes de temps (avgt, sample, ss) més és
+ * pitjor; per a thrpt més és millor.
+ *
+ * java -cp target/benchmarks.jar com.rgbconsulting.jwt.benchmark.ResultsDiff base.json new.json
+ *
+ * @author sergi
+ */
+public class ResultsDiff {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: ResultsDiff <base.json> <new.json>");
+            System.exit(2);
+        }
+        Map<String, JsonNode> base = load(new File(args[0]));
+        Map<String, JsonNode> current = load(new File(args[1]));
+
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s%n", "Benchmark", "Base", "New", "Change");
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode now = entry.getValue();
+            JsonNode before = base.get(entry.getKey());
+            String unit = now.path("primaryMetric").path("scoreUnit").asText();
+            double score = now.path("primaryMetric").path("score").asDouble();
+            if (before == null) {
+                System.out.printf("%-70s %14s %14.3f %9s  %s%n", entry.getKey(), "-", score, "new", unit);
+                continue;
+            }
+
+            double baseScore = before.path("primaryMetric").path("score").asDouble();
+            double baseError = errorOf(before);
+            double error = errorOf(now);
+            double change = baseScore == 0 ? 0 : (score - baseScore) / baseScore * 100;
+            boolean significant = Math.abs(score - baseScore) > baseError + error;
+            boolean higherIsBetter = "thrpt".equals(now.path("mode").asText());
+            String flag = "";
+            if (significant) {
+                boolean worse = higherIsBetter ? score < baseScore : score > baseScore;
+                flag = worse ? "  REGRESSION" : "  improvement";
+                if (worse) {
+                    regressions++;
+                }
+            }
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%%  %s%s%n", entry.getKey(), baseScore, score, change, unit, flag);
+        }
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Llegeix els resultats indexats per nom del benchmark, mode, fils i
+     * paràmetres.
+     */
+    private static Map<String, JsonNode> load(File file) throws IOException {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText()
+                    .replace("com.rgbconsulting.jwt.benchmark.", ""));
+            key.append(" ").append(result.path("mode").asText());
+            key.append(" t=").append(result.path("threads").asInt());
+            for (Map.Entry<String, JsonNode> param : result.path("params").properties()) {
+                key.append(" ").append(param.getKey()).append("=").append(param.getValue().asText());
+            }
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+
+    private static double errorOf(JsonNode result) {
+        double error = result.path("primaryMetric").path("scoreError").asDouble();
+        return Double.isNaN(error) ? 0 : error;
+    }
+}
@@ -0,0 +1,109 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.cache.RevocationIndex;
+import com.rgbconsulting.jwt.persistence.InMemoryTokenStore;
+import com.rgbconsulting.jwt.token.SignedTokenService;
+import com.rgbconsulting.jwt.token.SignedTokenVerifier;
+import com.rgbconsulting.jwt.token.SigningKeys;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost de comprovar les revocacions a la validació de tokens signats: només
+ * la signatura, la signatura més el filtre de RevocationIndex (amb el filtre
+ * ple fins a la mida esperada) i la signatura més una cerca al magatzem per
+ * cada petició. Els tokens validats no estan revocats, de manera que cada
+ * positiu del filtre és un fals positiu; la taxa observada s'escriu en
+ * acabar.
+ *
+ * java -jar target/benchmarks.jar RevocationIndexBenchmark -prof gc
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RevocationIndexBenchmark {
+
+    private static final int EXPECTED = 10_000;
+    private static final int HEADERS = 4096;
+
+    private SignedTokenVerifier verifier;
+    private InMemoryTokenStore store;
+    private RevocationIndex index;
+    private String[] headers;
+    private int next;
+
+    @Setup
+    public void setup() {
+        SigningKeys keys = new SigningKeys("k1:benchmark-secret-benchmark-secret", "k1", "signed");
+        verifier = new SignedTokenVerifier(keys);
+        SignedTokenService service = new SignedTokenService(keys, verifier);
+        store = new InMemoryTokenStore(64, Long.MAX_VALUE / 2);
+        index = new RevocationIndex(store, EXPECTED, 0.01, Long.MAX_VALUE, 5_000);
+
+        long now = System.currentTimeMillis();
+        long expiresAt = now + 3_600_000L;
+        for (int i = 0; i < EXPECTED; i++) {
+            index.revoke(service.issue("revoked" + i, "USER", now + i, expiresAt), expiresAt);
+        }
+        headers = new String[HEADERS];
+        for (int i = 0; i < HEADERS; i++) {
+            headers[i] = "Bearer " + service.issue("user" + i, "USER", now + i, expiresAt);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println("\n" + index.getMetrics());
+    }
+
+    /**
+     * Referència: verificació de la signatura sense cap comprovació de
+     * revocació.
+     */
+    @Benchmark
+    public long verifyOnly() {
+        return verifier.verifyBearer(nextHeader()).getExpiresAt();
+    }
+
+    /**
+     * Verificació més consulta al filtre, tal com la fa /jwt/secure/ping.
+     */
+    @Benchmark
+    public boolean verifyAndFilter() {
+        String header = nextHeader();
+        verifier.verifyBearer(header);
+        return index.isRevoked(header, 7, header.length());
+    }
+
+    /**
+     * Verificació més cerca de l'identificador al magatzem a cada petició (el
+     * que caldria sense filtre, aquí sense el cost de xarxa de la base de
+     * dades).
+     */
+    @Benchmark
+    public boolean verifyAndStoreLookup() {
+        String header = nextHeader();
+        verifier.verifyBearer(header);
+        return store.isRevoked(header.substring(header.lastIndexOf('.') + 1));
+    }
+
+    private String nextHeader() {
+        next = (next + 1) & (HEADERS - 1);
+        return headers[next];
+    }
+}
@@ -0,0 +1,140 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import com.rgbconsulting.jwt.persistence.JdbcBulkhead;
+import com.rgbconsulting.jwt.persistence.JdbcTokenStore;
+import com.rgbconsulting.jwt.persistence.LoginWriteBehind;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.h2.tools.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latència (p50, p99...) de la consulta del token de /jwt/secure/ping amb
+ * una connexió nova per crida, com feia JwtController amb DriverManager, i
+ * amb el pool de JdbcTokenStore.
+ *
+ * La base de dades és un H2 en memòria servit per TCP (mode PostgreSQL), de
+ * manera que obrir una connexió costa una connexió de xarxa i una
+ * autenticació com amb PostgreSQL, tot i que en local i sense TLS: la
+ * diferència amb un PostgreSQL real és més gran.
+ *
+ * java -jar target/benchmarks.jar SecurePingLatencyBenchmark
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class SecurePingLatencyBenchmark {
+
+    private static final int TOKENS = 10_000;
+    private static final String USER = "sa";
+    private static final String PASS = "";
+
+    @Param({"10"})
+    public int poolSize;
+
+    private Server server;
+    private String url;
+    private HikariDataSource dataSource;
+    private JdbcTokenStore store;
+    private String[] tokens;
+
+    @Setup
+    public void setup() throws SQLException {
+        server = Server.createTcpServer("-tcpPort", "0", "-ifNotExists").start();
+        url = "jdbc:h2:tcp://localhost:" + server.getPort() + "/mem:jwt_ping;MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+
+        tokens = new String[TOKENS];
+        try (Connection connection = DriverManager.getConnection(url, USER, PASS);
+                Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE jwt (username VARCHAR(255), acces_token VARCHAR(512), "
+                    + "expires_in INT, time_generated BIGINT, role VARCHAR(16))");
+            statement.execute("CREATE INDEX jwt_acces_token ON jwt (acces_token)");
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO jwt (username, acces_token, expires_in, time_generated, role) VALUES (?, ?, ?, ?, ?)")) {
+                long future = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+                for (int i = 0; i < TOKENS; i++) {
+                    tokens[i] = UUID.randomUUID().toString();
+                    insert.setString(1, "user" + i);
+                    insert.setString(2, tokens[i]);
+                    insert.setInt(3, 30_000);
+                    insert.setLong(4, future);
+                    insert.setString(5, "USER");
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(url);
+        dataSource.setUsername(USER);
+        dataSource.setPassword(PASS);
+        dataSource.setMaximumPoolSize(poolSize);
+        store = new JdbcTokenStore(dataSource, new LoginWriteBehind(dataSource, "sync", 10_000, 200, 5, 100),
+                new JdbcBulkhead(poolSize, 10_000), Optional.empty());
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataSource.close();
+        server.stop();
+    }
+
+    /**
+     * Consulta amb una connexió del pool (JdbcTokenStore.findByToken).
+     */
+    @Benchmark
+    public Jwt pooled() {
+        return store.findByToken(token());
+    }
+
+    /**
+     * Consulta amb una connexió nova per crida, com l'antic
+     * JwtController.findUserByToken().
+     */
+    @Benchmark
+    public String perCallConnection() throws SQLException {
+        String query = "SELECT * FROM jwt WHERE acces_token = ? AND (? - time_generated) < ?";
+        try (Connection connection = DriverManager.getConnection(url, USER, PASS);
+                PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            preparedStatement.setString(1, token());
+            preparedStatement.setLong(2, System.currentTimeMillis());
+            preparedStatement.setInt(3, 30_000);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString("username") : null;
+            }
+        }
+    }
+
+    private String token() {
+        return tokens[ThreadLocalRandom.current().nextInt(TOKENS)];
+    }
+}
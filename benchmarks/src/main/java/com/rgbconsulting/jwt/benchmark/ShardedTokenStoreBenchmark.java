@@ -0,0 +1,191 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.persistence.ConsistentHashRing;
+import com.rgbconsulting.jwt.persistence.JdbcBulkhead;
+import com.rgbconsulting.jwt.persistence.LoginWriteBehind;
+import com.rgbconsulting.jwt.persistence.ShardedTokenStore;
+import com.rgbconsulting.jwt.persistence.TokenReaper;
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.h2.api.Trigger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput de ShardedTokenStore segons el nombre de shards. Cada shard és
+ * una base de dades H2 en memòria (mode PostgreSQL) que substitueix un
+ * PostgreSQL, amb un pool de poques connexions i una latència simulada a
+ * cada escriptura de la taula "jwt" (un trigger que espera), de manera que
+ * cada shard admet un nombre limitat d'escriptures per segon com una base de
+ * dades real. Amb més shards les escriptures es reparteixen i el throughput
+ * creix.
+ *
+ * En acabar s'escriu la fracció de 100.000 tokens que canvien de shard en
+ * afegir-ne un (la ideal és 1/(N+1)) i la càrrega del shard més ocupat
+ * respecte la mitjana.
+ *
+ * java -jar target/benchmarks.jar ShardedTokenStoreBenchmark
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class ShardedTokenStoreBenchmark {
+
+    private static final int KEYS = 100_000;
+    private static final int VIRTUAL_NODES = 128;
+    private static volatile long writeLatencyNanos;
+
+    @Param({"1", "2", "4"})
+    public int shards;
+
+    @Param({"500"})
+    public long writeLatencyMicros;
+
+    @Param({"2"})
+    public int poolSize;
+
+    private ShardedTokenStore store;
+    private PrintStream stdout;
+
+    /**
+     * Latència simulada de cada fila escrita a la taula "jwt".
+     */
+    public static class Latency implements Trigger {
+
+        @Override
+        public void fire(Connection connection, Object[] oldRow, Object[] newRow) {
+            LockSupport.parkNanos(writeLatencyNanos);
+        }
+    }
+
+    /**
+     * Sessió d'un fil: el seu token actual, que cada refresh substitueix.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+
+        private String token;
+
+        @Setup
+        public void login(ShardedTokenStoreBenchmark benchmark) {
+            token = UUID.randomUUID().toString();
+            benchmark.store.saveLogin("user" + Thread.currentThread().getId(), token, 30, future(), "USER");
+        }
+    }
+
+    @Setup
+    public void setup() throws SQLException {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        writeLatencyNanos = TimeUnit.MICROSECONDS.toNanos(writeLatencyMicros);
+
+        List<ShardedTokenStore.Shard> ring = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            String url = "jdbc:h2:mem:jwt_shard_" + shards + "_" + i + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+            HikariDataSource dataSource = new HikariDataSource();
+            dataSource.setJdbcUrl(url);
+            dataSource.setMaximumPoolSize(poolSize);
+            try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE jwt (username VARCHAR(255), acces_token VARCHAR(512), "
+                        + "expires_in INT, time_generated BIGINT, role VARCHAR(16))");
+                statement.execute("CREATE INDEX jwt_acces_token ON jwt (acces_token)");
+                statement.execute("CREATE TABLE jwt_revoked (token_id VARCHAR(1024) PRIMARY KEY, revoked_at BIGINT, expires_at BIGINT)");
+                statement.execute("CREATE TRIGGER jwt_latency BEFORE INSERT, UPDATE, DELETE ON jwt FOR EACH ROW CALL \""
+                        + Latency.class.getName() + "\"");
+            }
+            ring.add(new ShardedTokenStore.Shard(url, dataSource, new JdbcBulkhead(poolSize, 10_000),
+                    new LoginWriteBehind(dataSource, "sync", 10_000, 200, 5, 100),
+                    new TokenReaper(dataSource, "off", 60_000, 5000, 100, 3_600_000, 2, true)));
+        }
+        store = new ShardedTokenStore(ring, VIRTUAL_NODES, Optional.empty(), 1000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+        System.out.println("\n" + store.getMetrics().entrySet().stream().limit(3).toList());
+        printRebalance(shards);
+        store.close();
+    }
+
+    /**
+     * Login nou: un INSERT al shard del token.
+     */
+    @Benchmark
+    public void login() {
+        store.saveLogin("user", UUID.randomUUID().toString(), 30, future(), "USER");
+    }
+
+    /**
+     * Refresh del token de la sessió: UPDATE si el token nou cau al mateix
+     * shard, o INSERT al shard nou i DELETE a l'antic si no.
+     */
+    @Benchmark
+    public String refresh(Session session) {
+        String fresh = store.updateToken(session.token, UUID.randomUUID().toString(), future());
+        if (fresh != null) {
+            session.token = fresh;
+        }
+        return fresh;
+    }
+
+    private static long future() {
+        return System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+    }
+
+    /**
+     * Tokens que canvien de shard en passar de n a n+1 shards, i càrrega del
+     * shard més ocupat amb n shards.
+     */
+    private static void printRebalance(int n) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i <= n; i++) {
+            ids.add("jdbc:postgresql://shard" + i + ":5432/jwt_db");
+        }
+        ConsistentHashRing<String> before = new ConsistentHashRing<>(ids.subList(0, n), ids.subList(0, n), VIRTUAL_NODES);
+        ConsistentHashRing<String> after = new ConsistentHashRing<>(ids, ids, VIRTUAL_NODES);
+        int[] load = new int[n];
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = UUID.randomUUID().toString();
+            int owner = before.indexOf(key);
+            load[owner]++;
+            if (after.indexOf(key) != owner) {
+                moved++;
+            }
+        }
+        int max = 0;
+        for (int l : load) {
+            max = Math.max(max, l);
+        }
+        System.out.printf("shards %d -> %d: moved %.4f of keys (ideal %.4f), max load %.3f x mean%n",
+                n, n + 1, moved / (double) KEYS, 1.0 / (n + 1), max / (KEYS / (double) n));
+    }
+}
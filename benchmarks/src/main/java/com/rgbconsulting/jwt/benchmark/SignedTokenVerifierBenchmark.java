@@ -0,0 +1,75 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.token.SignedTokenService;
+import com.rgbconsulting.jwt.token.SignedTokenVerifier;
+import com.rgbconsulting.jwt.token.SigningKeys;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark de la verificació de tokens signats al camí calent.
+ *
+ * S'ha d'executar amb el profiler de GC per comprovar que la verificació no
+ * genera brossa (gc.alloc.rate.norm ≈ 0 B/op):
+ *
+ * java -jar target/benchmarks.jar SignedTokenVerifierBenchmark -prof gc
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignedTokenVerifierBenchmark {
+
+    private SignedTokenVerifier verifier;
+    private SignedTokenService service;
+    private String authHeader;
+    private String token;
+
+    @Setup
+    public void setup() {
+        SigningKeys keys = new SigningKeys("k1:benchmark-secret-benchmark-secret,k2:rotated-secret", "k1", "signed");
+        verifier = new SignedTokenVerifier(keys);
+        service = new SignedTokenService(keys, verifier);
+        long now = System.currentTimeMillis();
+        token = service.issue("sergi", "ADMIN", now, now + 3_600_000L);
+        authHeader = "Bearer " + token;
+    }
+
+    /**
+     * Verificació sobre la capçalera, tal com la fa /jwt/secure/ping.
+     */
+    @Benchmark
+    public long verifyBearer() {
+        return verifier.verifyBearer(authHeader).getExpiresAt();
+    }
+
+    /**
+     * Verificació i comprovació de rol, tal com la fa /jwt/admin/test.
+     */
+    @Benchmark
+    public boolean verifyAdminRole() {
+        return verifier.verifyBearer(authHeader).hasRole("ADMIN");
+    }
+
+    /**
+     * Verificació que materialitza els claims en objectes (camí del refresh).
+     */
+    @Benchmark
+    public void verifyToObjects(Blackhole bh) {
+        bh.consume(service.verify(token));
+    }
+}
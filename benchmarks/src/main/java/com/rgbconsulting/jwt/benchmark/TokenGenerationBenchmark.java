@@ -0,0 +1,91 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.token.SignedTokenService;
+import com.rgbconsulting.jwt.token.SignedTokenVerifier;
+import com.rgbconsulting.jwt.token.SigningKeys;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark de la generació de tokens: UUID.randomUUID() (el que fan login i
+ * refresh en mode UUID) comparat amb alternatives, i l'emissió d'un JWT
+ * signat.
+ *
+ * UUID.randomUUID() fa servir un SecureRandom compartit; amb diversos fils
+ * (-t 4) es veu la contenció.
+ *
+ * java -jar target/benchmarks.jar TokenGenerationBenchmark -t 4
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenGenerationBenchmark {
+
+    private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
+
+    private SignedTokenService service;
+    private final ThreadLocal<SecureRandom> secureRandom = ThreadLocal.withInitial(SecureRandom::new);
+
+    @Setup
+    public void setup() {
+        SigningKeys keys = new SigningKeys("k1:benchmark-secret-benchmark-secret", "k1", "signed");
+        service = new SignedTokenService(keys, new SignedTokenVerifier(keys));
+    }
+
+    /**
+     * Token actual del mode UUID.
+     */
+    @Benchmark
+    public String uuidRandom() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * UUID versió 4 amb ThreadLocalRandom (no criptogràfic, només com a
+     * referència del cost del SecureRandom).
+     */
+    @Benchmark
+    public String uuidThreadLocalRandom() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long msb = (random.nextLong() & ~0xF000L) | 0x4000L;
+        long lsb = (random.nextLong() & ~(0xC000000000000000L)) | 0x8000000000000000L;
+        return new UUID(msb, lsb).toString();
+    }
+
+    /**
+     * 16 bytes d'un SecureRandom per fil codificats en Base64 URL.
+     */
+    @Benchmark
+    public String secureRandomPerThreadBase64() {
+        byte[] bytes = new byte[16];
+        secureRandom.get().nextBytes(bytes);
+        return BASE64.encodeToString(bytes);
+    }
+
+    /**
+     * JWT signat del mode "signed".
+     */
+    @Benchmark
+    public String signedToken() {
+        long now = System.currentTimeMillis();
+        return service.issue("sergi", "ADMIN", now, now + 30_000);
+    }
+}
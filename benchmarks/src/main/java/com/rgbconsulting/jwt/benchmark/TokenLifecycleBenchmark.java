@@ -0,0 +1,217 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.cache.RevocationIndex;
+import com.rgbconsulting.jwt.cache.TokenCache;
+import com.rgbconsulting.jwt.controller.JwtController;
+import com.rgbconsulting.jwt.limit.LoginGate;
+import com.rgbconsulting.jwt.metrics.AuthMetrics;
+import com.rgbconsulting.jwt.model.Jwt;
+import com.rgbconsulting.jwt.persistence.JdbcBulkhead;
+import com.rgbconsulting.jwt.persistence.JdbcTokenStore;
+import com.rgbconsulting.jwt.persistence.LoginWriteBehind;
+import com.rgbconsulting.jwt.token.SignedTokenService;
+import com.rgbconsulting.jwt.token.SignedTokenVerifier;
+import com.rgbconsulting.jwt.token.SigningKeys;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.observation.DefaultMeterObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark del cicle de vida d'un token a través de JwtController amb
+ * JdbcTokenStore sobre una base de dades H2 en memòria (mode PostgreSQL) que
+ * substitueix PostgreSQL: login, refresh i validació (amb la cache i
+ * directament contra la base de dades) i introspecció per lots, amb el
+ * cost expressat per token per comparar-lo amb la validació d'un en un.
+ *
+ * Les línies de log de System.out es descarten perquè no inundin la sortida.
+ *
+ * java -jar target/benchmarks.jar TokenLifecycleBenchmark -t 4
+ *
+ * @author sergi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TokenLifecycleBenchmark {
+
+    private static final int PRELOADED = 10_000;
+    private static final int BATCH = 100;
+
+    @Param({"sync", "flush"})
+    private String durability;
+
+    private HikariDataSource dataSource;
+    private LoginWriteBehind loginWriter;
+    private JdbcTokenStore tokenStore;
+    private JwtController controller;
+    private String[] tokens;
+    private String[] headers;
+    private PrintStream stdout;
+
+    /**
+     * Sessió d'un fil: el seu token actual, que cada refresh substitueix.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+
+        private String token;
+
+        @Setup
+        public void login(TokenLifecycleBenchmark benchmark) {
+            token = benchmark.controller.login(request("user" + Thread.currentThread().getId())).getAccess_token();
+        }
+    }
+
+    @Setup
+    public void setup() throws SQLException {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:mem:jwt;MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        dataSource.setMaximumPoolSize(10);
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE jwt (username VARCHAR(255), acces_token VARCHAR(512), "
+                    + "expires_in INT, time_generated BIGINT, role VARCHAR(16))");
+            statement.execute("CREATE INDEX jwt_acces_token ON jwt (acces_token)");
+            statement.execute("CREATE TABLE jwt_revoked (token_id VARCHAR(1024) PRIMARY KEY, revoked_at BIGINT, expires_at BIGINT)");
+        }
+
+        loginWriter = new LoginWriteBehind(dataSource, durability, 10_000, 200, 5, 100);
+        tokenStore = new JdbcTokenStore(dataSource, loginWriter, new JdbcBulkhead(10, 2000), Optional.empty());
+        SigningKeys keys = new SigningKeys("k1:benchmark-secret-benchmark-secret", "k1", "signed");
+        SignedTokenVerifier verifier = new SignedTokenVerifier(keys);
+        TokenCache tokenCache = new TokenCache(100_000);
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        ObservationRegistry observations = ObservationRegistry.create();
+        observations.observationConfig().observationHandler(new DefaultMeterObservationHandler(registry));
+        AuthMetrics metrics = new AuthMetrics(registry, observations, "jdbc");
+        RevocationIndex revocations = new RevocationIndex(tokenStore, 10_000, 0.01, 30_000, 5_000);
+        controller = new JwtController(tokenStore, tokenCache, new SignedTokenService(keys, verifier), "uuid", metrics, 1000,
+                new LoginGate(Optional.empty(), Optional.empty()), Optional.of(revocations), Optional.empty(), Optional.empty());
+
+        // tokens precarregats en un sol lot, generats en el futur perquè no
+        // expirin durant la mesura
+        tokens = new String[PRELOADED];
+        headers = new String[PRELOADED];
+        long future = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        try (Connection connection = dataSource.getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(
+                "INSERT INTO jwt (username, acces_token, expires_in, time_generated, role) VALUES (?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < PRELOADED; i++) {
+                tokens[i] = UUID.randomUUID().toString();
+                headers[i] = "Bearer " + tokens[i];
+                preparedStatement.setString(1, "user" + i);
+                preparedStatement.setString(2, tokens[i]);
+                preparedStatement.setInt(3, 30);
+                preparedStatement.setLong(4, future);
+                preparedStatement.setString(5, "USER");
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        loginWriter.shutdown();
+        dataSource.close();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public Jwt login() {
+        return controller.login(request("sergi"));
+    }
+
+    @Benchmark
+    public String refresh(Session session) {
+        session.token = controller.refresh(token(session.token));
+        return session.token;
+    }
+
+    /**
+     * Validació d'un token vigent a /jwt/secure/ping (normalment servida per
+     * la cache).
+     */
+    @Benchmark
+    public String validate() {
+        return controller.getSecurePing(headers[ThreadLocalRandom.current().nextInt(PRELOADED)]);
+    }
+
+    /**
+     * Consulta del token directament a la base de dades, sense cache.
+     */
+    @Benchmark
+    public Jwt validateFromStore() {
+        return tokenStore.findByToken(tokens[ThreadLocalRandom.current().nextInt(PRELOADED)]);
+    }
+
+    /**
+     * Consulta d'un lot de BATCH tokens amb una sola consulta ANY(?), sense
+     * cache. El temps és per token.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Map<String, Jwt> validateBatchFromStore() {
+        return tokenStore.findByTokens(batch());
+    }
+
+    /**
+     * Introspecció per lots a /jwt/auth/introspect (normalment servida per la
+     * cache). El temps és per token.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object introspectBatch() {
+        return controller.introspect(batch());
+    }
+
+    private List<String> batch() {
+        int from = ThreadLocalRandom.current().nextInt(PRELOADED - BATCH);
+        return Arrays.asList(tokens).subList(from, from + BATCH);
+    }
+
+    private static Jwt request(String username) {
+        Jwt request = new Jwt();
+        request.setUsername(username);
+        request.setPassword("pepitodelospalotes1234");
+        return request;
+    }
+
+    private static Jwt token(String token) {
+        Jwt request = new Jwt();
+        request.setAccess_token(token);
+        return request;
+    }
+}
@@ -0,0 +1,57 @@
+package com.rgbconsulting.jwt.benchmark;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import com.rgbconsulting.jwt.persistence.InMemoryTokenStore;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mesura la memòria ocupada per N tokens vius a InMemoryTokenStore i a un
+ * ConcurrentHashMap de String a Jwt.
+ *
+ * Els tokens es generen a partir d'un UUID que es descarta, de manera que
+ * només compta la memòria que reté cada estructura.
+ *
+ * java -Xmx12g -cp target/benchmarks.jar com.rgbconsulting.jwt.benchmark.TokenStoreFootprint 10000000
+ *
+ * @author sergi
+ */
+public class TokenStoreFootprint {
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        long now = System.currentTimeMillis();
+
+        long base = usedHeap();
+        InMemoryTokenStore store = new InMemoryTokenStore(64, Long.MAX_VALUE / 2);
+        for (int i = 0; i < size; i++) {
+            store.saveLogin("user" + (i % 10_000), UUID.randomUUID().toString(), 30, now, i % 10 == 0 ? "ADMIN" : "USER");
+        }
+        long storeBytes = usedHeap() - base;
+        System.out.printf("InMemoryTokenStore: %d tokens, %.1f MB, %.1f bytes/token%n",
+                store.size(), storeBytes / 1e6, storeBytes / (double) size);
+        store = null;
+
+        base = usedHeap();
+        ConcurrentHashMap<String, Jwt> map = new ConcurrentHashMap<>();
+        for (int i = 0; i < size; i++) {
+            Jwt jwt = new Jwt();
+            jwt.setUsername("user" + (i % 10_000));
+            jwt.setRole(i % 10 == 0 ? "ADMIN" : "USER");
+            jwt.setAccess_token(UUID.randomUUID().toString());
+            jwt.setTime_generated(now);
+            map.put(jwt.getAccess_token(), jwt);
+        }
+        long mapBytes = usedHeap() - base;
+        System.out.printf("ConcurrentHashMap<String, Jwt>: %d tokens, %.1f MB, %.1f bytes/token%n",
+                map.size(), mapBytes / 1e6, mapBytes / (double) size);
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
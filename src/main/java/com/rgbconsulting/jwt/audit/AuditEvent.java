@@ -0,0 +1,44 @@
+package com.rgbconsulting.jwt.audit;
+
+/**
+ * Tipus d'esdeveniment del diari d'auditoria. El codi és el byte que es desa
+ * a cada registre; no es pot canviar sense canviar la versió del format.
+ *
+ * El resultat (èxit o denegació) no és un tipus propi sinó el codi d'estat
+ * HTTP del registre: LOGIN 200 és un login correcte, LOGIN 401 una
+ * contrasenya incorrecta i LOGIN 429 un login limitat.
+ *
+ * @author sergi
+ */
+public enum AuditEvent {
+    LOGIN(1), REFRESH(2), LOGOUT(3), REVOKE(4), ACCESS(5);
+
+    private static final AuditEvent[] BY_CODE = new AuditEvent[8];
+
+    static {
+        for (AuditEvent e : values()) {
+            BY_CODE[e.code] = e;
+        }
+    }
+
+    private final byte code;
+
+    AuditEvent(int code) {
+        this.code = (byte) code;
+    }
+
+    /**
+     * @return Codi de l'esdeveniment al format binari
+     */
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * @param code Codi llegit d'un registre
+     * @return Tipus d'esdeveniment, o null si el codi és desconegut
+     */
+    public static AuditEvent of(int code) {
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,492 @@
+package com.rgbconsulting.jwt.audit;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToDoubleFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Diari d'auditoria binari i només d'afegir: logins, refrescos, logouts,
+ * revocacions i accessos denegats.
+ *
+ * Els fils de les peticions no escriuen res a disc ni agafen cap bloqueig:
+ * reserven una posició d'un anell de registres de mida fixa amb un CAS,
+ * hi copien el registre i el publiquen. Un únic fil escriptor copia els
+ * registres publicats, en ordre, a un segment mapat en memòria
+ * (MappedByteBuffer) i en fa force() cada "jwt.audit.force-interval-ms".
+ * Si l'anell és ple el registre es descarta i es compta, de manera que
+ * l'auditoria no pot frenar mai una petició.
+ *
+ * Cada segment ("audit-<ms de creació>.seg" a "jwt.audit.dir") comença amb
+ * una capçalera de HEADER_SIZE bytes (MAGIC, VERSION, RECORD_SIZE i el
+ * moment de creació) seguida de registres de RECORD_SIZE bytes:
+ *
+ * - 0: moment de l'esdeveniment (ms, long) - 8: empremta del token de qui
+ * fa la petició (long) - 16: empremta del token relacionat: el nou d'un
+ * refresc o el revocat per un administrador (long) - 24: tipus
+ * (AuditEvent) - 25 i 26: bytes de l'usuari i de l'adreça - 28: estat HTTP
+ * (short) - 32: usuari en UTF-8 (fins a TEXT_SIZE bytes) - 80: adreça
+ * remota (fins a TEXT_SIZE bytes)
+ *
+ * Els tokens no es desen mai: només una empremta de 64 bits que permet
+ * seguir una sessió (login, refrescos i logout) però no reconstruir el token.
+ *
+ * Un segment es tanca i es retalla a la mida escrita quan és ple
+ * ("jwt.audit.segment-bytes") o té més de "jwt.audit.roll-interval-ms", i
+ * els segments modificats per última vegada fa més de
+ * "jwt.audit.retention-ms" s'esborren. AuditReader els descodifica a text.
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnProperty(name = "jwt.audit.enabled", havingValue = "true", matchIfMissing = true)
+public class AuditJournal implements MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(AuditJournal.class);
+
+    /**
+     * "JWTAUDIT" en ASCII.
+     */
+    public static final long MAGIC = 0x4A57544155444954L;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 128;
+    public static final int TEXT_SIZE = 48;
+
+    public static final int TIMESTAMP = 0;
+    public static final int TOKEN = 8;
+    public static final int RELATED = 16;
+    public static final int TYPE = 24;
+    public static final int USER_LENGTH = 25;
+    public static final int ADDRESS_LENGTH = 26;
+    public static final int STATUS = 28;
+    public static final int USER = 32;
+    public static final int ADDRESS = 80;
+
+    public static final String PREFIX = "audit-";
+    public static final String SUFFIX = ".seg";
+
+    private static final int MAX_DRAIN = 1024;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final long rollIntervalMs;
+    private final long retentionMs;
+    private final long forceIntervalMs;
+
+    private final int capacity;
+    private final int mask;
+    private final byte[] slots;
+    private final ByteBuffer ring;
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // estat del fil escriptor
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentOpenedAt;
+    private boolean dirty;
+    private boolean failing;
+    private volatile Path segmentPath;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile long written;
+    private volatile long lost;
+    private volatile long segments;
+    private volatile long purged;
+    private volatile long forces;
+
+    public AuditJournal(@Value("${jwt.audit.dir:audit}") String dir,
+            @Value("${jwt.audit.ring-capacity:65536}") int ringCapacity,
+            @Value("${jwt.audit.segment-bytes:67108864}") long segmentBytes,
+            @Value("${jwt.audit.roll-interval-ms:3600000}") long rollIntervalMs,
+            @Value("${jwt.audit.retention-ms:604800000}") long retentionMs,
+            @Value("${jwt.audit.force-interval-ms:1000}") long forceIntervalMs) throws IOException {
+        this.dir = Files.createDirectories(Path.of(dir).toAbsolutePath());
+        long records = Math.max(1, (Math.min(segmentBytes, Integer.MAX_VALUE) - HEADER_SIZE) / RECORD_SIZE);
+        this.segmentBytes = HEADER_SIZE + records * RECORD_SIZE;
+        this.rollIntervalMs = rollIntervalMs;
+        this.retentionMs = retentionMs;
+        this.forceIntervalMs = forceIntervalMs;
+
+        int c = 2;
+        while (c < ringCapacity) {
+            c <<= 1;
+        }
+        this.capacity = c;
+        this.mask = c - 1;
+        this.slots = new byte[c * RECORD_SIZE];
+        this.ring = ByteBuffer.wrap(slots);
+        this.published = new AtomicLongArray(c);
+        for (int i = 0; i < c; i++) {
+            published.set(i, -1);
+        }
+
+        writer = new Thread(this::run, "jwt-audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Afegeix un esdeveniment al diari sense bloquejar: si l'anell és ple el
+     * registre es descarta.
+     *
+     * @param event Tipus d'esdeveniment
+     * @param status Codi d'estat HTTP de la resposta
+     * @param username Usuari, o null si no es coneix
+     * @param address Adreça remota, o null si no es coneix
+     * @param token Token de qui fa la petició, o null
+     * @param related Token relacionat (el nou d'un refresc o el revocat), o
+     * null
+     * @return false si el registre s'ha descartat
+     */
+    public boolean record(AuditEvent event, int status, CharSequence username, CharSequence address,
+            CharSequence token, CharSequence related) {
+        long seq;
+        do {
+            seq = tail.get();
+            if (!running || seq - head >= capacity) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        int slot = (int) (seq & mask);
+        int offset = slot * RECORD_SIZE;
+        ring.putLong(offset + TIMESTAMP, System.currentTimeMillis());
+        ring.putLong(offset + TOKEN, fingerprint(token));
+        ring.putLong(offset + RELATED, fingerprint(related));
+        ring.put(offset + TYPE, event.getCode());
+        ring.put(offset + USER_LENGTH, (byte) putText(offset + USER, username));
+        ring.put(offset + ADDRESS_LENGTH, (byte) putText(offset + ADDRESS, address));
+        ring.put(offset + ADDRESS_LENGTH + 1, (byte) 0);
+        ring.putShort(offset + STATUS, (short) status);
+        ring.putShort(offset + STATUS + 2, (short) 0);
+        published.set(slot, seq);
+        appended.increment();
+        return true;
+    }
+
+    /**
+     * Copia un text en UTF-8 a l'anell, tallat a TEXT_SIZE bytes sense partir
+     * cap caràcter, i omple de zeros la resta del camp.
+     *
+     * @return Bytes escrits
+     */
+    private int putText(int offset, CharSequence s) {
+        int n = 0;
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (Character.isSurrogate(c)) {
+                    c = '?';
+                }
+                if (c < 0x80) {
+                    if (n + 1 > TEXT_SIZE) {
+                        break;
+                    }
+                    slots[offset + n++] = (byte) c;
+                } else if (c < 0x800) {
+                    if (n + 2 > TEXT_SIZE) {
+                        break;
+                    }
+                    slots[offset + n++] = (byte) (0xC0 | c >> 6);
+                    slots[offset + n++] = (byte) (0x80 | c & 0x3F);
+                } else {
+                    if (n + 3 > TEXT_SIZE) {
+                        break;
+                    }
+                    slots[offset + n++] = (byte) (0xE0 | c >> 12);
+                    slots[offset + n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    slots[offset + n++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+        }
+        Arrays.fill(slots, offset + n, offset + TEXT_SIZE, (byte) 0);
+        return n;
+    }
+
+    /**
+     * Empremta d'un token (FNV-1a de 64 bits amb el mesclat final de
+     * MurmurHash3). Identifica el token dins el diari sense desar-lo.
+     *
+     * @param token Token
+     * @return Empremta, o 0 si el token és null
+     */
+    public static long fingerprint(CharSequence token) {
+        if (token == null) {
+            return 0;
+        }
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            h ^= token.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Bucle del fil escriptor: buida l'anell al segment actual, en fa
+     * force() periòdicament i el tanca quan toca. Quan ha buidat l'anell
+     * espera IDLE_NANOS abans de tornar-hi, de manera que es desperta com a
+     * molt mil vegades per segon i escriu els registres per lots en lloc de
+     * competir per la CPU amb els fils de les peticions per cada registre.
+     */
+    private void run() {
+        long lastForce = System.currentTimeMillis();
+        long deadline = Long.MAX_VALUE;
+        while (true) {
+            int drained = drain();
+            long now = System.currentTimeMillis();
+            if (dirty && now - lastForce >= forceIntervalMs) {
+                force();
+                lastForce = now;
+            }
+            if (segment != null && segment.position() > HEADER_SIZE && now - segmentOpenedAt >= rollIntervalMs) {
+                closeSegment();
+            }
+            if (drained == MAX_DRAIN) {
+                continue;
+            }
+            if (!running) {
+                // els registres reservats però no publicats s'esperen com a molt 1 segon
+                if (head == tail.get() || now >= deadline) {
+                    break;
+                }
+                deadline = Math.min(deadline, now + 1000);
+            }
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+        closeSegment();
+    }
+
+    /**
+     * Copia al segment els registres publicats a partir de "head", com a molt
+     * MAX_DRAIN, i allibera les seves posicions de l'anell.
+     *
+     * @return Registres copiats
+     */
+    private int drain() {
+        int n = 0;
+        long seq = head;
+        while (n < MAX_DRAIN) {
+            int slot = (int) (seq & mask);
+            if (published.get(slot) != seq) {
+                break;
+            }
+            append(slot * RECORD_SIZE);
+            head = ++seq;
+            n++;
+        }
+        return n;
+    }
+
+    private void append(int offset) {
+        try {
+            if (segment == null || segment.remaining() < RECORD_SIZE) {
+                closeSegment();
+                openSegment();
+            }
+            segment.put(slots, offset, RECORD_SIZE);
+            dirty = true;
+            written++;
+            failing = false;
+        } catch (IOException e) {
+            lost++;
+            if (!failing) {
+                failing = true;
+                log.warn("Audit journal write failed, dropping records until it recovers", e);
+            }
+        }
+    }
+
+    /**
+     * Crea un segment nou, hi escriu la capçalera i esborra els segments que
+     * han superat la retenció.
+     */
+    private void openSegment() throws IOException {
+        long now = System.currentTimeMillis();
+        Path path = dir.resolve(PREFIX + String.format("%013d", now) + SUFFIX);
+        for (long t = now + 1; Files.exists(path); t++) {
+            path = dir.resolve(PREFIX + String.format("%013d", t) + SUFFIX);
+        }
+        FileChannel created = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            segment = created.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } catch (IOException e) {
+            created.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        channel = created;
+        segment.putLong(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putLong(now).putLong(0);
+        segmentPath = path;
+        segmentOpenedAt = now;
+        segments++;
+        purge(now);
+    }
+
+    /**
+     * Fa force() del segment actual, el retalla a la mida escrita i el tanca.
+     */
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.force();
+            forces++;
+            channel.truncate(segment.position());
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Cannot close audit journal segment", e);
+        }
+        segment = null;
+        channel = null;
+        dirty = false;
+        purge(System.currentTimeMillis());
+    }
+
+    private void force() {
+        if (segment != null) {
+            segment.force();
+            forces++;
+        }
+        dirty = false;
+    }
+
+    /**
+     * Esborra els segments tancats modificats per última vegada fa més de
+     * "jwt.audit.retention-ms".
+     */
+    private void purge(long now) {
+        Path current = segment != null ? segmentPath : null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                if (!file.equals(current) && Files.getLastModifiedTime(file).toMillis() < now - retentionMs
+                        && Files.deleteIfExists(file)) {
+                    purged++;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot purge old audit journal segments", e);
+        }
+    }
+
+    /**
+     * @return Registres acceptats a l'anell
+     */
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    /**
+     * @return Registres descartats perquè l'anell era ple
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Registres escrits als segments
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return Registres a l'anell pendents d'escriure
+     */
+    public long getRingDepth() {
+        return Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * Registra jwt.audit.records (etiqueta result) i jwt.audit.ring_depth.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        records(registry, "appended", AuditJournal::getAppended);
+        records(registry, "written", AuditJournal::getWritten);
+        records(registry, "dropped", AuditJournal::getDropped);
+        Gauge.builder("jwt.audit.ring_depth", this, AuditJournal::getRingDepth)
+                .description("Registres d'auditoria pendents d'escriure")
+                .register(registry);
+    }
+
+    private void records(MeterRegistry registry, String result, ToDoubleFunction<AuditJournal> count) {
+        FunctionCounter.builder("jwt.audit.records", this, count)
+                .description("Registres d'auditoria per resultat")
+                .tag("result", result)
+                .register(registry);
+    }
+
+    /**
+     * Retorna l'estat del diari: l'anell, els registres acceptats, descartats,
+     * escrits i perduts per errors d'escriptura, i els segments.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        Path current = segmentPath;
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("dir", dir.toString());
+        metrics.put("ring_capacity", capacity);
+        metrics.put("ring_depth", getRingDepth());
+        metrics.put("appended", getAppended());
+        metrics.put("dropped", getDropped());
+        metrics.put("written", written);
+        metrics.put("lost", lost);
+        metrics.put("segments_created", segments);
+        metrics.put("segments_purged", purged);
+        metrics.put("forces", forces);
+        metrics.put("segment", current != null ? current.getFileName().toString() : null);
+        return metrics;
+    }
+
+    /**
+     * Deixa d'acceptar registres i espera que el fil escriptor hagi escrit els
+     * pendents i tancat el segment.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(5000);
+    }
+}
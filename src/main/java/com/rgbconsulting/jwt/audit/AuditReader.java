@@ -0,0 +1,149 @@
+package com.rgbconsulting.jwt.audit;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Descodifica els segments del diari d'auditoria (AuditJournal) a text, un
+ * esdeveniment per línia:
+ *
+ * 2026-10-18T09:15:02.114Z LOGIN 200 user=sergi addr=10.0.0.7
+ * token=5c1e0a9d3f2b7e41
+ *
+ * Accepta fitxers de segment o directoris; els segments d'un directori es
+ * llegeixen en ordre de creació. Es pot llegir el segment que s'està
+ * escrivint: la lectura s'atura al primer registre encara buit.
+ *
+ * Els refrescos, logouts i denegacions no sempre porten l'usuari: es resol
+ * seguint les empremtes dels tokens des del login (el login i cada refresc
+ * associen l'empremta del token nou a l'usuari), de manera que cal llegir
+ * els segments des del login de la sessió.
+ *
+ * java -cp target/classes com.rgbconsulting.jwt.audit.AuditReader audit/
+ *
+ * @author sergi
+ */
+public class AuditReader {
+
+    private final Map<Long, String> users = new HashMap<>();
+    private final PrintStream out;
+
+    public AuditReader(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: AuditReader <segment or directory>...");
+            return;
+        }
+        AuditReader reader = new AuditReader(System.out);
+        for (String arg : args) {
+            for (Path segment : segments(Path.of(arg))) {
+                reader.read(segment);
+            }
+        }
+    }
+
+    /**
+     * @param path Fitxer de segment o directori
+     * @return Segments a llegir, ordenats pel nom (moment de creació)
+     */
+    static List<Path> segments(Path path) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path,
+                    AuditJournal.PREFIX + "*" + AuditJournal.SUFFIX)) {
+                files.forEach(segments::add);
+            }
+            segments.sort(null);
+        } else {
+            segments.add(path);
+        }
+        return segments;
+    }
+
+    /**
+     * Escriu els esdeveniments d'un segment.
+     *
+     * @param segment Fitxer de segment
+     * @return Registres llegits
+     */
+    public int read(Path segment) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < AuditJournal.HEADER_SIZE || buffer.getLong(0) != AuditJournal.MAGIC) {
+            throw new IOException(segment + " is not an audit segment");
+        }
+        int version = buffer.getInt(8);
+        int recordSize = buffer.getInt(12);
+        if (version != AuditJournal.VERSION || recordSize != AuditJournal.RECORD_SIZE) {
+            throw new IOException(segment + ": unsupported version " + version + " (record size " + recordSize + ")");
+        }
+
+        int count = 0;
+        for (int offset = AuditJournal.HEADER_SIZE; offset + recordSize <= buffer.limit(); offset += recordSize) {
+            long timestamp = buffer.getLong(offset + AuditJournal.TIMESTAMP);
+            if (timestamp == 0) {
+                break;
+            }
+            out.println(decode(buffer, offset, timestamp));
+            count++;
+        }
+        return count;
+    }
+
+    private String decode(ByteBuffer buffer, int offset, long timestamp) {
+        AuditEvent event = AuditEvent.of(buffer.get(offset + AuditJournal.TYPE));
+        int status = buffer.getShort(offset + AuditJournal.STATUS);
+        long token = buffer.getLong(offset + AuditJournal.TOKEN);
+        long related = buffer.getLong(offset + AuditJournal.RELATED);
+        String user = text(buffer, offset + AuditJournal.USER, buffer.get(offset + AuditJournal.USER_LENGTH));
+        String address = text(buffer, offset + AuditJournal.ADDRESS, buffer.get(offset + AuditJournal.ADDRESS_LENGTH));
+
+        if (user.isEmpty() && token != 0) {
+            user = users.getOrDefault(token, "");
+        }
+        if (!user.isEmpty() && status < 300) {
+            if (event == AuditEvent.LOGIN && token != 0) {
+                users.put(token, user);
+            } else if (event == AuditEvent.REFRESH && related != 0) {
+                users.put(related, user);
+            }
+        }
+
+        StringBuilder line = new StringBuilder(128)
+                .append(Instant.ofEpochMilli(timestamp))
+                .append(' ').append(event != null ? event.name() : "UNKNOWN")
+                .append(' ').append(status)
+                .append(" user=").append(user.isEmpty() ? "-" : user)
+                .append(" addr=").append(address.isEmpty() ? "-" : address);
+        if (token != 0) {
+            line.append(" token=").append(String.format("%016x", token));
+        }
+        if (related != 0) {
+            line.append(event == AuditEvent.REFRESH ? " new=" : " target=").append(String.format("%016x", related));
+        }
+        return line.toString();
+    }
+
+    private static String text(ByteBuffer buffer, int offset, byte length) {
+        byte[] bytes = new byte[Math.min(length & 0xFF, AuditJournal.TEXT_SIZE)];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,145 @@
+package com.rgbconsulting.jwt.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Filtre de Bloom de cadenes de caràcters, dimensionat pel nombre d'elements
+ * esperats i la taxa de falsos positius desitjada.
+ *
+ * Amb n elements i una taxa p es fan servir m = -n·ln(p) / ln(2)² bits
+ * (arrodonits a paraules de 64 bits) i k = m/n·ln(2) funcions de hash,
+ * obtingudes d'un sol hash de 64 bits per doble hashing (h1 + i·h2). Les
+ * consultes treballen sobre una regió d'un CharSequence, de manera que es
+ * pot comprovar un token dins la capçalera Authorization sense crear cap
+ * objecte.
+ *
+ * Les insercions i les consultes es poden fer des de qualsevol fil. No es
+ * poden eliminar elements: per descartar-ne cal construir un filtre nou.
+ *
+ * @author sergi
+ */
+public final class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+    private final AtomicLong setBits = new AtomicLong();
+    private final AtomicLong insertions = new AtomicLong();
+
+    /**
+     * @param expected Nombre d'elements esperats
+     * @param fpp Taxa de falsos positius amb "expected" elements (entre 0 i 1)
+     */
+    public BloomFilter(long expected, double fpp) {
+        long n = Math.max(1, expected);
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (ln2 * ln2));
+        int length = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (m + 63) >>> 6));
+        this.words = new AtomicLongArray(length);
+        this.bits = length * 64L;
+        this.hashes = Math.max(1, (int) Math.round((double) bits / n * ln2));
+    }
+
+    /**
+     * Afegeix la regió [from, to) d'una seqüència de caràcters.
+     */
+    public void put(CharSequence s, int from, int to) {
+        long h1 = hash(s, from, to);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+            long mask = 1L << bit;
+            long previous = words.getAndAccumulate((int) (bit >>> 6), mask, (a, b) -> a | b);
+            if ((previous & mask) == 0) {
+                setBits.incrementAndGet();
+            }
+        }
+        insertions.incrementAndGet();
+    }
+
+    /**
+     * Comprova si la regió [from, to) pot ser al filtre.
+     *
+     * @return false si segur que no hi és; true si hi és o és un fals positiu
+     */
+    public boolean mightContain(CharSequence s, int from, int to) {
+        long h1 = hash(s, from, to);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Nombre de bits del filtre
+     */
+    public long getBits() {
+        return bits;
+    }
+
+    /**
+     * @return Nombre de funcions de hash
+     */
+    public int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * @return Memòria ocupada pels bits, en bytes
+     */
+    public long getBytes() {
+        return bits / 8;
+    }
+
+    /**
+     * @return Nombre d'insercions fetes (amb repeticions)
+     */
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    /**
+     * @return Fracció de bits a 1
+     */
+    public double getFillRatio() {
+        return setBits.get() / (double) bits;
+    }
+
+    /**
+     * Taxa de falsos positius esperada amb l'ocupació actual: la
+     * probabilitat que els k bits d'un element absent estiguin a 1.
+     *
+     * @return Taxa estimada entre 0 i 1
+     */
+    public double getEstimatedFpp() {
+        return Math.pow(getFillRatio(), hashes);
+    }
+
+    /**
+     * Hash de 64 bits (FNV-1a per caràcter seguit d'una barreja final).
+     */
+    private static long hash(CharSequence s, int from, int to) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Barreja final de MurmurHash3 (fmix64).
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,307 @@
+package com.rgbconsulting.jwt.cache;
+
+import com.rgbconsulting.jwt.persistence.StoreBusyException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Agrupa els refrescos concurrents d'un mateix token.
+ *
+ * Quan diversos fils d'un client reben 401 alhora i tots refresquen el mateix
+ * token, només el primer genera el token nou i fa l'UPDATE; els altres
+ * esperen el seu resultat (com a molt "jwt.refresh.wait-ms") i reben el
+ * mateix token nou. Sense això cada petició substitueix el token de la
+ * anterior i tots els clients menys un es queden amb un token ja invàlid,
+ * que provoca més 401 i més refrescos.
+ *
+ * Un cop fet, el refresc es recorda durant "jwt.refresh.grace-ms": un
+ * refresc del mateix token antic rep el mateix token nou sense tornar a
+ * escriure, i el token antic es continua acceptant (successor()) perquè les
+ * peticions que ja s'havien enviat amb ell no fallin. El període de gràcia
+ * és local a cada node.
+ *
+ * La variant servlet espera el refresc en curs bloquejant el fil
+ * (refresh()); la reactiva rep un Mono que es completa amb el mateix
+ * resultat (refreshAsync()).
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnProperty(name = "jwt.refresh.coalesce.enabled", havingValue = "true", matchIfMissing = true)
+public class RefreshCoalescer implements MeterBinder {
+
+    private final ConcurrentHashMap<String, Pending> refreshes = new ConcurrentHashMap<>();
+    private final long graceMs;
+    private final long waitMs;
+
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder graceAccepted = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder waitTimeouts = new LongAdder();
+
+    public RefreshCoalescer(@Value("${jwt.refresh.grace-ms:5000}") long graceMs,
+            @Value("${jwt.refresh.wait-ms:2000}") long waitMs) {
+        this.graceMs = graceMs;
+        this.waitMs = waitMs;
+    }
+
+    /**
+     * Refresc d'un token antic: el futur amb el token nou i, un cop
+     * completat, fins quan es recorda.
+     */
+    private static final class Pending extends CompletableFuture<String> {
+
+        private volatile long graceUntil = Long.MAX_VALUE;
+    }
+
+    /**
+     * Refresca un token, o s'afegeix al refresc del mateix token que ja està
+     * en curs o s'ha fet fa menys de grace-ms.
+     *
+     * @param oldToken Token a refrescar
+     * @param now Timestamp actual en mil·lisegons
+     * @param refresher Genera el token nou i el desa; només s'executa un cop
+     * per token antic
+     * @return Token nou, el mateix per a tots els refrescos agrupats
+     * @throws StoreBusyException si el refresc en curs no acaba a temps
+     */
+    public String refresh(String oldToken, long now, Supplier<String> refresher) {
+        if (oldToken == null) {
+            return refresher.get();
+        }
+        Pending created = new Pending();
+        Pending pending = join(oldToken, now, created);
+        if (pending != null) {
+            return await(pending);
+        }
+
+        leaders.increment();
+        try {
+            String newToken = refresher.get();
+            created.graceUntil = System.currentTimeMillis() + graceMs;
+            created.complete(newToken);
+            return newToken;
+        } catch (Throwable e) {
+            // els que esperen reben el mateix error, també si és un Error, i
+            // el proper refresc ho torna a provar
+            failures.increment();
+            refreshes.remove(oldToken, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Variant no bloquejant de refresh(): els refrescos agrupats reben un Mono
+     * que es completa quan acaba el del primer, sense ocupar cap fil mentre
+     * esperen.
+     *
+     * @param oldToken Token a refrescar
+     * @param now Timestamp actual en mil·lisegons
+     * @param refresher Genera el token nou i el desa; només se subscriu un
+     * cop per token antic
+     * @return Mono amb el token nou, el mateix per a tots els refrescos
+     * agrupats, buit si el refresher no n'ha generat cap, o error
+     * StoreBusyException si el refresc en curs no acaba a temps
+     */
+    public Mono<String> refreshAsync(String oldToken, long now, Supplier<Mono<String>> refresher) {
+        if (oldToken == null) {
+            return Mono.defer(refresher);
+        }
+        return Mono.defer(() -> {
+            Pending created = new Pending();
+            Pending pending = join(oldToken, now, created);
+            if (pending != null) {
+                return Mono.fromFuture(pending, true)
+                        .timeout(Duration.ofMillis(waitMs), Mono.error(() -> {
+                            waitTimeouts.increment();
+                            return new StoreBusyException("Concurrent refresh did not finish in time");
+                        }));
+            }
+
+            leaders.increment();
+            return refresher.get()
+                    .doOnNext(newToken -> {
+                        created.graceUntil = System.currentTimeMillis() + graceMs;
+                        created.complete(newToken);
+                    })
+                    .doOnError(e -> {
+                        failures.increment();
+                        refreshes.remove(oldToken, created);
+                        created.completeExceptionally(e);
+                    })
+                    .doFinally(signal -> {
+                        // buit o cancel·lat: no hi ha cap token nou per recordar
+                        if (!created.isDone()) {
+                            refreshes.remove(oldToken, created);
+                            created.complete(null);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * S'afegeix al refresc en curs o recordat d'un token, o registra
+     * "created" com a refresc nou si no n'hi ha cap (o el que hi ha ja ha
+     * superat el període de gràcia).
+     *
+     * @return Refresc existent, o null si el refresc nou és "created"
+     */
+    private Pending join(String oldToken, long now, Pending created) {
+        while (true) {
+            Pending pending = refreshes.putIfAbsent(oldToken, created);
+            if (pending == null) {
+                return null;
+            }
+            if (pending.isDone() && pending.graceUntil <= now) {
+                refreshes.remove(oldToken, pending);
+                continue;
+            }
+            (pending.isDone() ? replayed : coalesced).increment();
+            return pending;
+        }
+    }
+
+    /**
+     * Token que ha substituït un token refrescat fa menys de grace-ms.
+     *
+     * @param oldToken Token antic
+     * @param now Timestamp actual en mil·lisegons
+     * @return Token nou, o null si el token no s'ha refrescat o el període de
+     * gràcia ja ha passat
+     */
+    public String successor(String oldToken, long now) {
+        if (oldToken == null) {
+            return null;
+        }
+        Pending pending = refreshes.get(oldToken);
+        if (pending == null || !pending.isDone() || pending.isCompletedExceptionally() || pending.graceUntil <= now) {
+            return null;
+        }
+        graceAccepted.increment();
+        return pending.getNow(null);
+    }
+
+    /**
+     * Elimina els refrescos amb el període de gràcia acabat.
+     */
+    @Scheduled(fixedDelayString = "${jwt.refresh.purge-ms:1000}")
+    public void purge() {
+        long now = System.currentTimeMillis();
+        refreshes.values().removeIf(p -> p.isDone() && p.graceUntil <= now);
+    }
+
+    private String await(Pending pending) {
+        try {
+            return pending.get(waitMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            waitTimeouts.increment();
+            throw new StoreBusyException("Concurrent refresh did not finish in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreBusyException("Interrupted while waiting for a concurrent refresh");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return Refrescos que han escrit un token nou
+     */
+    public long getLeaders() {
+        return leaders.sum();
+    }
+
+    /**
+     * @return Refrescos resolts pel refresc en curs del mateix token
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return Refrescos repetits dins del període de gràcia
+     */
+    public long getReplayed() {
+        return replayed.sum();
+    }
+
+    /**
+     * @return Validacions d'un token antic acceptades pel període de gràcia
+     */
+    public long getGraceAccepted() {
+        return graceAccepted.sum();
+    }
+
+    /**
+     * @return Refrescos recordats o en curs
+     */
+    public int size() {
+        return refreshes.size();
+    }
+
+    /**
+     * Registra jwt.refresh.requests (etiqueta result) i
+     * jwt.refresh.grace_accepted.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        requests(registry, "updated", RefreshCoalescer::getLeaders);
+        requests(registry, "coalesced", RefreshCoalescer::getCoalesced);
+        requests(registry, "replayed", RefreshCoalescer::getReplayed);
+        FunctionCounter.builder("jwt.refresh.grace_accepted", this, RefreshCoalescer::getGraceAccepted)
+                .description("Validacions de tokens antics acceptades pel període de gràcia")
+                .register(registry);
+    }
+
+    private void requests(MeterRegistry registry, String result, ToDoubleFunction<RefreshCoalescer> count) {
+        FunctionCounter.builder("jwt.refresh.requests", this, count)
+                .description("Refrescos per resultat de l'agrupació")
+                .tag("result", result)
+                .register(registry);
+    }
+
+    /**
+     * Retorna la configuració i els comptadors d'agrupació.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("grace_ms", graceMs);
+        metrics.put("wait_ms", waitMs);
+        metrics.put("tracked", size());
+        metrics.put("updates", getLeaders());
+        metrics.put("coalesced", getCoalesced());
+        metrics.put("replayed", getReplayed());
+        metrics.put("grace_accepted", getGraceAccepted());
+        metrics.put("failures", failures.sum());
+        metrics.put("wait_timeouts", waitTimeouts.sum());
+        return metrics;
+    }
+}
@@ -0,0 +1,328 @@
+package com.rgbconsulting.jwt.cache;
+
+import com.rgbconsulting.jwt.persistence.RevocationStore;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Índex en memòria dels tokens revocats, perquè la validació sense base de
+ * dades (mode signat, o tokens UUID trobats a la cache) respecti els logouts
+ * i les revocacions de l'administrador.
+ *
+ * Els identificadors revocats es guarden en un BloomFilter dimensionat per
+ * "jwt.revocation.expected" revocacions dins la vida d'un token amb una taxa
+ * de falsos positius "jwt.revocation.fpp". Un negatiu del filtre (el cas
+ * habitual) descarta la revocació sense accedir a la base de dades; un
+ * positiu es confirma amb RevocationStore.isRevoked, de manera que un fals
+ * positiu només costa una consulta.
+ *
+ * El filtre es recarrega del RevocationStore cada "jwt.revocation.refresh-ms":
+ * incrementalment, amb les revocacions fetes des de l'última lectura (menys
+ * "jwt.revocation.overlap-ms" per cobrir la diferència de rellotges entre
+ * nodes i les transaccions lentes), i sencer cada "jwt.revocation.rebuild-ms"
+ * amb només les revocacions de tokens no expirats, ja que un filtre de Bloom
+ * no permet eliminar-ne. Les revocacions d'aquest node s'afegeixen al
+ * moment (també les fetes mentre es reconstrueix, que es tornen a afegir al
+ * filtre nou); les dels altres nodes es veuen com a molt al cap de
+ * refresh-ms.
+ *
+ * L'identificador d'un token és la seva signatura (el text després de
+ * l'últim punt) en mode signat, o el token sencer en mode uuid. Perquè un
+ * token revocat no es pugui tornar a presentar amb una altra codificació de
+ * la mateixa signatura, SignedTokenVerifier només accepta la codificació
+ * Base64url canònica (els bits sobrants de l'últim caràcter a zero); el
+ * cridant ha de verificar el token abans de consultar-lo aquí.
+ *
+ * Amb el perfil "reactive" la comprovació del filtre (mightBeRevoked) es fa
+ * a l'event loop i, només si dona positiu, la confirmació (confirmRevoked) i
+ * les revocacions es fan en un fil de Schedulers.boundedElastic(), ja que
+ * R2dbcRevocationStore bloqueja.
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnProperty(name = "jwt.revocation.enabled", havingValue = "true", matchIfMissing = true)
+public class RevocationIndex implements MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(RevocationIndex.class);
+
+    private final RevocationStore tokenStore;
+    private final long expected;
+    private final double fpp;
+    private final long rebuildMs;
+    private final long overlapMs;
+    private volatile BloomFilter filter;
+    /**
+     * Revocacions locals fetes mentre es reconstrueix el filtre, o null si no
+     * s'està reconstruint.
+     */
+    private volatile Queue<String> rebuildLog;
+    private long lastRefresh;
+    private long lastRebuild;
+    private boolean reported;
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder positives = new LongAdder();
+    private final LongAdder confirmed = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder revocations = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private volatile long lastRebuildMs;
+
+    public RevocationIndex(RevocationStore tokenStore,
+            @Value("${jwt.revocation.expected:10000}") long expected,
+            @Value("${jwt.revocation.fpp:0.01}") double fpp,
+            @Value("${jwt.revocation.rebuild-ms:30000}") long rebuildMs,
+            @Value("${jwt.revocation.overlap-ms:5000}") long overlapMs) {
+        this.tokenStore = tokenStore;
+        this.expected = expected;
+        this.fpp = fpp;
+        this.rebuildMs = rebuildMs;
+        this.overlapMs = overlapMs;
+        this.filter = new BloomFilter(expected, fpp);
+    }
+
+    /**
+     * Comprova si el token de la regió [from, to) està revocat. No crea cap
+     * objecte si el filtre dona negatiu.
+     *
+     * @param s Text que conté el token (p.ex. la capçalera Authorization)
+     * @param from Posició inicial del token
+     * @param to Posició final (exclosa) del token
+     * @return true si el token està revocat
+     */
+    public boolean isRevoked(CharSequence s, int from, int to) {
+        return mightBeRevoked(s, from, to) && confirmRevoked(s, from, to);
+    }
+
+    /**
+     * Comprova només el filtre, sense accedir a la base de dades ni crear cap
+     * objecte.
+     *
+     * @param s Text que conté el token
+     * @param from Posició inicial del token
+     * @param to Posició final (exclosa) del token
+     * @return false si el token segur que no està revocat; true si cal
+     * confirmar-ho amb confirmRevoked()
+     */
+    public boolean mightBeRevoked(CharSequence s, int from, int to) {
+        checks.increment();
+        if (!filter.mightContain(s, idStart(s, from, to), to)) {
+            return false;
+        }
+        positives.increment();
+        return true;
+    }
+
+    /**
+     * Confirma al RevocationStore un positiu de mightBeRevoked(). Bloqueja.
+     *
+     * @param s Text que conté el token
+     * @param from Posició inicial del token
+     * @param to Posició final (exclosa) del token
+     * @return true si el token està revocat
+     */
+    public boolean confirmRevoked(CharSequence s, int from, int to) {
+        if (tokenStore.isRevoked(s.subSequence(idStart(s, from, to), to).toString())) {
+            confirmed.increment();
+            return true;
+        }
+        falsePositives.increment();
+        return false;
+    }
+
+    /**
+     * @param token Token sencer
+     * @return true si el token està revocat
+     */
+    public boolean isRevoked(String token) {
+        return token != null && isRevoked(token, 0, token.length());
+    }
+
+    /**
+     * Revoca un token: el registra al RevocationStore i l'afegeix al filtre.
+     * Bloqueja.
+     *
+     * @param token Token sencer
+     * @param expiresAt Timestamp d'expiració del token en mil·lisegons
+     * @return true si s'ha registrat la revocació
+     */
+    public boolean revoke(String token, long expiresAt) {
+        int id = idStart(token, 0, token.length());
+        String revokedId = token.substring(id);
+        if (!tokenStore.revoke(revokedId, System.currentTimeMillis(), expiresAt)) {
+            return false;
+        }
+        // la lectura d'una reconstrucció en curs pot no veure aquesta fila
+        Queue<String> log = rebuildLog;
+        if (log != null) {
+            log.add(revokedId);
+        }
+        // si el filtre es canvia mentre s'hi afegeix, s'afegeix també al nou
+        BloomFilter current;
+        do {
+            current = filter;
+            current.put(token, id, token.length());
+        } while (current != filter);
+        revocations.increment();
+        return true;
+    }
+
+    /**
+     * Recàrrega periòdica del filtre.
+     */
+    @Scheduled(fixedDelayString = "${jwt.revocation.refresh-ms:1000}")
+    public void scheduledRefresh() {
+        refresh(System.currentTimeMillis());
+    }
+
+    /**
+     * Afegeix al filtre les revocacions noves o, si toca, el reconstrueix
+     * sencer amb les revocacions vigents.
+     *
+     * @param now Timestamp actual en mil·lisegons
+     */
+    public synchronized void refresh(long now) {
+        boolean rebuild = now - lastRebuild >= rebuildMs;
+        long start = System.nanoTime();
+        if (rebuild) {
+            rebuildLog = new ConcurrentLinkedQueue<>();
+        }
+        List<String> revoked = tokenStore.findRevokedSince(rebuild ? 0 : lastRefresh - overlapMs, now);
+        if (revoked == null) {
+            rebuildLog = null;
+            // es torna a llegir des del mateix punt a la propera execució
+            refreshFailures.increment();
+            if (!reported) {
+                log.warn("Revocation index refresh failed, keeping the current filter");
+                reported = true;
+            }
+            return;
+        }
+        reported = false;
+
+        if (rebuild) {
+            BloomFilter rebuilt = new BloomFilter(expected, fpp);
+            for (String id : revoked) {
+                rebuilt.put(id, 0, id.length());
+            }
+            filter = rebuilt;
+            // revocacions locals fetes durant la lectura; les posteriors ja
+            // s'afegeixen al filtre nou
+            for (String id : rebuildLog) {
+                rebuilt.put(id, 0, id.length());
+            }
+            rebuildLog = null;
+            lastRebuild = now;
+            rebuilds.increment();
+            lastRebuildMs = (System.nanoTime() - start) / 1_000_000;
+        } else {
+            BloomFilter current = filter;
+            for (String id : revoked) {
+                current.put(id, 0, id.length());
+            }
+        }
+        lastRefresh = now;
+        refreshes.increment();
+    }
+
+    /**
+     * Registra jwt.revocation.fpp (etiqueta kind: estimated o observed) i
+     * jwt.revocation.bytes.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("jwt.revocation.fpp", this, RevocationIndex::getEstimatedFpp)
+                .description("Taxa de falsos positius del filtre de revocacions")
+                .tag("kind", "estimated")
+                .register(registry);
+        Gauge.builder("jwt.revocation.fpp", this, RevocationIndex::getObservedFpp)
+                .description("Taxa de falsos positius del filtre de revocacions")
+                .tag("kind", "observed")
+                .register(registry);
+        Gauge.builder("jwt.revocation.bytes", this, RevocationIndex::getBytes)
+                .description("Memòria del filtre de revocacions")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Retorna la mida i ocupació del filtre i la taxa de falsos positius,
+     * estimada a partir dels bits a 1 i observada a les consultes.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        BloomFilter current = filter;
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("expected", expected);
+        metrics.put("target_fpp", fpp);
+        metrics.put("bits", current.getBits());
+        metrics.put("hash_functions", current.getHashes());
+        metrics.put("bytes", current.getBytes());
+        metrics.put("entries", current.getInsertions());
+        metrics.put("fill_ratio", current.getFillRatio());
+        metrics.put("estimated_fpp", current.getEstimatedFpp());
+        metrics.put("checks", checks.sum());
+        metrics.put("positives", positives.sum());
+        metrics.put("confirmed", confirmed.sum());
+        metrics.put("false_positives", falsePositives.sum());
+        metrics.put("observed_fpp", getObservedFpp());
+        metrics.put("revocations", revocations.sum());
+        metrics.put("refreshes", refreshes.sum());
+        metrics.put("refresh_failures", refreshFailures.sum());
+        metrics.put("rebuilds", rebuilds.sum());
+        metrics.put("last_rebuild_ms", lastRebuildMs);
+        return metrics;
+    }
+
+    /**
+     * @return Falsos positius respecte les consultes de tokens no revocats
+     */
+    public double getObservedFpp() {
+        long negatives = checks.sum() - confirmed.sum();
+        return negatives <= 0 ? 0.0 : falsePositives.sum() / (double) negatives;
+    }
+
+    /**
+     * @return Taxa de falsos positius esperada amb l'ocupació actual
+     */
+    public double getEstimatedFpp() {
+        return filter.getEstimatedFpp();
+    }
+
+    /**
+     * @return Memòria ocupada pel filtre, en bytes
+     */
+    public long getBytes() {
+        return filter.getBytes();
+    }
+
+    /**
+     * Inici de l'identificador d'un token: just després de l'últim punt (la
+     * signatura d'un JWT) o, si no n'hi ha, l'inici del token.
+     */
+    private static int idStart(CharSequence s, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (s.charAt(i) == '.') {
+                return i + 1;
+            }
+        }
+        return from;
+    }
+}
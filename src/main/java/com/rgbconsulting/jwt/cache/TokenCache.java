@@ -0,0 +1,435 @@
+package com.rgbconsulting.jwt.cache;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache en memòria dels tokens validats, indexada pel token.
+ *
+ * Cada entrada guarda el nom d'usuari, el rol i l'instant exacte en què el
+ * token expira (time_generated + MAXTIMEXPIRES). Una entrada expirada no es
+ * retorna mai: s'elimina en el moment de consultar-la i el cridant ha de
+ * tornar a la base de dades.
+ *
+ * La mida està acotada. Quan la cache és plena primer s'eliminen les
+ * entrades expirades i, si no n'hi ha prou, s'expulsa l'entrada que expira
+ * abans d'entre una petita mostra presa d'una zona aleatòria de la taula.
+ *
+ * Amb diversos nodes, TokenInvalidationChannel aplica a la cache les
+ * invalidacions publicades pels altres. Mentre el canal està desconnectat
+ * la cache es buida i les entrades noves es guarden com a molt "maxTtl"
+ * mil·lisegons (setMaxTtl), de manera que una invalidació perduda només pot
+ * deixar una entrada obsoleta durant aquest temps.
+ *
+ * En arrencar, TokenCacheWarmup hi carrega els tokens vigents de la base de
+ * dades amb warm(). Mentre dura la càrrega es recorden els tokens
+ * invalidats, perquè una fila llegida abans d'una invalidació no torni a
+ * entrar a la cache després.
+ *
+ * El mateix risc hi ha en cada lectura de la base de dades després d'una
+ * fallada de la cache: si la invalidació arriba mentre es llegeix la fila,
+ * el put posterior tornaria a guardar el token invalidat. Per evitar-ho,
+ * cada invalidació incrementa un número de generació (per franges de
+ * tokens) abans de treure l'entrada; el cridant llegeix la generació amb
+ * generation() abans de consultar la base de dades i la passa a put(), que
+ * no guarda res, o treu el que ha guardat, si la generació ha canviat.
+ *
+ * @author sergi
+ */
+@Component
+public class TokenCache implements MeterBinder {
+
+    private static final int EVICTION_SAMPLE = 8;
+    private static final long PURGE_INTERVAL_MS = 1000;
+    private static final long UNBOUNDED = -1;
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final int maxSize;
+    private volatile long lastPurge;
+    private volatile long maxTtlMs = UNBOUNDED;
+    private volatile Warmup warmup;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public TokenCache(@Value("${jwt.cache.max-size:100000}") int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Dades d'un token guardades a la cache.
+     */
+    public static final class Entry {
+
+        private final String username;
+        private final String role;
+        private final long expiresAt;
+        // moment en què l'entrada deixa de ser vàlida a la cache (com a molt expiresAt)
+        private final long evictAt;
+
+        public Entry(String username, String role, long expiresAt) {
+            this(username, role, expiresAt, expiresAt);
+        }
+
+        private Entry(String username, String role, long expiresAt, long evictAt) {
+            this.username = username;
+            this.role = role;
+            this.expiresAt = expiresAt;
+            this.evictAt = evictAt;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getRole() {
+            return role;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    /**
+     * Invalidacions rebudes durant una càrrega inicial.
+     */
+    private static final class Warmup {
+
+        private final Set<String> invalidated = ConcurrentHashMap.newKeySet();
+        private volatile boolean cleared;
+    }
+
+    /**
+     * Obté l'entrada d'un token si existeix i encara no ha expirat.
+     *
+     * @param token Token a cercar
+     * @param now Timestamp actual en mil·lisegons
+     * @return L'entrada del token, o null si no hi és o ja ha expirat
+     */
+    public Entry get(String token, long now) {
+        if (token == null) {
+            misses.increment();
+            return null;
+        }
+        Entry entry = entries.get(token);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (now >= entry.evictAt) {
+            if (entries.remove(token, entry)) {
+                expirations.increment();
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * Guarda un token a la cache fins al moment en què expira, o com a molt
+     * "maxTtl" mil·lisegons si està limitat.
+     *
+     * @param token Token a guardar
+     * @param username Nom d'usuari associat
+     * @param role Rol associat
+     * @param expiresAt Timestamp en mil·lisegons en què el token expira
+     * @param now Timestamp actual en mil·lisegons
+     * @return Entrada guardada, o null si no s'ha guardat
+     */
+    public Entry put(String token, String username, String role, long expiresAt, long now) {
+        if (token == null || expiresAt <= now || maxSize <= 0) {
+            return null;
+        }
+        if (entries.size() >= maxSize && !entries.containsKey(token)) {
+            makeRoom(now);
+        }
+        long ttl = maxTtlMs;
+        long evictAt = ttl == UNBOUNDED ? expiresAt : Math.min(expiresAt, now + ttl);
+        Entry entry = new Entry(username, role, expiresAt, evictAt);
+        entries.put(token, entry);
+        return entry;
+    }
+
+    /**
+     * Generació actual de les invalidacions d'un token. S'ha de llegir abans
+     * de consultar-lo a la base de dades i passar-la a put().
+     *
+     * @param token Token que es consultarà
+     * @return Generació de la franja del token
+     */
+    public long generation(String token) {
+        return token == null ? 0 : generations.get(stripe(token));
+    }
+
+    /**
+     * Guarda un token llegit de la base de dades si no s'ha invalidat des que
+     * es va llegir la generació.
+     *
+     * @param token Token a guardar
+     * @param username Nom d'usuari associat
+     * @param role Rol associat
+     * @param expiresAt Timestamp en mil·lisegons en què el token expira
+     * @param now Timestamp actual en mil·lisegons
+     * @param generation Valor de generation(token) llegit abans de la lectura
+     */
+    public void put(String token, String username, String role, long expiresAt, long now, long generation) {
+        if (token == null || generations.get(stripe(token)) != generation) {
+            return;
+        }
+        Entry entry = put(token, username, role, expiresAt, now);
+        // una invalidació concurrent incrementa la generació abans de treure
+        // l'entrada: o ja l'ha treta ella, o es veu aquí el canvi
+        if (entry != null && generations.get(stripe(token)) != generation) {
+            entries.remove(token, entry);
+        }
+    }
+
+    /**
+     * Elimina un token de la cache, per exemple quan es refresca.
+     *
+     * @param token Token a eliminar
+     */
+    public void invalidate(String token) {
+        Warmup w = warmup;
+        if (w != null && token != null) {
+            w.invalidated.add(token);
+        }
+        if (token == null) {
+            return;
+        }
+        generations.incrementAndGet(stripe(token));
+        if (entries.remove(token) != null) {
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Buida tota la cache.
+     */
+    public void invalidateAll() {
+        Warmup w = warmup;
+        if (w != null) {
+            w.cleared = true;
+        }
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        int size = entries.size();
+        entries.clear();
+        invalidations.add(size);
+    }
+
+    /**
+     * Comença una càrrega inicial: a partir d'ara es recorden els tokens
+     * invalidats fins a endWarmup().
+     */
+    public void beginWarmup() {
+        warmup = new Warmup();
+    }
+
+    /**
+     * Acaba la càrrega inicial i oblida els tokens invalidats.
+     */
+    public void endWarmup() {
+        warmup = null;
+    }
+
+    /**
+     * Guarda un token llegit per la càrrega inicial, sense substituir una
+     * entrada existent ni expulsar-ne cap. Un token invalidat des de
+     * beginWarmup() no s'hi guarda.
+     *
+     * @param token Token a guardar
+     * @param username Nom d'usuari associat
+     * @param role Rol associat
+     * @param expiresAt Timestamp en mil·lisegons en què el token expira
+     * @param now Timestamp actual en mil·lisegons
+     * @return false si la càrrega s'ha d'aturar: la cache és plena, s'ha
+     * buidat o no hi ha cap càrrega en curs
+     */
+    public boolean warm(String token, String username, String role, long expiresAt, long now) {
+        Warmup w = warmup;
+        if (w == null || w.cleared || entries.size() >= maxSize) {
+            return false;
+        }
+        if (token == null || expiresAt <= now || w.invalidated.contains(token)) {
+            return true;
+        }
+        long ttl = maxTtlMs;
+        long evictAt = ttl == UNBOUNDED ? expiresAt : Math.min(expiresAt, now + ttl);
+        Entry entry = new Entry(username, role, expiresAt, evictAt);
+        // una invalidació concurrent ja s'ha recordat o treu l'entrada ella mateixa
+        if (entries.putIfAbsent(token, entry) == null && (w.invalidated.contains(token) || w.cleared)) {
+            entries.remove(token, entry);
+        }
+        return true;
+    }
+
+    private static int stripe(String token) {
+        return token.hashCode() & (GENERATION_STRIPES - 1);
+    }
+
+    /**
+     * Limita quant temps es guarden les entrades noves.
+     *
+     * @param ttlMs Temps màxim en mil·lisegons, o un valor negatiu perquè es
+     * guardin fins que expiri el token
+     */
+    public void setMaxTtl(long ttlMs) {
+        this.maxTtlMs = ttlMs < 0 ? UNBOUNDED : ttlMs;
+    }
+
+    /**
+     * @return Nombre màxim d'entrades
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return Nombre d'entrades guardades (incloses les expirades encara no
+     * eliminades)
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Registra jwt.tokens.live (etiqueta source=cache): entrades a la cache.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("jwt.tokens.live", this, TokenCache::size)
+                .description("Tokens vius")
+                .tag("source", "cache")
+                .register(registry);
+    }
+
+    /**
+     * Retorna els comptadors de la cache per poder-ne ajustar la mida.
+     *
+     * @return Mapa ordenat amb les mètriques de la cache
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long h = hits.sum();
+        long m = misses.sum();
+        metrics.put("size", entries.size());
+        metrics.put("max_size", maxSize);
+        metrics.put("max_ttl_ms", maxTtlMs);
+        metrics.put("hits", h);
+        metrics.put("misses", m);
+        metrics.put("hit_ratio", h + m == 0 ? 0.0 : (double) h / (h + m));
+        metrics.put("evictions", evictions.sum());
+        metrics.put("expirations", expirations.sum());
+        metrics.put("invalidations", invalidations.sum());
+        return metrics;
+    }
+
+    /**
+     * Allibera espai quan la cache és plena.
+     */
+    private void makeRoom(long now) {
+        // primer les entrades expirades (com a molt un recorregut per interval)
+        if (now - lastPurge >= PURGE_INTERVAL_MS) {
+            lastPurge = now;
+            entries.entrySet().removeIf(e -> {
+                if (now >= e.getValue().evictAt) {
+                    expirations.increment();
+                    return true;
+                }
+                return false;
+            });
+            if (entries.size() < maxSize) {
+                return;
+            }
+        }
+
+        // si encara és plena, expulso la que expira abans d'una mostra
+        while (entries.size() >= maxSize) {
+            String victim = evictionCandidate(sample());
+            if (victim == null) {
+                // la zona triada era buida: mostra des de l'inici de la taula
+                victim = evictionCandidate(entries.entrySet().spliterator());
+            }
+            if (victim == null) {
+                return;
+            }
+            if (entries.remove(victim) != null) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Recorregut d'una zona aleatòria de la taula amb unes quantes entrades,
+     * de manera que les mostres successives no surtin sempre de les primeres
+     * posicions. Cada trySplit() parteix la zona restant per la meitat, sense
+     * recórrer-la.
+     */
+    private Spliterator<Map.Entry<String, Entry>> sample() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Spliterator<Map.Entry<String, Entry>> zone = entries.entrySet().spliterator();
+        while (zone.estimateSize() > 2 * EVICTION_SAMPLE) {
+            Spliterator<Map.Entry<String, Entry>> lower = zone.trySplit();
+            if (lower == null) {
+                break;
+            }
+            if (random.nextBoolean()) {
+                zone = lower;
+            }
+        }
+        return zone;
+    }
+
+    /**
+     * @return Token que expira abans d'entre les primeres EVICTION_SAMPLE
+     * entrades de la zona, o null si la zona és buida
+     */
+    private String evictionCandidate(Spliterator<Map.Entry<String, Entry>> zone) {
+        Candidate candidate = new Candidate();
+        for (int i = 0; i < EVICTION_SAMPLE; i++) {
+            if (!zone.tryAdvance(candidate)) {
+                break;
+            }
+        }
+        return candidate.token;
+    }
+
+    /**
+     * Entrada de la mostra que expira abans.
+     */
+    private static final class Candidate implements Consumer<Map.Entry<String, Entry>> {
+
+        private String token;
+        private long evictAt = Long.MAX_VALUE;
+
+        @Override
+        public void accept(Map.Entry<String, Entry> e) {
+            if (e.getValue().evictAt < evictAt) {
+                token = e.getKey();
+                evictAt = e.getValue().evictAt;
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.rgbconsulting.jwt.cache;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import com.rgbconsulting.jwt.persistence.TokenStore;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+
+/**
+ * Càrrega inicial de la TokenCache amb els tokens encara vigents de la taula
+ * "jwt" (time_generated dins dels últims MAXTIMEXPIRES), perquè després d'un
+ * reinici o d'un desplegament la primera onada de /jwt/secure/ping no vagi
+ * tota alhora a la base de dades.
+ *
+ * Els tokens es llegeixen amb TokenStore.streamSince(), dels més recents als
+ * més antics, per un cursor que porta "jwt.cache.warmup.fetch-size" files
+ * per viatge. Es reparteixen en blocs de la mateixa mida entre
+ * "jwt.cache.warmup.threads" fils que els guarden a la cache; si tots estan
+ * ocupats i la cua de blocs és plena, el fil que llegeix carrega el bloc ell
+ * mateix i el cursor s'espera. Així la memòria de la càrrega no depèn de la
+ * mida de la taula: com a molt hi ha (2 * threads + 2) blocs a més de les
+ * files del cursor. La càrrega s'atura quan la cache és plena, de manera que
+ * s'hi queden els tokens amb més vida restant.
+ *
+ * La càrrega es fa en un ApplicationRunner, que Spring Boot executa abans
+ * de marcar l'aplicació com a preparada per rebre tràfic: la sonda de
+ * readiness (/actuator/health/readiness) respon OUT_OF_SERVICE fins que la
+ * càrrega acaba o passen "jwt.cache.warmup.timeout-ms". En aquest cas la
+ * càrrega s'atura i l'aplicació arrenca amb el que s'hagi carregat.
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(name = "jwt.cache.warmup.enabled", havingValue = "true", matchIfMissing = true)
+public class TokenCacheWarmup implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenCacheWarmup.class);
+
+    private static final long TOKEN_LIFETIME_MS = 30 * 1000;  // igual que MAXTIMEXPIRES
+
+    private final TokenStore tokenStore;
+    private final TokenCache tokenCache;
+    private final int fetchSize;
+    private final int threads;
+    private final long timeoutMs;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final LongAdder streamed = new LongAdder();
+    private final LongAdder loaded = new LongAdder();
+    private volatile String state = "pending";
+    private volatile boolean cancelled;
+    private volatile boolean stopped;
+    private volatile long elapsedMs = -1;
+    private List<Jwt> chunk;
+
+    public TokenCacheWarmup(TokenStore tokenStore, TokenCache tokenCache,
+            @Value("${jwt.cache.warmup.fetch-size:1000}") int fetchSize,
+            @Value("${jwt.cache.warmup.threads:2}") int threads,
+            @Value("${jwt.cache.warmup.timeout-ms:10000}") long timeoutMs) {
+        this.tokenStore = tokenStore;
+        this.tokenCache = tokenCache;
+        this.fetchSize = Math.max(1, fetchSize);
+        this.threads = Math.max(1, threads);
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Comença la càrrega en un fil propi i n'espera el final com a molt
+     * "jwt.cache.warmup.timeout-ms".
+     */
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        Thread reader = new Thread(this::load, "jwt-cache-warmup");
+        reader.setDaemon(true);
+        reader.start();
+        if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+            cancelled = true;
+            state = "timed_out";
+            log.warn("Cache warm-up timed out after {} ms with {} tokens loaded", timeoutMs, loaded.sum());
+        }
+    }
+
+    private void load() {
+        long start = System.nanoTime();
+        state = "loading";
+        tokenCache.beginWarmup();
+        ThreadPoolExecutor loaders = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads), task -> {
+                    Thread loader = new Thread(task, "jwt-cache-warmup-loader");
+                    loader.setDaemon(true);
+                    return loader;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        long rows = -1;
+        try {
+            rows = tokenStore.streamSince(System.currentTimeMillis() - TOKEN_LIFETIME_MS, fetchSize, jwt -> {
+                streamed.increment();
+                List<Jwt> full = add(jwt);
+                if (full != null) {
+                    loaders.execute(() -> load(full));
+                }
+                return !cancelled && !stopped;
+            });
+            List<Jwt> rest = takeChunk();
+            if (rest != null) {
+                loaders.execute(() -> load(rest));
+            }
+            loaders.shutdown();
+            loaders.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            loaders.shutdownNow();
+            tokenCache.endWarmup();
+            elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (!cancelled) {
+                state = rows < 0 ? "failed" : "done";
+            }
+            log.info("Cache warm-up {}: {} of {} tokens loaded in {} ms", state, loaded.sum(), streamed.sum(), elapsedMs);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Afegeix un token al bloc en curs.
+     *
+     * @return El bloc, si s'ha omplert, o null
+     */
+    private synchronized List<Jwt> add(Jwt jwt) {
+        if (chunk == null) {
+            chunk = new ArrayList<>(fetchSize);
+        }
+        chunk.add(jwt);
+        if (chunk.size() < fetchSize) {
+            return null;
+        }
+        List<Jwt> full = chunk;
+        chunk = null;
+        return full;
+    }
+
+    private synchronized List<Jwt> takeChunk() {
+        List<Jwt> rest = chunk;
+        chunk = null;
+        return rest;
+    }
+
+    /**
+     * Guarda un bloc de tokens a la cache. Si la cache és plena o s'ha buidat
+     * durant la càrrega, la càrrega s'atura.
+     */
+    private void load(List<Jwt> tokens) {
+        long now = System.currentTimeMillis();
+        for (Jwt jwt : tokens) {
+            if (cancelled || stopped) {
+                return;
+            }
+            if (!tokenCache.warm(jwt.getAccess_token(), jwt.getUsername(), jwt.getRole(),
+                    jwt.getTime_generated() + TOKEN_LIFETIME_MS, now)) {
+                stopped = true;
+                return;
+            }
+            loaded.increment();
+        }
+    }
+
+    /**
+     * Retorna l'estat de la càrrega inicial: pending, loading, done, failed o
+     * timed_out, els tokens llegits i guardats, si s'ha aturat perquè la
+     * cache era plena o s'ha buidat, i la durada.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("state", state);
+        metrics.put("fetch_size", fetchSize);
+        metrics.put("threads", threads);
+        metrics.put("timeout_ms", timeoutMs);
+        metrics.put("streamed", streamed.sum());
+        metrics.put("loaded", loaded.sum());
+        metrics.put("stopped", stopped);
+        metrics.put("elapsed_ms", elapsedMs);
+        return metrics;
+    }
+}
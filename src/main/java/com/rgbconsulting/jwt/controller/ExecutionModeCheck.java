@@ -0,0 +1,46 @@
+package com.rgbconsulting.jwt.controller;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+
+/**
+ * Informa a l'arrencada del mode d'execució de les peticions.
+ *
+ * Amb "spring.threads.virtual.enabled=true" Tomcat atén cada petició en un
+ * fil virtual en lloc del pool de fils de plataforma
+ * ("server.tomcat.threads.max"), i les peticions bloquejades a JDBC deixen
+ * de limitar el throughput; la concurrència real contra la base de dades la
+ * limita el JdbcBulkhead. Spring només activa els fils virtuals amb Java 21
+ * o superior: amb versions anteriors la propietat s'ignoraria en silenci,
+ * així que l'aplicació no arrenca. Aquest mode no s'ha mesurat amb Java 21.
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class ExecutionModeCheck {
+
+    private static final Logger log = LoggerFactory.getLogger(ExecutionModeCheck.class);
+
+    private final boolean virtualThreads;
+
+    public ExecutionModeCheck(@Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    @PostConstruct
+    public void report() {
+        int java = Runtime.version().feature();
+        if (!virtualThreads) {
+            log.info("Execution mode: platform threads");
+        } else if (java < 21) {
+            throw new IllegalStateException("spring.threads.virtual.enabled=true requires Java 21 (running " + java + ")");
+        } else {
+            log.info("Execution mode: virtual threads");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.rgbconsulting.jwt.controller;
+
+import com.rgbconsulting.jwt.cache.TokenCache;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Resposta d'introspecció d'un token a l'estil de l'RFC 7662, amb les
+ * capçaleres que permeten a un proxy invers o a un sidecar guardar-la.
+ *
+ * Un token actiu retorna active, username, role, iat i exp (en segons) amb
+ * "Cache-Control: max-age" igual a la vida que li queda al token (arrodonida
+ * a la baixa, perquè cap còpia sobrevisqui al token), "Vary: Authorization"
+ * perquè la còpia sigui per token, i un ETag derivat de les dades del token.
+ * Si la petició porta un If-None-Match que coincideix es respon 304 sense
+ * cos. Un token expirat o desconegut retorna només {"active": false} amb
+ * "Cache-Control: no-store".
+ *
+ * La fan servir JwtController i ReactiveJwtController.
+ *
+ * @author sergi
+ */
+final class IntrospectionResponse {
+
+    private IntrospectionResponse() {
+    }
+
+    /**
+     * Construeix la resposta d'introspecció.
+     *
+     * @param entry Dades del token (usuari, rol i moment d'expiració), o null
+     * si el token és desconegut
+     * @param lifetimeMs Temps de vida total dels tokens en mil·lisegons
+     * @param now Timestamp actual en mil·lisegons
+     * @param ifNoneMatch Valor de la capçalera If-None-Match, o null
+     * @return Resposta 200 amb les dades, o 304 si l'ETag coincideix
+     */
+    static ResponseEntity<Map<String, Object>> of(TokenCache.Entry entry, long lifetimeMs, long now, String ifNoneMatch) {
+        if (entry == null || now >= entry.getExpiresAt()) {
+            return ResponseEntity.ok()
+                    .cacheControl(CacheControl.noStore())
+                    .body(Map.of("active", false));
+        }
+
+        long remainingMs = entry.getExpiresAt() - now;
+        String etag = etag(entry);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setCacheControl(CacheControl.maxAge(remainingMs / 1000, TimeUnit.SECONDS)
+                .cachePublic().mustRevalidate());
+        headers.setVary(List.of(HttpHeaders.AUTHORIZATION));
+        headers.setETag(etag);
+
+        if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+            return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("active", true);
+        body.put("username", entry.getUsername());
+        body.put("role", entry.getRole());
+        body.put("iat", (entry.getExpiresAt() - lifetimeMs) / 1000);
+        body.put("exp", entry.getExpiresAt() / 1000);
+        return new ResponseEntity<>(body, headers, HttpStatus.OK);
+    }
+
+    /**
+     * @return true si la resposta és un 304
+     */
+    static boolean isNotModified(ResponseEntity<?> response) {
+        return response.getStatusCode() == HttpStatus.NOT_MODIFIED;
+    }
+
+    /**
+     * ETag feble a partir de les dades del token: canvia si canvien l'usuari,
+     * el rol o l'expiració.
+     */
+    private static String etag(TokenCache.Entry entry) {
+        int hash = 31 * (31 * String.valueOf(entry.getUsername()).hashCode()
+                + String.valueOf(entry.getRole()).hashCode()) + Long.hashCode(entry.getExpiresAt());
+        return "W/\"" + Integer.toHexString(hash) + "-" + Long.toHexString(entry.getExpiresAt()) + "\"";
+    }
+
+    /**
+     * Comprova si l'If-None-Match ("*" o una llista d'ETags, forts o febles)
+     * inclou l'ETag actual. La comparació és feble, com demana l'RFC 9110.
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        String opaque = etag.substring(2);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.equals("*")) {
+                return true;
+            }
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
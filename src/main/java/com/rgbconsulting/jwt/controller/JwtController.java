@@ -1,18 +1,46 @@
 package com.rgbconsulting.jwt.controller;
 
+import com.rgbconsulting.jwt.audit.AuditEvent;
+import com.rgbconsulting.jwt.audit.AuditJournal;
+import com.rgbconsulting.jwt.cache.RefreshCoalescer;
+import com.rgbconsulting.jwt.cache.RevocationIndex;
+import com.rgbconsulting.jwt.cache.TokenCache;
+import com.rgbconsulting.jwt.limit.LoginGate;
+import com.rgbconsulting.jwt.limit.LoginOverloadedException;
+import com.rgbconsulting.jwt.limit.LoginRateLimitedException;
+import com.rgbconsulting.jwt.metrics.AuthMetrics;
+import com.rgbconsulting.jwt.metrics.AuthMetrics.Endpoint;
+import com.rgbconsulting.jwt.metrics.AuthMetrics.StoreOperation;
+import com.rgbconsulting.jwt.metrics.AuthMetrics.Validation;
 import com.rgbconsulting.jwt.model.Jwt;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import com.rgbconsulting.jwt.model.TokenIntrospection;
+import com.rgbconsulting.jwt.persistence.LoginBacklogException;
+import com.rgbconsulting.jwt.persistence.StoreBusyException;
+import com.rgbconsulting.jwt.persistence.TokenStore;
+import com.rgbconsulting.jwt.token.SignedTokenService;
+import com.rgbconsulting.jwt.token.SignedTokenVerifier;
+import com.rgbconsulting.jwt.token.TokenClaims;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.server.ResponseStatusException;
 
 /**
@@ -29,56 +57,135 @@ import org.springframework.web.server.ResponseStatusException;
  * USER: accés només a /jwt/secure/*
  *
  * Tots els tokens s'emmagatzemen a la base de dades PostgreSQL amb un temps
- * d'expiració de 30 segons.
+ * d'expiració de 30 segons. L'accés a la base de dades es fa a través de
+ * TokenStore: per defecte JdbcTokenStore, que reutilitza les connexions d'un
+ * pool acotat, o InMemoryTokenStore amb "jwt.store=memory".
+ *
+ * Amb "jwt.token.mode=signed" els tokens emesos són JWT signats amb
+ * HMAC-SHA256 i els endpoints segurs els validen només verificant la
+ * signatura i l'expiració, sense consultar la base de dades. Per defecte
+ * ("uuid") els tokens són UUID validats contra la base de dades.
+ *
+ * Els tokens es poden revocar abans que expirin (logout o revocació per
+ * l'administrador). Cada validació d'un token vigent es comprova contra el
+ * RevocationIndex, un filtre en memòria que només consulta la base de dades
+ * quan dona positiu.
+ *
+ * Amb el perfil "reactive" l'aplicació arrenca amb WebFlux i aquests
+ * endpoints els serveix ReactiveJwtController.
+ *
+ * Cada endpoint es temporitza amb AuthMetrics, que també observa cada
+ * operació del TokenStore amb una Observation de Micrometer i compta els
+ * tokens vàlids, expirats i desconeguts i els accessos d'administració
+ * denegats.
+ *
+ * Els logins, refrescos, logouts i revocacions, correctes o no, i els
+ * accessos denegats s'afegeixen a l'AuditJournal, que els escriu en segon
+ * pla sense bloquejar la petició.
  *
  * @author sergi
  */
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class JwtController {
 
-    private static String URL = "jdbc:postgresql://localhost:5432/jwt_db";
-    private static String USER = "sergi";
-    private static String PASS = "odoo1234";
     private static int MAXTIMEXPIRES = 30 * 1000;  // 30,000 milliseconds
 
+    private final TokenStore tokenStore;
+    private final TokenCache tokenCache;
+    private final SignedTokenService signedTokens;
+    private final SignedTokenVerifier tokenVerifier;
+    private final boolean signedMode;
+    private final AuthMetrics metrics;
+    private final int maxIntrospectBatch;
+    private final LoginGate loginGate;
+    private final Optional<RevocationIndex> revocations;
+    private final Optional<RefreshCoalescer> refreshes;
+    private final Optional<AuditJournal> audit;
+
+    public JwtController(TokenStore tokenStore, TokenCache tokenCache, SignedTokenService signedTokens,
+            @Value("${jwt.token.mode:uuid}") String tokenMode, AuthMetrics metrics,
+            @Value("${jwt.introspect.max-batch:1000}") int maxIntrospectBatch, LoginGate loginGate,
+            Optional<RevocationIndex> revocations, Optional<RefreshCoalescer> refreshes,
+            Optional<AuditJournal> audit) {
+        this.tokenStore = tokenStore;
+        this.audit = audit;
+        this.revocations = revocations;
+        this.loginGate = loginGate;
+        this.refreshes = refreshes;
+        this.metrics = metrics;
+        this.maxIntrospectBatch = maxIntrospectBatch;
+        this.tokenCache = tokenCache;
+        this.signedTokens = signedTokens;
+        this.tokenVerifier = signedTokens.verifier();
+        this.signedMode = "signed".equalsIgnoreCase(tokenMode);
+    }
+
     /**
-     * Realitza el login d'un usuari i genera un token d'accés UUID.
+     * Realitza el login d'un usuari i genera un token d'accés (UUID o JWT
+     * signat segons el mode configurat).
      *
      * Assigna el rol automàticament segons el nom d'usuari: - "sergi" → rol
      * ADMIN - qualsevol altre → rol USER
      *
-     * Emmagatzema les credencials, el token i el rol a la base de dades, i
-     * retorna la informació d'autenticació al client.
+     * Comprova la contrasenya amb el CredentialVerifier, emmagatzema el token i
+     * el rol a la base de dades (sense la contrasenya), i retorna la informació
+     * d'autenticació al client.
+     *
+     * Abans d'accedir a la base de dades el LoginLimiter aplica el ritme
+     * màxim per usuari i per adreça remota (429 amb Retry-After) i el límit
+     * de logins en curs (503). La verificació de la contrasenya es fa dins
+     * d'aquest límit, en un pool de fils propi; si el pool està saturat també
+     * es respon 503.
      *
      * @param request Objecte Jwt amb les credencials de l'usuari (username,
      * password)
      * @return Objecte Jwt amb el token generat, temps d'expiració (30 segons),
      * nom d'usuari, timestamp de generació i rol assignat
+     * @throws ResponseStatusException 401 UNAUTHORIZED si la contrasenya no és
+     * correcta
      */
     @PostMapping("/jwt/auth/login")
     public Jwt login(@RequestBody Jwt request) {
+        long start = System.nanoTime();
+        try {
+            Jwt response = loginGate.login(request.getUsername(), request.getPassword(),
+                    remoteAddress(), () -> doLogin(request));
+            audit(AuditEvent.LOGIN, 200, request.getUsername(), response.getAccess_token(), null);
+            return response;
+        } catch (RuntimeException e) {
+            audit(AuditEvent.LOGIN, statusOf(e), request.getUsername(), null, null);
+            throw e;
+        } finally {
+            metrics.endpoint(Endpoint.LOGIN, start);
+        }
+    }
+
+    private Jwt doLogin(Jwt request) {
         String role;
         // objecte de resposta
         Jwt response = new Jwt();
+        long now = System.currentTimeMillis();
+
+        if (request.getUsername().equals("sergi")) {
+            role = "ADMIN";
+        } else {
+            role = "USER";
+        }
 
         // generate token
-        String token = UUID.randomUUID().toString();
+        String token = generateToken(request.getUsername(), role, now);
 
         // preparo la resposta
         response.setAccess_token(token);
         response.setExpires_in(MAXTIMEXPIRES);
         response.setUsername(request.getUsername());
-        response.setTime_generated(System.currentTimeMillis());
-
-        if (request.getUsername().equals("sergi")) {
-            role = "ADMIN";
-        } else {
-            role = "USER";
-        }
+        response.setTime_generated(now);
         response.setRole(role);
 
         // aqui ho ficaria dins la base de dades
-        doDbLogin(request.getUsername(), request.getPassword(), token, 30, System.currentTimeMillis(), role);
+        metrics.store(StoreOperation.SAVE_LOGIN, () -> tokenStore.saveLogin(request.getUsername(), token, 30, now, role));
+        tokenCache.put(token, request.getUsername(), role, now + MAXTIMEXPIRES, now);
 
         return response;
     }
@@ -90,18 +197,89 @@ public class JwtController {
      * actualitza el timestamp de generació per reiniciar el temps d'expiració.
      * El rol de l'usuari es conserva sense canvis.
      *
-     * Si el token antic no existeix a la base de dades, la operació no afecta
-     * cap registre i retorna el nou token igualment.
+     * Si el token antic no existeix a la base de dades (o un altre refresc ja
+     * l'ha substituït) es retorna 401 i el client ha de tornar a fer login. Si
+     * la base de dades falla es retorna 503 i el token antic continua sent
+     * vàlid, de manera que el client pot tornar-ho a provar. El token antic
+     * s'elimina sempre de la cache.
+     *
+     * En mode signat, l'usuari i el rol del nou token s'obtenen del token
+     * antic (amb signatura vàlida encara que hagi expirat) o, si no es pot
+     * verificar, de la base de dades. Si no es troba enlloc es retorna 401.
+     *
+     * Un token revocat no es pot refrescar.
+     *
+     * Els refrescos concurrents del mateix token s'agrupen amb el
+     * RefreshCoalescer: només un fa l'UPDATE i tots reben el mateix token nou,
+     * igual que els refrescos repetits durant el període de gràcia, en què el
+     * token antic també es continua acceptant.
      *
      * @param request Objecte Jwt amb el token actual (access_token) a refrescar
-     * @return String amb el nou token UUID generat
+     * @return String amb el nou token generat
+     * @throws ResponseStatusException 401 UNAUTHORIZED si el token antic està
+     * revocat o és desconegut
+     * @throws StoreBusyException si el magatzem no ha pogut fer la
+     * substitució (503)
      */
     @PostMapping("/jwt/auth/refresh")
     public String refresh(@RequestBody Jwt request) {
+        long start = System.nanoTime();
+        try {
+            String newToken = doRefresh(request);
+            audit(AuditEvent.REFRESH, 200, null, request.getAccess_token(), newToken);
+            return newToken;
+        } catch (RuntimeException e) {
+            audit(AuditEvent.REFRESH, statusOf(e), null, request.getAccess_token(), null);
+            throw e;
+        } finally {
+            metrics.endpoint(Endpoint.REFRESH, start);
+        }
+    }
+
+    private String doRefresh(Jwt request) {
         String oldToken = request.getAccess_token();
-        String newToken = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis();
+
+        if (oldToken != null && isRevoked(oldToken, 0, oldToken.length())) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token revoked");
+        }
+        if (refreshes.isPresent()) {
+            return refreshes.get().refresh(oldToken, now, () -> replaceToken(oldToken, now));
+        }
+        return replaceToken(oldToken, now);
+    }
+
+    /**
+     * Genera el token que substitueix "oldToken" i en fa la substitució al
+     * TokenStore i a la cache.
+     *
+     * @throws ResponseStatusException 401 UNAUTHORIZED si el TokenStore no ha
+     * trobat el token antic (no hi és o un altre node l'ha refrescat); el
+     * client no rep cap token que no s'hagi desat
+     */
+    private String replaceToken(String oldToken, long now) {
+        String newToken;
+        if (signedMode) {
+            TokenCache.Entry old = verifySigned(oldToken);
+            if (old == null && oldToken != null) {
+                Jwt stored = findByToken(oldToken);
+                if (stored != null) {
+                    old = new TokenCache.Entry(stored.getUsername(), stored.getRole(), stored.getTime_generated() + MAXTIMEXPIRES);
+                }
+            }
+            if (old == null) {
+                throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token unknown");
+            }
+            newToken = generateToken(old.getUsername(), old.getRole(), now);
+        } else {
+            newToken = UUID.randomUUID().toString();
+        }
 
-        updateToken(oldToken, newToken);
+        String updated = metrics.store(StoreOperation.UPDATE_TOKEN, () -> tokenStore.updateToken(oldToken, newToken, now));
+        tokenCache.invalidate(oldToken);
+        if (updated == null) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token unknown");
+        }
 
         return newToken;
     }
@@ -112,28 +290,61 @@ public class JwtController {
      *
      * Valida el token rebut a la capçalera Authorization, comprova que no hagi
      * expirat (màxim 30 segons des de la generació), i retorna confirmació amb
-     * el nom d'usuari associat al token.
+     * el nom d'usuari associat al token. En mode signat la validació es fa
+     * només amb la signatura, sense accedir a la base de dades.
      *
      * @param authHeader Capçalera Authorization en format "Bearer {token}"
      * @return String de confirmació amb el nom d'usuari si el token és vàlid
      * @throws ResponseStatusException 401 UNAUTHORIZED si el token és invàlid,
-     * expirat o no present
+     * expirat, revocat o no present
      */
     @GetMapping("/jwt/secure/ping")
     public String getSecurePing(@RequestHeader("Authorization") String authHeader) {
+        long start = System.nanoTime();
+        try {
+            return doSecurePing(authHeader);
+        } catch (RuntimeException e) {
+            audit(AuditEvent.ACCESS, statusOf(e), null, bearer(authHeader), null);
+            throw e;
+        } finally {
+            metrics.endpoint(Endpoint.SECURE_PING, start);
+        }
+    }
+
+    private String doSecurePing(String authHeader) {
         String token = null;
-        String username = "";
+        long now = System.currentTimeMillis();
+
+        if (signedMode) {
+            // verificacio sobre la mateixa capçalera, sense substring ni base de dades
+            SignedTokenVerifier.Claims claims = tokenVerifier.verifyBearer(authHeader);
+            if (claims != null && now < claims.getExpiresAt()) {
+                if (isRevoked(authHeader, 7, authHeader.length())) {
+                    throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token revoked");
+                }
+                metrics.validation(Validation.VALID);
+                return "ok: true, user: " + claims.getUsername();
+            }
+            metrics.validation(claims == null ? Validation.UNKNOWN : Validation.EXPIRED);
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired");
+        }
 
         if (authHeader != null && authHeader.startsWith("Bearer ")) {
             token = authHeader.substring(7); // Quita "Bearer "
-            username = getValidToken(token, System.currentTimeMillis());
-            if (username != null) {
-                return "ok: true, user: " + username;
+            TokenCache.Entry entry = lookupToken(token, now);
+            if (entry != null && now < entry.getExpiresAt()) {
+                if (isRevoked(token, 0, token.length())) {
+                    throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token revoked");
+                }
+                metrics.validation(Validation.VALID);
+                return "ok: true, user: " + entry.getUsername();
             } else {
+                metrics.validation(entry == null ? Validation.UNKNOWN : Validation.EXPIRED);
                 throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired");
             }
         }
 
+        metrics.validation(Validation.UNKNOWN);
         throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired");
 
     }
@@ -148,16 +359,21 @@ public class JwtController {
      */
     @GetMapping("/jwt/public/ping")
     public String getPublicPing() {
-
-        return "ok: " + true + ", user: " + "unknown";
+        long start = System.nanoTime();
+        try {
+            return "ok: " + true + ", user: " + "unknown";
+        } finally {
+            metrics.endpoint(Endpoint.PUBLIC_PING, start);
+        }
     }
 
     /**
      * Endpoint d'administració exclusiu per a usuaris amb rol ADMIN.
      *
      * Extreu el token de la capçalera Authorization, consulta el rol associat a
-     * la base de dades i verifica que sigui ADMIN. No valida l'expiració del
-     * token, només el rol.
+     * la cache o a la base de dades (o el llegeix del token en mode signat) i
+     * verifica que sigui ADMIN. No valida l'expiració del
+     * token, només el rol i que no estigui revocat.
      *
      * A diferència dels endpoints segurs, retorna el codi d'estat dins el cos
      * de la resposta en lloc de llançar una excepció HTTP.
@@ -168,168 +384,434 @@ public class JwtController {
      */
     @GetMapping("/jwt/admin/test")
     public String getAdminTest(@RequestHeader("Authorization") String authHeader) {
-        // agafo el rol del usuari
-        String token = null;
-        if (authHeader != null && authHeader.startsWith("Bearer ")) {
-            token = authHeader.substring(7);
+        long start = System.nanoTime();
+        try {
+            return doAdminTest(authHeader);
+        } catch (RuntimeException e) {
+            audit(AuditEvent.ACCESS, statusOf(e), null, bearer(authHeader), null);
+            throw e;
+        } finally {
+            metrics.endpoint(Endpoint.ADMIN_TEST, start);
+        }
+    }
+
+    private String doAdminTest(String authHeader) {
+        boolean admin;
+        String username;
+        if (signedMode) {
+            SignedTokenVerifier.Claims claims = tokenVerifier.verifyBearer(authHeader);
+            if (claims == null) {
+                metrics.validation(Validation.UNKNOWN);
+            }
+            admin = claims != null && claims.hasRole("ADMIN") && !isRevoked(authHeader, 7, authHeader.length());
+            username = claims != null ? claims.getUsername() : null;
+        } else {
+            // agafo el rol del usuari
+            String token = null;
+            if (authHeader != null && authHeader.startsWith("Bearer ")) {
+                token = authHeader.substring(7);
+            }
+            TokenCache.Entry entry = lookupToken(token, System.currentTimeMillis());
+            String role = entry != null ? entry.getRole() : null;
+            if (role == null) {
+                metrics.validation(Validation.UNKNOWN);
+            }
+            admin = role.equals("ADMIN") && !isRevoked(token, 0, token.length());
+            username = entry.getUsername();
         }
-        String role = getRoleFromToken(token);
 
-        if (role.equals("ADMIN")) {
+        if (admin) {
             return "STATUS CODE: " + HttpStatus.ACCEPTED + "\nHAS ACCEDIT COM ADMIN!";
         } else {
+            metrics.roleDenied();
+            audit(AuditEvent.ACCESS, HttpStatus.UNAUTHORIZED.value(), username, bearer(authHeader), null);
             return "STATUS CODE: " + HttpStatus.UNAUTHORIZED + " / NO ETS ADMIN!";
         }
     }
 
-    /*
-        METODOS BASE DE DATOS
-     */
     /**
-     * Actualitza un token existent a la base de dades substituint-lo per un de
-     * nou.
+     * Valida un lot de tokens en una sola petició, pensat per a passarel·les
+     * d'API que en validen molts per segon.
      *
-     * Cerca el registre pel token antic i l'actualitza amb el nou token i el
-     * timestamp actual, reiniciant així el temps d'expiració.
+     * Cada token es cerca primer a la cache; tots els que no hi són es
+     * resolen amb una sola consulta al TokenStore (findByTokens), en lloc
+     * d'una petició HTTP i un SELECT per token. Els tokens trobats i encara
+     * vàlids es guarden a la cache. En mode signat es verifica la signatura
+     * de cada token, sense accedir a la base de dades.
      *
-     * @param oldToken Token actual que es vol substituir
-     * @param newToken Nou token UUID que substituirà l'antic
-     * @return El nou token si l'actualització ha tingut èxit, null si no s'ha
-     * trobat el token antic o s'ha produït un error de base de dades
+     * @param tokens Array JSON amb els tokens a validar
+     * @return Un resultat per token, en el mateix ordre: actiu (vigent i no
+     * revocat) o no i, si ho és, usuari, rol i mil·lisegons de vida restants
+     * @throws ResponseStatusException 413 PAYLOAD_TOO_LARGE si el lot supera
+     * "jwt.introspect.max-batch"
      */
-    private String updateToken(String oldToken, String newToken) {
-        String query = "UPDATE jwt SET acces_token = ?, time_generated = ? WHERE acces_token = ?";
+    @PostMapping(value = "/jwt/auth/introspect", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public List<TokenIntrospection> introspect(@RequestBody List<String> tokens) {
+        long start = System.nanoTime();
+        try {
+            return doIntrospect(tokens);
+        } finally {
+            metrics.endpoint(Endpoint.INTROSPECT, start);
+        }
+    }
 
-        try (Connection connection = DriverManager.getConnection(URL, USER, PASS); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+    private List<TokenIntrospection> doIntrospect(List<String> tokens) {
+        if (tokens.size() > maxIntrospectBatch) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "At most " + maxIntrospectBatch + " tokens per request");
+        }
+        metrics.introspectBatch(tokens.size());
+        long now = System.currentTimeMillis();
+        TokenCache.Entry[] entries = new TokenCache.Entry[tokens.size()];
 
-            preparedStatement.setString(1, newToken);
-            preparedStatement.setLong(2, System.currentTimeMillis());
-            preparedStatement.setString(3, oldToken);
+        if (signedMode) {
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = verifySigned(tokens.get(i));
+            }
+        } else {
+            Set<String> misses = new LinkedHashSet<>();
+            long[] generations = new long[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = tokenCache.get(tokens.get(i), now);
+                if (entries[i] == null && tokens.get(i) != null) {
+                    generations[i] = tokenCache.generation(tokens.get(i));
+                    misses.add(tokens.get(i));
+                }
+            }
 
-            int rowsAffected = preparedStatement.executeUpdate();
+            if (!misses.isEmpty()) {
+                Map<String, Jwt> found = metrics.store(StoreOperation.FIND_BY_TOKENS, () -> tokenStore.findByTokens(misses));
+                for (int i = 0; i < entries.length; i++) {
+                    Jwt jwt = entries[i] == null ? found.get(tokens.get(i)) : null;
+                    if (jwt != null) {
+                        long expiresAt = jwt.getTime_generated() + MAXTIMEXPIRES;
+                        tokenCache.put(jwt.getAccess_token(), jwt.getUsername(), jwt.getRole(), expiresAt, now, generations[i]);
+                        entries[i] = new TokenCache.Entry(jwt.getUsername(), jwt.getRole(), expiresAt);
+                    }
+                }
+            }
+        }
 
-            if (rowsAffected > 0) {
-                System.out.println("Token actualizado correctamente");
-                return newToken;
+        List<TokenIntrospection> results = new ArrayList<>(entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            TokenCache.Entry entry = entries[i];
+            if (entry == null) {
+                metrics.validation(Validation.UNKNOWN);
+                results.add(new TokenIntrospection(tokens.get(i), false, null, null, null));
+            } else if (now >= entry.getExpiresAt()) {
+                metrics.validation(Validation.EXPIRED);
+                results.add(new TokenIntrospection(tokens.get(i), false, null, null, null));
+            } else if (isRevoked(tokens.get(i), 0, tokens.get(i).length())) {
+                results.add(new TokenIntrospection(tokens.get(i), false, null, null, null));
             } else {
-                System.out.println("Token no encontrado");
-                return null;
+                metrics.validation(Validation.VALID);
+                results.add(new TokenIntrospection(tokens.get(i), true, entry.getUsername(), entry.getRole(),
+                        entry.getExpiresAt() - now));
             }
-
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return null;
         }
+        return results;
     }
 
     /**
-     * Insereix un nou registre de login a la base de dades.
+     * Introspecció d'un token a l'estil de l'RFC 7662, pensada perquè un
+     * proxy invers o un sidecar en guardi la resposta.
      *
-     * Emmagatzema les credencials de l'usuari, el token generat, el temps
-     * d'expiració, el timestamp de generació i el rol assignat.
+     * El token és el de la capçalera Authorization. Si és actiu es retornen
+     * active, username, role, iat i exp amb "Cache-Control: max-age" igual a
+     * la vida restant del token (time_generated + MAXTIMEXPIRES - ara),
+     * "Vary: Authorization" i un ETag; amb un If-None-Match que coincideix es
+     * respon 304. Si no és actiu (expirat, desconegut o revocat) es retorna
+     * {"active": false} sense permetre guardar-lo (vegeu IntrospectionResponse).
      *
-     * @param username Nom d'usuari
-     * @param password Contrasenya de l'usuari
-     * @param access_token Token UUID generat per aquest login
-     * @param expires_in Temps d'expiració en segons
-     * @param time_generated Timestamp en mil·lisegons del moment de generació
-     * @param role Rol assignat a l'usuari ("ADMIN" o "USER")
+     * @param authHeader Capçalera Authorization en format "Bearer {token}"
+     * @param ifNoneMatch Capçalera If-None-Match opcional
+     * @return Resposta d'introspecció, o 304 si no ha canviat
+     */
+    @GetMapping("/jwt/auth/introspect")
+    public ResponseEntity<Map<String, Object>> introspectToken(
+            @RequestHeader(value = "Authorization", required = false) String authHeader,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        String token = authHeader != null && authHeader.startsWith("Bearer ") ? authHeader.substring(7) : null;
+        return introspectOne(token, ifNoneMatch);
+    }
+
+    /**
+     * Introspecció d'un token enviat com a formulari ("token=..."), tal com
+     * defineix l'RFC 7662. La resposta és la mateixa que la del GET.
+     *
+     * @param token Token a validar
+     * @param ifNoneMatch Capçalera If-None-Match opcional
+     * @return Resposta d'introspecció, o 304 si no ha canviat
      */
-    private void doDbLogin(String username, String password, String access_token, int expires_in, long time_generated, String role) {
-        try (Connection connection = DriverManager.getConnection(URL, USER, PASS)) {
-            String query = "INSERT INTO jwt (username, password, acces_token, expires_in, time_generated, role) "
-                    + "VALUES (?, ?, ?, ?, ?, ?)";
-            PreparedStatement preparedStatement = connection.prepareStatement(query);
-
-            // Setear los parámetros
-            preparedStatement.setString(1, username);
-            preparedStatement.setString(2, password);
-            preparedStatement.setString(3, access_token);
-            preparedStatement.setInt(4, expires_in);
-            preparedStatement.setLong(5, time_generated);
-            preparedStatement.setString(6, role);
-
-            // Ejecutar la consulta
-            int rowsAffected = preparedStatement.executeUpdate();
-
-            // Procesar los resultados
-            if (rowsAffected > 0) {
-                System.out.println("Login saved");
+    @PostMapping(value = "/jwt/auth/introspect", consumes = MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+    public ResponseEntity<Map<String, Object>> introspectForm(@RequestParam("token") String token,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        return introspectOne(token, ifNoneMatch);
+    }
+
+    private ResponseEntity<Map<String, Object>> introspectOne(String token, String ifNoneMatch) {
+        long start = System.nanoTime();
+        try {
+            long now = System.currentTimeMillis();
+            TokenCache.Entry entry = signedMode ? verifySigned(token) : lookupToken(token, now);
+            if (entry == null) {
+                metrics.validation(Validation.UNKNOWN);
+            } else if (now >= entry.getExpiresAt()) {
+                metrics.validation(Validation.EXPIRED);
+            } else if (isRevoked(token, 0, token.length())) {
+                entry = null;
+            } else {
+                metrics.validation(Validation.VALID);
             }
 
-            preparedStatement.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+            ResponseEntity<Map<String, Object>> response = IntrospectionResponse.of(entry, MAXTIMEXPIRES, now, ifNoneMatch);
+            if (IntrospectionResponse.isNotModified(response)) {
+                metrics.notModified();
+            }
+            return response;
+        } finally {
+            metrics.endpoint(Endpoint.INTROSPECT_TOKEN, start);
         }
     }
 
     /**
-     * Valida un token comprovant que existeix a la base de dades i no ha
-     * expirat.
+     * Tanca la sessió revocant el token de la capçalera Authorization, de
+     * manera que deixa de ser vàlid abans d'expirar en tots els nodes.
      *
-     * Executa una consulta que filtra pel token i verifica que la diferència
-     * entre el temps actual i el temps de generació sigui inferior a
-     * MAXTIMEXPIRES.
-     *
-     * @param token Token UUID a validar
-     * @param time Timestamp actual en mil·lisegons per calcular l'expiració
-     * @return Nom d'usuari associat al token si és vàlid i no ha expirat, null
-     * si el token no existeix o ha expirat
+     * @param authHeader Capçalera Authorization en format "Bearer {token}"
+     * @return 204 NO_CONTENT si s'ha revocat (o ja ho estava)
+     * @throws ResponseStatusException 401 UNAUTHORIZED si el token és invàlid
+     * o expirat
      */
-    private String getValidToken(String token, long time) {
-        try (Connection connection = DriverManager.getConnection(URL, USER, PASS)) {
-            String query = "SELECT * FROM jwt WHERE acces_token = ? AND (? - time_generated) < ?";
-            PreparedStatement preparedStatement = connection.prepareStatement(query);
-            // Setear los parámetros
-            preparedStatement.setString(1, token);
-            preparedStatement.setLong(2, time);
-            preparedStatement.setInt(3, MAXTIMEXPIRES);
-            // Ejecutar la consulta
-            ResultSet resultSet = preparedStatement.executeQuery();
-            // Procesar los resultados
-            if (resultSet.next()) {
-                String user = resultSet.getString("username");
-                System.out.println("User found: " + user);
-                return user;
-            } else {
-                System.out.println("User no encontrado");
+    @PostMapping("/jwt/auth/logout")
+    public ResponseEntity<Void> logout(@RequestHeader("Authorization") String authHeader) {
+        long start = System.nanoTime();
+        try {
+            String token = authHeader != null && authHeader.startsWith("Bearer ") ? authHeader.substring(7) : null;
+            long now = System.currentTimeMillis();
+            TokenCache.Entry entry = token == null ? null : signedMode ? verifySigned(token) : lookupToken(token, now);
+            if (entry == null || now >= entry.getExpiresAt()) {
+                throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired");
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            revokeToken(token, entry.getExpiresAt());
+            audit(AuditEvent.LOGOUT, HttpStatus.NO_CONTENT.value(), entry.getUsername(), token, null);
+            return ResponseEntity.noContent().build();
+        } catch (RuntimeException e) {
+            audit(AuditEvent.LOGOUT, statusOf(e), null, bearer(authHeader), null);
+            throw e;
+        } finally {
+            metrics.endpoint(Endpoint.LOGOUT, start);
         }
-        return null;
     }
 
     /**
-     * Obté el rol associat a un token de la base de dades.
+     * Revoca el token d'un altre usuari. Exclusiu per al rol ADMIN, amb un
+     * token vigent i no revocat.
      *
-     * Consulta únicament el camp "role" sense verificar l'expiració del token.
-     * S'utilitza per als endpoints d'administració on cal comprovar el rol
-     * independentment de la validesa temporal del token.
+     * @param authHeader Capçalera Authorization de l'administrador en format
+     * "Bearer {token}"
+     * @param request Objecte Jwt amb el token a revocar (access_token)
+     * @return 204 NO_CONTENT si s'ha revocat, o si ja havia expirat
+     * @throws ResponseStatusException 401 UNAUTHORIZED si el token de
+     * l'administrador és invàlid, expirat o revocat, 403 FORBIDDEN si no és
+     * ADMIN i 404 NOT_FOUND si el token a revocar és desconegut
+     */
+    @PostMapping("/jwt/admin/revoke")
+    public ResponseEntity<Void> revoke(@RequestHeader("Authorization") String authHeader, @RequestBody Jwt request) {
+        long start = System.nanoTime();
+        try {
+            return doRevoke(authHeader, request.getAccess_token());
+        } catch (RuntimeException e) {
+            audit(AuditEvent.REVOKE, statusOf(e), null, bearer(authHeader), request.getAccess_token());
+            throw e;
+        } finally {
+            metrics.endpoint(Endpoint.REVOKE, start);
+        }
+    }
+
+    private ResponseEntity<Void> doRevoke(String authHeader, String token) {
+        String caller = authHeader != null && authHeader.startsWith("Bearer ") ? authHeader.substring(7) : null;
+        long now = System.currentTimeMillis();
+        TokenCache.Entry admin = caller == null ? null : signedMode ? verifySigned(caller) : lookupToken(caller, now);
+        if (admin == null || now >= admin.getExpiresAt() || isRevoked(caller, 0, caller.length())) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired");
+        }
+        if (!"ADMIN".equals(admin.getRole())) {
+            metrics.roleDenied();
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Admin role required");
+        }
+
+        TokenCache.Entry target = token == null ? null : signedMode ? verifySigned(token) : lookupToken(token, now);
+        if (target == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Token unknown");
+        }
+        if (now < target.getExpiresAt()) {
+            revokeToken(token, target.getExpiresAt());
+        }
+        audit(AuditEvent.REVOKE, HttpStatus.NO_CONTENT.value(), admin.getUsername(), caller, token);
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Revoca un token vigent i el treu de la cache local (els altres nodes el
+     * treuen en rebre l'esdeveniment "revoke").
      *
-     * @param token Token UUID del qual es vol obtenir el rol
-     * @return String amb el rol ("ADMIN" o "USER") si el token existeix, null
-     * si no es troba o s'ha produït un error de base de dades
+     * @throws ResponseStatusException 501 NOT_IMPLEMENTED si les revocacions
+     * estan desactivades, 503 SERVICE_UNAVAILABLE si no s'han pogut desar
      */
-    private String getRoleFromToken(String token) {
-        try (Connection connection = DriverManager.getConnection(URL, USER, PASS)) {
-            String query = "SELECT role FROM jwt WHERE acces_token = ?";
-            PreparedStatement preparedStatement = connection.prepareStatement(query);
-            // Setear los parámetros
-            preparedStatement.setString(1, token);
-            // Ejecutar la consulta
-            ResultSet resultSet = preparedStatement.executeQuery();
-            // Procesar los resultados
-            if (resultSet.next()) {
-                String role = resultSet.getString("role");
-                System.out.println("Role found: " + role);
-                return role;
-            } else {
-                System.out.println("Role no encontrado");
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private void revokeToken(String token, long expiresAt) {
+        if (revocations.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "Revocation disabled");
+        }
+        if (!revocations.get().revoke(token, expiresAt)) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Revocation not stored");
+        }
+        tokenCache.invalidate(token);
+    }
+
+    /**
+     * Comprova al RevocationIndex si el token de la regió [from, to) està
+     * revocat i, si ho està, ho compta a les mètriques de validació.
+     */
+    private boolean isRevoked(CharSequence s, int from, int to) {
+        if (revocations.isPresent() && revocations.get().isRevoked(s, from, to)) {
+            metrics.validation(Validation.REVOKED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Afegeix un esdeveniment a l'AuditJournal, si està actiu, amb l'adreça
+     * remota de la petició en curs.
+     *
+     * @param event Tipus d'esdeveniment
+     * @param status Codi d'estat HTTP de la resposta
+     * @param username Usuari, o null si no es coneix sense cap consulta
+     * @param token Token de qui fa la petició
+     * @param related Token nou d'un refresc o token revocat
+     */
+    private void audit(AuditEvent event, int status, String username, String token, String related) {
+        if (audit.isPresent()) {
+            audit.get().record(event, status, username, remoteAddress(), token, related);
         }
-        return null;
+    }
+
+    /**
+     * @return Adreça remota de la petició en curs, o null fora d'una petició
+     */
+    private static String remoteAddress() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        return attributes instanceof ServletRequestAttributes servlet ? servlet.getRequest().getRemoteAddr() : null;
+    }
+
+    /**
+     * @return Token d'una capçalera "Bearer {token}", o null
+     */
+    private static String bearer(String authHeader) {
+        return authHeader != null && authHeader.startsWith("Bearer ") ? authHeader.substring(7) : null;
+    }
+
+    /**
+     * Codi d'estat HTTP amb què es respon una excepció d'un endpoint (vegeu
+     * els @RestControllerAdvice).
+     */
+    private static int statusOf(RuntimeException e) {
+        if (e instanceof ResponseStatusException status) {
+            return status.getStatusCode().value();
+        }
+        if (e instanceof LoginRateLimitedException) {
+            return HttpStatus.TOO_MANY_REQUESTS.value();
+        }
+        if (e instanceof LoginOverloadedException || e instanceof StoreBusyException
+                || e instanceof LoginBacklogException) {
+            return HttpStatus.SERVICE_UNAVAILABLE.value();
+        }
+        return HttpStatus.INTERNAL_SERVER_ERROR.value();
+    }
+
+    /**
+     * Genera un token nou segons el mode configurat.
+     *
+     * @param username Nom d'usuari
+     * @param role Rol de l'usuari
+     * @param now Timestamp de generació en mil·lisegons
+     * @return UUID aleatori o JWT signat amb usuari, rol i expiració
+     */
+    private String generateToken(String username, String role, long now) {
+        if (signedMode) {
+            return signedTokens.issue(username, role, now, now + MAXTIMEXPIRES);
+        }
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Verifica un token signat per refrescar-lo.
+     *
+     * No descarta els tokens expirats: l'entrada retornada porta el moment
+     * d'expiració perquè el cridant decideixi si l'ha de validar.
+     *
+     * @param token Token JWT signat
+     * @return Entrada amb usuari, rol i moment d'expiració, o null si la
+     * signatura no és vàlida
+     */
+    private TokenCache.Entry verifySigned(String token) {
+        TokenClaims claims = signedTokens.verify(token);
+        if (claims == null) {
+            return null;
+        }
+        return new TokenCache.Entry(claims.getUsername(), claims.getRole(), claims.getExpiresAt());
+    }
+
+    /**
+     * Obté les dades d'un token primer de la cache i, si no hi és, de la base
+     * de dades.
+     *
+     * Si el token trobat a la base de dades encara és vàlid es guarda a la
+     * cache fins al moment exacte en què expira. Un token expirat es retorna
+     * igualment (l'endpoint d'administració no en valida l'expiració) però no
+     * es guarda.
+     *
+     * Un token refrescat fa menys de "jwt.refresh.grace-ms" es resol amb les
+     * dades del token que l'ha substituït, sense consultar la base de dades,
+     * mentre aquest no estigui revocat.
+     *
+     * @param token Token a cercar
+     * @param now Timestamp actual en mil·lisegons
+     * @return Entrada amb usuari, rol i moment d'expiració, o null si el token
+     * no existeix
+     */
+    private TokenCache.Entry lookupToken(String token, long now) {
+        TokenCache.Entry entry = tokenCache.get(token, now);
+        if (entry != null) {
+            return entry;
+        }
+        if (token == null) {
+            return null;
+        }
+        String successor = refreshes.isPresent() ? refreshes.get().successor(token, now) : null;
+        if (successor != null) {
+            return isRevoked(successor, 0, successor.length()) ? null : lookupToken(successor, now);
+        }
+
+        // una invalidació que arribi durant la lectura no es pot perdre
+        long generation = tokenCache.generation(token);
+        Jwt jwt = findByToken(token);
+        if (jwt == null) {
+            return null;
+        }
+        long expiresAt = jwt.getTime_generated() + MAXTIMEXPIRES;
+        tokenCache.put(token, jwt.getUsername(), jwt.getRole(), expiresAt, now, generation);
+        return new TokenCache.Entry(jwt.getUsername(), jwt.getRole(), expiresAt);
+    }
+
+    /**
+     * Cerca un token al TokenStore dins d'una Observation.
+     *
+     * @param token Token a cercar
+     * @return Registre del token, o null si no existeix
+     */
+    private Jwt findByToken(String token) {
+        return metrics.store(StoreOperation.FIND_BY_TOKEN, () -> tokenStore.findByToken(token));
     }
 }
@@ -0,0 +1,246 @@
+package com.rgbconsulting.jwt.controller;
+
+import com.rgbconsulting.jwt.audit.AuditJournal;
+import com.rgbconsulting.jwt.cache.RefreshCoalescer;
+import com.rgbconsulting.jwt.cache.RevocationIndex;
+import com.rgbconsulting.jwt.cache.TokenCache;
+import com.rgbconsulting.jwt.cache.TokenCacheWarmup;
+import com.rgbconsulting.jwt.credential.CredentialVerifier;
+import com.rgbconsulting.jwt.limit.LoginLimiter;
+import com.rgbconsulting.jwt.metrics.StartupReport;
+import com.rgbconsulting.jwt.persistence.JdbcTokenStore;
+import com.rgbconsulting.jwt.persistence.LoginWriteBehind;
+import com.rgbconsulting.jwt.persistence.ReactiveTokenStore;
+import com.rgbconsulting.jwt.persistence.TokenInvalidationChannel;
+import com.rgbconsulting.jwt.persistence.TokenReaper;
+import com.rgbconsulting.jwt.persistence.TokenStore;
+import java.util.Map;
+import java.util.Optional;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * REST Controller amb les mètriques internes del servei de tokens.
+ *
+ * Els components que depenen del backend configurat (pool, escriptor de
+ * logins i reaper només existeixen amb "jwt.store=jdbc") retornen un mapa buit
+ * si no estan actius. Amb "jwt.store=sharded" les de cada shard formen part
+ * de les mètriques del magatzem. Amb "jwt.store=r2dbc" les mètriques del
+ * magatzem són les del ReactiveTokenStore.
+ *
+ * @author sergi
+ */
+@RestController
+public class JwtMetricsController {
+
+    private final Optional<TokenStore> tokenStore;
+    private final Optional<ReactiveTokenStore> reactiveTokenStore;
+    private final TokenCache tokenCache;
+    private final Optional<JdbcTokenStore> jdbcTokenStore;
+    private final Optional<LoginWriteBehind> loginWriter;
+    private final Optional<TokenReaper> tokenReaper;
+    private final Optional<TokenInvalidationChannel> invalidations;
+    private final Optional<RevocationIndex> revocations;
+    private final Optional<LoginLimiter> loginLimiter;
+    private final Optional<CredentialVerifier> credentials;
+    private final Optional<RefreshCoalescer> refreshes;
+    private final Optional<StartupReport> startup;
+    private final Optional<AuditJournal> audit;
+    private final Optional<TokenCacheWarmup> warmup;
+
+    public JwtMetricsController(Optional<TokenStore> tokenStore, Optional<ReactiveTokenStore> reactiveTokenStore,
+            TokenCache tokenCache, Optional<JdbcTokenStore> jdbcTokenStore,
+            Optional<LoginWriteBehind> loginWriter, Optional<TokenReaper> tokenReaper,
+            Optional<TokenInvalidationChannel> invalidations, Optional<RevocationIndex> revocations,
+            Optional<LoginLimiter> loginLimiter, Optional<CredentialVerifier> credentials,
+            Optional<RefreshCoalescer> refreshes, Optional<StartupReport> startup,
+            Optional<AuditJournal> audit, Optional<TokenCacheWarmup> warmup) {
+        this.invalidations = invalidations;
+        this.warmup = warmup;
+        this.audit = audit;
+        this.startup = startup;
+        this.loginLimiter = loginLimiter;
+        this.credentials = credentials;
+        this.refreshes = refreshes;
+        this.revocations = revocations;
+        this.tokenStore = tokenStore;
+        this.reactiveTokenStore = reactiveTokenStore;
+        this.tokenCache = tokenCache;
+        this.jdbcTokenStore = jdbcTokenStore;
+        this.loginWriter = loginWriter;
+        this.tokenReaper = tokenReaper;
+    }
+
+    /**
+     * Endpoint de mètriques del backend de tokens configurat.
+     *
+     * @return Mapa amb les mètriques del TokenStore en format JSON
+     */
+    @GetMapping("/jwt/metrics/store")
+    public Map<String, Object> getStoreMetrics() {
+        return tokenStore.map(TokenStore::getMetrics)
+                .or(() -> reactiveTokenStore.map(ReactiveTokenStore::getMetrics))
+                .orElse(Map.of());
+    }
+
+    /**
+     * Endpoint de mètriques del pool de connexions a la base de dades.
+     *
+     * Retorna l'ocupació del pool (connexions actives, inactives i fils en
+     * espera), la saturació i el temps d'espera per obtenir una connexió.
+     *
+     * @return Mapa amb les mètriques del pool en format JSON
+     */
+    @GetMapping("/jwt/metrics/pool")
+    public Map<String, Object> getPoolMetrics() {
+        return jdbcTokenStore.map(JdbcTokenStore::getMetrics).orElse(Map.of());
+    }
+
+    /**
+     * Endpoint de mètriques de l'escriptura diferida de logins.
+     *
+     * Retorna el mode de durabilitat, l'ocupació de la cua i el nombre de
+     * lots i registres escrits, rebutjats i fallits.
+     *
+     * @return Mapa amb les mètriques de l'escriptor en format JSON
+     */
+    @GetMapping("/jwt/metrics/login-writer")
+    public Map<String, Object> getLoginWriterMetrics() {
+        return loginWriter.map(LoginWriteBehind::getMetrics).orElse(Map.of());
+    }
+
+    /**
+     * Endpoint de mètriques del reaper de tokens expirats.
+     *
+     * Retorna el mode, el nombre d'execucions, les files i particions
+     * recuperades i la durada de les execucions.
+     *
+     * @return Mapa amb les mètriques del reaper en format JSON
+     */
+    @GetMapping("/jwt/metrics/reaper")
+    public Map<String, Object> getReaperMetrics() {
+        return tokenReaper.map(TokenReaper::getMetrics).orElse(Map.of());
+    }
+
+    /**
+     * Endpoint de mètriques del canal d'invalidació entre nodes.
+     *
+     * Retorna si la connexió d'escolta està activa, els esdeveniments
+     * publicats i rebuts, les reconnexions i el retard de propagació.
+     *
+     * @return Mapa amb les mètriques del canal en format JSON
+     */
+    @GetMapping("/jwt/metrics/invalidation")
+    public Map<String, Object> getInvalidationMetrics() {
+        return invalidations.map(TokenInvalidationChannel::getMetrics).orElse(Map.of());
+    }
+
+    /**
+     * Endpoint de mètriques de l'índex de revocacions.
+     *
+     * Retorna la mida del filtre (bits, funcions de hash i bytes), la seva
+     * ocupació, la taxa de falsos positius estimada i observada, i les
+     * consultes, revocacions i recàrregues fetes.
+     *
+     * @return Mapa amb les mètriques de l'índex en format JSON
+     */
+    @GetMapping("/jwt/metrics/revocation")
+    public Map<String, Object> getRevocationMetrics() {
+        return revocations.map(RevocationIndex::getMetrics).orElse(Map.of());
+    }
+
+    /**
+     * Endpoint de mètriques del control d'admissió dels logins.
+     *
+     * Retorna els logins en curs i quants se n'han admès, limitat per usuari
+     * o per adreça i descartat per excés de concurrència.
+     *
+     * @return Mapa amb les mètriques del limitador en format JSON
+     */
+    @GetMapping("/jwt/metrics/login-limiter")
+    public Map<String, Object> getLoginLimiterMetrics() {
+        return loginLimiter.map(LoginLimiter::getMetrics).orElse(Map.of());
+    }
+
+    /**
+     * Endpoint de mètriques de la verificació de contrasenyes.
+     *
+     * Retorna la mida i ocupació del pool de hashes, els encerts de la cache
+     * de verificacions i quants logins s'han rebutjat, donat d'alta, tornat a
+     * calcular amb el cost actual o descartat per saturació.
+     *
+     * @return Mapa amb les mètriques del verificador en format JSON
+     */
+    @GetMapping("/jwt/metrics/credentials")
+    public Map<String, Object> getCredentialMetrics() {
+        return credentials.map(CredentialVerifier::getMetrics).orElse(Map.of());
+    }
+
+    /**
+     * Endpoint de mètriques de l'agrupació de refrescos.
+     *
+     * Retorna el període de gràcia, els refrescos recordats i quants n'han
+     * escrit un token nou, s'han agrupat amb un refresc en curs o s'han
+     * repetit dins del període de gràcia.
+     *
+     * @return Mapa amb les mètriques del RefreshCoalescer en format JSON
+     */
+    @GetMapping("/jwt/metrics/refresh")
+    public Map<String, Object> getRefreshMetrics() {
+        return refreshes.map(RefreshCoalescer::getMetrics).orElse(Map.of());
+    }
+
+    /**
+     * Endpoint dels temps d'arrencada.
+     *
+     * Retorna els mil·lisegons des de l'inici de la JVM fins que l'aplicació
+     * està a punt i fins que ha respost la primera petició, i si s'han fet
+     * servir les definicions AOT i l'arxiu CDS.
+     *
+     * @return Mapa amb els temps d'arrencada en format JSON
+     */
+    @GetMapping("/jwt/metrics/startup")
+    public Map<String, Object> getStartupMetrics() {
+        return startup.map(StartupReport::getMetrics).orElse(Map.of());
+    }
+
+    /**
+     * Endpoint del diari d'auditoria.
+     *
+     * Retorna l'ocupació de l'anell, els registres acceptats, escrits i
+     * descartats, i els segments creats i esborrats per la retenció.
+     *
+     * @return Mapa amb les mètriques de l'AuditJournal en format JSON
+     */
+    @GetMapping("/jwt/metrics/audit")
+    public Map<String, Object> getAuditMetrics() {
+        return audit.map(AuditJournal::getMetrics).orElse(Map.of());
+    }
+
+    /**
+     * Endpoint de mètriques de la cache de tokens.
+     *
+     * Retorna la mida actual, els encerts i errors, i el nombre d'entrades
+     * expulsades, expirades i invalidades.
+     *
+     * @return Mapa amb les mètriques de la cache en format JSON
+     */
+    @GetMapping("/jwt/metrics/cache")
+    public Map<String, Object> getCacheMetrics() {
+        return tokenCache.getMetrics();
+    }
+
+    /**
+     * Endpoint de la càrrega inicial de la cache.
+     *
+     * Retorna l'estat de la càrrega (pending, loading, done, failed o
+     * timed_out), els tokens llegits de la base de dades i guardats a la
+     * cache, i quant ha durat.
+     *
+     * @return Mapa amb les mètriques del TokenCacheWarmup en format JSON
+     */
+    @GetMapping("/jwt/metrics/warmup")
+    public Map<String, Object> getWarmupMetrics() {
+        return warmup.map(TokenCacheWarmup::getMetrics).orElse(Map.of());
+    }
+}
@@ -0,0 +1,21 @@
+package com.rgbconsulting.jwt.controller;
+
+import com.rgbconsulting.jwt.persistence.LoginBacklogException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+/**
+ *
+ * @author sergi
+ */
+@RestControllerAdvice
+public class LoginBacklogAdvice {
+
+    @ExceptionHandler(LoginBacklogException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    String loginBacklogHandler(LoginBacklogException ex) {
+        return ex.getMessage();
+    }
+}
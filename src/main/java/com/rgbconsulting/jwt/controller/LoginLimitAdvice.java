@@ -0,0 +1,31 @@
+package com.rgbconsulting.jwt.controller;
+
+import com.rgbconsulting.jwt.limit.LoginOverloadedException;
+import com.rgbconsulting.jwt.limit.LoginRateLimitedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+/**
+ *
+ * @author sergi
+ */
+@RestControllerAdvice
+public class LoginLimitAdvice {
+
+    @ExceptionHandler(LoginRateLimitedException.class)
+    ResponseEntity<String> rateLimitedHandler(LoginRateLimitedException ex) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(ex.getMessage());
+    }
+
+    @ExceptionHandler(LoginOverloadedException.class)
+    ResponseEntity<String> overloadedHandler(LoginOverloadedException ex) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body(ex.getMessage());
+    }
+}
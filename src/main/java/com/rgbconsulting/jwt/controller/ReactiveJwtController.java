@@ -0,0 +1,712 @@
+package com.rgbconsulting.jwt.controller;
+
+import com.rgbconsulting.jwt.audit.AuditEvent;
+import com.rgbconsulting.jwt.audit.AuditJournal;
+import com.rgbconsulting.jwt.cache.RefreshCoalescer;
+import com.rgbconsulting.jwt.cache.RevocationIndex;
+import com.rgbconsulting.jwt.cache.TokenCache;
+import com.rgbconsulting.jwt.limit.LoginGate;
+import com.rgbconsulting.jwt.limit.LoginOverloadedException;
+import com.rgbconsulting.jwt.limit.LoginRateLimitedException;
+import com.rgbconsulting.jwt.metrics.AuthMetrics;
+import com.rgbconsulting.jwt.metrics.AuthMetrics.Endpoint;
+import com.rgbconsulting.jwt.metrics.AuthMetrics.StoreOperation;
+import com.rgbconsulting.jwt.metrics.AuthMetrics.Validation;
+import com.rgbconsulting.jwt.model.Jwt;
+import com.rgbconsulting.jwt.model.TokenIntrospection;
+import com.rgbconsulting.jwt.persistence.ReactiveTokenStore;
+import com.rgbconsulting.jwt.persistence.StoreBusyException;
+import com.rgbconsulting.jwt.token.SignedTokenService;
+import com.rgbconsulting.jwt.token.SignedTokenVerifier;
+import com.rgbconsulting.jwt.token.TokenClaims;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Variant reactiva de JwtController per al perfil "reactive" (WebFlux sobre
+ * Netty).
+ *
+ * Exposa els mateixos endpoints amb la mateixa semàntica (rols, 401 per
+ * tokens expirats o desconeguts, respostes de /jwt/admin/test), però cap
+ * endpoint bloqueja el fil de l'event loop: la persistència es fa amb
+ * ReactiveTokenStore (R2DBC) i la cache i la verificació de tokens signats
+ * només fan feina de CPU. Així un nombre petit i fix de fils pot atendre
+ * moltes connexions keep-alive concurrents.
+ *
+ * Els refrescos concurrents del mateix token s'agrupen amb el
+ * RefreshCoalescer (sense bloquejar mentre s'espera el refresc en curs) i
+ * els logins, refrescos, logouts, revocacions i accessos denegats
+ * s'afegeixen a l'AuditJournal, igual que a JwtController.
+ *
+ * Les revocacions (logout i /jwt/admin/revoke) també es respecten: el filtre
+ * del RevocationIndex es consulta a l'event loop i només un positiu, o una
+ * revocació nova, passa a un fil de Schedulers.boundedElastic() per accedir
+ * a la taula "jwt_revoked".
+ *
+ * @author sergi
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveJwtController {
+
+    private static int MAXTIMEXPIRES = 30 * 1000;  // 30,000 milliseconds
+    private static final Mono<Boolean> NOT_REVOKED = Mono.just(false);
+
+    private final ReactiveTokenStore tokenStore;
+    private final TokenCache tokenCache;
+    private final SignedTokenService signedTokens;
+    private final SignedTokenVerifier tokenVerifier;
+    private final boolean signedMode;
+    private final AuthMetrics metrics;
+    private final int maxIntrospectBatch;
+    private final Optional<RevocationIndex> revocations;
+    private final LoginGate loginGate;
+    private final Optional<RefreshCoalescer> refreshes;
+    private final Optional<AuditJournal> audit;
+
+    public ReactiveJwtController(ReactiveTokenStore tokenStore, TokenCache tokenCache, SignedTokenService signedTokens,
+            @Value("${jwt.token.mode:uuid}") String tokenMode, AuthMetrics metrics,
+            @Value("${jwt.introspect.max-batch:1000}") int maxIntrospectBatch, LoginGate loginGate,
+            Optional<RevocationIndex> revocations, Optional<RefreshCoalescer> refreshes, Optional<AuditJournal> audit) {
+        this.loginGate = loginGate;
+        this.tokenStore = tokenStore;
+        this.revocations = revocations;
+        this.refreshes = refreshes;
+        this.audit = audit;
+        this.metrics = metrics;
+        this.maxIntrospectBatch = maxIntrospectBatch;
+        this.tokenCache = tokenCache;
+        this.signedTokens = signedTokens;
+        this.tokenVerifier = signedTokens.verifier();
+        this.signedMode = "signed".equalsIgnoreCase(tokenMode);
+    }
+
+    /**
+     * Login d'un usuari. Igual que JwtController.login(), però la resposta
+     * s'emet quan el registre s'ha desat. La contrasenya es verifica fora de
+     * l'event loop (vegeu LoginGate.loginAsync()).
+     *
+     * @param request Objecte Jwt amb les credencials de l'usuari (username,
+     * password)
+     * @param httpRequest Petició HTTP, per obtenir l'adreça remota
+     * @return Mono amb el token generat, temps d'expiració, nom d'usuari,
+     * timestamp de generació i rol assignat
+     */
+    @PostMapping("/jwt/auth/login")
+    public Mono<Jwt> login(@RequestBody Jwt request, ServerHttpRequest httpRequest) {
+        long start = System.nanoTime();
+        String address = remoteAddress(httpRequest);
+        return loginGate.loginAsync(request.getUsername(), request.getPassword(), address, () -> doLogin(request))
+                .doOnNext(response -> audit(AuditEvent.LOGIN, 200, request.getUsername(), address, response.getAccess_token(), null))
+                .doOnError(e -> audit(AuditEvent.LOGIN, statusOf(e), request.getUsername(), address, null, null))
+                .doFinally(signal -> metrics.endpoint(Endpoint.LOGIN, start));
+    }
+
+    private Mono<Jwt> doLogin(Jwt request) {
+        long now = System.currentTimeMillis();
+        String role = request.getUsername().equals("sergi") ? "ADMIN" : "USER";
+        String token = generateToken(request.getUsername(), role, now);
+
+        Jwt response = new Jwt();
+        response.setAccess_token(token);
+        response.setExpires_in(MAXTIMEXPIRES);
+        response.setUsername(request.getUsername());
+        response.setTime_generated(now);
+        response.setRole(role);
+
+        return metrics.store(StoreOperation.SAVE_LOGIN, tokenStore.saveLogin(request.getUsername(), token, 30, now, role))
+                .then(Mono.fromSupplier(() -> {
+                    tokenCache.put(token, request.getUsername(), role, now + MAXTIMEXPIRES, now);
+                    return response;
+                }));
+    }
+
+    /**
+     * Refresc d'un token. Igual que JwtController.refresh(), amb els
+     * refrescos concurrents del mateix token agrupats pel RefreshCoalescer.
+     *
+     * @param request Objecte Jwt amb el token actual (access_token) a refrescar
+     * @param httpRequest Petició HTTP, per obtenir l'adreça remota
+     * @return Mono amb el nou token generat, error 401 si el token antic està
+     * revocat o és desconegut, o error StoreBusyException (503) si el
+     * magatzem no ha pogut fer la substitució; en aquest cas el token antic
+     * continua sent vàlid
+     */
+    @PostMapping("/jwt/auth/refresh")
+    public Mono<String> refresh(@RequestBody Jwt request, ServerHttpRequest httpRequest) {
+        long start = System.nanoTime();
+        String address = remoteAddress(httpRequest);
+        return doRefresh(request)
+                .doOnNext(newToken -> audit(AuditEvent.REFRESH, 200, null, address, request.getAccess_token(), newToken))
+                .doOnError(e -> audit(AuditEvent.REFRESH, statusOf(e), null, address, request.getAccess_token(), null))
+                .doFinally(signal -> metrics.endpoint(Endpoint.REFRESH, start));
+    }
+
+    private Mono<String> doRefresh(Jwt request) {
+        String oldToken = request.getAccess_token();
+        long now = System.currentTimeMillis();
+        return rejectRevoked(oldToken).then(Mono.defer(() -> refreshes.isPresent()
+                ? refreshes.get().refreshAsync(oldToken, now, () -> replaceToken(oldToken, now))
+                : replaceToken(oldToken, now)));
+    }
+
+    /**
+     * Genera el token que substitueix "oldToken" i en fa la substitució al
+     * ReactiveTokenStore i a la cache.
+     */
+    private Mono<String> replaceToken(String oldToken, long now) {
+        Mono<String> newToken;
+
+        if (signedMode) {
+            newToken = Mono.justOrEmpty(verifySigned(oldToken))
+                    .switchIfEmpty(Mono.defer(() -> findByToken(oldToken)
+                    .map(stored -> new TokenCache.Entry(stored.getUsername(), stored.getRole(), stored.getTime_generated() + MAXTIMEXPIRES))))
+                    .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token unknown")))
+                    .map(old -> generateToken(old.getUsername(), old.getRole(), now));
+        } else {
+            newToken = Mono.fromSupplier(() -> UUID.randomUUID().toString());
+        }
+
+        // un Mono buit vol dir que el token no s'ha substituït: 401, com a
+        // JwtController.replaceToken()
+        return newToken.flatMap(token -> metrics.store(StoreOperation.UPDATE_TOKEN, tokenStore.updateToken(oldToken, token, now))
+                .doFinally(signal -> tokenCache.invalidate(oldToken))
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token unknown"))));
+    }
+
+    /**
+     * Endpoint segur. Igual que JwtController.getSecurePing().
+     *
+     * @param authHeader Capçalera Authorization en format "Bearer {token}"
+     * @param httpRequest Petició HTTP, per obtenir l'adreça remota
+     * @return Mono amb la confirmació i el nom d'usuari, o error 401 si el
+     * token és invàlid, expirat o no present
+     */
+    @GetMapping("/jwt/secure/ping")
+    public Mono<String> getSecurePing(@RequestHeader("Authorization") String authHeader, ServerHttpRequest httpRequest) {
+        long start = System.nanoTime();
+        String address = remoteAddress(httpRequest);
+        return doSecurePing(authHeader)
+                .doOnError(e -> audit(AuditEvent.ACCESS, statusOf(e), null, address, bearer(authHeader), null))
+                .doFinally(signal -> metrics.endpoint(Endpoint.SECURE_PING, start));
+    }
+
+    private Mono<String> doSecurePing(String authHeader) {
+        long now = System.currentTimeMillis();
+
+        if (signedMode) {
+            SignedTokenVerifier.Claims claims = tokenVerifier.verifyBearer(authHeader);
+            if (claims != null && now < claims.getExpiresAt()) {
+                // els claims no es poden llegir després de canviar de fil
+                String response = "ok: true, user: " + claims.getUsername();
+                return rejectRevoked(bearer(authHeader)).thenReturn(response)
+                        .doOnNext(r -> metrics.validation(Validation.VALID));
+            }
+            metrics.validation(claims == null ? Validation.UNKNOWN : Validation.EXPIRED);
+            return Mono.error(new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired"));
+        }
+
+        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+            metrics.validation(Validation.UNKNOWN);
+            return Mono.error(new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired"));
+        }
+        String token = authHeader.substring(7);
+        return lookupToken(token, now)
+                .switchIfEmpty(Mono.error(() -> {
+                    metrics.validation(Validation.UNKNOWN);
+                    return new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired");
+                }))
+                .flatMap(entry -> {
+                    if (now >= entry.getExpiresAt()) {
+                        metrics.validation(Validation.EXPIRED);
+                        return Mono.error(new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired"));
+                    }
+                    return rejectRevoked(token).thenReturn("ok: true, user: " + entry.getUsername())
+                            .doOnNext(r -> metrics.validation(Validation.VALID));
+                });
+    }
+
+    /**
+     * Endpoint públic accessible sense cap mena d'autenticació.
+     *
+     * @return Mono amb la confirmació amb usuari desconegut
+     */
+    @GetMapping("/jwt/public/ping")
+    public Mono<String> getPublicPing() {
+        long start = System.nanoTime();
+        return Mono.just("ok: " + true + ", user: " + "unknown")
+                .doFinally(signal -> metrics.endpoint(Endpoint.PUBLIC_PING, start));
+    }
+
+    /**
+     * Endpoint d'administració. Igual que JwtController.getAdminTest(): no
+     * valida l'expiració, només el rol, i retorna el codi d'estat dins el
+     * cos. Un token desconegut en mode UUID acaba en error 500, com a
+     * l'original.
+     *
+     * @param authHeader Capçalera Authorization en format "Bearer {token}"
+     * @param httpRequest Petició HTTP, per obtenir l'adreça remota
+     * @return Mono amb el codi d'estat 202 si el rol és ADMIN o 401 si no ho
+     * és
+     */
+    @GetMapping("/jwt/admin/test")
+    public Mono<String> getAdminTest(@RequestHeader("Authorization") String authHeader, ServerHttpRequest httpRequest) {
+        long start = System.nanoTime();
+        String address = remoteAddress(httpRequest);
+        return doAdminTest(authHeader, address)
+                .doOnError(e -> audit(AuditEvent.ACCESS, statusOf(e), null, address, bearer(authHeader), null))
+                .doFinally(signal -> metrics.endpoint(Endpoint.ADMIN_TEST, start));
+    }
+
+    private Mono<String> doAdminTest(String authHeader, String address) {
+        String token = bearer(authHeader);
+        if (signedMode) {
+            SignedTokenVerifier.Claims claims = tokenVerifier.verifyBearer(authHeader);
+            String username = claims != null ? claims.getUsername() : null;
+            if (claims == null || !claims.hasRole("ADMIN")) {
+                return Mono.just(adminResponse(false, username, authHeader, address));
+            }
+            return isRevoked(token).map(revoked -> adminResponse(!revoked, username, authHeader, address));
+        }
+
+        return lookupToken(token, System.currentTimeMillis())
+                .flatMap(entry -> entry.getRole().equals("ADMIN")
+                ? isRevoked(token).map(revoked -> adminResponse(!revoked, entry.getUsername(), authHeader, address))
+                : Mono.just(adminResponse(false, entry.getUsername(), authHeader, address)))
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Token unknown")));
+    }
+
+    private String adminResponse(boolean admin, String username, String authHeader, String address) {
+        if (admin) {
+            return "STATUS CODE: " + HttpStatus.ACCEPTED + "\nHAS ACCEDIT COM ADMIN!";
+        }
+        metrics.roleDenied();
+        audit(AuditEvent.ACCESS, HttpStatus.UNAUTHORIZED.value(), username, address, bearer(authHeader), null);
+        return "STATUS CODE: " + HttpStatus.UNAUTHORIZED + " / NO ETS ADMIN!";
+    }
+
+    /**
+     * Introspecció per lots. Igual que JwtController.introspect(): els tokens
+     * que no són a la cache es resolen amb una sola consulta.
+     *
+     * @param tokens Array JSON amb els tokens a validar
+     * @return Mono amb un resultat per token, en el mateix ordre, o error 413
+     * si el lot supera "jwt.introspect.max-batch"
+     */
+    @PostMapping(value = "/jwt/auth/introspect", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<List<TokenIntrospection>> introspect(@RequestBody List<String> tokens) {
+        long start = System.nanoTime();
+        return doIntrospect(tokens).doFinally(signal -> metrics.endpoint(Endpoint.INTROSPECT, start));
+    }
+
+    private Mono<List<TokenIntrospection>> doIntrospect(List<String> tokens) {
+        if (tokens.size() > maxIntrospectBatch) {
+            return Mono.error(new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "At most " + maxIntrospectBatch + " tokens per request"));
+        }
+        metrics.introspectBatch(tokens.size());
+        long now = System.currentTimeMillis();
+        TokenCache.Entry[] entries = new TokenCache.Entry[tokens.size()];
+
+        if (signedMode) {
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = verifySigned(tokens.get(i));
+            }
+            return introspections(tokens, entries, now);
+        }
+
+        Set<String> misses = new LinkedHashSet<>();
+        long[] generations = new long[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = tokenCache.get(tokens.get(i), now);
+            if (entries[i] == null && tokens.get(i) != null) {
+                generations[i] = tokenCache.generation(tokens.get(i));
+                misses.add(tokens.get(i));
+            }
+        }
+        if (misses.isEmpty()) {
+            return introspections(tokens, entries, now);
+        }
+
+        return metrics.store(StoreOperation.FIND_BY_TOKENS, tokenStore.findByTokens(misses)).flatMap(found -> {
+            for (int i = 0; i < entries.length; i++) {
+                Jwt jwt = entries[i] == null ? found.get(tokens.get(i)) : null;
+                if (jwt != null) {
+                    long expiresAt = jwt.getTime_generated() + MAXTIMEXPIRES;
+                    tokenCache.put(jwt.getAccess_token(), jwt.getUsername(), jwt.getRole(), expiresAt, now, generations[i]);
+                    entries[i] = new TokenCache.Entry(jwt.getUsername(), jwt.getRole(), expiresAt);
+                }
+            }
+            return introspections(tokens, entries, now);
+        });
+    }
+
+    /**
+     * Descarta dels resultats els tokens revocats. Els tokens vigents que
+     * donen positiu al filtre es confirmen tots junts en un sol fil de
+     * boundedElastic.
+     */
+    private Mono<List<TokenIntrospection>> introspections(List<String> tokens, TokenCache.Entry[] entries, long now) {
+        boolean[] revoked = new boolean[entries.length];
+        if (revocations.isEmpty()) {
+            return Mono.just(toIntrospections(tokens, entries, revoked, now));
+        }
+        RevocationIndex index = revocations.get();
+        List<Integer> suspects = new ArrayList<>();
+        for (int i = 0; i < entries.length; i++) {
+            String token = tokens.get(i);
+            if (entries[i] != null && now < entries[i].getExpiresAt() && index.mightBeRevoked(token, 0, token.length())) {
+                suspects.add(i);
+            }
+        }
+        if (suspects.isEmpty()) {
+            return Mono.just(toIntrospections(tokens, entries, revoked, now));
+        }
+        return Mono.fromCallable(() -> {
+            for (int i : suspects) {
+                String token = tokens.get(i);
+                if (index.confirmRevoked(token, 0, token.length())) {
+                    metrics.validation(Validation.REVOKED);
+                    revoked[i] = true;
+                }
+            }
+            return toIntrospections(tokens, entries, revoked, now);
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Introspecció d'un token a l'estil de l'RFC 7662 amb capçaleres de
+     * cache. Igual que JwtController.introspectToken().
+     *
+     * @param authHeader Capçalera Authorization en format "Bearer {token}"
+     * @param ifNoneMatch Capçalera If-None-Match opcional
+     * @return Mono amb la resposta d'introspecció, o 304 si no ha canviat
+     */
+    @GetMapping("/jwt/auth/introspect")
+    public Mono<ResponseEntity<Map<String, Object>>> introspectToken(
+            @RequestHeader(value = "Authorization", required = false) String authHeader,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        String token = authHeader != null && authHeader.startsWith("Bearer ") ? authHeader.substring(7) : null;
+        return introspectOne(token, ifNoneMatch);
+    }
+
+    /**
+     * Introspecció d'un token enviat com a formulari ("token=..."). Igual que
+     * JwtController.introspectForm().
+     *
+     * @param exchange Petició amb el formulari
+     * @param ifNoneMatch Capçalera If-None-Match opcional
+     * @return Mono amb la resposta d'introspecció, o 304 si no ha canviat
+     */
+    @PostMapping(value = "/jwt/auth/introspect", consumes = MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+    public Mono<ResponseEntity<Map<String, Object>>> introspectForm(ServerWebExchange exchange,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        return exchange.getFormData()
+                .flatMap(form -> introspectOne(form.getFirst("token"), ifNoneMatch));
+    }
+
+    private Mono<ResponseEntity<Map<String, Object>>> introspectOne(String token, String ifNoneMatch) {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        return entryOf(token, now)
+                .switchIfEmpty(Mono.fromRunnable(() -> metrics.validation(Validation.UNKNOWN)))
+                .filterWhen(e -> {
+                    if (now >= e.getExpiresAt()) {
+                        metrics.validation(Validation.EXPIRED);
+                        return Mono.just(true);
+                    }
+                    return isRevoked(token).map(revoked -> {
+                        if (!revoked) {
+                            metrics.validation(Validation.VALID);
+                        }
+                        return !revoked;
+                    });
+                })
+                .map(e -> IntrospectionResponse.of(e, MAXTIMEXPIRES, now, ifNoneMatch))
+                .defaultIfEmpty(IntrospectionResponse.of(null, MAXTIMEXPIRES, now, ifNoneMatch))
+                .doOnNext(response -> {
+                    if (IntrospectionResponse.isNotModified(response)) {
+                        metrics.notModified();
+                    }
+                })
+                .doFinally(signal -> metrics.endpoint(Endpoint.INTROSPECT_TOKEN, start));
+    }
+
+    /**
+     * Tanca la sessió revocant el token de la capçalera Authorization. Igual
+     * que JwtController.logout().
+     *
+     * @param authHeader Capçalera Authorization en format "Bearer {token}"
+     * @param httpRequest Petició HTTP, per obtenir l'adreça remota
+     * @return Mono amb 204 NO_CONTENT si s'ha revocat (o ja ho estava), o
+     * error 401 si el token és invàlid o expirat
+     */
+    @PostMapping("/jwt/auth/logout")
+    public Mono<ResponseEntity<Void>> logout(@RequestHeader("Authorization") String authHeader, ServerHttpRequest httpRequest) {
+        long start = System.nanoTime();
+        String address = remoteAddress(httpRequest);
+        String token = bearer(authHeader);
+        long now = System.currentTimeMillis();
+        return entryOf(token, now)
+                .filter(entry -> now < entry.getExpiresAt())
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired")))
+                .flatMap(entry -> revokeToken(token, entry.getExpiresAt())
+                .then(Mono.fromSupplier(() -> {
+                    audit(AuditEvent.LOGOUT, HttpStatus.NO_CONTENT.value(), entry.getUsername(), address, token, null);
+                    return ResponseEntity.noContent().<Void>build();
+                })))
+                .doOnError(e -> audit(AuditEvent.LOGOUT, statusOf(e), null, address, token, null))
+                .doFinally(signal -> metrics.endpoint(Endpoint.LOGOUT, start));
+    }
+
+    /**
+     * Revoca el token d'un altre usuari. Igual que JwtController.revoke():
+     * exclusiu per al rol ADMIN, amb un token vigent i no revocat.
+     *
+     * @param authHeader Capçalera Authorization de l'administrador en format
+     * "Bearer {token}"
+     * @param request Objecte Jwt amb el token a revocar (access_token)
+     * @param httpRequest Petició HTTP, per obtenir l'adreça remota
+     * @return Mono amb 204 NO_CONTENT si s'ha revocat, o si ja havia expirat;
+     * error 401 si el token de l'administrador és invàlid, expirat o revocat,
+     * 403 si no és ADMIN i 404 si el token a revocar és desconegut
+     */
+    @PostMapping("/jwt/admin/revoke")
+    public Mono<ResponseEntity<Void>> revoke(@RequestHeader("Authorization") String authHeader, @RequestBody Jwt request,
+            ServerHttpRequest httpRequest) {
+        long start = System.nanoTime();
+        String address = remoteAddress(httpRequest);
+        return doRevoke(bearer(authHeader), request.getAccess_token(), address)
+                .doOnError(e -> audit(AuditEvent.REVOKE, statusOf(e), null, address, bearer(authHeader), request.getAccess_token()))
+                .doFinally(signal -> metrics.endpoint(Endpoint.REVOKE, start));
+    }
+
+    private Mono<ResponseEntity<Void>> doRevoke(String caller, String token, String address) {
+        long now = System.currentTimeMillis();
+        return entryOf(caller, now)
+                .filter(admin -> now < admin.getExpiresAt())
+                .filterWhen(admin -> isRevoked(caller).map(revoked -> !revoked))
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token expired")))
+                .flatMap(admin -> {
+                    if (!"ADMIN".equals(admin.getRole())) {
+                        metrics.roleDenied();
+                        return Mono.error(new ResponseStatusException(HttpStatus.FORBIDDEN, "Admin role required"));
+                    }
+                    return entryOf(token, now)
+                            .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Token unknown")))
+                            .flatMap(target -> now < target.getExpiresAt() ? revokeToken(token, target.getExpiresAt()) : Mono.empty())
+                            .then(Mono.fromSupplier(() -> {
+                                audit(AuditEvent.REVOKE, HttpStatus.NO_CONTENT.value(), admin.getUsername(), address, caller, token);
+                                return ResponseEntity.noContent().<Void>build();
+                            }));
+                });
+    }
+
+    /**
+     * Revoca un token vigent en un fil de boundedElastic i el treu de la cache
+     * local.
+     *
+     * @return Mono que acaba quan la revocació s'ha desat, o error 501 si les
+     * revocacions estan desactivades i 503 si no s'ha pogut desar
+     */
+    private Mono<Void> revokeToken(String token, long expiresAt) {
+        if (revocations.isEmpty()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "Revocation disabled"));
+        }
+        RevocationIndex index = revocations.get();
+        return Mono.fromCallable(() -> index.revoke(token, expiresAt))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(stored -> stored
+                ? Mono.<Void>fromRunnable(() -> tokenCache.invalidate(token))
+                : Mono.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Revocation not stored")));
+    }
+
+    /**
+     * Comprova si un token està revocat sense bloquejar l'event loop: el
+     * filtre es consulta al mateix fil i només un positiu es confirma a la
+     * base de dades, en un fil de boundedElastic.
+     *
+     * @return Mono amb true si el token està revocat
+     */
+    private Mono<Boolean> isRevoked(String token) {
+        if (token == null || revocations.isEmpty() || !revocations.get().mightBeRevoked(token, 0, token.length())) {
+            return NOT_REVOKED;
+        }
+        RevocationIndex index = revocations.get();
+        return Mono.fromCallable(() -> index.confirmRevoked(token, 0, token.length()))
+                .subscribeOn(Schedulers.boundedElastic())
+                .doOnNext(revoked -> {
+                    if (revoked) {
+                        metrics.validation(Validation.REVOKED);
+                    }
+                });
+    }
+
+    /**
+     * @return Mono buit si el token no està revocat, o error 401 si ho està
+     */
+    private Mono<Void> rejectRevoked(String token) {
+        return isRevoked(token).flatMap(revoked -> revoked
+                ? Mono.error(new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Token revoked"))
+                : Mono.empty());
+    }
+
+    /**
+     * Dades d'un token: verificant-ne la signatura en mode signat o de la
+     * cache i el ReactiveTokenStore en mode uuid. No en comprova l'expiració.
+     */
+    private Mono<TokenCache.Entry> entryOf(String token, long now) {
+        if (token == null) {
+            return Mono.empty();
+        }
+        return signedMode ? Mono.justOrEmpty(verifySigned(token)) : lookupToken(token, now);
+    }
+
+    /**
+     * @param revoked Posicions que el RevocationIndex ha confirmat revocades
+     * (ja comptades com a Validation.REVOKED)
+     */
+    private List<TokenIntrospection> toIntrospections(List<String> tokens, TokenCache.Entry[] entries,
+            boolean[] revoked, long now) {
+        List<TokenIntrospection> results = new ArrayList<>(entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            TokenCache.Entry entry = entries[i];
+            if (entry == null) {
+                metrics.validation(Validation.UNKNOWN);
+                results.add(new TokenIntrospection(tokens.get(i), false, null, null, null));
+            } else if (now >= entry.getExpiresAt()) {
+                metrics.validation(Validation.EXPIRED);
+                results.add(new TokenIntrospection(tokens.get(i), false, null, null, null));
+            } else if (revoked[i]) {
+                results.add(new TokenIntrospection(tokens.get(i), false, null, null, null));
+            } else {
+                metrics.validation(Validation.VALID);
+                results.add(new TokenIntrospection(tokens.get(i), true, entry.getUsername(), entry.getRole(),
+                        entry.getExpiresAt() - now));
+            }
+        }
+        return results;
+    }
+
+    private String generateToken(String username, String role, long now) {
+        if (signedMode) {
+            return signedTokens.issue(username, role, now, now + MAXTIMEXPIRES);
+        }
+        return UUID.randomUUID().toString();
+    }
+
+    private TokenCache.Entry verifySigned(String token) {
+        TokenClaims claims = signedTokens.verify(token);
+        if (claims == null) {
+            return null;
+        }
+        return new TokenCache.Entry(claims.getUsername(), claims.getRole(), claims.getExpiresAt());
+    }
+
+    /**
+     * Afegeix un esdeveniment a l'AuditJournal, si està actiu.
+     *
+     * @param event Tipus d'esdeveniment
+     * @param status Codi d'estat HTTP de la resposta
+     * @param username Usuari, o null si no es coneix sense cap consulta
+     * @param address Adreça remota de la petició
+     * @param token Token de qui fa la petició
+     * @param related Token nou d'un refresc o token revocat
+     */
+    private void audit(AuditEvent event, int status, String username, String address, String token, String related) {
+        if (audit.isPresent()) {
+            audit.get().record(event, status, username, address, token, related);
+        }
+    }
+
+    /**
+     * @return Adreça remota d'una petició, o null si no es coneix
+     */
+    private static String remoteAddress(ServerHttpRequest request) {
+        InetSocketAddress address = request.getRemoteAddress();
+        if (address == null) {
+            return null;
+        }
+        return address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+    }
+
+    /**
+     * @return Token d'una capçalera "Bearer {token}", o null
+     */
+    private static String bearer(String authHeader) {
+        return authHeader != null && authHeader.startsWith("Bearer ") ? authHeader.substring(7) : null;
+    }
+
+    /**
+     * Codi d'estat HTTP amb què es respon un error d'un endpoint (vegeu els
+     * @RestControllerAdvice).
+     */
+    private static int statusOf(Throwable e) {
+        if (e instanceof ResponseStatusException status) {
+            return status.getStatusCode().value();
+        }
+        if (e instanceof LoginRateLimitedException) {
+            return HttpStatus.TOO_MANY_REQUESTS.value();
+        }
+        if (e instanceof LoginOverloadedException || e instanceof StoreBusyException) {
+            return HttpStatus.SERVICE_UNAVAILABLE.value();
+        }
+        return HttpStatus.INTERNAL_SERVER_ERROR.value();
+    }
+
+    /**
+     * Obté les dades d'un token de la cache o, si no hi és, del
+     * ReactiveTokenStore, guardant-les a la cache si encara és vàlid. Un
+     * token refrescat fa menys de "jwt.refresh.grace-ms" es resol amb les
+     * dades del token que l'ha substituït, mentre aquest no estigui revocat.
+     */
+    private Mono<TokenCache.Entry> lookupToken(String token, long now) {
+        TokenCache.Entry cached = tokenCache.get(token, now);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        if (token == null) {
+            return Mono.empty();
+        }
+        String successor = refreshes.isPresent() ? refreshes.get().successor(token, now) : null;
+        if (successor != null) {
+            return isRevoked(successor).flatMap(revoked -> revoked ? Mono.empty() : lookupToken(successor, now));
+        }
+
+        // una invalidació que arribi durant la lectura no es pot perdre
+        long generation = tokenCache.generation(token);
+        return findByToken(token).map(jwt -> {
+            long expiresAt = jwt.getTime_generated() + MAXTIMEXPIRES;
+            tokenCache.put(token, jwt.getUsername(), jwt.getRole(), expiresAt, now, generation);
+            return new TokenCache.Entry(jwt.getUsername(), jwt.getRole(), expiresAt);
+        });
+    }
+
+    /**
+     * Cerca un token al ReactiveTokenStore dins d'una Observation.
+     */
+    private Mono<Jwt> findByToken(String token) {
+        return metrics.store(StoreOperation.FIND_BY_TOKEN, tokenStore.findByToken(token));
+    }
+}
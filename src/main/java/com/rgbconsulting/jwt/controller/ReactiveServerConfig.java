@@ -0,0 +1,26 @@
+package com.rgbconsulting.jwt.controller;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Servidor de la variant reactiva.
+ *
+ * Tomcat també és al classpath (el fa servir la variant servlet) i Spring
+ * Boot el triaria per defecte; aquí es força Netty, que atén totes les
+ * connexions amb un nombre fix de fils d'event loop (un per nucli, o
+ * "reactor.netty.ioWorkerCount").
+ *
+ * @author sergi
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveServerConfig {
+
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+}
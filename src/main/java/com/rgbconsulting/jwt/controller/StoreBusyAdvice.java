@@ -0,0 +1,21 @@
+package com.rgbconsulting.jwt.controller;
+
+import com.rgbconsulting.jwt.persistence.StoreBusyException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+/**
+ *
+ * @author sergi
+ */
+@RestControllerAdvice
+public class StoreBusyAdvice {
+
+    @ExceptionHandler(StoreBusyException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    String storeBusyHandler(StoreBusyException ex) {
+        return ex.getMessage();
+    }
+}
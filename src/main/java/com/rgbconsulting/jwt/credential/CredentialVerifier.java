@@ -0,0 +1,438 @@
+package com.rgbconsulting.jwt.credential;
+
+import com.rgbconsulting.jwt.limit.LoginOverloadedException;
+import com.rgbconsulting.jwt.persistence.CredentialStore;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Verificació de les contrasenyes de /jwt/auth/login.
+ *
+ * El càlcul dels hashes (PasswordHasher) es fa en un pool propi de
+ * "jwt.credentials.threads" fils amb una cua de com a molt
+ * "jwt.credentials.queue-capacity" verificacions pendents, de manera que els
+ * logins no poden ocupar tota la CPU ni tots els fils que necessiten la
+ * resta d'endpoints. authenticate() bloqueja el fil que la crida: la variant
+ * reactiva la crida des de Schedulers.boundedElastic() (vegeu LoginGate). Si la cua és plena, o la verificació no
+ * acaba en "jwt.credentials.timeout-ms", el login es descarta amb
+ * LoginOverloadedException (503).
+ *
+ * Els logins correctes es recorden durant "jwt.credentials.cache-ttl-ms":
+ * la clau és un HMAC-SHA256 de l'usuari i la contrasenya amb una clau
+ * aleatòria d'aquest procés, i el valor és el hash guardat que s'ha
+ * verificat. Un login repetit amb la mateixa contrasenya no torna a calcular
+ * el hash mentre el hash guardat no canviï; la cache no conté cap
+ * contrasenya ni res que permeti comprovar-ne una fora del procés.
+ *
+ * Quan un hash guardat té un cost inferior a l'actual es recalcula en el
+ * login correcte i se substitueix. Els usuaris sense hash es rebutgen
+ * després de calcular un hash igualment, per no revelar quins usuaris
+ * existeixen pel temps de resposta; només si "jwt.credentials.enroll-unknown"
+ * està actiu es donen d'alta amb la contrasenya del primer login. Els hashes
+ * es creen amb PasswordHasher.main() (vegeu db/jwt-credentials.sql).
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnProperty(name = "jwt.credentials.enabled", havingValue = "true", matchIfMissing = true)
+public class CredentialVerifier implements MeterBinder {
+
+    private final CredentialStore credentialStore;
+    private final PasswordHasher hasher;
+    private final boolean enrollUnknown;
+    private final long timeoutMs;
+    private final long cacheTtlMs;
+    private final int cacheMaxEntries;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<String, Verified> verified = new ConcurrentHashMap<>();
+    private final ThreadLocal<Mac> macs;
+    private volatile String dummyHash;
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder enrolled = new LongAdder();
+    private final LongAdder rehashed = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder hashCount = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final LongAccumulator hashMaxNanos = new LongAccumulator(Long::max, 0);
+
+    public CredentialVerifier(CredentialStore credentialStore, PasswordHasher hasher,
+            @Value("${jwt.credentials.threads:0}") int threads,
+            @Value("${jwt.credentials.queue-capacity:64}") int queueCapacity,
+            @Value("${jwt.credentials.timeout-ms:5000}") long timeoutMs,
+            @Value("${jwt.credentials.cache-ttl-ms:30000}") long cacheTtlMs,
+            @Value("${jwt.credentials.cache-max-entries:10000}") int cacheMaxEntries,
+            @Value("${jwt.credentials.enroll-unknown:false}") boolean enrollUnknown) {
+        this.credentialStore = credentialStore;
+        this.hasher = hasher;
+        this.enrollUnknown = enrollUnknown;
+        this.timeoutMs = timeoutMs;
+        this.cacheTtlMs = cacheTtlMs;
+        this.cacheMaxEntries = cacheMaxEntries;
+        this.queueCapacity = queueCapacity;
+
+        // per defecte la meitat dels nuclis: els hashes no deixen sense CPU
+        // la validació de tokens
+        int size = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), r -> {
+                    Thread thread = new Thread(r, "jwt-credentials-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        SecretKeySpec spec = new SecretKeySpec(key, "HmacSHA256");
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(spec);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 no disponible", e);
+            }
+        });
+    }
+
+    /**
+     * Hash guardat que s'ha verificat per a una clau de la cache.
+     */
+    private static final class Verified {
+
+        private final String hash;
+        private final long expiresAt;
+
+        Verified(String hash, long expiresAt) {
+            this.hash = hash;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Comprova la contrasenya d'un usuari, i el dona d'alta si no en té i
+     * està permès.
+     *
+     * @param username Nom d'usuari
+     * @param password Contrasenya en clar
+     * @return true si la contrasenya és correcta
+     * @throws LoginOverloadedException si el pool de verificació és ple o no
+     * ha respost a temps
+     * @throws com.rgbconsulting.jwt.persistence.StoreBusyException si no s'ha
+     * pogut llegir el hash guardat
+     */
+    public boolean authenticate(String username, String password) {
+        if (username == null || password == null) {
+            rejected.increment();
+            return false;
+        }
+        String key = cacheTtlMs > 0 ? cacheKey(username, password) : null;
+
+        // un segon intent només si un altre login ha donat d'alta l'usuari
+        // entre la lectura i l'alta
+        for (int attempt = 0; attempt < 2; attempt++) {
+            String stored = credentialStore.findHash(username);
+            if (stored == null) {
+                if (!enrollUnknown) {
+                    compute(() -> {
+                        hasher.verify(password, dummyHash());
+                        return null;
+                    });
+                    rejected.increment();
+                    return false;
+                }
+                String hash = compute(() -> hasher.hash(password));
+                if (credentialStore.createHash(username, hash)) {
+                    enrolled.increment();
+                    remember(key, hash);
+                    return true;
+                }
+                continue;
+            }
+
+            if (isRemembered(key, stored)) {
+                cacheHits.increment();
+                return true;
+            }
+            String current = compute(() -> !hasher.verify(password, stored) ? null
+                    : hasher.needsRehash(stored) ? hasher.hash(password) : stored);
+            verifications.increment();
+            if (current == null) {
+                rejected.increment();
+                return false;
+            }
+            if (current.equals(stored)) {
+                remember(key, stored);
+            } else if (credentialStore.replaceHash(username, stored, current)) {
+                rehashed.increment();
+                remember(key, current);
+            }
+            // si la substitució falla és que el hash ha canviat entretant; el
+            // login és correcte respecte al hash que s'ha llegit
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Executa un càlcul de hash al pool i n'espera el resultat.
+     */
+    private String compute(Callable<String> task) {
+        Future<String> future;
+        try {
+            future = executor.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    hashCount.increment();
+                    hashNanos.add(elapsed);
+                    hashMaxNanos.accumulate(elapsed);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            overloaded.increment();
+            throw new LoginOverloadedException("Too many logins waiting for password verification");
+        }
+
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // si encara no ha començat, deixa la seva plaça de la cua lliure
+            future.cancel(true);
+            executor.remove((Runnable) future);
+            timeouts.increment();
+            throw new LoginOverloadedException("Password verification timed out");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            executor.remove((Runnable) future);
+            Thread.currentThread().interrupt();
+            throw new LoginOverloadedException("Password verification interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Password verification failed", e.getCause());
+        }
+    }
+
+    private boolean isRemembered(String key, String stored) {
+        if (key == null) {
+            return false;
+        }
+        Verified entry = verified.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            verified.remove(key, entry);
+            return false;
+        }
+        return entry.hash.equals(stored);
+    }
+
+    private void remember(String key, String hash) {
+        if (key == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (verified.size() >= cacheMaxEntries) {
+            verified.values().removeIf(entry -> entry.expiresAt <= now);
+            if (verified.size() >= cacheMaxEntries) {
+                return;
+            }
+        }
+        verified.put(key, new Verified(hash, now + cacheTtlMs));
+    }
+
+    /**
+     * Clau de la cache: HMAC-SHA256 de l'usuari i la contrasenya.
+     */
+    private String cacheKey(String username, String password) {
+        Mac mac = macs.get();
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return Base64.getEncoder().encodeToString(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Hash d'una contrasenya aleatòria per igualar el temps de resposta dels
+     * usuaris inexistents. Es calcula el primer cop que cal.
+     */
+    private String dummyHash() {
+        String hash = dummyHash;
+        if (hash == null) {
+            byte[] random = new byte[16];
+            new SecureRandom().nextBytes(random);
+            hash = hasher.hash(Base64.getEncoder().encodeToString(random));
+            dummyHash = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * @return Verificacions pendents a la cua del pool
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return Fils del pool calculant un hash
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return Logins resolts per la cache sense calcular cap hash
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return Contrasenyes comprovades contra el hash guardat
+     */
+    public long getVerifications() {
+        return verifications.sum();
+    }
+
+    /**
+     * @return Logins rebutjats per contrasenya incorrecta o usuari desconegut
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return Usuaris donats d'alta en el primer login
+     */
+    public long getEnrolled() {
+        return enrolled.sum();
+    }
+
+    /**
+     * @return Hashes recalculats amb el cost actual
+     */
+    public long getRehashed() {
+        return rehashed.sum();
+    }
+
+    /**
+     * @return Logins descartats per cua plena o temps d'espera exhaurit
+     */
+    public long getOverloaded() {
+        return overloaded.sum() + timeouts.sum();
+    }
+
+    /**
+     * @return Hashes calculats al pool
+     */
+    public long getHashCount() {
+        return hashCount.sum();
+    }
+
+    /**
+     * @return Temps total de càlcul de hashes en nanosegons
+     */
+    public long getHashNanos() {
+        return hashNanos.sum();
+    }
+
+    /**
+     * Registra jwt.credentials.verifications (etiqueta result),
+     * jwt.credentials.hash, jwt.credentials.queue_depth i
+     * jwt.credentials.active.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        verifications(registry, "cache_hit", CredentialVerifier::getCacheHits);
+        verifications(registry, "hashed", CredentialVerifier::getVerifications);
+        verifications(registry, "rejected", CredentialVerifier::getRejected);
+        verifications(registry, "enrolled", CredentialVerifier::getEnrolled);
+        verifications(registry, "rehashed", CredentialVerifier::getRehashed);
+        verifications(registry, "overloaded", CredentialVerifier::getOverloaded);
+        FunctionTimer.builder("jwt.credentials.hash", this, CredentialVerifier::getHashCount,
+                CredentialVerifier::getHashNanos, TimeUnit.NANOSECONDS)
+                .description("Temps de càlcul dels hashes de contrasenya")
+                .register(registry);
+        Gauge.builder("jwt.credentials.queue_depth", this, CredentialVerifier::getQueueDepth)
+                .description("Verificacions de contrasenya pendents")
+                .register(registry);
+        Gauge.builder("jwt.credentials.active", this, CredentialVerifier::getActive)
+                .description("Fils calculant un hash de contrasenya")
+                .register(registry);
+    }
+
+    private void verifications(MeterRegistry registry, String result, ToDoubleFunction<CredentialVerifier> count) {
+        FunctionCounter.builder("jwt.credentials.verifications", this, count)
+                .description("Verificacions de contrasenya per resultat")
+                .tag("result", result)
+                .register(registry);
+    }
+
+    /**
+     * Retorna la configuració del pool i els comptadors de verificació.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        long count = hashCount.sum();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("iterations", hasher.getIterations());
+        metrics.put("threads", executor.getCorePoolSize());
+        metrics.put("queue_capacity", queueCapacity);
+        metrics.put("queue_depth", getQueueDepth());
+        metrics.put("active", getActive());
+        metrics.put("cache_entries", verified.size());
+        metrics.put("cache_hits", getCacheHits());
+        metrics.put("verifications", getVerifications());
+        metrics.put("rejected", getRejected());
+        metrics.put("enrolled", getEnrolled());
+        metrics.put("rehashed", getRehashed());
+        metrics.put("queue_full", overloaded.sum());
+        metrics.put("timeouts", timeouts.sum());
+        metrics.put("hashes", count);
+        metrics.put("hash_avg_ms", count == 0 ? 0.0 : hashNanos.sum() / (double) count / 1_000_000);
+        metrics.put("hash_max_ms", hashMaxNanos.get() / 1_000_000.0);
+        return metrics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
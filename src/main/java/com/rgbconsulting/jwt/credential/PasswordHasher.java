@@ -0,0 +1,167 @@
+package com.rgbconsulting.jwt.credential;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hash de contrasenyes amb PBKDF2-HMAC-SHA256.
+ *
+ * El resultat es guarda en format "$pbkdf2-sha256$i=iteracions$sal$hash"
+ * (sal i hash en Base64 sense farciment), de manera que cada hash porta el
+ * cost amb què es va calcular. Quan s'augmenta
+ * "jwt.credentials.pbkdf2.iterations", els hashes antics continuen sent
+ * vàlids i needsRehash() indica que s'han de recalcular en el proper login
+ * correcte.
+ *
+ * Cada operació és deliberadament costosa en CPU: s'ha d'executar al pool de
+ * CredentialVerifier, no als fils de Tomcat.
+ *
+ * @author sergi
+ */
+@Component
+public class PasswordHasher {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "$pbkdf2-sha256$i=";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+    private static final Base64.Encoder ENCODER = Base64.getEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getDecoder();
+
+    private final SecureRandom random = new SecureRandom();
+    private final int iterations;
+
+    public PasswordHasher(@Value("${jwt.credentials.pbkdf2.iterations:600000}") int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Calcula el hash d'una contrasenya amb una sal aleatòria i el cost
+     * configurat.
+     *
+     * @param password Contrasenya en clar
+     * @return Hash codificat
+     */
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations);
+        return PREFIX + iterations + "$" + ENCODER.encodeToString(salt) + "$" + ENCODER.encodeToString(hash);
+    }
+
+    /**
+     * Comprova una contrasenya contra un hash guardat, amb el cost del hash
+     * i en temps constant respecte al contingut.
+     *
+     * @param password Contrasenya en clar
+     * @param encoded Hash guardat
+     * @return true si la contrasenya coincideix; false si no, o si el hash
+     * no té un format conegut
+     */
+    public boolean verify(String password, String encoded) {
+        Parsed parsed = parse(encoded);
+        if (parsed == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(parsed.hash, pbkdf2(password, parsed.salt, parsed.iterations));
+    }
+
+    /**
+     * @param encoded Hash guardat
+     * @return true si el hash s'ha calculat amb un cost inferior a l'actual o
+     * amb un format diferent
+     */
+    public boolean needsRehash(String encoded) {
+        Parsed parsed = parse(encoded);
+        return parsed == null || parsed.iterations < iterations
+                || parsed.salt.length != SALT_BYTES || parsed.hash.length != HASH_BYTES;
+    }
+
+    /**
+     * @return Iteracions configurades
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " no disponible", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Components d'un hash codificat.
+     */
+    private static final class Parsed {
+
+        private final int iterations;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private Parsed(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @return Components del hash, o null si no té el format esperat
+     */
+    private static Parsed parse(String encoded) {
+        if (encoded == null || !encoded.startsWith(PREFIX)) {
+            return null;
+        }
+        String[] parts = encoded.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[0]);
+            if (iterations < 1) {
+                return null;
+            }
+            return new Parsed(iterations, DECODER.decode(parts[1]), DECODER.decode(parts[2]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Calcula el hash d'una contrasenya per donar d'alta un usuari a
+     * "jwt_credentials" (vegeu db/jwt-credentials.sql). La contrasenya es
+     * llegeix de l'entrada estàndard, perquè no quedi a l'historial de
+     * l'intèrpret, i el hash s'escriu a la sortida.
+     *
+     * Ús: java -cp target/classes com.rgbconsulting.jwt.credential.PasswordHasher [iteracions]
+     *
+     * @param args Iteracions PBKDF2 (per defecte 600000, com
+     * "jwt.credentials.pbkdf2.iterations")
+     */
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 600000;
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String password = in.readLine();
+        if (password == null || password.isEmpty()) {
+            System.err.println("Cal la contrasenya a l'entrada estàndard");
+            System.exit(1);
+        }
+        System.out.println(new PasswordHasher(iterations).hash(password));
+    }
+}
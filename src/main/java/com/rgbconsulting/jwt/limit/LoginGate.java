@@ -0,0 +1,111 @@
+package com.rgbconsulting.jwt.limit;
+
+import com.rgbconsulting.jwt.credential.CredentialVerifier;
+import java.util.Optional;
+import java.util.function.Supplier;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Passos previs a l'emissió d'un token a /jwt/auth/login: admissió pel
+ * LoginLimiter i verificació de la contrasenya pel CredentialVerifier.
+ *
+ * Tots dos components són opcionals ("jwt.login.limit.enabled" i
+ * "jwt.credentials.enabled"); aquesta classe els agrupa perquè el controlador
+ * no hagi de saber quins estan actius. login() és per als fils de Tomcat i
+ * loginAsync() per a ReactiveJwtController.
+ *
+ * @author sergi
+ */
+@Component
+public class LoginGate {
+
+    private final Optional<LoginLimiter> limiter;
+    private final Optional<CredentialVerifier> credentials;
+
+    public LoginGate(Optional<LoginLimiter> limiter, Optional<CredentialVerifier> credentials) {
+        this.limiter = limiter;
+        this.credentials = credentials;
+    }
+
+    /**
+     * Admet el login, verifica la contrasenya i, si és correcta, emet el
+     * token. El permís del LoginLimiter es manté fins que l'emissió acaba.
+     *
+     * @param username Nom d'usuari
+     * @param password Contrasenya rebuda
+     * @param address Adreça remota de la petició
+     * @param issue Emissió del token
+     * @return Resultat de l'emissió
+     * @throws LoginRateLimitedException si se supera el ritme de logins (429)
+     * @throws LoginOverloadedException si hi ha massa logins en curs (503)
+     * @throws ResponseStatusException 401 UNAUTHORIZED si la contrasenya no és
+     * correcta
+     */
+    public <T> T login(String username, String password, String address, Supplier<T> issue) {
+        if (limiter.isEmpty()) {
+            return authenticate(username, password, issue);
+        }
+        LoginLimiter l = limiter.get();
+        l.acquire(username, address);
+        try {
+            return authenticate(username, password, issue);
+        } finally {
+            l.release();
+        }
+    }
+
+    /**
+     * Igual que login() per a la variant reactiva. L'admissió no bloqueja i es
+     * fa al fil de la subscripció; la verificació de la contrasenya, que
+     * espera el pool de CredentialVerifier i la lectura del hash guardat, es
+     * fa en un fil de Schedulers.boundedElastic(). El permís del LoginLimiter
+     * es manté fins que el Mono de l'emissió acaba.
+     *
+     * @param username Nom d'usuari
+     * @param password Contrasenya rebuda
+     * @param address Adreça remota de la petició
+     * @param issue Emissió del token
+     * @return Mono amb el resultat de l'emissió, o amb els mateixos errors
+     * que login()
+     */
+    public <T> Mono<T> loginAsync(String username, String password, String address, Supplier<Mono<T>> issue) {
+        return Mono.defer(() -> {
+            if (limiter.isEmpty()) {
+                return authenticateAsync(username, password, issue);
+            }
+            LoginLimiter l = limiter.get();
+            l.acquire(username, address);
+            Mono<T> result;
+            try {
+                result = authenticateAsync(username, password, issue);
+            } catch (Throwable e) {
+                // issue.get() pot fallar abans que hi hagi cap Mono al qual
+                // associar l'alliberament
+                l.release();
+                throw e;
+            }
+            return result.doFinally(signal -> l.release());
+        });
+    }
+
+    private <T> Mono<T> authenticateAsync(String username, String password, Supplier<Mono<T>> issue) {
+        if (credentials.isEmpty()) {
+            return issue.get();
+        }
+        return Mono.fromCallable(() -> credentials.get().authenticate(username, password))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(valid -> valid ? issue.get()
+                : Mono.error(new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid username or password")));
+    }
+
+    private <T> T authenticate(String username, String password, Supplier<T> issue) {
+        if (credentials.isPresent() && !credentials.get().authenticate(username, password)) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Invalid username or password");
+        }
+        return issue.get();
+    }
+}
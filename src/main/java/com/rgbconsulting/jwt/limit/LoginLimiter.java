@@ -0,0 +1,237 @@
+package com.rgbconsulting.jwt.limit;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Control d'admissió de /jwt/auth/login, abans de tocar la base de dades.
+ *
+ * Cada login passa per dos límits de ritme, un per nom d'usuari i un per
+ * adreça remota, i per un límit global de logins en curs: - ritme: cubell de
+ * tokens de "rate" logins per segon amb ràfegues de fins a "burst"; si
+ * s'exhaureix es rebutja amb LoginRateLimitedException (429) indicant quan es
+ * pot tornar a provar - concurrència: si ja hi ha "max-concurrent" logins en
+ * curs es descarta la petició amb LoginOverloadedException (503), de manera
+ * que una tempesta de reintents no ocupa les connexions que necessiten els
+ * altres endpoints
+ *
+ * Cada cubell és un sol long amb el moment teòric d'arribada del proper
+ * login (GCRA, equivalent a un cubell de tokens) i s'actualitza amb
+ * compareAndSet, sense bloquejos. Els cubells viuen en taules de mida fixa
+ * ("jwt.login.limit.slots") indexades per un hash de la clau amb una llavor
+ * aleatòria: la memòria no creix amb el nombre de claus, no cal netejar-les,
+ * i les peticions de claus diferents actualitzen posicions diferents. Dues
+ * claus que comparteixen posició comparteixen cubell, cosa que només les fa
+ * més estrictes; la llavor impedeix triar claus que en col·lisionin a
+ * propòsit.
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnProperty(name = "jwt.login.limit.enabled", havingValue = "true", matchIfMissing = true)
+public class LoginLimiter implements MeterBinder {
+
+    private final AtomicLongArray users;
+    private final AtomicLongArray addresses;
+    private final int slotShift;
+    private final long seed = new SecureRandom().nextLong();
+    private final long origin = System.nanoTime() - 1;
+
+    private final long userInterval;
+    private final long userTolerance;
+    private final long addressInterval;
+    private final long addressTolerance;
+    private final int maxConcurrent;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder limitedUser = new LongAdder();
+    private final LongAdder limitedAddress = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    public LoginLimiter(@Value("${jwt.login.limit.user.rate:10}") double userRate,
+            @Value("${jwt.login.limit.user.burst:20}") int userBurst,
+            @Value("${jwt.login.limit.address.rate:500}") double addressRate,
+            @Value("${jwt.login.limit.address.burst:1000}") int addressBurst,
+            @Value("${jwt.login.limit.max-concurrent:50}") int maxConcurrent,
+            @Value("${jwt.login.limit.slots:65536}") int slots) {
+        int n = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.users = new AtomicLongArray(n);
+        this.addresses = new AtomicLongArray(n);
+        this.slotShift = 64 - Integer.numberOfTrailingZeros(n);
+        this.userInterval = (long) (TimeUnit.SECONDS.toNanos(1) / userRate);
+        this.userTolerance = userInterval * (Math.max(1, userBurst) - 1);
+        this.addressInterval = (long) (TimeUnit.SECONDS.toNanos(1) / addressRate);
+        this.addressTolerance = addressInterval * (Math.max(1, addressBurst) - 1);
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Admet un login o el rebutja. Si s'admet, s'ha de cridar release() en
+     * un bloc finally quan acabi.
+     *
+     * @param username Nom d'usuari del login (pot ser null)
+     * @param address Adreça remota del client
+     * @throws LoginRateLimitedException si l'usuari o l'adreça han superat el
+     * seu ritme
+     * @throws LoginOverloadedException si hi ha massa logins en curs
+     */
+    public void acquire(String username, String address) {
+        long now = System.nanoTime() - origin;
+
+        // primer l'adreça: un sol client no pot omplir la taula d'usuaris
+        long wait = take(addresses, slot(address), now, addressInterval, addressTolerance);
+        if (wait > 0) {
+            limitedAddress.increment();
+            throw new LoginRateLimitedException("Too many logins from this address", retryAfterSeconds(wait));
+        }
+        wait = take(users, slot(username), now, userInterval, userTolerance);
+        if (wait > 0) {
+            limitedUser.increment();
+            throw new LoginRateLimitedException("Too many logins for this user", retryAfterSeconds(wait));
+        }
+
+        if (inFlight.incrementAndGet() > maxConcurrent) {
+            inFlight.decrementAndGet();
+            shed.increment();
+            throw new LoginOverloadedException("Too many concurrent logins");
+        }
+        admitted.increment();
+    }
+
+    /**
+     * Allibera la plaça de concurrència obtinguda amb acquire().
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return Logins en curs
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return Logins admesos
+     */
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    /**
+     * @return Logins rebutjats pel ritme de l'usuari
+     */
+    public long getLimitedUser() {
+        return limitedUser.sum();
+    }
+
+    /**
+     * @return Logins rebutjats pel ritme de l'adreça
+     */
+    public long getLimitedAddress() {
+        return limitedAddress.sum();
+    }
+
+    /**
+     * @return Logins descartats pel límit de concurrència
+     */
+    public long getShed() {
+        return shed.sum();
+    }
+
+    /**
+     * Registra jwt.login.admissions (etiqueta result) i jwt.login.in_flight.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        admissions(registry, "admitted", LoginLimiter::getAdmitted);
+        admissions(registry, "rate_limited_user", LoginLimiter::getLimitedUser);
+        admissions(registry, "rate_limited_address", LoginLimiter::getLimitedAddress);
+        admissions(registry, "shed", LoginLimiter::getShed);
+        Gauge.builder("jwt.login.in_flight", this, LoginLimiter::getInFlight)
+                .description("Logins en curs")
+                .register(registry);
+    }
+
+    private void admissions(MeterRegistry registry, String result, ToDoubleFunction<LoginLimiter> count) {
+        FunctionCounter.builder("jwt.login.admissions", this, count)
+                .description("Decisions d'admissió dels logins")
+                .tag("result", result)
+                .register(registry);
+    }
+
+    /**
+     * Retorna la configuració i els comptadors d'admissió.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("slots", users.length());
+        metrics.put("max_concurrent", maxConcurrent);
+        metrics.put("in_flight", getInFlight());
+        metrics.put("admitted", getAdmitted());
+        metrics.put("rate_limited_user", getLimitedUser());
+        metrics.put("rate_limited_address", getLimitedAddress());
+        metrics.put("shed", getShed());
+        return metrics;
+    }
+
+    /**
+     * Consumeix un token del cubell d'una posició (GCRA). El cubell guarda el
+     * moment teòric d'arribada (TAT); s'admet si TAT no supera ara més la
+     * tolerància de ràfega, i llavors TAT avança un interval.
+     *
+     * @return 0 si s'admet, o els nanosegons que falten perquè s'admeti
+     */
+    private static long take(AtomicLongArray slots, int slot, long now, long interval, long tolerance) {
+        while (true) {
+            long tat = slots.get(slot);
+            long wait = tat - now - tolerance;
+            if (wait > 0) {
+                return wait;
+            }
+            if (slots.compareAndSet(slot, tat, Math.max(tat, now) + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Posició d'una clau: hash FNV-1a amb llavor i barreja final de
+     * MurmurHash3, dels bits alts.
+     */
+    private int slot(String key) {
+        long h = seed;
+        if (key != null) {
+            for (int i = 0; i < key.length(); i++) {
+                h = (h ^ key.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) (h >>> slotShift);
+    }
+
+    private static long retryAfterSeconds(long waitNanos) {
+        return Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000);
+    }
+}
@@ -0,0 +1,14 @@
+package com.rgbconsulting.jwt.limit;
+
+/**
+ * Es llança quan es descarta un login perquè ja n'hi ha massa en curs.
+ *
+ * @author sergi
+ */
+public class LoginOverloadedException extends RuntimeException {
+
+    public LoginOverloadedException(String message) {
+        // sense traça: en una tempesta de reintents se'n llancen milers per segon
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,22 @@
+package com.rgbconsulting.jwt.limit;
+
+/**
+ * Es llança quan un login supera el ritme permès per al seu usuari o la seva
+ * adreça. Porta els segons que cal esperar abans de tornar-ho a provar.
+ *
+ * @author sergi
+ */
+public class LoginRateLimitedException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    public LoginRateLimitedException(String message, long retryAfterSeconds) {
+        // sense traça: en una tempesta de reintents se'n llancen milers per segon
+        super(message, null, false, false);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
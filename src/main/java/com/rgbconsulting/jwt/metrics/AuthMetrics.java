@@ -0,0 +1,217 @@
+package com.rgbconsulting.jwt.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Instrumentació del camí calent dels endpoints d'autenticació.
+ *
+ * Registra amb Micrometer, i exposa a /actuator/prometheus: - jwt.endpoint:
+ * temps de cada endpoint (etiqueta "endpoint") - jwt.store.operation: temps
+ * de cada operació del TokenStore (etiquetes "operation", "store" i "error")
+ * - jwt.token.validations: resultat de cada validació de token (etiqueta
+ * "result": valid, expired, unknown o revoked) - jwt.introspect.batch_size:
+ * tokens per petició d'introspecció - jwt.introspect.not_modified: respostes
+ * 304 a peticions condicionals - jwt.role.denials: peticions d'administració
+ * rebutjades per rol
+ *
+ * La resta de mètriques (jwt.tokens.live, jwt.bulkhead.*, jwt.revocation.*,
+ * jwt.login.*, jwt.credentials.*, jwt.refresh.*, jwt.audit.*, ...) les
+ * registra cada component implementant MeterBinder, i l'actuator les associa
+ * al registre només si el component existeix amb la configuració activa.
+ *
+ * Junt amb les mètriques del pool (hikaricp.*) i de la JVM (jvm.gc.*,
+ * jvm.threads.*) que registra l'actuator, permet separar el temps d'una
+ * petició lenta entre la base de dades, l'espera de connexió i la JVM.
+ *
+ * Els comptadors i temporitzadors dels endpoints es creen a l'arrencada i es
+ * guarden en taules indexades per ordinal: registrar una mesura no fa cap
+ * cerca per etiquetes ni reserva memòria. Les operacions del TokenStore, en
+ * canvi, s'observen amb una Observation de Micrometer: el temporitzador
+ * jwt.store.operation el crea el DefaultMeterObservationHandler de
+ * l'actuator i, si s'afegeix un pont de traces (micrometer-tracing), cada
+ * operació també és un span fill de la petició. Això reserva uns quants
+ * objectes per operació, un cost petit al costat d'un accés a la base de
+ * dades.
+ *
+ * @author sergi
+ */
+@Component
+public class AuthMetrics {
+
+    /**
+     * Endpoints instrumentats.
+     */
+    public enum Endpoint {
+        LOGIN("login"), REFRESH("refresh"), SECURE_PING("secure_ping"),
+        ADMIN_TEST("admin_test"), PUBLIC_PING("public_ping"), INTROSPECT("introspect"),
+        INTROSPECT_TOKEN("introspect_token"), LOGOUT("logout"), REVOKE("revoke");
+
+        private final String tag;
+
+        Endpoint(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * Operacions del TokenStore instrumentades.
+     */
+    public enum StoreOperation {
+        SAVE_LOGIN("save_login"), UPDATE_TOKEN("update_token"), FIND_BY_TOKEN("find_by_token"),
+        FIND_BY_TOKENS("find_by_tokens");
+
+        private final String tag;
+
+        StoreOperation(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * Resultat de validar un token.
+     */
+    public enum Validation {
+        VALID("valid"), EXPIRED("expired"), UNKNOWN("unknown"), REVOKED("revoked");
+
+        private final String tag;
+
+        Validation(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final Timer[] endpointTimers = new Timer[Endpoint.values().length];
+    private final Counter[] validations = new Counter[Validation.values().length];
+    private final Counter roleDenials;
+    private final DistributionSummary introspectBatchSize;
+    private final Counter notModified;
+    private final ObservationRegistry observations;
+    private final String store;
+
+    public AuthMetrics(MeterRegistry registry, ObservationRegistry observations,
+            @Value("${jwt.store:jdbc}") String store) {
+        this.observations = observations;
+        this.store = store.toLowerCase();
+        for (Endpoint e : Endpoint.values()) {
+            endpointTimers[e.ordinal()] = Timer.builder("jwt.endpoint")
+                    .description("Temps de resposta dels endpoints d'autenticació")
+                    .tag("endpoint", e.tag)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(10_000))
+                    .maximumExpectedValue(Duration.ofSeconds(10))
+                    .register(registry);
+        }
+        for (Validation v : Validation.values()) {
+            validations[v.ordinal()] = Counter.builder("jwt.token.validations")
+                    .description("Validacions de tokens per resultat")
+                    .tag("result", v.tag)
+                    .register(registry);
+        }
+        roleDenials = Counter.builder("jwt.role.denials")
+                .description("Peticions d'administració rebutjades per rol")
+                .register(registry);
+        introspectBatchSize = DistributionSummary.builder("jwt.introspect.batch_size")
+                .description("Tokens per petició d'introspecció")
+                .register(registry);
+        notModified = Counter.builder("jwt.introspect.not_modified")
+                .description("Introspeccions condicionals respostes amb 304")
+                .register(registry);
+    }
+
+    /**
+     * Registra el temps d'un endpoint.
+     *
+     * @param endpoint Endpoint atès
+     * @param startNanos Valor de System.nanoTime() a l'inici de la petició
+     */
+    public void endpoint(Endpoint endpoint, long startNanos) {
+        endpointTimers[endpoint.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Executa una operació del TokenStore dins d'una Observation.
+     *
+     * @param operation Operació feta
+     * @param call Crida al TokenStore
+     * @return Resultat de la crida
+     */
+    public <T> T store(StoreOperation operation, Supplier<T> call) {
+        return observation(operation).observe(call);
+    }
+
+    /**
+     * Executa una operació del TokenStore sense resultat dins d'una
+     * Observation.
+     *
+     * @param operation Operació feta
+     * @param call Crida al TokenStore
+     */
+    public void store(StoreOperation operation, Runnable call) {
+        observation(operation).observe(call);
+    }
+
+    /**
+     * Observa una operació del ReactiveTokenStore: l'Observation comença en
+     * subscriure's i s'atura quan el Mono acaba, falla o es cancel·la.
+     *
+     * @param operation Operació feta
+     * @param call Crida al ReactiveTokenStore
+     * @return Mono amb el mateix resultat
+     */
+    public <T> Mono<T> store(StoreOperation operation, Mono<T> call) {
+        return Mono.defer(() -> {
+            Observation observation = observation(operation).start();
+            return call.doOnError(observation::error).doFinally(signal -> observation.stop());
+        });
+    }
+
+    private Observation observation(StoreOperation operation) {
+        return Observation.createNotStarted("jwt.store.operation", observations)
+                .contextualName("jwt.store." + operation.tag)
+                .lowCardinalityKeyValue("operation", operation.tag)
+                .lowCardinalityKeyValue("store", store);
+    }
+
+    /**
+     * Compta el resultat de validar un token.
+     *
+     * @param result Resultat de la validació
+     */
+    public void validation(Validation result) {
+        validations[result.ordinal()].increment();
+    }
+
+    /**
+     * Registra la mida d'un lot d'introspecció.
+     *
+     * @param tokens Nombre de tokens del lot
+     */
+    public void introspectBatch(int tokens) {
+        introspectBatchSize.record(tokens);
+    }
+
+    /**
+     * Compta una introspecció condicional resposta amb 304.
+     */
+    public void notModified() {
+        notModified.increment();
+    }
+
+    /**
+     * Compta una petició d'administració rebutjada per rol.
+     */
+    public void roleDenied() {
+        roleDenials.increment();
+    }
+}
@@ -0,0 +1,90 @@
+package com.rgbconsulting.jwt.metrics;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aot.AotDetector;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Temps d'arrencada mesurat des de l'inici de la JVM: fins que l'aplicació
+ * està a punt (ApplicationReadyEvent) i fins que respon la primera petició,
+ * que és el que compta quan s'afegeixen instàncies sota càrrega.
+ *
+ * Indica també si s'han fet servir les definicions de beans generades per
+ * AOT ("spring.aot.enabled") i un arxiu CDS ("-XX:SharedArchiveFile"), per
+ * comparar el perfil d'arrencada ràpida amb l'arrencada normal. Després de la
+ * primera petició el filtre només fa una lectura volàtil.
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class StartupReport implements Filter {
+
+    private static final Logger log = LoggerFactory.getLogger(StartupReport.class);
+
+    private final AtomicBoolean served = new AtomicBoolean();
+    private volatile long readyMs = -1;
+    private volatile long firstRequestMs = -1;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void ready() {
+        readyMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        log.info("Ready {} ms after JVM start (aot={}, cds={})", readyMs, isAot(), isCds());
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        chain.doFilter(request, response);
+        if (firstRequestMs < 0 && served.compareAndSet(false, true)) {
+            firstRequestMs = ManagementFactory.getRuntimeMXBean().getUptime();
+            log.info("First request served {} ms after JVM start", firstRequestMs);
+        }
+    }
+
+    /**
+     * @return true si el context s'ha creat amb les definicions de beans
+     * generades per AOT
+     */
+    public boolean isAot() {
+        return AotDetector.useGeneratedArtifacts();
+    }
+
+    /**
+     * @return true si la JVM s'ha arrencat amb un arxiu CDS de l'aplicació
+     */
+    public boolean isCds() {
+        List<String> arguments = ManagementFactory.getRuntimeMXBean().getInputArguments();
+        return arguments.stream().anyMatch(a -> a.startsWith("-XX:SharedArchiveFile"));
+    }
+
+    /**
+     * Retorna els temps d'arrencada en mil·lisegons des de l'inici de la JVM
+     * (-1 si encara no s'han assolit) i si s'han fet servir AOT i CDS.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("aot", isAot());
+        metrics.put("cds", isCds());
+        metrics.put("ready_ms", readyMs);
+        metrics.put("first_request_ms", firstRequestMs);
+        return metrics;
+    }
+}
@@ -1,14 +1,21 @@
 package com.rgbconsulting.jwt.model;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import java.util.Objects;
 
 /**
+ * Petició i resposta de login.
+ *
+ * La contrasenya només es llegeix de la petició: no s'escriu mai al JSON de
+ * resposta i no forma part d'equals, hashCode ni toString, perquè un registre
+ * o un log no la pugui exposar.
  *
  * @author sergi
  */
 public class Jwt {
 
     private String username;
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
     private String password;
     private String access_token;
     private Integer expires_in;
@@ -25,7 +32,7 @@ public class Jwt {
         this.access_token = jwt.getAccess_token();
         this.expires_in = jwt.getExpires_in();
         this.time_generated = jwt.getTime_generated();
-        this.role = role;
+        this.role = jwt.getRole();
     }
     
     public String getUsername() {
@@ -85,7 +92,6 @@ public class Jwt {
         }
         Jwt jwt = (Jwt) o;
         return Objects.equals(username, jwt.username)
-                && Objects.equals(password, jwt.password)
                 && Objects.equals(access_token, jwt.access_token)
                 && Objects.equals(expires_in, jwt.expires_in)
                 && Objects.equals(role, jwt.role);
@@ -93,14 +99,13 @@ public class Jwt {
 
     @Override
     public int hashCode() {
-        return Objects.hash(username, password, access_token, expires_in, role);
+        return Objects.hash(username, access_token, expires_in, role);
     }
 
     @Override
     public String toString() {
         return "jwt{"
                 + ", username='" + username + '\''
-                + ", password='" + password + '\''
                 + ", access_token='" + access_token + '\''
                 + ", expires_in=" + expires_in
                 + ", role=" + role
@@ -0,0 +1,71 @@
+package com.rgbconsulting.jwt.model;
+
+/**
+ * Resultat de validar un token a la introspecció per lots.
+ *
+ * Un token actiu porta el nom d'usuari, el rol i els mil·lisegons de vida
+ * que li queden (expires_in). Un token expirat o desconegut té active=false i
+ * la resta de camps buits.
+ *
+ * @author sergi
+ */
+public class TokenIntrospection {
+
+    private String access_token;
+    private boolean active;
+    private String username;
+    private String role;
+    private Long expires_in;
+
+    public TokenIntrospection() {
+
+    }
+
+    public TokenIntrospection(String access_token, boolean active, String username, String role, Long expires_in) {
+        this.access_token = access_token;
+        this.active = active;
+        this.username = username;
+        this.role = role;
+        this.expires_in = expires_in;
+    }
+
+    public String getAccess_token() {
+        return access_token;
+    }
+
+    public void setAccess_token(String access_token) {
+        this.access_token = access_token;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public void setRole(String role) {
+        this.role = role;
+    }
+
+    public Long getExpires_in() {
+        return expires_in;
+    }
+
+    public void setExpires_in(Long expires_in) {
+        this.expires_in = expires_in;
+    }
+}
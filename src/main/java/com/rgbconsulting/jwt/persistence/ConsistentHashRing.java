@@ -0,0 +1,108 @@
+package com.rgbconsulting.jwt.persistence;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Anell de hash consistent per repartir claus entre nodes.
+ *
+ * Cada node ocupa "virtualNodes" punts de l'anell, calculats a partir del
+ * seu identificador (no de la seva posició a la llista), i una clau pertany
+ * al primer punt igual o posterior al seu hash. Afegir un node només mou les
+ * claus que passen a caure en els seus punts, aproximadament 1/(N+1) del
+ * total, i treure'n un només mou les seves. Els punts virtuals reparteixen la
+ * càrrega de manera uniforme.
+ *
+ * Els punts es guarden en un array ordenat i la cerca és binària, sense
+ * crear cap objecte. L'anell és immutable: per canviar els nodes se'n crea
+ * un de nou.
+ *
+ * @param <T> Tipus dels nodes
+ * @author sergi
+ */
+public final class ConsistentHashRing<T> {
+
+    private final long[] points;
+    private final int[] owners;
+    private final List<T> nodes;
+
+    /**
+     * @param ids Identificadors estables dels nodes (p.ex. la URL de cada base
+     * de dades)
+     * @param nodes Nodes, en el mateix ordre que "ids"
+     * @param virtualNodes Punts de l'anell per node
+     */
+    public ConsistentHashRing(List<String> ids, List<T> nodes, int virtualNodes) {
+        if (ids.isEmpty() || ids.size() != nodes.size()) {
+            throw new IllegalArgumentException("Cal el mateix nombre d'identificadors que de nodes, i com a mínim un");
+        }
+        int perNode = Math.max(1, virtualNodes);
+        int n = ids.size() * perNode;
+        long[][] entries = new long[n][];
+        for (int node = 0; node < ids.size(); node++) {
+            for (int v = 0; v < perNode; v++) {
+                entries[node * perNode + v] = new long[]{hash(ids.get(node) + "#" + v), node};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[n];
+        this.owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+        this.nodes = List.copyOf(nodes);
+    }
+
+    /**
+     * @param key Clau
+     * @return Posició a la llista de nodes del node que li correspon
+     */
+    public int indexOf(CharSequence key) {
+        long h = hash(key);
+        int i = Arrays.binarySearch(points, h);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * @param key Clau
+     * @return Node que li correspon
+     */
+    public T route(CharSequence key) {
+        return nodes.get(indexOf(key));
+    }
+
+    /**
+     * @return Nodes de l'anell
+     */
+    public List<T> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return Punts de l'anell
+     */
+    public int getPoints() {
+        return points.length;
+    }
+
+    /**
+     * Hash de 64 bits (FNV-1a per caràcter seguit de la barreja final de
+     * MurmurHash3).
+     */
+    private static long hash(CharSequence s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,40 @@
+package com.rgbconsulting.jwt.persistence;
+
+/**
+ * Magatzem dels hashes de contrasenya dels usuaris. Mai no guarda ni rep
+ * contrasenyes en clar: els hashes els calcula CredentialVerifier amb
+ * PasswordHasher.
+ *
+ * @author sergi
+ */
+public interface CredentialStore {
+
+    /**
+     * @param username Nom d'usuari
+     * @return Hash guardat, o null si l'usuari no en té
+     * @throws StoreBusyException si no s'ha pogut consultar
+     */
+    String findHash(String username);
+
+    /**
+     * Guarda el hash d'un usuari que encara no en té.
+     *
+     * @param username Nom d'usuari
+     * @param hash Hash de la contrasenya
+     * @return true si s'ha guardat; false si l'usuari ja en tenia un o s'ha
+     * produït un error
+     */
+    boolean createHash(String username, String hash);
+
+    /**
+     * Substitueix el hash d'un usuari només si encara és "expected", de
+     * manera que un recàlcul no sobreescriu un canvi de contrasenya
+     * concurrent.
+     *
+     * @param username Nom d'usuari
+     * @param expected Hash que s'ha verificat
+     * @param hash Hash nou
+     * @return true si s'ha substituït
+     */
+    boolean replaceHash(String username, String expected, String hash);
+}
@@ -0,0 +1,61 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configuració del pool de connexions a la base de dades PostgreSQL.
+ *
+ * Substitueix les connexions per crida de DriverManager per un pool HikariCP
+ * acotat. Tots els paràmetres es llegeixen de la configuració externa
+ * (application.properties, variables d'entorn o arguments de línia de
+ * comandes) amb el prefix "jwt.datasource".
+ *
+ * El pool s'inicialitza de manera mandrosa: no obre cap connexió fins a la
+ * primera petició, de manera que l'aplicació arrenca encara que la base de
+ * dades no estigui disponible.
+ *
+ * @author sergi
+ */
+@Configuration
+public class DataSourceConfig {
+
+    @Value("${jwt.datasource.url:jdbc:postgresql://localhost:5432/jwt_db}")
+    private String url;
+
+    @Value("${jwt.datasource.username:sergi}")
+    private String username;
+
+    @Value("${jwt.datasource.password:odoo1234}")
+    private String password;
+
+    @Value("${jwt.datasource.pool.max-size:10}")
+    private int maxPoolSize;
+
+    @Value("${jwt.datasource.pool.min-idle:2}")
+    private int minIdle;
+
+    @Value("${jwt.datasource.pool.connection-timeout-ms:2000}")
+    private long connectionTimeoutMs;
+
+    /**
+     * Crea el DataSource del pool de connexions.
+     *
+     * @return DataSource HikariCP configurat amb els paràmetres externs
+     */
+    @Bean(destroyMethod = "close")
+    public HikariDataSource jwtDataSource() {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setPoolName("jwt-pool");
+        dataSource.setJdbcUrl(url);
+        dataSource.setUsername(username);
+        dataSource.setPassword(password);
+        dataSource.setMaximumPoolSize(maxPoolSize);
+        dataSource.setMinimumIdle(minIdle);
+        dataSource.setConnectionTimeout(connectionTimeoutMs);
+        dataSource.setRegisterMbeans(true);
+        return dataSource;
+    }
+}
@@ -0,0 +1,33 @@
+package com.rgbconsulting.jwt.persistence;
+
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Hashes de contrasenya en memòria, per al mode "jwt.store=memory". Es perden
+ * en reiniciar el node.
+ *
+ * @author sergi
+ */
+@Repository
+@ConditionalOnProperty(name = "jwt.store", havingValue = "memory")
+public class InMemoryCredentialStore implements CredentialStore {
+
+    private final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<>();
+
+    @Override
+    public String findHash(String username) {
+        return hashes.get(username);
+    }
+
+    @Override
+    public boolean createHash(String username, String hash) {
+        return hashes.putIfAbsent(username, hash) == null;
+    }
+
+    @Override
+    public boolean replaceHash(String username, String expected, String hash) {
+        return hashes.replace(username, expected, hash);
+    }
+}
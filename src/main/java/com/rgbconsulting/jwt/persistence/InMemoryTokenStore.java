@@ -0,0 +1,584 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Emmagatzematge de tokens en memòria per a desplegaments d'un sol node.
+ *
+ * Els tokens UUID es guarden com a dos long en una taula hash
+ * d'adreçament obert, sense cap objecte per entrada. El nom d'usuari i el
+ * rol s'internen a identificadors int i es guarden junts en un long, i el
+ * time_generated es guarda com a long primitiu: cada entrada ocupa 32 bytes
+ * a la taula. Els tokens que no són UUID (mode signat) es redueixen als 128
+ * primers bits del seu SHA-256.
+ *
+ * La taula està dividida en segments independents, cadascun amb el seu
+ * StampedLock: les lectures són optimistes (sense bloqueig si no hi ha cap
+ * escriptura concurrent al segment) i les escriptures només bloquegen el seu
+ * segment. El refresc bloqueja els segments del token antic i del nou en
+ * ordre fix, de manera que el canvi és atòmic.
+ *
+ * Les entrades més antigues que "jwt.store.memory.retention-ms" s'eliminen
+ * periòdicament i també quan un segment s'ha de redimensionar. Les
+ * revocacions es guarden en un mapa a part fins que el token expira.
+ *
+ * @author sergi
+ */
+@Repository
+@ConditionalOnProperty(name = "jwt.store", havingValue = "memory")
+public class InMemoryTokenStore implements TokenStore, MeterBinder {
+
+    private static final long EMPTY = 0L;
+    private static final long TOMBSTONE = 1L;
+    private static final int INITIAL_SEGMENT_CAPACITY = 1024;
+    private static final byte[] HEX = new byte[128];
+
+    static {
+        Arrays.fill(HEX, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX['a' + i] = (byte) (10 + i);
+            HEX['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long retentionMs;
+    private final Interner users = new Interner();
+    private final Interner roles = new Interner();
+    // tokenId -> {revoked_at, expires_at}
+    private final ConcurrentHashMap<String, long[]> revoked = new ConcurrentHashMap<>();
+
+    public InMemoryTokenStore(@Value("${jwt.store.memory.segments:64}") int segmentCount,
+            @Value("${jwt.store.memory.retention-ms:90000}") long retentionMs) {
+        int n = Integer.highestOneBit(Math.max(1, segmentCount - 1)) << 1;
+        if (segmentCount == 1) {
+            n = 1;
+        }
+        this.segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(INITIAL_SEGMENT_CAPACITY);
+        }
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(n);
+        this.retentionMs = retentionMs;
+    }
+
+    /**
+     * Segment de la taula. Cada posició ocupa dos long a "keys" (bits alts i
+     * baixos del token) i dos a "values" (usuari i rol, i time_generated).
+     * La clau (0, 0) indica posició buida i (0, 1) posició esborrada.
+     */
+    private static final class Segment {
+
+        private final StampedLock lock = new StampedLock();
+        private long[] keys;
+        private long[] values;
+        private int size;
+        private int used;
+
+        Segment(int capacity) {
+            keys = new long[capacity * 2];
+            values = new long[capacity * 2];
+        }
+
+        int capacity() {
+            return keys.length >> 1;
+        }
+    }
+
+    @Override
+    public void saveLogin(String username, String access_token, int expires_in, long time_generated, String role) {
+        long hi = keyHigh(access_token);
+        long lo = keyLow(access_token);
+        long packed = ((long) users.intern(username) << 32) | (roles.intern(role) & 0xffffffffL);
+        Segment seg = segmentFor(hi, lo);
+
+        long stamp = seg.lock.writeLock();
+        try {
+            put(seg, hi, lo, packed, time_generated);
+        } finally {
+            seg.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String updateToken(String oldToken, String newToken, long time_generated) {
+        if (oldToken == null || newToken == null) {
+            return null;
+        }
+        long oldHi = keyHigh(oldToken);
+        long oldLo = keyLow(oldToken);
+        long newHi = keyHigh(newToken);
+        long newLo = keyLow(newToken);
+        int a = segmentIndex(oldHi, oldLo);
+        int b = segmentIndex(newHi, newLo);
+
+        // bloquejo els dos segments en ordre per evitar interbloquejos
+        Segment first = segments[Math.min(a, b)];
+        Segment second = segments[Math.max(a, b)];
+        long s1 = first.lock.writeLock();
+        long s2 = first == second ? 0 : second.lock.writeLock();
+        try {
+            Segment oldSeg = segments[a];
+            int slot = find(oldSeg.keys, oldHi, oldLo);
+            if (slot < 0) {
+                return null;
+            }
+            long packed = oldSeg.values[slot * 2];
+            remove(oldSeg, slot);
+            put(segments[b], newHi, newLo, packed, time_generated);
+            return newToken;
+        } finally {
+            if (first != second) {
+                second.lock.unlockWrite(s2);
+            }
+            first.lock.unlockWrite(s1);
+        }
+    }
+
+    @Override
+    public Jwt findByToken(String token) {
+        if (token == null) {
+            return null;
+        }
+        long hi = keyHigh(token);
+        long lo = keyLow(token);
+        Segment seg = segmentFor(hi, lo);
+
+        long packed;
+        long time;
+        boolean found;
+        long stamp = seg.lock.tryOptimisticRead();
+        long[] keys = seg.keys;
+        long[] values = seg.values;
+        // durant un redimensionament concurrent les dues taules poden no quadrar
+        boolean consistent = keys.length == values.length;
+        int slot = consistent ? find(keys, hi, lo) : -1;
+        found = slot >= 0;
+        packed = found ? values[slot * 2] : 0;
+        time = found ? values[slot * 2 + 1] : 0;
+        if (!consistent || !seg.lock.validate(stamp)) {
+            stamp = seg.lock.readLock();
+            try {
+                slot = find(seg.keys, hi, lo);
+                found = slot >= 0;
+                packed = found ? seg.values[slot * 2] : 0;
+                time = found ? seg.values[slot * 2 + 1] : 0;
+            } finally {
+                seg.lock.unlockRead(stamp);
+            }
+        }
+        if (!found) {
+            return null;
+        }
+
+        Jwt jwt = new Jwt();
+        jwt.setAccess_token(token);
+        jwt.setUsername(users.name((int) (packed >>> 32)));
+        jwt.setRole(roles.name((int) packed));
+        jwt.setTime_generated(time);
+        return jwt;
+    }
+
+    /**
+     * Cerca cada token a la taula; sense base de dades no cal agrupar-los.
+     */
+    @Override
+    public Map<String, Jwt> findByTokens(Collection<String> tokens) {
+        Map<String, Jwt> found = new HashMap<>(tokens.size() * 2);
+        for (String token : tokens) {
+            Jwt jwt = findByToken(token);
+            if (jwt != null) {
+                found.put(token, jwt);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Les revocacions es guarden en un mapa fins que el token expira.
+     */
+    @Override
+    public boolean revoke(String tokenId, long revokedAt, long expiresAt) {
+        revoked.putIfAbsent(tokenId, new long[]{revokedAt, expiresAt});
+        return true;
+    }
+
+    @Override
+    public boolean isRevoked(String tokenId) {
+        return revoked.containsKey(tokenId);
+    }
+
+    @Override
+    public List<String> findRevokedSince(long since, long now) {
+        List<String> found = new ArrayList<>();
+        revoked.forEach((tokenId, times) -> {
+            if (times[0] >= since && times[1] > now) {
+                found.add(tokenId);
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Els tokens ja són a la memòria d'aquest procés i no sobreviuen a un
+     * reinici: no hi ha res a recórrer.
+     */
+    @Override
+    public long streamSince(long since, int fetchSize, Predicate<Jwt> action) {
+        return 0;
+    }
+
+    /**
+     * Elimina periòdicament les entrades que ja han superat el temps de
+     * retenció i les revocacions de tokens ja expirats.
+     */
+    @Scheduled(fixedDelayString = "${jwt.reaper.interval-ms:60000}")
+    public void scheduledPurge() {
+        long now = System.currentTimeMillis();
+        purge(now - retentionMs);
+        revoked.values().removeIf(times -> times[1] <= now);
+    }
+
+    /**
+     * Registra jwt.tokens.live (etiqueta source=store): tokens al magatzem.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("jwt.tokens.live", this, InMemoryTokenStore::size)
+                .description("Tokens vius")
+                .tag("source", "store")
+                .register(registry);
+    }
+
+    /**
+     * Elimina les entrades generades abans del tall.
+     *
+     * @param cutoff Timestamp en mil·lisegons
+     * @return Nombre d'entrades eliminades
+     */
+    public long purge(long cutoff) {
+        long removed = 0;
+        for (Segment seg : segments) {
+            long stamp = seg.lock.writeLock();
+            try {
+                int before = seg.size;
+                rehash(seg, seg.capacity(), cutoff);
+                removed += before - seg.size;
+            } finally {
+                seg.lock.unlockWrite(stamp);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        long size = 0;
+        long capacity = 0;
+        long tombstones = 0;
+        for (Segment seg : segments) {
+            long stamp = seg.lock.readLock();
+            try {
+                size += seg.size;
+                capacity += seg.capacity();
+                tombstones += seg.used - seg.size;
+            } finally {
+                seg.lock.unlockRead(stamp);
+            }
+        }
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("backend", "memory");
+        metrics.put("size", size);
+        metrics.put("capacity", capacity);
+        metrics.put("tombstones", tombstones);
+        metrics.put("segments", segments.length);
+        metrics.put("table_bytes", capacity * 32);
+        metrics.put("interned_users", users.size());
+        metrics.put("interned_roles", roles.size());
+        metrics.put("revoked", revoked.size());
+        return metrics;
+    }
+
+    /**
+     * @return Nombre d'entrades vives
+     */
+    public long size() {
+        long size = 0;
+        for (Segment seg : segments) {
+            long stamp = seg.lock.readLock();
+            try {
+                size += seg.size;
+            } finally {
+                seg.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(long hi, long lo) {
+        return segments[segmentIndex(hi, lo)];
+    }
+
+    private int segmentIndex(long hi, long lo) {
+        return segments.length == 1 ? 0 : (int) (mix(hi, lo) >>> segmentShift);
+    }
+
+    /**
+     * Busca la posició d'una clau amb sondeig lineal.
+     *
+     * @return Índex de la posició, o -1 si no hi és
+     */
+    private static int find(long[] keys, long hi, long lo) {
+        int capacity = keys.length >> 1;
+        int mask = capacity - 1;
+        int i = (int) mix(hi, lo) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            long kh = keys[i * 2];
+            long kl = keys[i * 2 + 1];
+            if (kh == hi && kl == lo) {
+                return i;
+            }
+            if (kh == EMPTY && kl == EMPTY) {
+                return -1;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Insereix o sobreescriu una entrada. S'ha de cridar amb el bloqueig
+     * d'escriptura del segment.
+     */
+    private void put(Segment seg, long hi, long lo, long packed, long time) {
+        if ((seg.used + 1) * 4 > seg.capacity() * 3) {
+            // primer provo d'alliberar entrades antigues; si no n'hi ha prou, dupliquo
+            long cutoff = System.currentTimeMillis() - retentionMs;
+            int capacity = seg.capacity();
+            int live = countLive(seg, cutoff);
+            rehash(seg, (live + 1) * 2 > capacity ? capacity * 2 : capacity, cutoff);
+        }
+
+        long[] keys = seg.keys;
+        int mask = seg.capacity() - 1;
+        int i = (int) mix(hi, lo) & mask;
+        int tombstone = -1;
+        while (true) {
+            long kh = keys[i * 2];
+            long kl = keys[i * 2 + 1];
+            if (kh == hi && kl == lo) {
+                seg.values[i * 2] = packed;
+                seg.values[i * 2 + 1] = time;
+                return;
+            }
+            if (kh == EMPTY && kl == TOMBSTONE) {
+                if (tombstone < 0) {
+                    tombstone = i;
+                }
+            } else if (kh == EMPTY && kl == EMPTY) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+
+        int slot = tombstone >= 0 ? tombstone : i;
+        if (tombstone < 0) {
+            seg.used++;
+        }
+        seg.values[slot * 2] = packed;
+        seg.values[slot * 2 + 1] = time;
+        keys[slot * 2 + 1] = lo;
+        keys[slot * 2] = hi;
+        seg.size++;
+    }
+
+    private static void remove(Segment seg, int slot) {
+        seg.keys[slot * 2] = EMPTY;
+        seg.keys[slot * 2 + 1] = TOMBSTONE;
+        seg.size--;
+    }
+
+    private static int countLive(Segment seg, long cutoff) {
+        int live = 0;
+        long[] keys = seg.keys;
+        for (int i = 0; i < seg.capacity(); i++) {
+            if (keys[i * 2] != EMPTY && seg.values[i * 2 + 1] >= cutoff) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Reconstrueix un segment amb la capacitat indicada descartant les
+     * posicions esborrades i les entrades anteriors al tall.
+     */
+    private static void rehash(Segment seg, int capacity, long cutoff) {
+        long[] oldKeys = seg.keys;
+        long[] oldValues = seg.values;
+        long[] keys = new long[capacity * 2];
+        long[] values = new long[capacity * 2];
+        int mask = capacity - 1;
+        int size = 0;
+
+        for (int i = 0; i < oldKeys.length >> 1; i++) {
+            long hi = oldKeys[i * 2];
+            if (hi == EMPTY || oldValues[i * 2 + 1] < cutoff) {
+                continue;
+            }
+            long lo = oldKeys[i * 2 + 1];
+            int j = (int) mix(hi, lo) & mask;
+            while (keys[j * 2] != EMPTY) {
+                j = (j + 1) & mask;
+            }
+            keys[j * 2] = hi;
+            keys[j * 2 + 1] = lo;
+            values[j * 2] = oldValues[i * 2];
+            values[j * 2 + 1] = oldValues[i * 2 + 1];
+            size++;
+        }
+
+        seg.keys = keys;
+        seg.values = values;
+        seg.size = size;
+        seg.used = size;
+    }
+
+    private static long mix(long hi, long lo) {
+        long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Bits alts de la clau d'un token. Mai és 0, que es reserva per a les
+     * posicions buides i esborrades. Els UUID es llegeixen directament del
+     * text; la resta de tokens (rars, només en mode signat) passen per
+     * SHA-256.
+     */
+    private static long keyHigh(String token) {
+        long hi = isUuid(token) ? parseHex(token, 0, 8) << 32 | parseHex(token, 9, 13) << 16 | parseHex(token, 14, 18)
+                : digestHigh(token);
+        return hi == EMPTY ? Long.MIN_VALUE : hi;
+    }
+
+    private static long keyLow(String token) {
+        return isUuid(token) ? parseHex(token, 19, 23) << 48 | parseHex(token, 24, 36) : digestLow(token);
+    }
+
+    private static boolean isUuid(String s) {
+        if (s.length() != 36 || s.charAt(8) != '-' || s.charAt(13) != '-' || s.charAt(18) != '-' || s.charAt(23) != '-') {
+            return false;
+        }
+        int bad = 0;
+        for (int i = 0; i < 36; i++) {
+            char ch = s.charAt(i);
+            if (i != 8 && i != 13 && i != 18 && i != 23) {
+                bad |= ch < 128 ? HEX[ch] : -1;
+            }
+        }
+        return bad >= 0;
+    }
+
+    private static long parseHex(String s, int from, int to) {
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            v = (v << 4) | HEX[s.charAt(i)];
+        }
+        return v;
+    }
+
+    private static long digestHigh(String token) {
+        return bytesToLong(sha256(token), 0);
+    }
+
+    private static long digestLow(String token) {
+        return bytesToLong(sha256(token), 8);
+    }
+
+    private static byte[] sha256(String token) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    private static long bytesToLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xff);
+        }
+        return v;
+    }
+
+    /**
+     * Assigna identificadors int consecutius als String (usuaris i rols).
+     * L'identificador 0 representa null.
+     */
+    private static final class Interner {
+
+        private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[16];
+        private int next = 1;
+
+        int intern(String s) {
+            if (s == null) {
+                return 0;
+            }
+            Integer id = ids.get(s);
+            if (id != null) {
+                return id;
+            }
+            synchronized (this) {
+                id = ids.get(s);
+                if (id != null) {
+                    return id;
+                }
+                String[] current = names;
+                if (next == current.length) {
+                    current = Arrays.copyOf(current, current.length * 2);
+                }
+                current[next] = s;
+                names = current;
+                ids.put(s, next);
+                return next++;
+            }
+        }
+
+        String name(int id) {
+            return id == 0 ? null : names[id];
+        }
+
+        int size() {
+            return ids.size();
+        }
+    }
+}
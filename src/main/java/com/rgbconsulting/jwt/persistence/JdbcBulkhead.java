@@ -0,0 +1,130 @@
+package com.rgbconsulting.jwt.persistence;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limita el nombre d'operacions de base de dades concurrents del
+ * JdbcTokenStore.
+ *
+ * Amb fils virtuals el nombre de peticions simultànies ja no el limita el
+ * pool de fils de Tomcat, i milers de peticions podrien competir pel pool de
+ * connexions alhora. Cada operació ha d'obtenir abans un permís
+ * ("jwt.jdbc.max-concurrency", per defecte la mida del pool); si no n'obté
+ * cap en "jwt.jdbc.acquire-timeout-ms" es rebutja amb StoreBusyException.
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnExpression("'${jwt.store:jdbc}'.matches('jdbc|sharded')")
+public class JdbcBulkhead implements MeterBinder {
+
+    private final int maxConcurrency;
+    private final long acquireTimeoutMs;
+    private final Semaphore permits;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+
+    public JdbcBulkhead(@Value("${jwt.jdbc.max-concurrency:10}") int maxConcurrency,
+            @Value("${jwt.jdbc.acquire-timeout-ms:2000}") long acquireTimeoutMs) {
+        this.maxConcurrency = maxConcurrency;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * Obté un permís per fer una operació de base de dades. S'ha d'alliberar
+     * amb release() en un bloc finally.
+     *
+     * @throws StoreBusyException si no s'obté cap permís a temps
+     */
+    public void acquire() {
+        if (permits.tryAcquire()) {
+            acquired.increment();
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+            ok = permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ok = false;
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        maxWaitNanos.accumulate(waited);
+
+        if (!ok) {
+            rejected.increment();
+            throw new StoreBusyException("Too many concurrent token store operations");
+        }
+        acquired.increment();
+    }
+
+    /**
+     * Allibera el permís obtingut amb acquire().
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * @return Nombre de permisos en ús
+     */
+    public int getInUse() {
+        return maxConcurrency - permits.availablePermits();
+    }
+
+    /**
+     * @return Nombre aproximat de fils esperant un permís
+     */
+    public int getWaiting() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Registra jwt.bulkhead.in_use i jwt.bulkhead.waiting.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("jwt.bulkhead.in_use", this, JdbcBulkhead::getInUse)
+                .description("Operacions de base de dades en curs")
+                .register(registry);
+        Gauge.builder("jwt.bulkhead.waiting", this, JdbcBulkhead::getWaiting)
+                .description("Fils esperant permís per accedir a la base de dades")
+                .register(registry);
+    }
+
+    /**
+     * Retorna l'ocupació i els comptadors del limitador.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long count = acquired.sum();
+        metrics.put("max_concurrency", maxConcurrency);
+        metrics.put("in_use", getInUse());
+        metrics.put("waiting", getWaiting());
+        metrics.put("acquired", count);
+        metrics.put("rejected", rejected.sum());
+        metrics.put("wait_avg_ms", count == 0 ? 0.0 : waitNanos.sum() / (double) count / 1_000_000);
+        metrics.put("wait_max_ms", maxWaitNanos.get() / 1_000_000.0);
+        return metrics;
+    }
+}
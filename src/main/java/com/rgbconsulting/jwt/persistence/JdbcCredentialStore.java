@@ -0,0 +1,101 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Hashes de contrasenya a la taula "jwt_credentials" de PostgreSQL (vegeu
+ * db/jwt-credentials.sql). Cada operació passa pel JdbcBulkhead com la resta
+ * d'accessos a la base de dades.
+ *
+ * @author sergi
+ */
+@Repository
+@ConditionalOnExpression("'${jwt.store:jdbc}'.matches('jdbc|sharded')")
+public class JdbcCredentialStore implements CredentialStore {
+
+    private static final Logger log = LoggerFactory.getLogger(JdbcCredentialStore.class);
+
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    private final HikariDataSource dataSource;
+    private final JdbcBulkhead bulkhead;
+
+    public JdbcCredentialStore(HikariDataSource dataSource, JdbcBulkhead bulkhead) {
+        this.dataSource = dataSource;
+        this.bulkhead = bulkhead;
+    }
+
+    /**
+     * Si la base de dades falla es llança StoreBusyException en lloc de
+     * retornar null, perquè un usuari existent no es tracti com a nou.
+     */
+    @Override
+    public String findHash(String username) {
+        String query = "SELECT password_hash FROM jwt_credentials WHERE username = ?";
+
+        bulkhead.acquire();
+        try (Connection connection = dataSource.getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            preparedStatement.setString(1, username);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            log.warn("Cannot read password hash", e);
+            throw new StoreBusyException("Credential store unavailable");
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Un usuari que ja existeix fa fallar l'INSERT per la clau primària
+     * (SQLSTATE 23505 tant a PostgreSQL com a H2) i es retorna false, com
+     * amb qualsevol altre error.
+     */
+    @Override
+    public boolean createHash(String username, String hash) {
+        String query = "INSERT INTO jwt_credentials (username, password_hash, updated_at) VALUES (?, ?, ?)";
+
+        bulkhead.acquire();
+        try (Connection connection = dataSource.getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            preparedStatement.setString(1, username);
+            preparedStatement.setString(2, hash);
+            preparedStatement.setLong(3, System.currentTimeMillis());
+            return preparedStatement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            if (!UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                log.warn("Cannot store password hash", e);
+            }
+            return false;
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    @Override
+    public boolean replaceHash(String username, String expected, String hash) {
+        String query = "UPDATE jwt_credentials SET password_hash = ?, updated_at = ? WHERE username = ? AND password_hash = ?";
+
+        bulkhead.acquire();
+        try (Connection connection = dataSource.getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            preparedStatement.setString(1, hash);
+            preparedStatement.setLong(2, System.currentTimeMillis());
+            preparedStatement.setString(3, username);
+            preparedStatement.setString(4, expected);
+            return preparedStatement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            log.warn("Cannot replace password hash", e);
+            return false;
+        } finally {
+            bulkhead.release();
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Persistència dels tokens a la taula "jwt" de PostgreSQL.
+ *
+ * Totes les operacions obtenen la connexió del pool compartit en lloc d'obrir
+ * una connexió nova per crida. Es mesura el temps d'espera per obtenir cada
+ * connexió per poder detectar la saturació del pool. Cada operació passa
+ * abans pel JdbcBulkhead, que limita quantes se'n fan alhora. Les
+ * substitucions i revocacions de tokens es publiquen a
+ * TokenInvalidationChannel perquè la resta de nodes les treguin de la seva
+ * cache. Les revocacions es guarden a la taula "jwt_revoked".
+ *
+ * @author sergi
+ */
+@Repository
+@ConditionalOnProperty(name = "jwt.store", havingValue = "jdbc", matchIfMissing = true)
+public class JdbcTokenStore implements TokenStore {
+
+    private static final Logger log = LoggerFactory.getLogger(JdbcTokenStore.class);
+
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    private final HikariDataSource dataSource;
+    private final LoginWriteBehind loginWriter;
+    private final JdbcBulkhead bulkhead;
+    private final Optional<TokenInvalidationChannel> invalidations;
+
+    // metriques d'espera del pool
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final LongAccumulator acquireMaxNanos = new LongAccumulator(Long::max, 0);
+    private final LongAdder acquireTimeouts = new LongAdder();
+
+    public JdbcTokenStore(HikariDataSource dataSource, LoginWriteBehind loginWriter, JdbcBulkhead bulkhead,
+            Optional<TokenInvalidationChannel> invalidations) {
+        this.dataSource = dataSource;
+        this.loginWriter = loginWriter;
+        this.bulkhead = bulkhead;
+        this.invalidations = invalidations;
+    }
+
+    /**
+     * Insereix un nou registre de login a la base de dades.
+     *
+     * Si l'escriptura diferida està activa, el registre s'encua a
+     * LoginWriteBehind i s'insereix per lots; si no, es fa un INSERT directe.
+     * En tots dos casos, si el registre no s'ha pogut desar (excepte en mode
+     * async) es llança LoginBacklogException.
+     *
+     * @param username Nom d'usuari
+     * @param access_token Token UUID generat per aquest login
+     * @param expires_in Temps d'expiració en segons
+     * @param time_generated Timestamp en mil·lisegons del moment de generació
+     * @param role Rol assignat a l'usuari ("ADMIN" o "USER")
+     * @throws LoginBacklogException si el registre no s'ha desat
+     */
+    @Override
+    public void saveLogin(String username, String access_token, int expires_in, long time_generated, String role) {
+        if (loginWriter.isEnabled()) {
+            Jwt record = new Jwt();
+            record.setUsername(username);
+            record.setAccess_token(access_token);
+            record.setExpires_in(expires_in);
+            record.setTime_generated(time_generated);
+            record.setRole(role);
+            loginWriter.submit(record);
+            return;
+        }
+        if (!insertToken(username, access_token, expires_in, time_generated, role)) {
+            throw new LoginBacklogException("Login not stored");
+        }
+    }
+
+    /**
+     * Insereix un registre de token amb un INSERT directe, sense passar per
+     * l'escriptura diferida. ShardedTokenStore el fa servir per moure un
+     * token refrescat a la base de dades que li correspon.
+     *
+     * @param username Nom d'usuari
+     * @param access_token Token
+     * @param expires_in Temps d'expiració en segons
+     * @param time_generated Timestamp en mil·lisegons del moment de generació
+     * @param role Rol de l'usuari
+     * @return true si s'ha inserit
+     */
+    public boolean insertToken(String username, String access_token, int expires_in, long time_generated, String role) {
+        String query = "INSERT INTO jwt (username, acces_token, expires_in, time_generated, role) "
+                + "VALUES (?, ?, ?, ?, ?)";
+
+        bulkhead.acquire();
+        try (Connection connection = getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            // Setear los parámetros
+            preparedStatement.setString(1, username);
+            preparedStatement.setString(2, access_token);
+            preparedStatement.setInt(3, expires_in);
+            preparedStatement.setLong(4, time_generated);
+            preparedStatement.setString(5, role);
+
+            // Ejecutar la consulta
+            int rowsAffected = preparedStatement.executeUpdate();
+
+            return rowsAffected > 0;
+        } catch (SQLException e) {
+            log.warn("Cannot insert token", e);
+            return false;
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Elimina el registre d'un token i publica l'esdeveniment "replace" amb
+     * la mateixa connexió. Si el login encara és a la cua, espera que s'escrigui.
+     *
+     * @param token Token a eliminar
+     * @return true si s'ha eliminat; false si no existia o s'ha produït un
+     * error de base de dades
+     */
+    public boolean deleteToken(String token) {
+        loginWriter.awaitWritten(token);
+
+        String query = "DELETE FROM jwt WHERE acces_token = ?";
+
+        bulkhead.acquire();
+        try (Connection connection = getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            preparedStatement.setString(1, token);
+            if (preparedStatement.executeUpdate() > 0) {
+                publish(connection, "replace", token);
+                return true;
+            }
+            return false;
+        } catch (SQLException e) {
+            log.warn("Cannot delete token", e);
+            return false;
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Actualitza un token existent substituint-lo per un de nou i reiniciant
+     * el timestamp de generació.
+     *
+     * Si s'ha actualitzat, es publica l'esdeveniment "replace" de l'antic
+     * token amb la mateixa connexió, just després de confirmar l'UPDATE.
+     *
+     * @param oldToken Token actual que es vol substituir
+     * @param newToken Nou token UUID que substituirà l'antic
+     * @param time_generated Timestamp en mil·lisegons del nou token
+     * @return El nou token si l'actualització ha tingut èxit, null si no s'ha
+     * trobat el token antic
+     * @throws StoreBusyException si la base de dades ha fallat, perquè el
+     * client no confongui l'error amb un token desconegut
+     */
+    @Override
+    public String updateToken(String oldToken, String newToken, long time_generated) {
+        // si el login encara és a la cua, espero que s'escrigui
+        loginWriter.awaitWritten(oldToken);
+
+        String query = "UPDATE jwt SET acces_token = ?, time_generated = ? WHERE acces_token = ?";
+
+        bulkhead.acquire();
+        try (Connection connection = getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            preparedStatement.setString(1, newToken);
+            preparedStatement.setLong(2, time_generated);
+            preparedStatement.setString(3, oldToken);
+
+            int rowsAffected = preparedStatement.executeUpdate();
+
+            if (rowsAffected > 0) {
+                publish(connection, "replace", oldToken);
+                return newToken;
+            }
+            return null;
+        } catch (SQLException e) {
+            log.warn("Cannot replace token", e);
+            throw new StoreBusyException("Token store unavailable");
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Publica la substitució o revocació d'un token als altres nodes. Un
+     * error aquí no desfà l'operació, ja confirmada: els nodes que no rebin
+     * l'esdeveniment tindran el token a la cache com a molt fins que expiri.
+     */
+    private void publish(Connection connection, String type, String token) {
+        if (invalidations.isEmpty()) {
+            return;
+        }
+        try {
+            invalidations.get().publish(connection, type, token);
+        } catch (SQLException e) {
+            log.warn("Cannot publish {} invalidation", type, e);
+        }
+    }
+
+    /**
+     * Cerca el registre associat a un token sense verificar-ne l'expiració.
+     * Els logins que encara són a la cua d'escriptura també es troben.
+     *
+     * Retorna el nom d'usuari, el rol i el timestamp de generació perquè el
+     * cridant pugui calcular l'expiració i guardar el resultat a la cache, i
+     * expires_in perquè ShardedTokenStore pugui copiar el registre.
+     *
+     * @param token Token UUID a cercar
+     * @return Objecte Jwt amb username, role, access_token, expires_in i
+     * time_generated, o null si el token no existeix o s'ha produït un error
+     * de base de dades
+     */
+    @Override
+    public Jwt findByToken(String token) {
+        Jwt queued = loginWriter.findPending(token);
+        if (queued != null) {
+            return queued;
+        }
+
+        String query = "SELECT username, role, expires_in, time_generated FROM jwt WHERE acces_token = ?";
+
+        bulkhead.acquire();
+        try (Connection connection = getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            // Setear los parámetros
+            preparedStatement.setString(1, token);
+            // Ejecutar la consulta
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    Jwt jwt = new Jwt();
+                    jwt.setAccess_token(token);
+                    jwt.setUsername(resultSet.getString("username"));
+                    jwt.setRole(resultSet.getString("role"));
+                    jwt.setExpires_in(resultSet.getInt("expires_in"));
+                    jwt.setTime_generated(resultSet.getLong("time_generated"));
+                    return jwt;
+                }
+            }
+        } catch (SQLException e) {
+            log.warn("Cannot look up token", e);
+        } finally {
+            bulkhead.release();
+        }
+        return null;
+    }
+
+    /**
+     * Cerca els registres d'un conjunt de tokens amb una sola consulta
+     * "acces_token = ANY(?)" (una sola connexió i un sol permís del
+     * bulkhead per a tot el lot). Els logins que encara són a la cua
+     * d'escriptura es resolen sense consultar la base de dades.
+     *
+     * @param tokens Tokens a cercar
+     * @return Mapa de token a registre amb només els tokens trobats; buit si
+     * s'ha produït un error de base de dades
+     */
+    @Override
+    public Map<String, Jwt> findByTokens(Collection<String> tokens) {
+        Map<String, Jwt> found = new HashMap<>(tokens.size() * 2);
+        List<String> remaining = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            Jwt queued = loginWriter.findPending(token);
+            if (queued != null) {
+                found.put(token, queued);
+            } else if (token != null) {
+                remaining.add(token);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return found;
+        }
+
+        String query = "SELECT acces_token, username, role, time_generated FROM jwt WHERE acces_token = ANY(?)";
+
+        bulkhead.acquire();
+        try (Connection connection = getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            Array array = connection.createArrayOf("varchar", remaining.toArray());
+            preparedStatement.setArray(1, array);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    Jwt jwt = new Jwt();
+                    jwt.setAccess_token(resultSet.getString("acces_token"));
+                    jwt.setUsername(resultSet.getString("username"));
+                    jwt.setRole(resultSet.getString("role"));
+                    jwt.setTime_generated(resultSet.getLong("time_generated"));
+                    found.put(jwt.getAccess_token(), jwt);
+                }
+            } finally {
+                array.free();
+            }
+        } catch (SQLException e) {
+            log.warn("Cannot look up tokens", e);
+        } finally {
+            bulkhead.release();
+        }
+        return found;
+    }
+
+    /**
+     * Insereix la revocació a la taula "jwt_revoked" (vegeu
+     * db/jwt-revoked.sql) i publica l'esdeveniment "revoke" perquè els altres
+     * nodes treguin el token de la seva cache.
+     *
+     * @param tokenId Identificador del token
+     * @param revokedAt Timestamp de la revocació en mil·lisegons
+     * @param expiresAt Timestamp d'expiració del token en mil·lisegons
+     * Si el token ja estava revocat l'INSERT falla per la clau primària
+     * (SQLSTATE 23505 tant a PostgreSQL com a H2) i no es torna a publicar.
+     *
+     * @return true si s'ha registrat (o ja ho estava), false si s'ha produït
+     * un error de base de dades
+     */
+    @Override
+    public boolean revoke(String tokenId, long revokedAt, long expiresAt) {
+        String query = "INSERT INTO jwt_revoked (token_id, revoked_at, expires_at) VALUES (?, ?, ?)";
+
+        bulkhead.acquire();
+        try (Connection connection = getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            preparedStatement.setString(1, tokenId);
+            preparedStatement.setLong(2, revokedAt);
+            preparedStatement.setLong(3, expiresAt);
+            if (preparedStatement.executeUpdate() > 0) {
+                publish(connection, "revoke", tokenId);
+            }
+            return true;
+        } catch (SQLException e) {
+            if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                return true;
+            }
+            log.warn("Cannot store revocation", e);
+            return false;
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Comprova a la taula "jwt_revoked" si un token està revocat. Només es
+     * consulta quan el filtre de RevocationIndex dona positiu; si la base de
+     * dades falla el token es considera revocat.
+     *
+     * @param tokenId Identificador del token
+     * @return true si està revocat o no s'ha pogut comprovar
+     */
+    @Override
+    public boolean isRevoked(String tokenId) {
+        String query = "SELECT 1 FROM jwt_revoked WHERE token_id = ?";
+
+        bulkhead.acquire();
+        try (Connection connection = getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            preparedStatement.setString(1, tokenId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next();
+            }
+        } catch (SQLException e) {
+            log.warn("Cannot check revocation, treating the token as revoked", e);
+            return true;
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Llegeix les revocacions fetes des de "since" que encara no han expirat
+     * (índex per revoked_at).
+     *
+     * @param since Timestamp mínim de revocació en mil·lisegons
+     * @param now Timestamp actual en mil·lisegons
+     * @return Identificadors dels tokens revocats, o null si s'ha produït un
+     * error de base de dades
+     */
+    @Override
+    public List<String> findRevokedSince(long since, long now) {
+        String query = "SELECT token_id FROM jwt_revoked WHERE revoked_at >= ? AND expires_at > ?";
+
+        bulkhead.acquire();
+        try (Connection connection = getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            preparedStatement.setLong(1, since);
+            preparedStatement.setLong(2, now);
+            List<String> revoked = new ArrayList<>();
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    revoked.add(resultSet.getString(1));
+                }
+            }
+            return revoked;
+        } catch (SQLException e) {
+            log.warn("Cannot read revocations", e);
+            return null;
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * El controlador de PostgreSQL només fa servir un cursor al servidor (i
+     * llegeix "fetchSize" files per viatge) dins d'una transacció, de manera
+     * que la consulta es fa amb l'autocommit desactivat i en acabar es
+     * desfà la transacció, que només ha llegit.
+     */
+    @Override
+    public long streamSince(long since, int fetchSize, Predicate<Jwt> action) {
+        String query = "SELECT username, acces_token, time_generated, role FROM jwt WHERE time_generated > ? "
+                + "ORDER BY time_generated DESC";
+
+        bulkhead.acquire();
+        try (Connection connection = getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement = connection.prepareStatement(query,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                preparedStatement.setFetchSize(fetchSize);
+                preparedStatement.setLong(1, since);
+                long count = 0;
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        Jwt jwt = new Jwt();
+                        jwt.setUsername(resultSet.getString(1));
+                        jwt.setAccess_token(resultSet.getString(2));
+                        jwt.setTime_generated(resultSet.getLong(3));
+                        jwt.setRole(resultSet.getString(4));
+                        count++;
+                        if (!action.test(jwt)) {
+                            break;
+                        }
+                    }
+                }
+                return count;
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            log.warn("Cannot stream tokens", e);
+            return -1;
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Retorna l'estat actual del pool i les mètriques de temps d'espera.
+     *
+     * La saturació és la fracció de connexions actives respecte la mida
+     * màxima del pool. Si el pool encara no s'ha inicialitzat només es
+     * retornen les mètriques d'espera. S'hi afegeixen les del limitador de
+     * concurrència amb el prefix "bulkhead_".
+     *
+     * @return Mapa ordenat amb les mètriques del pool
+     */
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        int maxSize = dataSource.getMaximumPoolSize();
+
+        metrics.put("max_size", maxSize);
+        if (pool != null) {
+            metrics.put("active", pool.getActiveConnections());
+            metrics.put("idle", pool.getIdleConnections());
+            metrics.put("total", pool.getTotalConnections());
+            metrics.put("threads_awaiting", pool.getThreadsAwaitingConnection());
+            metrics.put("saturation", maxSize == 0 ? 0.0 : (double) pool.getActiveConnections() / maxSize);
+        }
+
+        long count = acquireCount.sum();
+        metrics.put("acquire_count", count);
+        metrics.put("acquire_timeouts", acquireTimeouts.sum());
+        metrics.put("acquire_avg_ms", count == 0 ? 0.0 : acquireNanos.sum() / (double) count / 1_000_000);
+        metrics.put("acquire_max_ms", acquireMaxNanos.get() / 1_000_000.0);
+        bulkhead.getMetrics().forEach((key, value) -> metrics.put("bulkhead_" + key, value));
+        return metrics;
+    }
+
+    /**
+     * Obté una connexió del pool registrant el temps que s'ha esperat.
+     */
+    private Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException e) {
+            acquireTimeouts.increment();
+            throw e;
+        } finally {
+            long waited = System.nanoTime() - start;
+            acquireCount.increment();
+            acquireNanos.add(waited);
+            acquireMaxNanos.accumulate(waited);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.rgbconsulting.jwt.persistence;
+
+/**
+ * Es llança quan no es pot encuar un login perquè la cua d'escriptura és
+ * plena o l'aplicació s'està aturant, o quan el registre del login no s'ha
+ * pogut desar. Es respon 503: el client no rep cap token que no s'hagi desat.
+ *
+ * @author sergi
+ */
+public class LoginBacklogException extends RuntimeException {
+
+    public LoginBacklogException(String message) {
+        super(message);
+    }
+}
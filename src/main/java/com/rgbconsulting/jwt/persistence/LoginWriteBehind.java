@@ -0,0 +1,331 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Escriptura diferida i agrupada dels registres de login.
+ *
+ * En lloc de fer un INSERT amb autocommit per cada login, els registres
+ * s'encuen a una cua acotada i un únic fil escriptor els insereix per lots
+ * (JDBC batch dins d'una sola transacció) quan s'arriba a la mida de lot o
+ * passa l'interval màxim d'espera.
+ *
+ * Modes de durabilitat ("jwt.login.durability"): - sync: INSERT directe al
+ * fil de la petició (comportament original) - flush: el login espera que el
+ * seu lot s'hagi confirmat (group commit) - async: el login retorna en quant
+ * el registre és a la cua
+ *
+ * Si la cua és plena, el login espera com a molt "enqueue-timeout-ms" i
+ * després es rebutja amb LoginBacklogException. En mode flush també es
+ * rebutja si el seu registre no s'ha pogut escriure o la confirmació no
+ * arriba a temps, de manera que mai es retorna un token que no s'ha desat.
+ * Si un lot falla, els seus registres es tornen a escriure un per un perquè
+ * un registre incorrecte no faci fallar tots els logins del lot.
+ *
+ * Mentre un registre és a la cua es pot consultar amb findPending(), de
+ * manera que els tokens encara no escrits es poden validar i refrescar. En
+ * aturar l'aplicació es buida la cua abans de tancar.
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnProperty(name = "jwt.store", havingValue = "jdbc", matchIfMissing = true)
+public class LoginWriteBehind {
+
+    private static final Logger log = LoggerFactory.getLogger(LoginWriteBehind.class);
+
+    private static final String INSERT = "INSERT INTO jwt (username, acces_token, expires_in, time_generated, role) "
+            + "VALUES (?, ?, ?, ?, ?)";
+
+    private final HikariDataSource dataSource;
+    private final String durability;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final long enqueueTimeoutMs;
+    private final BlockingQueue<Pending> queue;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public LoginWriteBehind(HikariDataSource dataSource,
+            @Value("${jwt.login.durability:flush}") String durability,
+            @Value("${jwt.login.queue-capacity:10000}") int queueCapacity,
+            @Value("${jwt.login.batch-size:200}") int batchSize,
+            @Value("${jwt.login.flush-interval-ms:5}") long flushIntervalMs,
+            @Value("${jwt.login.enqueue-timeout-ms:100}") long enqueueTimeoutMs) {
+        this.dataSource = dataSource;
+        this.durability = durability.toLowerCase();
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.enqueueTimeoutMs = enqueueTimeoutMs;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        if (isEnabled()) {
+            writer = new Thread(this::run, "jwt-login-writer");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            writer = null;
+        }
+    }
+
+    /**
+     * Registre pendent d'escriure i el futur que es completa quan s'ha
+     * confirmat el seu lot.
+     */
+    private static final class Pending {
+
+        private final Jwt record;
+        private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        Pending(Jwt record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * @return true si els logins s'escriuen de manera diferida (modes flush o
+     * async)
+     */
+    public boolean isEnabled() {
+        return "flush".equals(durability) || "async".equals(durability);
+    }
+
+    /**
+     * Encua un registre de login.
+     *
+     * En mode flush espera que el lot s'hagi confirmat; en mode async retorna
+     * immediatament.
+     *
+     * @param record Registre amb username, access_token, expires_in,
+     * time_generated i role
+     * @throws LoginBacklogException si la cua és plena o s'està aturant i, en
+     * mode flush, si el registre no s'ha escrit o no s'ha confirmat a temps
+     */
+    public void submit(Jwt record) {
+        if (!running) {
+            rejected.increment();
+            throw new LoginBacklogException("Login writer is shutting down");
+        }
+
+        Pending p = new Pending(record);
+        pending.put(record.getAccess_token(), p);
+        try {
+            if (!queue.offer(p, enqueueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                pending.remove(record.getAccess_token(), p);
+                rejected.increment();
+                throw new LoginBacklogException("Login queue is full");
+            }
+        } catch (InterruptedException e) {
+            pending.remove(record.getAccess_token(), p);
+            Thread.currentThread().interrupt();
+            throw new LoginBacklogException("Interrupted while queueing login");
+        }
+
+        if ("flush".equals(durability) && !await(p)) {
+            throw new LoginBacklogException(p.done.isDone() ? "Login not stored" : "Login write timed out");
+        }
+    }
+
+    /**
+     * Retorna un registre que encara és a la cua, si n'hi ha.
+     *
+     * @param token Token del registre
+     * @return Registre pendent o null si ja s'ha escrit o no existeix
+     */
+    public Jwt findPending(String token) {
+        Pending p = token == null ? null : pending.get(token);
+        return p == null ? null : p.record;
+    }
+
+    /**
+     * Espera que el registre d'un token, si és a la cua, s'hagi escrit. Es fa
+     * servir abans d'actualitzar-lo perquè l'UPDATE el trobi.
+     *
+     * @param token Token del registre
+     */
+    public void awaitWritten(String token) {
+        Pending p = token == null ? null : pending.get(token);
+        if (p != null) {
+            await(p);
+        }
+    }
+
+    /**
+     * Retorna l'estat de la cua i els comptadors de l'escriptor.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("durability", durability);
+        metrics.put("queued", queue.size());
+        metrics.put("queue_capacity", queue.size() + queue.remainingCapacity());
+        metrics.put("batches", batches.sum());
+        metrics.put("written", written.sum());
+        metrics.put("rejected", rejected.sum());
+        metrics.put("failed", failed.sum());
+        return metrics;
+    }
+
+    /**
+     * Deixa d'acceptar logins i escriu tot el que queda a la cua.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        if (writer != null) {
+            writer.interrupt();
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    /**
+     * Espera la confirmació del lot d'un registre.
+     *
+     * @return true si el registre s'ha escrit; false si ha fallat, no s'ha
+     * confirmat a temps o s'ha interromput l'espera
+     */
+    private boolean await(Pending p) {
+        try {
+            return p.done.get(flushIntervalMs + dataSource.getConnectionTimeout() + 5000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Login write not confirmed", e);
+        }
+        return false;
+    }
+
+    /**
+     * Bucle del fil escriptor: agrupa registres fins a la mida de lot o fins
+     * que passa l'interval, i els escriu.
+     */
+    private void run() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = running ? queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS) : queue.poll();
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // aturada: es continua buidant la cua sense esperar
+                queue.drainTo(batch, batchSize - batch.size());
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Escriu un lot amb un sol JDBC batch i una sola confirmació. Si el lot
+     * falla es desfà i els registres s'escriuen un per un, de manera que
+     * només fallen els logins dels registres incorrectes.
+     */
+    private void write(List<Pending> batch) {
+        boolean[] ok = new boolean[batch.size()];
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement = connection.prepareStatement(INSERT)) {
+                for (Pending p : batch) {
+                    bind(preparedStatement, p.record);
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+                connection.commit();
+                Arrays.fill(ok, true);
+                batches.increment();
+            } catch (SQLException e) {
+                connection.rollback();
+                log.warn("Login batch of {} failed, writing records one by one", batch.size(), e);
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            if (!ok[0] && batch.size() > 1) {
+                writeEach(connection, batch, ok);
+            }
+        } catch (SQLException e) {
+            log.warn("Cannot write login batch", e);
+        }
+
+        for (int i = 0; i < ok.length; i++) {
+            Pending p = batch.get(i);
+            if (ok[i]) {
+                written.increment();
+            } else {
+                failed.increment();
+            }
+            pending.remove(p.record.getAccess_token(), p);
+            p.done.complete(ok[i]);
+        }
+    }
+
+    /**
+     * Escriu els registres d'un lot que ha fallat amb un INSERT per registre.
+     */
+    private void writeEach(Connection connection, List<Pending> batch, boolean[] ok) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(INSERT)) {
+            for (int i = 0; i < ok.length; i++) {
+                bind(preparedStatement, batch.get(i).record);
+                try {
+                    ok[i] = preparedStatement.executeUpdate() > 0;
+                } catch (SQLException e) {
+                    log.warn("Cannot write login record", e);
+                }
+            }
+        }
+    }
+
+    private static void bind(PreparedStatement preparedStatement, Jwt r) throws SQLException {
+        preparedStatement.setString(1, r.getUsername());
+        preparedStatement.setString(2, r.getAccess_token());
+        preparedStatement.setInt(3, r.getExpires_in());
+        preparedStatement.setLong(4, r.getTime_generated());
+        preparedStatement.setString(5, r.getRole());
+    }
+}
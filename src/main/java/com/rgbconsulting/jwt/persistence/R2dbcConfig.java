@@ -0,0 +1,62 @@
+package com.rgbconsulting.jwt.persistence;
+
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import java.time.Duration;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configuració del pool de connexions R2DBC (no bloquejant) a PostgreSQL.
+ *
+ * Només s'activa amb "jwt.store=r2dbc", que és el que fa servir el perfil
+ * "reactive". L'usuari i la contrasenya són els mateixos del pool JDBC; la
+ * URL es configura amb "jwt.r2dbc.url". Com el pool JDBC, no obre cap
+ * connexió fins a la primera petició.
+ *
+ * @author sergi
+ */
+@Configuration
+@ConditionalOnProperty(name = "jwt.store", havingValue = "r2dbc")
+public class R2dbcConfig {
+
+    @Value("${jwt.r2dbc.url:r2dbc:postgresql://localhost:5432/jwt_db}")
+    private String url;
+
+    @Value("${jwt.datasource.username:sergi}")
+    private String username;
+
+    @Value("${jwt.datasource.password:odoo1234}")
+    private String password;
+
+    @Value("${jwt.r2dbc.pool.max-size:10}")
+    private int maxPoolSize;
+
+    @Value("${jwt.datasource.pool.connection-timeout-ms:2000}")
+    private long connectionTimeoutMs;
+
+    /**
+     * Crea el pool de connexions R2DBC.
+     *
+     * @return ConnectionPool configurat amb els paràmetres externs
+     */
+    @Bean(destroyMethod = "dispose")
+    public ConnectionPool jwtConnectionPool() {
+        ConnectionFactoryOptions options = ConnectionFactoryOptions.parse(url).mutate()
+                .option(ConnectionFactoryOptions.USER, username)
+                .option(ConnectionFactoryOptions.PASSWORD, password)
+                .build();
+
+        ConnectionPoolConfiguration configuration = ConnectionPoolConfiguration.builder(ConnectionFactories.get(options))
+                .name("jwt-r2dbc-pool")
+                .initialSize(0)
+                .maxSize(maxPoolSize)
+                .maxAcquireTime(Duration.ofMillis(connectionTimeoutMs))
+                .build();
+        return new ConnectionPool(configuration);
+    }
+}
@@ -0,0 +1,94 @@
+package com.rgbconsulting.jwt.persistence;
+
+import io.r2dbc.pool.ConnectionPool;
+import java.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Hashes de contrasenya a la taula "jwt_credentials" per a la variant
+ * reactiva ("jwt.store=r2dbc"), amb el mateix pool R2DBC que R2dbcTokenStore.
+ *
+ * CredentialVerifier és síncron i ReactiveJwtController el crida des de
+ * Schedulers.boundedElastic() (vegeu LoginGate.loginAsync()). Per això cada
+ * mètode espera el resultat de la consulta (com a molt TIMEOUT); no s'ha de
+ * cridar mai des de l'event loop. Les consultes són les mateixes que les de
+ * JdbcCredentialStore, i els errors es tracten igual.
+ *
+ * @author sergi
+ */
+@Repository
+@ConditionalOnProperty(name = "jwt.store", havingValue = "r2dbc")
+public class R2dbcCredentialStore implements CredentialStore {
+
+    private static final Logger log = LoggerFactory.getLogger(R2dbcCredentialStore.class);
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final DatabaseClient databaseClient;
+
+    public R2dbcCredentialStore(ConnectionPool connectionPool) {
+        this.databaseClient = DatabaseClient.create(connectionPool);
+    }
+
+    /**
+     * Si la base de dades falla es llança StoreBusyException en lloc de
+     * retornar null, perquè un usuari existent no es tracti com a nou.
+     */
+    @Override
+    public String findHash(String username) {
+        try {
+            return databaseClient.sql("SELECT password_hash FROM jwt_credentials WHERE username = :username")
+                    .bind("username", username)
+                    .map((row, metadata) -> row.get("password_hash", String.class))
+                    .first()
+                    .block(TIMEOUT);
+        } catch (RuntimeException e) {
+            log.warn("Cannot read password hash", e);
+            throw new StoreBusyException("Credential store unavailable");
+        }
+    }
+
+    /**
+     * Un usuari que ja existeix fa fallar l'INSERT per la clau primària i es
+     * retorna false, com amb qualsevol altre error.
+     */
+    @Override
+    public boolean createHash(String username, String hash) {
+        try {
+            Long rows = databaseClient.sql("INSERT INTO jwt_credentials (username, password_hash, updated_at) VALUES (:username, :hash, :updated_at)")
+                    .bind("username", username)
+                    .bind("hash", hash)
+                    .bind("updated_at", System.currentTimeMillis())
+                    .fetch().rowsUpdated()
+                    .block(TIMEOUT);
+            return rows != null && rows > 0;
+        } catch (DataIntegrityViolationException e) {
+            return false;
+        } catch (RuntimeException e) {
+            log.warn("Cannot store password hash", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean replaceHash(String username, String expected, String hash) {
+        try {
+            Long rows = databaseClient.sql("UPDATE jwt_credentials SET password_hash = :hash, updated_at = :updated_at WHERE username = :username AND password_hash = :expected")
+                    .bind("hash", hash)
+                    .bind("updated_at", System.currentTimeMillis())
+                    .bind("username", username)
+                    .bind("expected", expected)
+                    .fetch().rowsUpdated()
+                    .block(TIMEOUT);
+            return rows != null && rows > 0;
+        } catch (RuntimeException e) {
+            log.warn("Cannot replace password hash", e);
+            return false;
+        }
+    }
+}
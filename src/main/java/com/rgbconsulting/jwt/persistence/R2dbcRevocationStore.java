@@ -0,0 +1,92 @@
+package com.rgbconsulting.jwt.persistence;
+
+import io.r2dbc.pool.ConnectionPool;
+import java.time.Duration;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Revocacions de tokens a la taula "jwt_revoked" per a la variant reactiva
+ * ("jwt.store=r2dbc"), amb el mateix pool R2DBC que R2dbcTokenStore.
+ *
+ * RevocationIndex necessita un RevocationStore síncron: la recàrrega del
+ * filtre es fa en el fil de @Scheduled i ReactiveJwtController crida
+ * confirmRevoked() i revoke() des de Schedulers.boundedElastic(). Per això
+ * cada mètode espera el resultat de la consulta (com a molt TIMEOUT); no
+ * s'ha de cridar mai des de l'event loop. Les consultes són les mateixes que
+ * les de JdbcTokenStore, i els errors es tracten igual.
+ *
+ * @author sergi
+ */
+@Repository
+@ConditionalOnProperty(name = "jwt.store", havingValue = "r2dbc")
+public class R2dbcRevocationStore implements RevocationStore {
+
+    private static final Logger log = LoggerFactory.getLogger(R2dbcRevocationStore.class);
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final DatabaseClient databaseClient;
+
+    public R2dbcRevocationStore(ConnectionPool connectionPool) {
+        this.databaseClient = DatabaseClient.create(connectionPool);
+    }
+
+    @Override
+    public boolean revoke(String tokenId, long revokedAt, long expiresAt) {
+        try {
+            databaseClient.sql("INSERT INTO jwt_revoked (token_id, revoked_at, expires_at) VALUES (:token_id, :revoked_at, :expires_at)")
+                    .bind("token_id", tokenId)
+                    .bind("revoked_at", revokedAt)
+                    .bind("expires_at", expiresAt)
+                    .fetch().rowsUpdated()
+                    .block(TIMEOUT);
+            return true;
+        } catch (DataIntegrityViolationException e) {
+            // ja estava revocat
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("Cannot store revocation", e);
+            return false;
+        }
+    }
+
+    /**
+     * Si la base de dades falla el token es considera revocat, igual que a
+     * JdbcTokenStore.
+     */
+    @Override
+    public boolean isRevoked(String tokenId) {
+        try {
+            return Boolean.TRUE.equals(databaseClient.sql("SELECT 1 FROM jwt_revoked WHERE token_id = :token_id")
+                    .bind("token_id", tokenId)
+                    .fetch().first()
+                    .hasElement()
+                    .block(TIMEOUT));
+        } catch (RuntimeException e) {
+            log.warn("Cannot check revocation, treating the token as revoked", e);
+            return true;
+        }
+    }
+
+    @Override
+    public List<String> findRevokedSince(long since, long now) {
+        try {
+            return databaseClient.sql("SELECT token_id FROM jwt_revoked WHERE revoked_at >= :since AND expires_at > :now")
+                    .bind("since", since)
+                    .bind("now", now)
+                    .map((row, metadata) -> row.get("token_id", String.class))
+                    .all()
+                    .collectList()
+                    .block(TIMEOUT);
+        } catch (RuntimeException e) {
+            log.warn("Cannot read revocations", e);
+            return null;
+        }
+    }
+}
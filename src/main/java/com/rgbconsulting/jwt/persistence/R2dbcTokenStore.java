@@ -0,0 +1,153 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.PoolMetrics;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+/**
+ * Persistència no bloquejant dels tokens a la taula "jwt" de PostgreSQL amb
+ * R2DBC.
+ *
+ * Fa les mateixes consultes que JdbcTokenStore sobre la mateixa taula, però
+ * les connexions i els resultats es reben de manera asíncrona, de manera que
+ * els fils de l'event loop mai esperen la base de dades. Els errors de base
+ * de dades es registren i es tracten com a "no trobat", igual que a
+ * JdbcTokenStore.
+ *
+ * @author sergi
+ */
+@Repository
+@ConditionalOnProperty(name = "jwt.store", havingValue = "r2dbc")
+public class R2dbcTokenStore implements ReactiveTokenStore {
+
+    private static final Logger log = LoggerFactory.getLogger(R2dbcTokenStore.class);
+
+    private final ConnectionPool connectionPool;
+    private final DatabaseClient databaseClient;
+
+    public R2dbcTokenStore(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+        this.databaseClient = DatabaseClient.create(connectionPool);
+    }
+
+    @Override
+    public Mono<Void> saveLogin(String username, String access_token, int expires_in, long time_generated, String role) {
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(
+                "INSERT INTO jwt (username, acces_token, expires_in, time_generated, role) "
+                + "VALUES (:username, :token, :expires_in, :time_generated, :role)");
+        spec = bind(spec, "username", username);
+        spec = bind(spec, "token", access_token);
+        spec = spec.bind("expires_in", expires_in).bind("time_generated", time_generated);
+        spec = bind(spec, "role", role);
+
+        return spec.fetch().rowsUpdated()
+                .onErrorResume(e -> {
+                    log.warn("Cannot save login", e);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    @Override
+    public Mono<String> updateToken(String oldToken, String newToken, long time_generated) {
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(
+                "UPDATE jwt SET acces_token = :new_token, time_generated = :time_generated WHERE acces_token = :old_token");
+        spec = bind(spec, "new_token", newToken);
+        spec = spec.bind("time_generated", time_generated);
+        spec = bind(spec, "old_token", oldToken);
+
+        // un error no és un token desconegut: es propaga com a 503
+        return spec.fetch().rowsUpdated()
+                .flatMap(rows -> rows > 0 ? Mono.just(newToken) : Mono.<String>empty())
+                .onErrorMap(e -> !(e instanceof StoreBusyException), e -> {
+                    log.warn("Cannot replace token", e);
+                    return new StoreBusyException("Token store unavailable");
+                });
+    }
+
+    @Override
+    public Mono<Jwt> findByToken(String token) {
+        if (token == null) {
+            return Mono.empty();
+        }
+
+        return databaseClient.sql("SELECT username, role, time_generated FROM jwt WHERE acces_token = :token")
+                .bind("token", token)
+                .map((row, metadata) -> {
+                    Jwt jwt = new Jwt();
+                    jwt.setAccess_token(token);
+                    jwt.setUsername(row.get("username", String.class));
+                    jwt.setRole(row.get("role", String.class));
+                    jwt.setTime_generated(row.get("time_generated", Long.class));
+                    return jwt;
+                })
+                .first()
+                .onErrorResume(e -> {
+                    log.warn("Cannot look up token", e);
+                    return Mono.empty();
+                });
+    }
+
+    @Override
+    public Mono<Map<String, Jwt>> findByTokens(Collection<String> tokens) {
+        if (tokens.isEmpty()) {
+            return Mono.just(Map.of());
+        }
+
+        return databaseClient.sql("SELECT acces_token, username, role, time_generated FROM jwt WHERE acces_token = ANY(:tokens)")
+                .bind("tokens", tokens.toArray(new String[0]))
+                .map((row, metadata) -> {
+                    Jwt jwt = new Jwt();
+                    jwt.setAccess_token(row.get("acces_token", String.class));
+                    jwt.setUsername(row.get("username", String.class));
+                    jwt.setRole(row.get("role", String.class));
+                    jwt.setTime_generated(row.get("time_generated", Long.class));
+                    return jwt;
+                })
+                .all()
+                .collectMap(Jwt::getAccess_token)
+                .onErrorResume(e -> {
+                    log.warn("Cannot look up tokens", e);
+                    return Mono.just(Map.of());
+                });
+    }
+
+    /**
+     * Retorna l'estat del pool de connexions R2DBC.
+     *
+     * @return Mapa ordenat amb les mètriques del pool
+     */
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("backend", "r2dbc");
+        Optional<PoolMetrics> pool = connectionPool.getMetrics();
+        if (pool.isPresent()) {
+            PoolMetrics m = pool.get();
+            metrics.put("max_size", m.getMaxAllocatedSize());
+            metrics.put("acquired", m.acquiredSize());
+            metrics.put("idle", m.idleSize());
+            metrics.put("allocated", m.allocatedSize());
+            metrics.put("pending_acquire", m.pendingAcquireSize());
+        }
+        return metrics;
+    }
+
+    /**
+     * Enllaça un paràmetre que pot ser nul (R2DBC necessita el tipus dels
+     * valors nuls).
+     */
+    private static DatabaseClient.GenericExecuteSpec bind(DatabaseClient.GenericExecuteSpec spec, String name, String value) {
+        return value == null ? spec.bindNull(name, String.class) : spec.bind(name, value);
+    }
+}
@@ -0,0 +1,66 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import java.util.Collection;
+import java.util.Map;
+import reactor.core.publisher.Mono;
+
+/**
+ * Emmagatzematge no bloquejant dels tokens, per a la variant reactiva dels
+ * endpoints (perfil "reactive").
+ *
+ * Té les mateixes operacions que TokenStore però retorna Mono: cap mètode
+ * pot bloquejar el fil que el crida.
+ *
+ * @author sergi
+ */
+public interface ReactiveTokenStore {
+
+    /**
+     * Desa un nou registre de login, sense la contrasenya.
+     *
+     * @param username Nom d'usuari
+     * @param access_token Token generat per aquest login
+     * @param expires_in Temps d'expiració en segons
+     * @param time_generated Timestamp en mil·lisegons del moment de generació
+     * @param role Rol assignat a l'usuari ("ADMIN" o "USER")
+     * @return Mono que acaba quan el registre s'ha desat
+     */
+    Mono<Void> saveLogin(String username, String access_token, int expires_in, long time_generated, String role);
+
+    /**
+     * Substitueix un token existent per un de nou i reinicia el timestamp de
+     * generació.
+     *
+     * @param oldToken Token actual que es vol substituir
+     * @param newToken Nou token que substituirà l'antic
+     * @param time_generated Timestamp en mil·lisegons del nou token
+     * @return Mono amb el nou token, buit si no s'ha trobat el token antic, o
+     * error StoreBusyException si el magatzem no ha pogut fer la substitució
+     */
+    Mono<String> updateToken(String oldToken, String newToken, long time_generated);
+
+    /**
+     * Cerca el registre associat a un token sense verificar-ne l'expiració.
+     *
+     * @param token Token a cercar
+     * @return Mono amb username, role, access_token i time_generated, o buit si
+     * el token no existeix
+     */
+    Mono<Jwt> findByToken(String token);
+
+    /**
+     * Cerca els registres d'un conjunt de tokens amb una sola consulta, sense
+     * verificar-ne l'expiració.
+     *
+     * @param tokens Tokens a cercar
+     * @return Mono amb el mapa de token a registre, amb només els tokens
+     * trobats
+     */
+    Mono<Map<String, Jwt>> findByTokens(Collection<String> tokens);
+
+    /**
+     * @return Mètriques pròpies de la implementació
+     */
+    Map<String, Object> getMetrics();
+}
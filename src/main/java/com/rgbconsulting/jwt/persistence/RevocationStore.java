@@ -0,0 +1,46 @@
+package com.rgbconsulting.jwt.persistence;
+
+import java.util.List;
+
+/**
+ * Taula "jwt_revoked" de les revocacions de tokens (logout i revocació per
+ * l'administrador), que llegeix i escriu RevocationIndex.
+ *
+ * Els mètodes bloquegen: amb la variant reactiva (R2dbcRevocationStore)
+ * només es poden cridar fora de l'event loop.
+ *
+ * @author sergi
+ */
+public interface RevocationStore {
+
+    /**
+     * Registra la revocació d'un token (logout o revocació per
+     * l'administrador). Revocar dos cops el mateix token no té cap efecte.
+     *
+     * @param tokenId Identificador del token (vegeu RevocationIndex)
+     * @param revokedAt Timestamp de la revocació en mil·lisegons
+     * @param expiresAt Timestamp d'expiració del token: a partir d'aquí la
+     * revocació ja no cal i es pot eliminar
+     * @return true si s'ha registrat, false si s'ha produït un error
+     */
+    boolean revoke(String tokenId, long revokedAt, long expiresAt);
+
+    /**
+     * Comprova si un token està revocat.
+     *
+     * @param tokenId Identificador del token
+     * @return true si està revocat o no s'ha pogut comprovar
+     */
+    boolean isRevoked(String tokenId);
+
+    /**
+     * Cerca les revocacions fetes a partir d'un moment que encara no han
+     * expirat.
+     *
+     * @param since Timestamp mínim de revocació en mil·lisegons
+     * @param now Timestamp actual en mil·lisegons
+     * @return Identificadors dels tokens revocats, o null si no s'han pogut
+     * llegir
+     */
+    List<String> findRevokedSince(long since, long now);
+}
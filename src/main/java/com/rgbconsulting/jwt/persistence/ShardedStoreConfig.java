@@ -0,0 +1,137 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configuració del magatzem de tokens repartit entre diverses bases de dades
+ * ("jwt.store=sharded").
+ *
+ * "jwt.store.shards" és la llista d'URL JDBC dels shards, separades per
+ * comes; tots fan servir l'usuari i la contrasenya de "jwt.datasource". Cada
+ * shard té un pool propi de "jwt.store.shard.pool.max-size" connexions i els
+ * seus propis escriptor de logins i reaper, amb la mateixa configuració
+ * "jwt.login.*" i "jwt.reaper.*" que el magatzem jdbc. La base de dades de
+ * "jwt.datasource.url" continua guardant les credencials i fent d'origen del
+ * canal d'invalidació.
+ *
+ * Per afegir un shard s'afegeix la seva URL al final de la llista i es
+ * reinicia: amb "jwt.store.shard.rebalance-on-start" els tokens que han
+ * canviat de propietari es mouen en segon pla, llegint com a molt
+ * "jwt.store.shard.rebalance-batch-size" registres per consulta.
+ *
+ * @author sergi
+ */
+@Configuration
+@ConditionalOnProperty(name = "jwt.store", havingValue = "sharded")
+public class ShardedStoreConfig {
+
+    @Value("${jwt.store.shards}")
+    private List<String> urls;
+
+    @Value("${jwt.datasource.username:sergi}")
+    private String username;
+
+    @Value("${jwt.datasource.password:odoo1234}")
+    private String password;
+
+    @Value("${jwt.store.shard.pool.max-size:10}")
+    private int maxPoolSize;
+
+    @Value("${jwt.datasource.pool.min-idle:2}")
+    private int minIdle;
+
+    @Value("${jwt.datasource.pool.connection-timeout-ms:2000}")
+    private long connectionTimeoutMs;
+
+    @Value("${jwt.store.shard.virtual-nodes:128}")
+    private int virtualNodes;
+
+    @Value("${jwt.store.shard.rebalance-on-start:true}")
+    private boolean rebalanceOnStart;
+
+    @Value("${jwt.store.shard.rebalance-batch-size:1000}")
+    private int rebalanceBatchSize;
+
+    @Value("${jwt.jdbc.max-concurrency:10}")
+    private int maxConcurrency;
+
+    @Value("${jwt.jdbc.acquire-timeout-ms:2000}")
+    private long acquireTimeoutMs;
+
+    @Value("${jwt.login.durability:flush}")
+    private String durability;
+
+    @Value("${jwt.login.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${jwt.login.batch-size:200}")
+    private int batchSize;
+
+    @Value("${jwt.login.flush-interval-ms:5}")
+    private long flushIntervalMs;
+
+    @Value("${jwt.login.enqueue-timeout-ms:100}")
+    private long enqueueTimeoutMs;
+
+    @Value("${jwt.reaper.mode:delete}")
+    private String reaperMode;
+
+    @Value("${jwt.reaper.grace-ms:60000}")
+    private long reaperGraceMs;
+
+    @Value("${jwt.reaper.batch-size:5000}")
+    private int reaperBatchSize;
+
+    @Value("${jwt.reaper.max-batches:100}")
+    private int reaperMaxBatches;
+
+    @Value("${jwt.reaper.partition-ms:3600000}")
+    private long partitionMs;
+
+    @Value("${jwt.reaper.precreate-partitions:2}")
+    private int precreate;
+
+    @Value("${jwt.revocation.enabled:true}")
+    private boolean revocations;
+
+    /**
+     * Crea un pool i els seus components per a cada shard.
+     *
+     * @param invalidations Canal d'invalidació entre nodes, si està actiu
+     * @return Magatzem de tokens repartit
+     */
+    @Bean(destroyMethod = "close")
+    public ShardedTokenStore shardedTokenStore(Optional<TokenInvalidationChannel> invalidations) {
+        List<ShardedTokenStore.Shard> shards = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            HikariDataSource dataSource = new HikariDataSource();
+            dataSource.setPoolName("jwt-shard-" + shards.size());
+            dataSource.setJdbcUrl(url.trim());
+            dataSource.setUsername(username);
+            dataSource.setPassword(password);
+            dataSource.setMaximumPoolSize(maxPoolSize);
+            dataSource.setMinimumIdle(Math.min(minIdle, maxPoolSize));
+            dataSource.setConnectionTimeout(connectionTimeoutMs);
+            dataSource.setRegisterMbeans(true);
+
+            shards.add(new ShardedTokenStore.Shard(url.trim(), dataSource,
+                    new JdbcBulkhead(maxConcurrency, acquireTimeoutMs),
+                    new LoginWriteBehind(dataSource, durability, queueCapacity, batchSize, flushIntervalMs, enqueueTimeoutMs),
+                    new TokenReaper(dataSource, reaperMode, reaperGraceMs, reaperBatchSize, reaperMaxBatches,
+                            partitionMs, precreate, revocations)));
+        }
+
+        ShardedTokenStore store = new ShardedTokenStore(shards, virtualNodes, invalidations, rebalanceBatchSize);
+        if (rebalanceOnStart) {
+            store.rebalanceAsync();
+        }
+        return store;
+    }
+}
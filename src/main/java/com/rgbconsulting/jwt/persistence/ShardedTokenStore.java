@@ -0,0 +1,602 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Tokens repartits entre diverses bases de dades PostgreSQL ("shards") per
+ * hash consistent del token.
+ *
+ * Cada shard té el seu pool, JdbcBulkhead, LoginWriteBehind, JdbcTokenStore
+ * i TokenReaper, i cada token (i cada revocació, pel seu identificador) viu
+ * només al shard que li assigna ConsistentHashRing. Les consultes d'un
+ * conjunt de tokens s'agrupen per shard.
+ *
+ * Un refresh genera un token nou que normalment pertany a un altre shard. El
+ * registre es mou inserint-lo primer al shard nou i eliminant després
+ * l'antic; si l'antic ja no hi és (un altre refresc ha guanyat) o l'esborrat
+ * falla, s'elimina la còpia nova i el refresh retorna null. Per al cridant
+ * el canvi és atòmic: fins que no rep el token nou, l'antic continua sent
+ * vàlid, i quan el rep l'antic ja no ho és.
+ *
+ * Afegir un shard només canvia el propietari d'aproximadament 1/(N+1) dels
+ * tokens. rebalance() els mou al seu shard nou; mentre dura, les cerques que
+ * no troben un token al seu shard el busquen a la resta, i isRevoked()
+ * consulta tots els shards.
+ *
+ * Les substitucions i revocacions es publiquen a TokenInvalidationChannel
+ * amb una connexió de la base de dades principal ("jwt.datasource.url"), que
+ * també guarda les credencials.
+ *
+ * @author sergi
+ */
+public class ShardedTokenStore implements TokenStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedTokenStore.class);
+
+    private final List<Shard> shards;
+    private final ConsistentHashRing<Shard> ring;
+    private final Optional<TokenInvalidationChannel> invalidations;
+    private final int rebalanceBatchSize;
+    private volatile boolean rebalancing;
+    private volatile boolean rebalancePending;
+    private long passFailures;
+
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder moveFailures = new LongAdder();
+    private final LongAdder rebalancedTokens = new LongAdder();
+    private final LongAdder rebalancedRevocations = new LongAdder();
+    private final LongAdder rebalanceRuns = new LongAdder();
+    private final LongAdder rebalanceFailures = new LongAdder();
+
+    /**
+     * @param shards Shards, identificats per la URL de la seva base de dades
+     * @param virtualNodes Punts de l'anell per shard
+     * @param invalidations Canal d'invalidació entre nodes, si està actiu
+     * @param rebalanceBatchSize Registres llegits per consulta a rebalance()
+     */
+    public ShardedTokenStore(List<Shard> shards, int virtualNodes, Optional<TokenInvalidationChannel> invalidations,
+            int rebalanceBatchSize) {
+        this.shards = List.copyOf(shards);
+        this.ring = new ConsistentHashRing<>(shards.stream().map(Shard::getId).toList(), this.shards, virtualNodes);
+        this.invalidations = invalidations;
+        this.rebalanceBatchSize = Math.max(1, rebalanceBatchSize);
+    }
+
+    /**
+     * Base de dades d'un shard i els components que hi accedeixen.
+     */
+    public static final class Shard {
+
+        private final String id;
+        private final HikariDataSource dataSource;
+        private final JdbcBulkhead bulkhead;
+        private final LoginWriteBehind loginWriter;
+        private final JdbcTokenStore store;
+        private final TokenReaper reaper;
+
+        public Shard(String id, HikariDataSource dataSource, JdbcBulkhead bulkhead, LoginWriteBehind loginWriter,
+                TokenReaper reaper) {
+            this.id = id;
+            this.dataSource = dataSource;
+            this.bulkhead = bulkhead;
+            this.loginWriter = loginWriter;
+            this.store = new JdbcTokenStore(dataSource, loginWriter, bulkhead, Optional.empty());
+            this.reaper = reaper;
+        }
+
+        /**
+         * @return Identificador del shard a l'anell (la URL de la base de
+         * dades)
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return Magatzem de tokens del shard
+         */
+        public JdbcTokenStore getStore() {
+            return store;
+        }
+
+        private void close() {
+            try {
+                loginWriter.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            dataSource.close();
+        }
+    }
+
+    /**
+     * @param key Token o identificador de token
+     * @return Shard propietari segons l'anell
+     */
+    public Shard shardFor(String key) {
+        return ring.route(key);
+    }
+
+    @Override
+    public void saveLogin(String username, String access_token, int expires_in, long time_generated, String role) {
+        shardFor(access_token).store.saveLogin(username, access_token, expires_in, time_generated, role);
+    }
+
+    /**
+     * Substitueix un token. Si el token nou pertany al mateix shard es fa un
+     * UPDATE; si no, el registre es mou al shard del token nou. Si el
+     * moviment falla i el token antic encara és al seu shard, l'error és del
+     * magatzem i es llança StoreBusyException.
+     */
+    @Override
+    public String updateToken(String oldToken, String newToken, long time_generated) {
+        Shard target = shardFor(newToken);
+        Shard source = locate(oldToken);
+        if (source == null) {
+            return null;
+        }
+        String updated;
+        if (source == target) {
+            updated = source.store.updateToken(oldToken, newToken, time_generated);
+        } else {
+            Jwt current = source.store.findByToken(oldToken);
+            updated = current == null ? null : move(source, target, current, newToken, time_generated) ? newToken : null;
+            if (current != null && updated == null && source.store.findByToken(oldToken) != null) {
+                throw new StoreBusyException("Token store unavailable");
+            }
+        }
+        if (updated != null) {
+            publish("replace", oldToken);
+        }
+        return updated;
+    }
+
+    @Override
+    public Jwt findByToken(String token) {
+        Shard owner = shardFor(token);
+        Jwt found = owner.store.findByToken(token);
+        if (found != null || !rebalancing) {
+            return found;
+        }
+        for (Shard shard : shards) {
+            if (shard != owner && (found = shard.store.findByToken(token)) != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Agrupa els tokens pel seu shard i fa una consulta per shard.
+     */
+    @Override
+    public Map<String, Jwt> findByTokens(Collection<String> tokens) {
+        Map<Shard, List<String>> byShard = new HashMap<>();
+        for (String token : tokens) {
+            if (token != null) {
+                byShard.computeIfAbsent(shardFor(token), s -> new ArrayList<>()).add(token);
+            }
+        }
+        Map<String, Jwt> found = new HashMap<>(tokens.size() * 2);
+        byShard.forEach((shard, keys) -> found.putAll(shard.store.findByTokens(keys)));
+        if (rebalancing && found.size() < byShard.values().stream().mapToInt(List::size).sum()) {
+            List<String> missing = new ArrayList<>();
+            byShard.values().forEach(keys -> keys.stream().filter(t -> !found.containsKey(t)).forEach(missing::add));
+            for (Shard shard : shards) {
+                found.putAll(shard.store.findByTokens(missing));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public boolean revoke(String tokenId, long revokedAt, long expiresAt) {
+        boolean revoked = shardFor(tokenId).store.revoke(tokenId, revokedAt, expiresAt);
+        if (revoked) {
+            publish("revoke", tokenId);
+        }
+        return revoked;
+    }
+
+    @Override
+    public boolean isRevoked(String tokenId) {
+        Shard owner = shardFor(tokenId);
+        if (owner.store.isRevoked(tokenId)) {
+            return true;
+        }
+        if (rebalancing) {
+            for (Shard shard : shards) {
+                if (shard != owner && shard.store.isRevoked(tokenId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Revocacions de tots els shards, o null si algun no s'ha pogut
+     * llegir
+     */
+    @Override
+    public List<String> findRevokedSince(long since, long now) {
+        List<String> revoked = new ArrayList<>();
+        for (Shard shard : shards) {
+            List<String> found = shard.store.findRevokedSince(since, now);
+            if (found == null) {
+                return null;
+            }
+            revoked.addAll(found);
+        }
+        return revoked;
+    }
+
+    /**
+     * Recorre tots els shards alhora, cadascun amb el seu cursor en un fil
+     * propi. L'ordre per time_generated només es manté dins de cada shard.
+     *
+     * @return Tokens recorreguts de tots els shards, o -1 si algun no s'ha
+     * pogut llegir
+     */
+    @Override
+    public long streamSince(long since, int fetchSize, Predicate<Jwt> action) {
+        AtomicBoolean stopped = new AtomicBoolean();
+        Predicate<Jwt> shared = jwt -> {
+            if (stopped.get() || !action.test(jwt)) {
+                stopped.set(true);
+                return false;
+            }
+            return true;
+        };
+        List<CompletableFuture<Long>> reads = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            Shard shard = shards.get(i);
+            String name = "jwt-shard-stream-" + i;
+            reads.add(CompletableFuture.supplyAsync(() -> shard.store.streamSince(since, fetchSize, shared), task -> {
+                Thread reader = new Thread(task, name);
+                reader.setDaemon(true);
+                reader.start();
+            }));
+        }
+        long total = 0;
+        boolean failed = false;
+        for (CompletableFuture<Long> read : reads) {
+            long count = read.join();
+            if (count < 0) {
+                failed = true;
+            } else {
+                total += count;
+            }
+        }
+        return failed ? -1 : total;
+    }
+
+    /**
+     * Mou cada token i revocació que no és al shard que li assigna l'anell
+     * (per exemple després d'afegir un shard). Cada shard es recorre per
+     * pàgines de "jwt.store.shard.rebalance-batch-size" registres i només es
+     * mouen els que han canviat de propietari.
+     *
+     * Si no s'ha pogut llegir alguna pàgina o moure algun registre, queden
+     * registres fora del seu shard: el rebalanceig es manté actiu (les
+     * cerques continuen consultant tots els shards) i retryRebalance() el
+     * torna a executar. Només una passada sense cap error el dona per acabat.
+     *
+     * @return Nombre de tokens i revocacions moguts
+     */
+    public synchronized long rebalance() {
+        rebalancing = true;
+        passFailures = 0;
+        long tokens = 0;
+        long revocations = 0;
+        long start = System.nanoTime();
+        boolean complete = false;
+        try {
+            for (Shard source : shards) {
+                tokens += rebalanceTokens(source);
+                revocations += rebalanceRevocations(source);
+            }
+            complete = passFailures == 0;
+        } finally {
+            rebalancePending = !complete;
+            rebalancing = !complete;
+            rebalanceRuns.increment();
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (complete) {
+            log.info("Shard rebalance: {} tokens and {} revocations moved in {} ms", tokens, revocations, elapsedMs);
+        } else {
+            log.warn("Shard rebalance incomplete: {} tokens and {} revocations moved in {} ms, {} failures;"
+                    + " lookups keep searching every shard until a retry succeeds", tokens, revocations, elapsedMs, passFailures);
+        }
+        return tokens + revocations;
+    }
+
+    /**
+     * Torna a executar rebalance() si l'última passada no ha acabat bé.
+     */
+    @Scheduled(fixedDelayString = "${jwt.store.shard.rebalance-retry-ms:60000}",
+            initialDelayString = "${jwt.store.shard.rebalance-retry-ms:60000}")
+    public void retryRebalance() {
+        if (rebalancePending) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Executa rebalance() en un fil propi, per no retardar l'arrencada.
+     * Les cerques ja tenen en compte el rebalanceig des d'ara.
+     */
+    public void rebalanceAsync() {
+        rebalancing = true;
+        Thread rebalancer = new Thread(this::rebalance, "jwt-shard-rebalancer");
+        rebalancer.setDaemon(true);
+        rebalancer.start();
+    }
+
+    /**
+     * @return true mentre s'estan movent tokens entre shards o mentre queden
+     * registres per moure d'una passada amb errors
+     */
+    public boolean isRebalancing() {
+        return rebalancing;
+    }
+
+    /**
+     * Execució periòdica dels reapers de tots els shards.
+     */
+    @Scheduled(fixedDelayString = "${jwt.reaper.interval-ms:60000}", initialDelayString = "${jwt.reaper.initial-delay-ms:10000}")
+    public void reap() {
+        for (Shard shard : shards) {
+            shard.reaper.scheduledRun();
+        }
+    }
+
+    /**
+     * @return Shards de l'anell
+     */
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    /**
+     * Retorna els comptadors de moviments entre shards i, per a cada shard,
+     * les mètriques del seu pool, escriptor de logins i reaper.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("shards", shards.size());
+        metrics.put("ring_points", ring.getPoints());
+        metrics.put("moves", moves.sum());
+        metrics.put("move_failures", moveFailures.sum());
+        metrics.put("rebalancing", rebalancing);
+        metrics.put("rebalance_pending", rebalancePending);
+        metrics.put("rebalance_runs", rebalanceRuns.sum());
+        metrics.put("rebalance_failures", rebalanceFailures.sum());
+        metrics.put("rebalanced_tokens", rebalancedTokens.sum());
+        metrics.put("rebalanced_revocations", rebalancedRevocations.sum());
+        for (int i = 0; i < shards.size(); i++) {
+            Shard shard = shards.get(i);
+            Map<String, Object> shardMetrics = new LinkedHashMap<>();
+            shardMetrics.put("url", shard.id);
+            shardMetrics.put("pool", shard.store.getMetrics());
+            shardMetrics.put("login_writer", shard.loginWriter.getMetrics());
+            shardMetrics.put("reaper", shard.reaper.getMetrics());
+            metrics.put("shard_" + i, shardMetrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Atura els escriptors de logins (buidant-ne la cua) i tanca els pools.
+     */
+    public void close() {
+        shards.forEach(Shard::close);
+    }
+
+    /**
+     * Shard on és un token: el seu propietari o, durant un rebalanceig, el
+     * primer que el té.
+     */
+    private Shard locate(String token) {
+        Shard owner = shardFor(token);
+        if (!rebalancing || owner.store.findByToken(token) != null) {
+            return owner;
+        }
+        for (Shard shard : shards) {
+            if (shard != owner && shard.store.findByToken(token) != null) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copia un registre a un altre shard amb el token indicat i n'elimina
+     * l'original. Si l'original ja no hi és o no s'ha pogut eliminar, desfà
+     * la còpia.
+     *
+     * @return true si s'ha mogut
+     */
+    private boolean move(Shard source, Shard target, Jwt record, String token, long time_generated) {
+        int expiresIn = record.getExpires_in() == null ? 0 : record.getExpires_in();
+        if (!target.store.insertToken(record.getUsername(), token, expiresIn, time_generated, record.getRole())) {
+            moveFailures.increment();
+            return false;
+        }
+        if (!source.store.deleteToken(record.getAccess_token())) {
+            target.store.deleteToken(token);
+            moveFailures.increment();
+            return false;
+        }
+        moves.increment();
+        return true;
+    }
+
+    /**
+     * Mou els tokens d'un shard que pertanyen a un altre. Els registres es
+     * llegeixen per pàgines de "rebalanceBatchSize" ordenades per token
+     * (índex jwt_acces_token_idx), i cada pàgina es mou abans de llegir la
+     * següent: la memòria no depèn de la mida de la taula i la connexió no
+     * es reté mentre es mou.
+     */
+    private long rebalanceTokens(Shard source) {
+        String query = "SELECT username, acces_token, expires_in, time_generated, role FROM jwt"
+                + " WHERE acces_token > ? ORDER BY acces_token LIMIT ?";
+        List<Jwt> misplaced = new ArrayList<>(rebalanceBatchSize);
+        String after = "";
+        long moved = 0;
+        while (after != null) {
+            misplaced.clear();
+            String last = null;
+            source.bulkhead.acquire();
+            try (Connection connection = source.dataSource.getConnection();
+                    PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+                preparedStatement.setString(1, after);
+                preparedStatement.setInt(2, rebalanceBatchSize);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        last = resultSet.getString("acces_token");
+                        if (shardFor(last) != source) {
+                            Jwt jwt = new Jwt();
+                            jwt.setUsername(resultSet.getString("username"));
+                            jwt.setAccess_token(last);
+                            jwt.setExpires_in(resultSet.getInt("expires_in"));
+                            jwt.setTime_generated(resultSet.getLong("time_generated"));
+                            jwt.setRole(resultSet.getString("role"));
+                            misplaced.add(jwt);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                log.warn("Shard rebalance: cannot read tokens from {}", source.id, e);
+                rebalanceFailed();
+                last = null;
+            } finally {
+                source.bulkhead.release();
+            }
+
+            for (Jwt jwt : misplaced) {
+                if (move(source, shardFor(jwt.getAccess_token()), jwt, jwt.getAccess_token(), jwt.getTime_generated())) {
+                    moved++;
+                    rebalancedTokens.increment();
+                } else {
+                    // o un refresc concurrent l'ha mogut, o encara és aquí:
+                    // la propera passada ho comprova
+                    rebalanceFailed();
+                }
+            }
+            after = last;
+        }
+        return moved;
+    }
+
+    /**
+     * Mou les revocacions d'un shard que pertanyen a un altre, per pàgines
+     * ordenades per token_id com a rebalanceTokens().
+     */
+    private long rebalanceRevocations(Shard source) {
+        String query = "SELECT token_id, revoked_at, expires_at FROM jwt_revoked WHERE token_id > ? ORDER BY token_id LIMIT ?";
+        List<String> ids = new ArrayList<>(rebalanceBatchSize);
+        List<long[]> times = new ArrayList<>(rebalanceBatchSize);
+        String after = "";
+        long moved = 0;
+        while (after != null) {
+            ids.clear();
+            times.clear();
+            String last = null;
+            source.bulkhead.acquire();
+            try (Connection connection = source.dataSource.getConnection();
+                    PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+                preparedStatement.setString(1, after);
+                preparedStatement.setInt(2, rebalanceBatchSize);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        last = resultSet.getString(1);
+                        if (shardFor(last) != source) {
+                            ids.add(last);
+                            times.add(new long[]{resultSet.getLong(2), resultSet.getLong(3)});
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                log.warn("Shard rebalance: cannot read revocations from {}", source.id, e);
+                rebalanceFailed();
+                last = null;
+            } finally {
+                source.bulkhead.release();
+            }
+
+            for (int i = 0; i < ids.size(); i++) {
+                String tokenId = ids.get(i);
+                // la revocació s'escriu al shard nou abans d'esborrar-la de l'antic
+                if (shardFor(tokenId).store.revoke(tokenId, times.get(i)[0], times.get(i)[1])
+                        && deleteRevocation(source, tokenId)) {
+                    moved++;
+                    rebalancedRevocations.increment();
+                } else {
+                    rebalanceFailed();
+                }
+            }
+            after = last;
+        }
+        return moved;
+    }
+
+    private void rebalanceFailed() {
+        passFailures++;
+        rebalanceFailures.increment();
+    }
+
+    private boolean deleteRevocation(Shard source, String tokenId) {
+        source.bulkhead.acquire();
+        try (Connection connection = source.dataSource.getConnection();
+                PreparedStatement preparedStatement = connection.prepareStatement("DELETE FROM jwt_revoked WHERE token_id = ?")) {
+            preparedStatement.setString(1, tokenId);
+            return preparedStatement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            log.warn("Shard rebalance: cannot delete moved revocation from {}", source.id, e);
+            return false;
+        } finally {
+            source.bulkhead.release();
+        }
+    }
+
+    /**
+     * Publica una substitució o revocació ja confirmada. Com a
+     * JdbcTokenStore, un error aquí no desfà l'operació.
+     */
+    private void publish(String type, String token) {
+        if (invalidations.isEmpty()) {
+            return;
+        }
+        try {
+            invalidations.get().publish(type, token);
+        } catch (SQLException e) {
+            log.warn("Cannot publish {} invalidation", type, e);
+        }
+    }
+}
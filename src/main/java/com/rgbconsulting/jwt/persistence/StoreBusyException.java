@@ -0,0 +1,15 @@
+package com.rgbconsulting.jwt.persistence;
+
+/**
+ * Es llança quan una operació del magatzem de tokens no obté permís del
+ * JdbcBulkhead dins del temps d'espera configurat, o quan el magatzem no
+ * respon i no es pot donar una resposta segura.
+ *
+ * @author sergi
+ */
+public class StoreBusyException extends RuntimeException {
+
+    public StoreBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,299 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.rgbconsulting.jwt.cache.TokenCache;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Invalidació de la cache de tokens entre nodes amb LISTEN/NOTIFY de
+ * PostgreSQL.
+ *
+ * Quan un node substitueix o revoca un token, JdbcTokenStore publica un
+ * esdeveniment al canal "jwt_token_events" amb la mateixa connexió de
+ * l'UPDATE. Cada node escolta el canal amb una connexió dedicada (fora del
+ * pool, perquè queda ocupada tota l'estona) i elimina el token de la seva
+ * TokenCache en rebre l'esdeveniment, normalment en pocs mil·lisegons.
+ *
+ * El contingut de cada esdeveniment és "tipus:timestamp:token", on el tipus
+ * és "replace" o "revoke" i el timestamp (mil·lisegons) permet mesurar el
+ * retard de propagació.
+ *
+ * Una connexió TCP mig oberta (el servidor o la xarxa han caigut sense
+ * tancar-la) no dona cap error mentre només s'esperen notificacions. Per
+ * detectar-ho, cada "jwt.cache.invalidation.liveness-ms" s'executa un
+ * SELECT 1 per la connexió d'escolta, que té un socketTimeout del mateix
+ * ordre: si no respon, es tracta com una desconnexió.
+ *
+ * Si la connexió d'escolta cau, la cache es buida i es limita a
+ * "jwt.cache.invalidation.disconnected-ttl-ms" mentre es reintenta la
+ * connexió amb espera exponencial. En tornar a escoltar es recupera la
+ * durada normal de les entrades. S'activa amb
+ * "jwt.cache.invalidation.enabled" (per defecte amb "jwt.store=jdbc" o "sharded").
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnExpression("'${jwt.store:jdbc}'.matches('jdbc|sharded')")
+@ConditionalOnProperty(name = "jwt.cache.invalidation.enabled", havingValue = "true", matchIfMissing = true)
+public class TokenInvalidationChannel implements MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenInvalidationChannel.class);
+
+    static final String CHANNEL = "jwt_token_events";
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private final HikariDataSource dataSource;
+    private final TokenCache tokenCache;
+    private final long disconnectedTtlMs;
+    private final int pollMs;
+    private final long livenessMs;
+    private final Thread listener;
+    private volatile boolean running = true;
+    private volatile boolean connected;
+    private volatile Connection connection;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder lagMs = new LongAdder();
+    private final LongAccumulator maxLagMs = new LongAccumulator(Long::max, 0);
+
+    public TokenInvalidationChannel(HikariDataSource dataSource, TokenCache tokenCache,
+            @Value("${jwt.cache.invalidation.disconnected-ttl-ms:1000}") long disconnectedTtlMs,
+            @Value("${jwt.cache.invalidation.poll-ms:500}") int pollMs,
+            @Value("${jwt.cache.invalidation.liveness-ms:5000}") long livenessMs) {
+        this.dataSource = dataSource;
+        this.tokenCache = tokenCache;
+        this.disconnectedTtlMs = disconnectedTtlMs;
+        this.pollMs = pollMs;
+        this.livenessMs = livenessMs;
+
+        // fins que no s'escolta el canal, entrades de vida curta
+        tokenCache.setMaxTtl(disconnectedTtlMs);
+        listener = new Thread(this::run, "jwt-invalidation-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Publica que un token s'ha substituït o revocat. Es fa amb la connexió de
+     * l'operació, de manera que l'esdeveniment surt quan aquesta es confirma.
+     *
+     * @param connection Connexió on s'ha fet l'operació
+     * @param type "replace" o "revoke"
+     * @param token Token que ja no és vàlid
+     */
+    public void publish(Connection connection, String type, String token) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+            preparedStatement.setString(1, CHANNEL);
+            preparedStatement.setString(2, type + ":" + System.currentTimeMillis() + ":" + token);
+            preparedStatement.execute();
+        }
+        published.increment();
+    }
+
+    /**
+     * Publica que un token s'ha substituït o revocat amb una connexió pròpia
+     * del pool. ShardedTokenStore el fa servir després de confirmar
+     * l'operació a la base de dades del token, que no és la que s'escolta.
+     *
+     * @param type "replace" o "revoke"
+     * @param token Token que ja no és vàlid
+     */
+    public void publish(String type, String token) throws SQLException {
+        try (Connection pooled = dataSource.getConnection()) {
+            publish(pooled, type, token);
+        }
+    }
+
+    /**
+     * @return true si la connexió d'escolta està activa
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Registra jwt.invalidation.connected: 1 si el canal està escoltant.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("jwt.invalidation.connected", this, channel -> channel.isConnected() ? 1 : 0)
+                .description("1 si el canal d'invalidació entre nodes està escoltant")
+                .register(registry);
+    }
+
+    /**
+     * Retorna l'estat del canal i els comptadors d'esdeveniments.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long count = received.sum();
+        metrics.put("connected", connected);
+        metrics.put("published", published.sum());
+        metrics.put("received", count);
+        metrics.put("reconnects", reconnects.sum());
+        metrics.put("lag_avg_ms", count == 0 ? 0.0 : lagMs.sum() / (double) count);
+        metrics.put("lag_max_ms", maxLagMs.get());
+        return metrics;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        listener.interrupt();
+        closeQuietly(connection);
+        listener.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    /**
+     * Bucle del fil d'escolta: connecta, escolta i aplica els esdeveniments;
+     * si falla, passa a entrades de vida curta i reintenta.
+     */
+    private void run() {
+        long backoff = 100;
+        boolean reported = false;
+        while (running) {
+            try {
+                connection = open();
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                // a partir d'aquí no es perd cap esdeveniment: es pot guardar
+                // fins que el token expiri
+                connected = true;
+                tokenCache.setMaxTtl(-1);
+                backoff = 100;
+                reported = false;
+                log.info("Token invalidation channel listening");
+
+                PGConnection pg = connection.unwrap(PGConnection.class);
+                long nextCheck = System.currentTimeMillis() + livenessMs;
+                while (running) {
+                    PGNotification[] notifications = pg.getNotifications(pollMs);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            apply(notification.getParameter());
+                        }
+                    }
+                    if (System.currentTimeMillis() >= nextCheck) {
+                        checkAlive(connection);
+                        nextCheck = System.currentTimeMillis() + livenessMs;
+                    }
+                }
+            } catch (SQLException e) {
+                if (running) {
+                    // s'avisa un cop per desconnexió, no a cada reintent
+                    if (!reported) {
+                        log.warn("Token invalidation channel unavailable: {}", e.getMessage());
+                        reported = true;
+                    }
+                    disconnected();
+                }
+            }
+            closeQuietly(connection);
+            connection = null;
+
+            if (running) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                reconnects.increment();
+            }
+        }
+    }
+
+    /**
+     * Mentre no s'escolta, les invalidacions dels altres nodes es perden: es
+     * buida la cache i les entrades noves duren poc.
+     */
+    private void disconnected() {
+        connected = false;
+        tokenCache.setMaxTtl(disconnectedTtlMs);
+        tokenCache.invalidateAll();
+    }
+
+    /**
+     * Aplica un esdeveniment "tipus:timestamp:token" a la cache local.
+     */
+    private void apply(String payload) {
+        int first = payload.indexOf(':');
+        int second = first < 0 ? -1 : payload.indexOf(':', first + 1);
+        if (second < 0) {
+            return;
+        }
+        tokenCache.invalidate(payload.substring(second + 1));
+        received.increment();
+        try {
+            long lag = Math.max(0, System.currentTimeMillis() - Long.parseLong(payload.substring(first + 1, second)));
+            lagMs.add(lag);
+            maxLagMs.accumulate(lag);
+        } catch (NumberFormatException e) {
+            // sense timestamp no es pot mesurar el retard
+        }
+    }
+
+    /**
+     * Comprova que el servidor respon per la connexió d'escolta. Si la
+     * connexió està mig oberta, el socketTimeout fa fallar la consulta.
+     */
+    private static void checkAlive(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SELECT 1");
+        }
+    }
+
+    /**
+     * Obre la connexió d'escolta amb les mateixes dades que el pool. El
+     * socketTimeout (en segons) limita quant es pot esperar la resposta del
+     * SELECT 1 de comprovació; getNotifications() fa servir el seu propi
+     * temps d'espera.
+     */
+    private Connection open() throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("user", dataSource.getUsername());
+        properties.setProperty("password", dataSource.getPassword());
+        properties.setProperty("tcpKeepAlive", "true");
+        properties.setProperty("socketTimeout", String.valueOf(Math.max(1, (livenessMs + 999) / 1000)));
+        properties.setProperty("ApplicationName", "jwt-invalidation-listener");
+        return DriverManager.getConnection(dataSource.getJdbcUrl(), properties);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // ja tancada
+            }
+        }
+    }
+}
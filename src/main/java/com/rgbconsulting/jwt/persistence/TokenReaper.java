@@ -0,0 +1,374 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PostConstruct;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Eliminació periòdica dels tokens expirats de la taula "jwt".
+ *
+ * Un token es pot eliminar quan han passat el temps de vida (30 segons) més
+ * el període de gràcia configurat des del seu time_generated. Modes
+ * ("jwt.reaper.mode"): - delete: esborra les files expirades per lots
+ * acotats, per no bloquejar la taula ni generar transaccions enormes -
+ * partition: la taula està particionada per franges de time_generated (vegeu
+ * db/jwt-partitioned.sql); es creen les particions futures i s'eliminen
+ * senceres les franges que ja han expirat - off: desactivat
+ *
+ * En mode partition les particions de la franja actual i les següents es
+ * creen ja en arrencar, abans d'atendre cap petició. Les files que, tot i
+ * així, acaben a la partició per defecte (jwt_default), per exemple perquè
+ * s'han escrit quan la base de dades no estava disponible en arrencar, es
+ * mouen a la partició nova quan aquesta es crea, i les que hi queden
+ * s'esborren per lots quan expiren. Cada pas es fa per separat: un error en
+ * una partició no impedeix crear les altres ni recuperar les expirades.
+ *
+ * En tots dos modes s'esborren també de "jwt_revoked" les revocacions de
+ * tokens que ja han expirat (més el període de gràcia), si
+ * "jwt.revocation.enabled" està actiu.
+ *
+ * Cada execució registra les files recuperades i el temps que ha trigat.
+ *
+ * @author sergi
+ */
+@Component
+@ConditionalOnProperty(name = "jwt.store", havingValue = "jdbc", matchIfMissing = true)
+public class TokenReaper {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenReaper.class);
+
+    private static final long TOKEN_LIFETIME_MS = 30 * 1000;  // igual que MAXTIMEXPIRES
+    private static final String PARTITION_PREFIX = "jwt_p";
+    private static final String DEFAULT_PARTITION = "jwt_default";
+
+    private final HikariDataSource dataSource;
+    private final String mode;
+    private final long graceMs;
+    private final int batchSize;
+    private final int maxBatches;
+    private final long partitionMs;
+    private final int precreate;
+    private final boolean revocations;
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder rowsReclaimed = new LongAdder();
+    private final LongAdder partitionsDropped = new LongAdder();
+    private final LongAdder defaultRowsMoved = new LongAdder();
+    private final LongAdder revocationsReclaimed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicLong lastRows = new AtomicLong();
+    private final AtomicLong lastRunMs = new AtomicLong();
+    private final AtomicLong maxRunMs = new AtomicLong();
+
+    public TokenReaper(HikariDataSource dataSource,
+            @Value("${jwt.reaper.mode:delete}") String mode,
+            @Value("${jwt.reaper.grace-ms:60000}") long graceMs,
+            @Value("${jwt.reaper.batch-size:5000}") int batchSize,
+            @Value("${jwt.reaper.max-batches:100}") int maxBatches,
+            @Value("${jwt.reaper.partition-ms:3600000}") long partitionMs,
+            @Value("${jwt.reaper.precreate-partitions:2}") int precreate,
+            @Value("${jwt.revocation.enabled:true}") boolean revocations) {
+        this.dataSource = dataSource;
+        this.mode = mode.toLowerCase();
+        this.graceMs = graceMs;
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+        this.partitionMs = partitionMs;
+        this.precreate = precreate;
+        this.revocations = revocations;
+    }
+
+    /**
+     * En mode partition, crea les particions de la franja actual i les
+     * següents abans que l'aplicació comenci a atendre peticions, perquè els
+     * primers logins no acabin a la partició per defecte.
+     */
+    @PostConstruct
+    public void createInitialPartitions() {
+        if ("partition".equals(mode)) {
+            createPartitions(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Execució periòdica del reaper segons "jwt.reaper.interval-ms".
+     */
+    @Scheduled(fixedDelayString = "${jwt.reaper.interval-ms:60000}", initialDelayString = "${jwt.reaper.initial-delay-ms:10000}")
+    public void scheduledRun() {
+        if (!"off".equals(mode)) {
+            reap(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Elimina els tokens que van expirar fa més del període de gràcia.
+     *
+     * @param now Timestamp actual en mil·lisegons
+     * @return Nombre de files recuperades
+     */
+    public long reap(long now) {
+        long start = System.nanoTime();
+        long cutoff = now - TOKEN_LIFETIME_MS - graceMs;
+        long rows = 0;
+
+        if ("partition".equals(mode)) {
+            createPartitions(now);
+            try {
+                rows += dropExpiredPartitions(cutoff);
+            } catch (SQLException e) {
+                failure(e);
+            }
+            try {
+                if (hasDefaultPartition()) {
+                    rows += deleteExpired(DEFAULT_PARTITION, cutoff);
+                }
+            } catch (SQLException e) {
+                failure(e);
+            }
+        } else {
+            try {
+                rows = deleteExpired("jwt", cutoff);
+            } catch (SQLException e) {
+                failure(e);
+            }
+        }
+        if (revocations) {
+            try {
+                revocationsReclaimed.add(deleteExpiredRevocations(now - graceMs));
+            } catch (SQLException e) {
+                failure(e);
+            }
+        }
+
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        runs.increment();
+        rowsReclaimed.add(rows);
+        lastRows.set(rows);
+        lastRunMs.set(elapsed);
+        maxRunMs.accumulateAndGet(elapsed, Math::max);
+        return rows;
+    }
+
+    /**
+     * Retorna els comptadors del reaper.
+     *
+     * @return Mapa ordenat amb les mètriques
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("mode", mode);
+        metrics.put("runs", runs.sum());
+        metrics.put("rows_reclaimed", rowsReclaimed.sum());
+        metrics.put("partitions_dropped", partitionsDropped.sum());
+        metrics.put("default_rows_moved", defaultRowsMoved.sum());
+        metrics.put("revocations_reclaimed", revocationsReclaimed.sum());
+        metrics.put("failures", failures.sum());
+        metrics.put("last_rows", lastRows.get());
+        metrics.put("last_run_ms", lastRunMs.get());
+        metrics.put("max_run_ms", maxRunMs.get());
+        return metrics;
+    }
+
+    private void failure(Exception e) {
+        failures.increment();
+        log.warn("Token reaper run failed", e);
+    }
+
+    /**
+     * Esborra les files expirades d'una taula per lots fins que no en queden
+     * o s'arriba al màxim de lots per execució.
+     */
+    private long deleteExpired(String table, long cutoff) throws SQLException {
+        String query = "DELETE FROM " + table + " WHERE ctid = ANY(ARRAY("
+                + "SELECT ctid FROM " + table + " WHERE time_generated < ? LIMIT ?))";
+        long total = 0;
+
+        try (Connection connection = dataSource.getConnection(); PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            for (int i = 0; i < maxBatches; i++) {
+                preparedStatement.setLong(1, cutoff);
+                preparedStatement.setInt(2, batchSize);
+                int deleted = preparedStatement.executeUpdate();
+                total += deleted;
+                if (deleted < batchSize) {
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Esborra les revocacions de tokens que van expirar abans del tall.
+     */
+    private long deleteExpiredRevocations(long cutoff) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement preparedStatement = connection.prepareStatement("DELETE FROM jwt_revoked WHERE expires_at < ?")) {
+            preparedStatement.setLong(1, cutoff);
+            return preparedStatement.executeUpdate();
+        }
+    }
+
+    /**
+     * Crea la partició de la franja actual i les "precreate" següents si no
+     * existeixen. Cada partició es crea per separat: si una falla es compta
+     * l'error i es continua amb la següent.
+     */
+    private void createPartitions(long now) {
+        long bucket = Math.floorDiv(now, partitionMs) * partitionMs;
+
+        try (Connection connection = dataSource.getConnection()) {
+            boolean hasDefault = hasDefaultPartition(connection);
+            for (int i = 0; i <= precreate; i++) {
+                long from = bucket + i * partitionMs;
+                try {
+                    createPartition(connection, from, from + partitionMs, hasDefault);
+                } catch (SQLException e) {
+                    failure(e);
+                }
+            }
+        } catch (SQLException e) {
+            failure(e);
+        }
+    }
+
+    /**
+     * Crea la partició [from, to) si no existeix.
+     *
+     * Si la partició per defecte té files d'aquesta franja, PostgreSQL no
+     * permet crear-la amb PARTITION OF; en aquest cas, dins d'una sola
+     * transacció i amb jwt_default bloquejada per a escriptura, es crea la
+     * taula, s'hi mouen les files de la franja i s'annexa a "jwt".
+     */
+    private void createPartition(Connection connection, long from, long to, boolean hasDefault) throws SQLException {
+        String table = PARTITION_PREFIX + from;
+        if (exists(connection, table)) {
+            return;
+        }
+        String range = "FOR VALUES FROM (" + from + ") TO (" + to + ")";
+        if (!hasDefault || !defaultHasRows(connection, from, to)) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS " + table + " PARTITION OF jwt " + range);
+            }
+            return;
+        }
+
+        String inRange = " WHERE time_generated >= " + from + " AND time_generated < " + to;
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("LOCK TABLE " + DEFAULT_PARTITION + " IN EXCLUSIVE MODE");
+            statement.execute("CREATE TABLE " + table + " (LIKE jwt INCLUDING DEFAULTS)");
+            int moved = statement.executeUpdate("INSERT INTO " + table + " SELECT * FROM " + DEFAULT_PARTITION + inRange);
+            statement.executeUpdate("DELETE FROM " + DEFAULT_PARTITION + inRange);
+            statement.execute("ALTER TABLE jwt ATTACH PARTITION " + table + " " + range);
+            connection.commit();
+            defaultRowsMoved.add(moved);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private boolean hasDefaultPartition() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return hasDefaultPartition(connection);
+        }
+    }
+
+    private static boolean hasDefaultPartition(Connection connection) throws SQLException {
+        return exists(connection, DEFAULT_PARTITION);
+    }
+
+    private static boolean exists(Connection connection, String table) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+            preparedStatement.setString(1, table);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private static boolean defaultHasRows(Connection connection, long from, long to) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "SELECT EXISTS (SELECT 1 FROM " + DEFAULT_PARTITION + " WHERE time_generated >= ? AND time_generated < ?)")) {
+            preparedStatement.setLong(1, from);
+            preparedStatement.setLong(2, to);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    /**
+     * Elimina les particions que només contenen tokens anteriors al tall.
+     *
+     * @return Nombre de files que hi havia a les particions eliminades
+     */
+    private long dropExpiredPartitions(long cutoff) throws SQLException {
+        String query = "SELECT c.relname FROM pg_inherits i "
+                + "JOIN pg_class c ON c.oid = i.inhrelid "
+                + "JOIN pg_class p ON p.oid = i.inhparent "
+                + "WHERE p.relname = 'jwt' AND c.relname LIKE '" + PARTITION_PREFIX + "%'";
+        long total = 0;
+
+        try (Connection connection = dataSource.getConnection()) {
+            List<Long> expired = new ArrayList<>();
+            try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery(query)) {
+                while (resultSet.next()) {
+                    long from = parsePartitionStart(resultSet.getString(1));
+                    if (from != Long.MIN_VALUE && from + partitionMs <= cutoff) {
+                        expired.add(from);
+                    }
+                }
+            }
+
+            for (long from : expired) {
+                String table = PARTITION_PREFIX + from;
+                try (Statement statement = connection.createStatement()) {
+                    long rows = 0;
+                    try (ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM " + table)) {
+                        if (resultSet.next()) {
+                            rows = resultSet.getLong(1);
+                        }
+                    }
+                    statement.execute("DROP TABLE IF EXISTS " + table);
+                    partitionsDropped.increment();
+                    total += rows;
+                } catch (SQLException e) {
+                    failure(e);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Obté l'inici de franja del nom d'una partició "jwt_p<inici>".
+     *
+     * @return Inici de la franja, o Long.MIN_VALUE si el nom no té el format
+     */
+    private static long parsePartitionStart(String name) {
+        try {
+            return Long.parseLong(name.substring(PARTITION_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.rgbconsulting.jwt.persistence;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Emmagatzematge dels tokens emesos.
+ *
+ * La implementació es tria amb "jwt.store": - jdbc: taula "jwt" de
+ * PostgreSQL (JdbcTokenStore, per defecte) - memory: taula hash en memòria
+ * (InMemoryTokenStore), per a desplegaments d'un sol node - sharded: taula
+ * "jwt" repartida entre diverses bases de dades per hash consistent del token
+ * (ShardedTokenStore) - r2dbc: variant
+ * reactiva, que fa servir ReactiveTokenStore en lloc d'aquesta interfície
+ *
+ * Inclou les operacions de RevocationStore sobre la taula "jwt_revoked".
+ *
+ * @author sergi
+ */
+public interface TokenStore extends RevocationStore {
+
+    /**
+     * Desa un nou registre de login. La contrasenya no es desa mai aquí: el
+     * seu hash el guarda CredentialStore.
+     *
+     * @param username Nom d'usuari
+     * @param access_token Token generat per aquest login
+     * @param expires_in Temps d'expiració en segons
+     * @param time_generated Timestamp en mil·lisegons del moment de generació
+     * @param role Rol assignat a l'usuari ("ADMIN" o "USER")
+     * @throws LoginBacklogException si el registre no s'ha pogut desar
+     */
+    void saveLogin(String username, String access_token, int expires_in, long time_generated, String role);
+
+    /**
+     * Substitueix un token existent per un de nou i reinicia el timestamp de
+     * generació.
+     *
+     * @param oldToken Token actual que es vol substituir
+     * @param newToken Nou token que substituirà l'antic
+     * @param time_generated Timestamp en mil·lisegons del nou token
+     * @return El nou token si l'actualització ha tingut èxit, o null si no
+     * s'ha trobat el token antic (no existeix o un altre refresc ja l'ha
+     * substituït)
+     * @throws StoreBusyException si el magatzem no ha pogut fer la
+     * substitució; el token antic continua sent vàlid
+     */
+    String updateToken(String oldToken, String newToken, long time_generated);
+
+    /**
+     * Cerca el registre associat a un token sense verificar-ne l'expiració.
+     *
+     * @param token Token a cercar
+     * @return Objecte Jwt amb username, role, access_token i time_generated, o
+     * null si el token no existeix
+     */
+    Jwt findByToken(String token);
+
+    /**
+     * Cerca els registres d'un conjunt de tokens amb una sola consulta, sense
+     * verificar-ne l'expiració.
+     *
+     * @param tokens Tokens a cercar
+     * @return Mapa de token a registre (username, role, access_token i
+     * time_generated) amb només els tokens trobats
+     */
+    Map<String, Jwt> findByTokens(Collection<String> tokens);
+
+    /**
+     * Recorre els tokens generats després de "since", dels més recents als
+     * més antics, sense tenir-los mai tots en memòria: la base de dades els
+     * envia de "fetchSize" en "fetchSize" per un cursor. El recorregut
+     * s'atura quan "action" retorna false.
+     *
+     * @param since Timestamp de generació mínim (exclòs) en mil·lisegons
+     * @param fetchSize Files per lectura del cursor
+     * @param action Rep cada token (usuari, token, time_generated i rol); en
+     * el magatzem repartit es crida des de diversos fils alhora
+     * @return Tokens recorreguts, o -1 si no s'han pogut llegir
+     */
+    long streamSince(long since, int fetchSize, Predicate<Jwt> action);
+
+    /**
+     * @return Mètriques pròpies de la implementació
+     */
+    Map<String, Object> getMetrics();
+}
@@ -0,0 +1,327 @@
+package com.rgbconsulting.jwt.restClient;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.rgbconsulting.jwt.model.Jwt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Client asíncron reutilitzable del servei JWT per incrustar a altres
+ * serveis.
+ *
+ * Totes les crides retornen CompletableFuture i comparteixen un únic
+ * HttpClient, que manté les connexions obertes i negocia HTTP/2 (h2c sobre
+ * HTTP en clar, amb "server.http2.enabled=true" al servidor). Amb HTTP/2
+ * moltes crides concurrents es multiplexen sobre la mateixa connexió; si el
+ * servidor no l'accepta es continua amb HTTP/1.1 i connexions reutilitzades.
+ *
+ * Les respostes JSON es llegeixen amb el parser en streaming de Jackson, per
+ * nom de camp, de manera que l'ordre dels camps no importa. Una resposta amb
+ * un codi d'error completa el futur amb JwtClientException.
+ *
+ * Com que el servidor limita els streams concurrents per connexió (100 a
+ * Tomcat) i l'HttpClient falla en lloc d'esperar, les crides en vol es limiten
+ * a "maxInFlight"; les que sobrepassen el límit s'encuen sense bloquejar cap
+ * fil i s'envien quan n'acaba una altra.
+ *
+ * @author sergi
+ */
+public class JwtClient {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final int DEFAULT_MAX_IN_FLIGHT = 100;
+
+    private final String baseUrl;
+    private final HttpClient httpClient;
+    private final Semaphore inFlight;
+    private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Crea un client amb el seu propi HttpClient (HTTP/2 preferit).
+     *
+     * @param baseUrl Adreça del servidor, per exemple http://localhost:8080
+     */
+    public JwtClient(String baseUrl) {
+        this(baseUrl, HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(20))
+                .build());
+    }
+
+    /**
+     * Crea un client sobre un HttpClient existent.
+     *
+     * @param baseUrl Adreça del servidor
+     * @param httpClient Client HTTP compartit
+     */
+    public JwtClient(String baseUrl, HttpClient httpClient) {
+        this(baseUrl, httpClient, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Crea un client sobre un HttpClient existent amb un límit de crides en
+     * vol.
+     *
+     * @param baseUrl Adreça del servidor
+     * @param httpClient Client HTTP compartit
+     * @param maxInFlight Màxim de crides enviades i encara sense resposta
+     */
+    public JwtClient(String baseUrl, HttpClient httpClient, int maxInFlight) {
+        this.baseUrl = baseUrl;
+        this.httpClient = httpClient;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Fa login i retorna el token amb la seva informació.
+     *
+     * @param username Nom d'usuari
+     * @param password Contrasenya
+     * @return Futur amb access_token, expires_in, time_generated, username i
+     * role
+     */
+    public CompletableFuture<Jwt> login(String username, String password) {
+        byte[] body = writeJson(g -> {
+            g.writeStringField("username", username);
+            g.writeStringField("password", password);
+        });
+        return send(post("/jwt/auth/login", body), JwtClient::readJwt);
+    }
+
+    /**
+     * Refresca un token.
+     *
+     * @param token Token actual
+     * @return Futur amb el nou token
+     */
+    public CompletableFuture<String> refresh(String token) {
+        byte[] body = writeJson(g -> g.writeStringField("access_token", token));
+        return send(post("/jwt/auth/refresh", body), JwtClient::readString);
+    }
+
+    /**
+     * Crida /jwt/secure/ping amb un token.
+     *
+     * @param token Token d'accés
+     * @return Futur amb el cos de la resposta; falla amb JwtClientException
+     * 401 si el token ha expirat
+     */
+    public CompletableFuture<String> securePing(String token) {
+        return send(get("/jwt/secure/ping", token), JwtClient::readString);
+    }
+
+    /**
+     * Crida /jwt/admin/test amb un token.
+     *
+     * @param token Token d'accés
+     * @return Futur amb el cos de la resposta, que indica si el rol és ADMIN
+     */
+    public CompletableFuture<String> adminTest(String token) {
+        return send(get("/jwt/admin/test", token), JwtClient::readString);
+    }
+
+    /**
+     * Fa login i retorna una sessió que gestiona el token (refresc proactiu i
+     * compartit amb TokenManager).
+     *
+     * @param username Nom d'usuari
+     * @param password Contrasenya
+     * @return Futur amb la sessió autenticada
+     */
+    public CompletableFuture<Session> session(String username, String password) {
+        long sentAt = System.currentTimeMillis();
+        return login(username, password).thenApply(jwt -> {
+            Session session = new Session();
+            session.tokens.onLogin(jwt.getAccess_token(), jwt.getExpires_in(), jwt.getTime_generated(),
+                    sentAt, System.currentTimeMillis());
+            return session;
+        });
+    }
+
+    /**
+     * Sessió autenticada: les crides fan servir el token vigent del
+     * TokenManager i, si reben un 401, el refresquen i reintenten una vegada.
+     * Es pot fer servir des de molts fils alhora.
+     */
+    public final class Session implements AutoCloseable {
+
+        private final TokenManager tokens = new TokenManager(JwtClient.this::refresh, 0.2, 2000);
+
+        public CompletableFuture<String> securePing() {
+            return withToken(JwtClient.this::securePing);
+        }
+
+        public CompletableFuture<String> adminTest() {
+            return withToken(JwtClient.this::adminTest);
+        }
+
+        public String getToken() {
+            return tokens.getToken();
+        }
+
+        public TokenManager getTokenManager() {
+            return tokens;
+        }
+
+        @Override
+        public void close() {
+            tokens.close();
+        }
+
+        private CompletableFuture<String> withToken(Function<String, CompletableFuture<String>> call) {
+            String token = tokens.getToken();
+            return call.apply(token).handle((result, error) -> {
+                if (error == null) {
+                    return CompletableFuture.completedFuture(result);
+                }
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof JwtClientException && ((JwtClientException) cause).getStatusCode() == 401) {
+                    return tokens.refresh(token).thenCompose(call);
+                }
+                return CompletableFuture.<String>failedFuture(cause);
+            }).thenCompose(Function.identity());
+        }
+    }
+
+    /**
+     * Llegeix un objecte Jwt d'un cos JSON amb el parser en streaming. Els
+     * camps desconeguts s'ignoren.
+     *
+     * @param body Cos JSON
+     * @return Objecte Jwt amb els camps presents
+     */
+    public static Jwt readJwt(byte[] body) {
+        Jwt jwt = new Jwt();
+        try (JsonParser parser = JSON.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                boolean isNull = value == JsonToken.VALUE_NULL;
+                switch (field) {
+                    case "username":
+                        jwt.setUsername(isNull ? null : parser.getText());
+                        break;
+                    case "password":
+                        jwt.setPassword(isNull ? null : parser.getText());
+                        break;
+                    case "access_token":
+                        jwt.setAccess_token(isNull ? null : parser.getText());
+                        break;
+                    case "expires_in":
+                        jwt.setExpires_in(isNull ? null : parser.getIntValue());
+                        break;
+                    case "time_generated":
+                        jwt.setTime_generated(isNull ? null : parser.getLongValue());
+                        break;
+                    case "role":
+                        jwt.setRole(isNull ? null : parser.getText());
+                        break;
+                    default:
+                        parser.skipChildren();
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return jwt;
+    }
+
+    private static String readString(byte[] body) {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private <T> CompletableFuture<T> send(HttpRequest request, Function<byte[], T> reader) {
+        CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+        waiting.add(() -> httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .whenComplete((response, error) -> {
+                    inFlight.release();
+                    dispatch();
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(response);
+                    }
+                }));
+        dispatch();
+        return result.thenApply(response -> {
+            if (response.statusCode() / 100 != 2) {
+                throw new JwtClientException(response.statusCode(), readString(response.body()));
+            }
+            return reader.apply(response.body());
+        });
+    }
+
+    /**
+     * Envia les crides encuades mentre quedin permisos lliures.
+     */
+    private void dispatch() {
+        while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+            Runnable next = waiting.poll();
+            if (next == null) {
+                inFlight.release();
+                return;
+            }
+            next.run();
+        }
+    }
+
+    private HttpRequest post(String path, byte[] json) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(json))
+                .build();
+    }
+
+    private HttpRequest get(String path, String token) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Authorization", "Bearer " + token)
+                .GET()
+                .build();
+    }
+
+    @FunctionalInterface
+    private interface JsonFields {
+
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    /**
+     * Escriu un objecte JSON amb el generador en streaming (amb els valors
+     * escapats correctament).
+     */
+    private static byte[] writeJson(JsonFields fields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        try (JsonGenerator generator = JSON.createGenerator(out)) {
+            generator.writeStartObject();
+            fields.write(generator);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,27 @@
+package com.rgbconsulting.jwt.restClient;
+
+/**
+ * Error d'una crida de JwtClient: el servidor ha respost amb un codi d'estat
+ * que no és d'èxit.
+ *
+ * @author sergi
+ */
+public class JwtClientException extends RuntimeException {
+
+    private final int statusCode;
+    private final String body;
+
+    public JwtClientException(int statusCode, String body) {
+        super("HTTP " + statusCode + ": " + body);
+        this.statusCode = statusCode;
+        this.body = body;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getBody() {
+        return body;
+    }
+}
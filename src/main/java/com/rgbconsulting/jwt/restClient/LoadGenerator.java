@@ -0,0 +1,329 @@
+package com.rgbconsulting.jwt.restClient;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Generador de càrrega sense interfície per capacitar el servidor.
+ *
+ * Cada usuari virtual (un fil) repeteix l'escenari login → N× secure ping →
+ * refresh contra el servidor amb un client HTTP/1.1 compartit (un fil bloquejat
+ * per usuari no encaixa amb el límit de streams per connexió d'HTTP/2).
+ * Modes: - closed: cada usuari envia la petició següent quan rep la resposta
+ * de l'anterior (més "think-ms" d'espera) - open: les peticions segueixen un
+ * calendari fix de "rate" peticions per segon en total, repartides entre els
+ * usuaris, independentment de quan arriben les respostes
+ *
+ * Per cada endpoint es registren dos histogrames: el temps de servei (des de
+ * l'enviament fins a la resposta) i el temps de resposta corregit
+ * d'omissió coordinada. En mode open la correcció mesura des del moment en
+ * què la petició s'hauria d'haver enviat segons el calendari, de manera que
+ * les parades del servidor es reflecteixen en totes les peticions que
+ * endarrereixen; en mode closed la correcció es fa amb l'interval esperat
+ * "think-ms". En mode closed sense espera no hi ha cap interval esperat i
+ * per tant cap correcció possible: la columna corregida no es mostra i el
+ * resultat ho indica.
+ *
+ * En mode closed un login fallit (error de connexió, 429, 503...) no es
+ * reintenta immediatament: l'usuari espera un backoff exponencial (de
+ * MIN_BACKOFF_MS a MAX_BACKOFF_MS, o el Retry-After de la resposta si és més
+ * llarg), de manera que un servidor que rebutja logins no rep un bucle de
+ * reintents sense pausa.
+ *
+ * Arguments en format clau=valor:
+ *
+ * java -cp ... com.rgbconsulting.jwt.restClient.jwtRestClient load mode=open
+ * users=50 rate=2000 duration=60 warmup=10 pings=10 out=results
+ *
+ * @author sergi
+ */
+public class LoadGenerator {
+
+    private static final long HIGHEST_TRACKABLE_NS = TimeUnit.MINUTES.toNanos(1);
+    private static final String[] ENDPOINTS = {"login", "secure_ping", "refresh"};
+    private static final long MIN_BACKOFF_MS = 10;
+    private static final long MAX_BACKOFF_MS = 1000;
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(20))
+            .build();
+
+    private final String baseUrl;
+    private final boolean openLoop;
+    private final int users;
+    private final double rate;
+    private final long durationNs;
+    private final long warmupNs;
+    private final int pings;
+    private final long thinkNs;
+    private final String out;
+
+    public LoadGenerator(Map<String, String> config) {
+        this.baseUrl = config.getOrDefault("url", jwtRestClient.BASE_URL);
+        this.openLoop = "open".equalsIgnoreCase(config.getOrDefault("mode", "closed"));
+        this.users = Integer.parseInt(config.getOrDefault("users", "10"));
+        this.rate = Double.parseDouble(config.getOrDefault("rate", "1000"));
+        this.durationNs = TimeUnit.SECONDS.toNanos(Long.parseLong(config.getOrDefault("duration", "30")));
+        this.warmupNs = TimeUnit.SECONDS.toNanos(Long.parseLong(config.getOrDefault("warmup", "5")));
+        this.pings = Integer.parseInt(config.getOrDefault("pings", "10"));
+        this.thinkNs = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(config.getOrDefault("think-ms", "0")));
+        this.out = config.get("out");
+    }
+
+    /**
+     * Executa la càrrega amb els arguments clau=valor.
+     *
+     * @param args arguments de configuració
+     */
+    public static void main(String[] args) throws InterruptedException, FileNotFoundException {
+        Map<String, String> config = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                config.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+        new LoadGenerator(config).run();
+    }
+
+    /**
+     * Llança els usuaris virtuals, espera que acabin i mostra els resultats.
+     */
+    public void run() throws InterruptedException, FileNotFoundException {
+        System.out.printf("Load: mode=%s users=%d%s duration=%ds warmup=%ds pings=%d url=%s%n",
+                openLoop ? "open" : "closed", users, openLoop ? " rate=" + rate + "/s" : "",
+                TimeUnit.NANOSECONDS.toSeconds(durationNs), TimeUnit.NANOSECONDS.toSeconds(warmupNs), pings, baseUrl);
+
+        long start = System.nanoTime();
+        List<VirtualUser> virtualUsers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            VirtualUser user = new VirtualUser(i, start);
+            Thread thread = new Thread(user, "load-user-" + i);
+            virtualUsers.add(user);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // s'agreguen els histogrames de cada usuari
+        Map<String, Histogram> service = new LinkedHashMap<>();
+        Map<String, Histogram> corrected = new LinkedHashMap<>();
+        Map<String, Long> errors = new LinkedHashMap<>();
+        long backoffs = 0;
+        for (String endpoint : ENDPOINTS) {
+            service.put(endpoint, newHistogram());
+            corrected.put(endpoint, newHistogram());
+            errors.put(endpoint, 0L);
+        }
+        for (VirtualUser user : virtualUsers) {
+            for (int e = 0; e < ENDPOINTS.length; e++) {
+                service.get(ENDPOINTS[e]).add(user.service[e]);
+                corrected.get(ENDPOINTS[e]).add(user.corrected[e]);
+                errors.merge(ENDPOINTS[e], user.errors[e], Long::sum);
+            }
+            backoffs += user.backoffs;
+        }
+
+        // sense interval esperat la columna corregida seria el temps de servei
+        boolean coCorrected = openLoop || thinkNs > 0;
+        double seconds = (durationNs - warmupNs) / 1e9;
+        System.out.printf("%-12s %9s %7s %9s | %-44s | %-44s%n", "endpoint", "count", "errors", "req/s",
+                "service time ms (p50 / p99 / p99.9 / max)", "response time ms, CO-corrected");
+        for (String endpoint : ENDPOINTS) {
+            Histogram s = service.get(endpoint);
+            Histogram c = corrected.get(endpoint);
+            System.out.printf("%-12s %9d %7d %9.0f | %s | %s%n", endpoint, s.getTotalCount(), errors.get(endpoint),
+                    s.getTotalCount() / seconds, percentiles(s), coCorrected ? percentiles(c) : "not corrected (see note)");
+        }
+        if (!coCorrected) {
+            System.out.println("Note: closed mode with think-ms=0 has no expected interval, so response times are NOT");
+            System.out.println("corrected for coordinated omission and server stalls are under-reported.");
+            System.out.println("Use mode=open, or think-ms>0, for corrected percentiles.");
+        }
+        if (backoffs > 0) {
+            System.out.printf("Failed logins backed off %d times (%d-%d ms, or Retry-After)%n",
+                    backoffs, MIN_BACKOFF_MS, MAX_BACKOFF_MS);
+        }
+
+        if (out != null) {
+            File dir = new File(out);
+            dir.mkdirs();
+            for (String endpoint : ENDPOINTS) {
+                write(new File(dir, endpoint + "-service.hgrm"), service.get(endpoint));
+                if (coCorrected) {
+                    write(new File(dir, endpoint + "-corrected.hgrm"), corrected.get(endpoint));
+                }
+            }
+            System.out.println("Histograms written to " + dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Usuari virtual: executa l'escenari en bucle i registra la latència de
+     * cada petició als seus propis histogrames (sense contenció entre fils).
+     */
+    private final class VirtualUser implements Runnable {
+
+        private final String username;
+        private final long start;
+        private final long intervalNs;
+        private final Histogram[] service = new Histogram[ENDPOINTS.length];
+        private final Histogram[] corrected = new Histogram[ENDPOINTS.length];
+        private final long[] errors = new long[ENDPOINTS.length];
+        private long backoffs;
+        private long backoffNs;
+        private long next;
+        private String token;
+
+        VirtualUser(int index, long start) {
+            this.username = "user" + index;
+            this.start = start;
+            this.intervalNs = openLoop ? (long) (1e9 * users / rate) : 0;
+            // en mode open els usuaris es reparteixen dins del primer interval
+            this.next = start + (openLoop ? intervalNs * index / users : 0);
+            for (int e = 0; e < ENDPOINTS.length; e++) {
+                service[e] = newHistogram();
+                corrected[e] = newHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            long end = start + durationNs;
+            while (System.nanoTime() < end) {
+                HttpResponse<String> login = send(0, post("/jwt/auth/login",
+                        "{\"username\": \"" + username + "\", \"password\": \"" + jwtRestClient.password + "\"}"));
+                if (login == null || login.statusCode() != 200) {
+                    if (!openLoop) {
+                        backoff(login, end);
+                    }
+                    continue;
+                }
+                backoffNs = 0;
+                token = jwtRestClient.parseToken(login.body());
+
+                for (int i = 0; i < pings && System.nanoTime() < end; i++) {
+                    send(1, HttpRequest.newBuilder(URI.create(baseUrl + "/jwt/secure/ping"))
+                            .header("Authorization", "Bearer " + token).GET().build());
+                }
+
+                HttpResponse<String> refresh = send(2, post("/jwt/auth/refresh", "{\"access_token\": \"" + token + "\"}"));
+                if (refresh != null && refresh.statusCode() == 200) {
+                    token = refresh.body();
+                }
+            }
+        }
+
+        /**
+         * Espera abans de reintentar un login fallit en mode closed: el
+         * doble que l'última vegada (entre MIN_BACKOFF_MS i MAX_BACKOFF_MS),
+         * o el Retry-After de la resposta si és més llarg, sense passar del
+         * final de la prova.
+         */
+        private void backoff(HttpResponse<String> response, long end) {
+            long min = TimeUnit.MILLISECONDS.toNanos(MIN_BACKOFF_MS);
+            backoffNs = backoffNs == 0 ? min : Math.min(backoffNs * 2, TimeUnit.MILLISECONDS.toNanos(MAX_BACKOFF_MS));
+            long wait = backoffNs;
+            if (response != null) {
+                long retryAfter = response.headers().firstValueAsLong("Retry-After").orElse(0);
+                wait = Math.max(wait, TimeUnit.SECONDS.toNanos(retryAfter));
+            }
+            backoffs++;
+            LockSupport.parkNanos(Math.min(wait, end - System.nanoTime()));
+        }
+
+        /**
+         * Envia una petició segons el mode i en registra la latència si ja
+         * ha acabat l'escalfament.
+         *
+         * @return Resposta, o null si hi ha hagut un error de connexió
+         */
+        private HttpResponse<String> send(int endpoint, HttpRequest request) {
+            long intended;
+            if (openLoop) {
+                intended = next;
+                next += intervalNs;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                if (thinkNs > 0) {
+                    LockSupport.parkNanos(thinkNs);
+                }
+                intended = System.nanoTime();
+            }
+
+            long sent = System.nanoTime();
+            HttpResponse<String> response = null;
+            try {
+                response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (Exception e) {
+                // error de connexió: es compta com a error
+            }
+            long done = System.nanoTime();
+
+            if (sent - start >= warmupNs) {
+                if (response == null || response.statusCode() >= 400) {
+                    errors[endpoint]++;
+                }
+                long serviceTime = Math.min(done - sent, HIGHEST_TRACKABLE_NS);
+                service[endpoint].recordValue(serviceTime);
+                if (openLoop) {
+                    corrected[endpoint].recordValue(Math.min(done - intended, HIGHEST_TRACKABLE_NS));
+                } else {
+                    corrected[endpoint].recordValueWithExpectedInterval(serviceTime, thinkNs);
+                }
+            }
+            return response;
+        }
+
+        private HttpRequest post(String path, String json) {
+            return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(json))
+                    .build();
+        }
+    }
+
+    private static Histogram newHistogram() {
+        return new Histogram(HIGHEST_TRACKABLE_NS, 3);
+    }
+
+    private static String percentiles(Histogram h) {
+        if (h.getTotalCount() == 0) {
+            return String.format("%-44s", "-");
+        }
+        return String.format("%9.2f / %9.2f / %9.2f / %9.2f",
+                h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6,
+                h.getValueAtPercentile(99.9) / 1e6, h.getMaxValue() / 1e6);
+    }
+
+    /**
+     * Escriu la distribució de percentils en format .hgrm (en ms), que es pot
+     * representar amb l'HdrHistogram plotter.
+     */
+    private static void write(File file, Histogram histogram) throws FileNotFoundException {
+        try (PrintStream stream = new PrintStream(file)) {
+            histogram.outputPercentileDistribution(stream, 1_000_000.0);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.rgbconsulting.jwt.restClient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Gestió del token d'accés al client: el refresca abans que expiri i
+ * comparteix un únic refresc entre totes les peticions concurrents.
+ *
+ * A partir de l'expires_in i el time_generated del login es calcula quan
+ * expira el token segons el rellotge local (corregint la diferència amb el
+ * del servidor), i es programa el refresc una fracció de la vida del token
+ * abans ("refreshAhead"), menys un marge aleatori ("jitterMs") perquè molts
+ * clients no refresquin alhora. Els tokens refrescats tenen la mateixa vida
+ * que el del login, comptada des que s'envia el refresc.
+ *
+ * Si es demana un refresc mentre n'hi ha un en curs (single-flight), es
+ * retorna el mateix futur en lloc d'enviar-ne un altre. Si el token que ha
+ * fallat ja no és l'actual, es retorna directament l'actual.
+ *
+ * @author sergi
+ */
+public class TokenManager implements AutoCloseable {
+
+    private final Function<String, CompletableFuture<String>> refresher;
+    private final double refreshAhead;
+    private final long jitterMs;
+    private final ScheduledExecutorService scheduler;
+
+    private String token;
+    private long lifetimeMs;
+    private long expiresAt;
+    private long refreshAt;
+    private CompletableFuture<String> inFlight;
+    private ScheduledFuture<?> scheduled;
+
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder proactive = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param refresher Funció que envia el refresc del token antic i retorna
+     * el nou token
+     * @param refreshAhead Fracció de la vida del token abans de l'expiració en
+     * què es refresca (per exemple 0.2)
+     * @param jitterMs Marge aleatori màxim que s'avança el refresc
+     */
+    public TokenManager(Function<String, CompletableFuture<String>> refresher, double refreshAhead, long jitterMs) {
+        this.refresher = refresher;
+        this.refreshAhead = refreshAhead;
+        this.jitterMs = jitterMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "jwt-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Registra el token obtingut amb un login.
+     *
+     * @param newToken Token d'accés
+     * @param expiresIn Vida del token en mil·lisegons (expires_in)
+     * @param timeGenerated Moment de generació segons el servidor
+     * (time_generated)
+     * @param sentAt Moment local en què s'ha enviat el login
+     * @param receivedAt Moment local en què s'ha rebut la resposta
+     */
+    public synchronized void onLogin(String newToken, long expiresIn, long timeGenerated, long sentAt, long receivedAt) {
+        // diferència entre el rellotge del servidor i el local, estimada al
+        // punt mig de la petició
+        long skew = timeGenerated - (sentAt + receivedAt) / 2;
+        lifetimeMs = expiresIn;
+        update(newToken, timeGenerated + expiresIn - skew);
+    }
+
+    /**
+     * Retorna un token vàlid. Si l'actual ja ha expirat, espera el refresc
+     * (compartit amb la resta de fils); si és a punt d'expirar, en llança el
+     * refresc i retorna l'actual.
+     *
+     * @return Token d'accés, o null si no s'ha fet login
+     */
+    public String getToken() {
+        CompletableFuture<String> pending;
+        synchronized (this) {
+            if (token == null) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            if (now < expiresAt) {
+                if (now >= refreshAt) {
+                    refreshLocked(token);
+                }
+                return token;
+            }
+            pending = refreshLocked(token);
+        }
+        return pending.join();
+    }
+
+    /**
+     * Refresca el token després que el servidor l'hagi rebutjat (401).
+     *
+     * @param failedToken Token que ha rebut el 401
+     * @return Futur amb el token a fer servir per reintentar
+     */
+    public synchronized CompletableFuture<String> refresh(String failedToken) {
+        if (failedToken != null && !failedToken.equals(token) && inFlight == null) {
+            return CompletableFuture.completedFuture(token);
+        }
+        return refreshLocked(token);
+    }
+
+    /**
+     * @return Comptadors de refrescos: enviats, compartits, proactius i
+     * fallits
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("refreshes", refreshes.sum());
+        metrics.put("coalesced", coalesced.sum());
+        metrics.put("proactive", proactive.sum());
+        metrics.put("failures", failures.sum());
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Inicia un refresc o retorna el que ja és en curs. S'ha de cridar amb
+     * el monitor agafat.
+     */
+    private CompletableFuture<String> refreshLocked(String oldToken) {
+        if (inFlight != null) {
+            coalesced.increment();
+            return inFlight;
+        }
+
+        refreshes.increment();
+        long sentAt = System.currentTimeMillis();
+        CompletableFuture<String> future = refresher.apply(oldToken);
+        inFlight = future;
+        future.whenComplete((newToken, error) -> {
+            synchronized (TokenManager.this) {
+                inFlight = null;
+                if (error == null && newToken != null) {
+                    update(newToken, sentAt + lifetimeMs);
+                } else {
+                    failures.increment();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Substitueix el token actual i programa el següent refresc proactiu.
+     */
+    private void update(String newToken, long newExpiresAt) {
+        token = newToken;
+        expiresAt = newExpiresAt;
+        refreshAt = newExpiresAt - (long) (lifetimeMs * refreshAhead)
+                - (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs) : 0);
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        long delay = Math.max(0, refreshAt - System.currentTimeMillis());
+        scheduled = scheduler.schedule(this::proactiveRefresh, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void proactiveRefresh() {
+        if (inFlight == null && System.currentTimeMillis() >= refreshAt) {
+            proactive.increment();
+            refreshLocked(token);
+        }
+    }
+}
@@ -1,12 +1,10 @@
 package com.rgbconsulting.jwt.restClient;
 
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.time.Duration;
+import com.rgbconsulting.jwt.model.Jwt;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.CompletionException;
 
 /**
  * Client REST per a la gestió d'autenticació JWT amb control de permisos per
@@ -20,13 +18,27 @@ import java.util.Scanner;
  * opcions 2 i 3. L'usuari configurat determina el rol assignat pel servidor
  * (ADMIN o USER).
  *
+ * Les crides es fan amb JwtClient, que comparteix un únic HttpClient (HTTP/2
+ * quan el servidor l'accepta) i llegeix les respostes JSON per nom de camp.
+ * El token el gestiona TokenManager, que el refresca abans que expiri i
+ * comparteix el refresc entre peticions concurrents.
+ *
+ * Amb l'argument "load" s'executa el generador de càrrega (LoadGenerator) en
+ * lloc del menú. L'adreça del servidor es pot canviar amb la propietat de
+ * sistema "jwt.url".
+ *
  * @author sergi
  */
 public class jwtRestClient {
 
-    private static String token = "";
+    static final String BASE_URL = System.getProperty("jwt.url", "http://localhost:8080");
+    static final JwtClient SDK = new JwtClient(BASE_URL);
+
+    private static final int MAX_RETRIES = 2;
+    private static final TokenManager TOKENS = new TokenManager(SDK::refresh, 0.2, 2000);
+
     private static String username = "manelet";
-    private static String password = "pepitodelospalotes1234";
+    static String password = "pepitodelospalotes1234";
     private static boolean logInDone = false;
 
     /**
@@ -40,9 +52,15 @@ public class jwtRestClient {
      * Les opcions 2 i 3 mostren un missatge d'error si es criden sense haver
      * fet login.
      *
-     * @param args arguments de línia de comandes (no s'utilitzen)
+     * @param args arguments de línia de comandes: "load" seguit dels
+     * arguments de LoadGenerator executa la càrrega sense menú
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("load")) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         int option;
         Scanner key = new Scanner(System.in);
 
@@ -90,164 +108,58 @@ public class jwtRestClient {
      * Realitza el procés de login enviant les credencials al servidor.
      *
      * Envia una petició POST a /jwt/auth/login amb les credencials en format
-     * JSON. Si la petició té èxit, extreu i emmagatzema el token UUID de la
-     * resposta mitjançant el mètode getToken(). Mostra el codi d'estat, el cos
-     * de la resposta i el token extret per consola.
-     *
-     * El token obtingut s'emmagatzema a la variable estàtica 'token' per ser
-     * utilitzat en les peticions posteriors.
+     * JSON. Si la petició té èxit, mostra la resposta i passa el token, amb el
+     * seu expires_in i time_generated, al TokenManager per ser utilitzat en
+     * les peticions posteriors.
      */
     private static void login() {
-        HttpRequest request = null;
-        HttpResponse<String> response = null;
-
+        long sentAt = System.currentTimeMillis();
         try {
-            HttpClient client = HttpClient.newBuilder()
-                    .version(HttpClient.Version.HTTP_1_1)
-                    .followRedirects(HttpClient.Redirect.NORMAL)
-                    .connectTimeout(Duration.ofSeconds(20))
-                    .build();
-
-            //POST
-            try {
-                String jsonBody = "{\n"
-                        + "  \"username\": \"" + username + "\",\n"
-                        + "  \"password\": \"" + password + "\"\n"
-                        + "}";
-
-                request = HttpRequest.newBuilder()
-                        .uri(new URI("http://localhost:8080/jwt/auth/login"))
-                        .header("Content-Type", "application/json")
-                        .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
-                        .build();
-            } catch (URISyntaxException u) {
-                u.printStackTrace();
-            }
-
-            if (request != null) {
-                try {
-                    response = client.send(request, HttpResponse.BodyHandlers.ofString());
-                    System.out.println("POST Status Code: " + response.statusCode());
-                    System.out.println("POST Response Body: " + response.body());
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            } else {
-                System.out.println("Error: La solicitud no ha pogut ser creada degut a un problema amb la URI.");
-            }
-
-        } catch (Exception e) {
-            e.printStackTrace();
+            Jwt jwt = SDK.login(username, password).join();
+            System.out.println("POST Status Code: 200");
+            System.out.println("POST Response Body: user=" + jwt.getUsername() + ", role=" + jwt.getRole()
+                    + ", expires_in=" + jwt.getExpires_in());
+            TOKENS.onLogin(jwt.getAccess_token(), jwt.getExpires_in(), jwt.getTime_generated(),
+                    sentAt, System.currentTimeMillis());
+            System.out.println(jwt.getAccess_token());
+        } catch (CompletionException e) {
+            printError("POST", e);
         }
-
-        getToken(response);
-
-        System.out.println(token);
     }
 
     /**
      * Realitza una petició autenticada a l'endpoint /jwt/secure/ping.
      *
      * Envia una petició GET incloent el token actual a la capçalera
-     * Authorization en format "Bearer {token}". Si rep un 401 (token expirat),
-     * refresca el token automàticament cridant authRefresh() i reintenta la
-     * petició.
+     * Authorization en format "Bearer {token}". Normalment el token ja s'ha
+     * refrescat abans d'expirar; si tot i així es rep un 401, es demana un
+     * refresc al TokenManager (compartit si ja n'hi ha un en curs) i es
+     * reintenta com a molt MAX_RETRIES vegades.
      *
      * Requereix que s'hagi fet login prèviament i que hi hagi un token vàlid.
      */
     private static void petitionSecurePing() {
-        HttpRequest request = null;
-        HttpResponse<String> response = null;
-        HttpClient client = HttpClient.newBuilder()
-                .version(HttpClient.Version.HTTP_1_1)
-                .followRedirects(HttpClient.Redirect.NORMAL)
-                .connectTimeout(Duration.ofSeconds(20))
-                .build();
-        //GET
-        try {
-            request = HttpRequest.newBuilder()
-                    .uri(new URI("http://localhost:8080/jwt/secure/ping"))
-                    .header("Authorization", "Bearer " + token)
-                    .GET()
-                    .build();
-        } catch (URISyntaxException u) {
-            u.printStackTrace();
-        }
-
-        if (request != null) {
+        for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+            String token = TOKENS.getToken();
             try {
-                response = client.send(request, HttpResponse.BodyHandlers.ofString());
-
-                System.out.println("GET Status Code: " + response.statusCode());
-                //System.out.println("GET Response Body: " + response.body());
-            } catch (Exception e) {
-                e.printStackTrace();
+                SDK.securePing(token).join();
+                System.out.println("GET Status Code: 200");
+                return;
+            } catch (CompletionException e) {
+                printError("GET", e);
+                if (statusOf(e) != 401) {
+                    return;
+                }
             }
-        } else {
-            System.out.println("Error: La solicitud no ha pogut ser creada degut a un problema amb la URI.");
-        }
-
-        if (response.statusCode() == 401) {
-            authRefresh();
-            petitionSecurePing();
-        }
-    }
 
-    /**
-     * Refresca el token JWT quan ha expirat.
-     *
-     * Envia una petició POST a /jwt/auth/refresh amb el token actual al cos en
-     * format JSON. El servidor retorna un nou token UUID que substitueix
-     * l'anterior a la variable estàtica 'token'. El rol de l'usuari es conserva
-     * sense canvis al servidor.
-     *
-     * S'invoca automàticament quan petitionSecurePing() rep un codi 401.
-     */
-    private static void authRefresh() {
-        HttpRequest request = null;
-        HttpResponse<String> response = null;
-
-        try {
-            HttpClient client = HttpClient.newBuilder()
-                    .version(HttpClient.Version.HTTP_1_1)
-                    .followRedirects(HttpClient.Redirect.NORMAL)
-                    .connectTimeout(Duration.ofSeconds(20))
-                    .build();
-
-            //POST
             try {
-                String jsonBody = "{\n"
-                        + "  \"access_token\": \"" + token + "\"\n"
-                        + "}";
-
-                request = HttpRequest.newBuilder()
-                        .uri(new URI("http://localhost:8080/jwt/auth/refresh"))
-                        .header("Content-Type", "application/json")
-                        .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
-                        .build();
-            } catch (URISyntaxException u) {
-                u.printStackTrace();
+                TOKENS.refresh(token).join();
+            } catch (CompletionException e) {
+                printError("POST", e);
+                return;
             }
-
-            if (request != null) {
-                try {
-                    response = client.send(request, HttpResponse.BodyHandlers.ofString());
-                    System.out.println("POST Status Code: " + response.statusCode());
-                    System.out.println("POST Response Body: " + response.body());
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            } else {
-                System.out.println("Error: La solicitud no ha pogut ser creada degut a un problema amb la URI.");
-            }
-
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-
-        //getToken(response);
-        token = response.body();
-        System.out.println(token.toString());
+        System.out.println("Error: Token rebutjat després de " + MAX_RETRIES + " reintents");
     }
 
     /**
@@ -265,56 +177,35 @@ public class jwtRestClient {
      * Requereix que s'hagi fet login prèviament.
      */
     private static void getAdminTest() {
-        HttpRequest request = null;
-        HttpResponse<String> response = null;
-        HttpClient client = HttpClient.newBuilder()
-                .version(HttpClient.Version.HTTP_1_1)
-                .followRedirects(HttpClient.Redirect.NORMAL)
-                .connectTimeout(Duration.ofSeconds(20))
-                .build();
-        //GET
         try {
-            request = HttpRequest.newBuilder()
-                    .uri(new URI("http://localhost:8080/jwt/admin/test"))
-                    .header("Authorization", "Bearer " + token)
-                    .GET()
-                    .build();
-        } catch (URISyntaxException u) {
-            u.printStackTrace();
-        }
-
-        if (request != null) {
-            try {
-                response = client.send(request, HttpResponse.BodyHandlers.ofString());
-
-                System.out.println("GET Status Code: " + response.statusCode());
-                System.out.println("GET Response Body: " + response.body());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        } else {
-            System.out.println("Error: La solicitud no ha pogut ser creada degut a un problema amb la URI.");
+            String body = SDK.adminTest(TOKENS.getToken()).join();
+            System.out.println("GET Status Code: 200");
+            System.out.println("GET Response Body: " + body);
+        } catch (CompletionException e) {
+            printError("GET", e);
         }
     }
 
     /**
-     * Extreu el token JWT del cos de la resposta HTTP del login.
-     *
-     * Analitza la resposta JSON separant per comes i agafant el tercer camp
-     * (índex 2), que correspon a "access_token". Després separa per ":" i
-     * neteja les cometes i espais del valor obtingut.
-     *
-     * Format esperat de la resposta:
-     * {"username":"...","password":null,"access_token":"uuid","expires_in":...}
+     * Extreu el token del cos JSON de la resposta del login.
      *
-     * @param response Resposta HTTP del login que conté el token en format JSON
-     * @throws NullPointerException si la resposta és null
-     * @throws ArrayIndexOutOfBoundsException si el format de la resposta no és
-     * l'esperat
+     * @param body Cos de la resposta del login
+     * @return Token d'accés
      */
-    private static void getToken(HttpResponse<String> response) {
-        String resposta[] = response.body().split(",");
-        String tok[] = resposta[2].split(":");
-        token = tok[1].replace("\"", "").strip();
+    static String parseToken(String body) {
+        return JwtClient.readJwt(body.getBytes(StandardCharsets.UTF_8)).getAccess_token();
+    }
+
+    private static int statusOf(CompletionException e) {
+        return e.getCause() instanceof JwtClientException ? ((JwtClientException) e.getCause()).getStatusCode() : -1;
+    }
+
+    private static void printError(String method, CompletionException e) {
+        if (e.getCause() instanceof JwtClientException) {
+            JwtClientException error = (JwtClientException) e.getCause();
+            System.out.println(method + " Status Code: " + error.getStatusCode());
+        } else {
+            e.printStackTrace();
+        }
     }
 }
@@ -0,0 +1,119 @@
+package com.rgbconsulting.jwt.token;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.springframework.stereotype.Component;
+
+/**
+ * Emissió i verificació de tokens JWT signats amb HMAC-SHA256.
+ *
+ * Els tokens tenen el format estàndard header.payload.signature codificat en
+ * Base64url. La capçalera porta l'identificador de clau ("kid") amb què s'ha
+ * signat, de manera que es poden rotar les claus: es signa sempre amb la clau
+ * activa i es continuen acceptant els tokens signats amb qualsevol de les
+ * claus configurades.
+ *
+ * Claims del payload: - sub: nom d'usuari - role: rol (ADMIN o USER) -
+ * time_generated: timestamp de generació en mil·lisegons - exp: expiració en
+ * segons (RFC 7519), arrodonida cap avall, de manera que el token mai dura
+ * més que MAXTIMEXPIRES
+ *
+ * La verificació no necessita cap accés a la base de dades i la fa
+ * SignedTokenVerifier. Les claus es configuren a SigningKeys.
+ *
+ * @author sergi
+ */
+@Component
+public class SignedTokenService {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final SigningKeys keys;
+    private final SignedTokenVerifier verifier;
+
+    public SignedTokenService(SigningKeys keys, SignedTokenVerifier verifier) {
+        this.keys = keys;
+        this.verifier = verifier;
+    }
+
+    /**
+     * @return Verificador dels tokens signats, per al camí calent dels
+     * endpoints segurs
+     */
+    public SignedTokenVerifier verifier() {
+        return verifier;
+    }
+
+    /**
+     * Genera un token signat amb la clau activa.
+     *
+     * @param username Nom d'usuari (claim "sub")
+     * @param role Rol de l'usuari (claim "role")
+     * @param time_generated Timestamp de generació en mil·lisegons
+     * @param expiresAt Timestamp d'expiració en mil·lisegons
+     * @return Token JWT signat
+     */
+    public String issue(String username, String role, long time_generated, long expiresAt) {
+        int active = keys.activeIndex();
+
+        ObjectNode header = mapper.createObjectNode();
+        header.put("alg", "HS256");
+        header.put("typ", "JWT");
+        header.put("kid", keys.id(active));
+
+        ObjectNode payload = mapper.createObjectNode();
+        payload.put("sub", username);
+        payload.put("role", role);
+        payload.put("time_generated", time_generated);
+        payload.put("exp", expiresAt / 1000);
+
+        String signingInput = ENCODER.encodeToString(header.toString().getBytes(StandardCharsets.UTF_8))
+                + "." + ENCODER.encodeToString(payload.toString().getBytes(StandardCharsets.UTF_8));
+        byte[] signature = sign(keys.secret(active), signingInput);
+        return signingInput + "." + ENCODER.encodeToString(signature);
+    }
+
+    /**
+     * Verifica la signatura d'un token i en retorna els claims.
+     *
+     * No comprova l'expiració: els claims porten el moment d'expiració perquè
+     * el cridant decideixi si l'ha de validar (per exemple, un token expirat
+     * amb signatura vàlida es pot refrescar). Per al camí calent dels
+     * endpoints segurs s'ha de fer servir directament SignedTokenVerifier,
+     * que no crea cap objecte.
+     *
+     * @param token Token JWT rebut
+     * @return Claims del token, o null si el token és mal format o la
+     * signatura no és vàlida
+     */
+    public TokenClaims verify(String token) {
+        if (token == null) {
+            return null;
+        }
+        SignedTokenVerifier.Claims claims = verifier.verify(token, 0, token.length());
+        if (claims == null) {
+            return null;
+        }
+        return new TokenClaims(claims.getUsername(), claims.getRole(), claims.getExpiresAt());
+    }
+
+    /**
+     * Calcula la signatura HMAC-SHA256 d'un text.
+     */
+    private static byte[] sign(byte[] key, String signingInput) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac.doFinal(signingInput.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 no disponible", e);
+        }
+    }
+}
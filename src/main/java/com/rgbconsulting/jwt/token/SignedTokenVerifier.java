@@ -0,0 +1,642 @@
+package com.rgbconsulting.jwt.token;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import org.springframework.stereotype.Component;
+
+/**
+ * Verificador de tokens signats que no crea objectes en el camí habitual.
+ *
+ * Treballa directament sobre els caràcters de la capçalera Authorization:
+ * copia la part signada a un buffer de bytes, decodifica el Base64url de la
+ * capçalera, el payload i la signatura a buffers reutilitzats per fil,
+ * calcula l'HMAC-SHA256 amb un MessageDigest també per fil i compara la
+ * signatura en temps constant. Del payload només s'extreuen els claims "sub",
+ * "role" i "exp" amb un escàner mínim, sense construir cap mapa ni String.
+ *
+ * Els buffers només creixen si arriba un token més llarg que qualsevol
+ * anterior, de manera que en estat estacionari cada verificació no genera
+ * brossa. El resultat es retorna en un objecte Claims propi de cada fil que
+ * es reutilitza a la següent verificació del mateix fil.
+ *
+ * @author sergi
+ */
+@Component
+public class SignedTokenVerifier {
+
+    private static final String BEARER = "Bearer ";
+    private static final int BLOCK = 64;
+    private static final int MAC_LEN = 32;
+    private static final int INITIAL_CAPACITY = 512;
+
+    private static final byte[] DECODE = new byte[128];
+    private static final byte[] KEY_ALG = ascii("alg");
+    private static final byte[] KEY_KID = ascii("kid");
+    private static final byte[] KEY_SUB = ascii("sub");
+    private static final byte[] KEY_ROLE = ascii("role");
+    private static final byte[] KEY_EXP = ascii("exp");
+    private static final byte[] HS256 = ascii("HS256");
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final SigningKeys keys;
+    private final byte[][] innerPads;
+    private final byte[][] outerPads;
+    private final ThreadLocal<Claims> local = ThreadLocal.withInitial(Claims::new);
+
+    public SignedTokenVerifier(SigningKeys keys) {
+        this.keys = keys;
+        this.innerPads = new byte[keys.size()][];
+        this.outerPads = new byte[keys.size()][];
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.secret(i);
+            if (key.length > BLOCK) {
+                key = newDigest().digest(key);
+            }
+            byte[] ipad = new byte[BLOCK];
+            byte[] opad = new byte[BLOCK];
+            for (int j = 0; j < BLOCK; j++) {
+                byte k = j < key.length ? key[j] : 0;
+                ipad[j] = (byte) (k ^ 0x36);
+                opad[j] = (byte) (k ^ 0x5c);
+            }
+            innerPads[i] = ipad;
+            outerPads[i] = opad;
+        }
+    }
+
+    /**
+     * Claims extrets d'un token amb signatura vàlida.
+     *
+     * La instància pertany al fil que ha fet la verificació i se sobreescriu
+     * a la següent crida, per tant s'ha de consumir abans de verificar un
+     * altre token al mateix fil.
+     */
+    public static final class Claims {
+
+        private final MessageDigest digest = newDigest();
+        private final byte[] inner = new byte[MAC_LEN];
+        private final byte[] mac = new byte[MAC_LEN];
+        private final byte[] signature = new byte[MAC_LEN];
+        private byte[] input = new byte[INITIAL_CAPACITY];
+        private byte[] header = new byte[INITIAL_CAPACITY];
+        private byte[] payload = new byte[INITIAL_CAPACITY];
+
+        // resultat de l'escàner
+        private int valueOff;
+        private int valueLen;
+        private boolean valueEscaped;
+        private long number;
+
+        private int subOff = -1;
+        private int subLen;
+        private boolean subEscaped;
+        private int roleOff = -1;
+        private int roleLen;
+        private boolean roleEscaped;
+        private long expiresAt = -1;
+
+        private Claims() {
+        }
+
+        /**
+         * @return Timestamp d'expiració en mil·lisegons (claim "exp" × 1000)
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /**
+         * Crea el String amb el nom d'usuari (claim "sub"). És l'única
+         * operació que reserva memòria i només s'ha de cridar si cal.
+         *
+         * @return Nom d'usuari
+         */
+        public String getUsername() {
+            return string(subOff, subLen, subEscaped);
+        }
+
+        /**
+         * Crea el String amb el rol (claim "role").
+         *
+         * @return Rol, o null si el token no en porta
+         */
+        public String getRole() {
+            return roleOff < 0 ? null : string(roleOff, roleLen, roleEscaped);
+        }
+
+        /**
+         * Compara el rol del token sense crear cap String.
+         *
+         * @param role Rol esperat (només caràcters ASCII)
+         * @return true si el claim "role" és exactament el rol indicat
+         */
+        public boolean hasRole(String role) {
+            if (roleOff < 0 || roleEscaped || roleLen != role.length()) {
+                return false;
+            }
+            for (int i = 0; i < roleLen; i++) {
+                if ((payload[roleOff + i] & 0xff) != role.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String string(int off, int len, boolean escaped) {
+            if (!escaped) {
+                return new String(payload, off, len, StandardCharsets.UTF_8);
+            }
+            return unescape(payload, off, len);
+        }
+    }
+
+    /**
+     * Verifica el token d'una capçalera Authorization "Bearer {token}".
+     *
+     * @param authHeader Capçalera Authorization completa
+     * @return Claims del token (propis del fil) si la signatura és vàlida, o
+     * null si la capçalera o el token són invàlids. No comprova l'expiració.
+     */
+    public Claims verifyBearer(String authHeader) {
+        if (authHeader == null || !authHeader.startsWith(BEARER)) {
+            return null;
+        }
+        return verify(authHeader, BEARER.length(), authHeader.length());
+    }
+
+    /**
+     * Verifica un token que ocupa la regió [from, to) d'una seqüència de
+     * caràcters.
+     *
+     * @param s Text que conté el token
+     * @param from Posició inicial del token
+     * @param to Posició final (exclosa) del token
+     * @return Claims del token (propis del fil) si la signatura és vàlida, o
+     * null si el token és invàlid. No comprova l'expiració.
+     */
+    public Claims verify(CharSequence s, int from, int to) {
+        // localitzo els dos punts separadors
+        int first = -1;
+        int second = -1;
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == '.') {
+                if (first < 0) {
+                    first = i;
+                } else if (second < 0) {
+                    second = i;
+                } else {
+                    return null;
+                }
+            }
+        }
+        if (first <= from || second <= first + 1 || second >= to - 1) {
+            return null;
+        }
+
+        Claims c = local.get();
+        c.subOff = -1;
+        c.roleOff = -1;
+        c.expiresAt = -1;
+
+        // part signada com a bytes ASCII
+        int inputLen = second - from;
+        if (c.input.length < inputLen) {
+            c.input = new byte[inputLen];
+        }
+        byte[] input = c.input;
+        for (int i = 0; i < inputLen; i++) {
+            char ch = s.charAt(from + i);
+            if (ch > 127) {
+                return null;
+            }
+            input[i] = (byte) ch;
+        }
+
+        // signatura
+        int sigChars = to - second - 1;
+        if (decodedLength(sigChars) != MAC_LEN) {
+            return null;
+        }
+        if (decode(s, second + 1, to, c.signature) != MAC_LEN) {
+            return null;
+        }
+
+        // capçalera: alg i kid
+        int headerChars = first - from;
+        int headerLen = decodedLength(headerChars);
+        if (headerLen < 0) {
+            return null;
+        }
+        if (c.header.length < headerLen) {
+            c.header = new byte[headerLen];
+        }
+        if (decode(s, from, first, c.header) != headerLen) {
+            return null;
+        }
+        int keyIndex = scanHeader(c, headerLen);
+        if (keyIndex < 0) {
+            return null;
+        }
+
+        // HMAC-SHA256(key, input) = H(K ^ opad || H(K ^ ipad || input))
+        MessageDigest md = c.digest;
+        try {
+            md.update(innerPads[keyIndex]);
+            md.update(input, 0, inputLen);
+            md.digest(c.inner, 0, MAC_LEN);
+            md.update(outerPads[keyIndex]);
+            md.update(c.inner, 0, MAC_LEN);
+            md.digest(c.mac, 0, MAC_LEN);
+        } catch (DigestException e) {
+            md.reset();
+            return null;
+        }
+        if (!constantTimeEquals(c.mac, c.signature, MAC_LEN)) {
+            return null;
+        }
+
+        // payload: sub, role i exp
+        int payloadChars = second - first - 1;
+        int payloadLen = decodedLength(payloadChars);
+        if (payloadLen < 0) {
+            return null;
+        }
+        if (c.payload.length < payloadLen) {
+            c.payload = new byte[payloadLen];
+        }
+        if (decode(s, first + 1, second, c.payload) != payloadLen) {
+            return null;
+        }
+        if (!scanPayload(c, payloadLen) || c.subOff < 0 || c.expiresAt < 0) {
+            return null;
+        }
+        return c;
+    }
+
+    /**
+     * Compara dos buffers en temps constant.
+     */
+    static boolean constantTimeEquals(byte[] a, byte[] b, int len) {
+        int diff = 0;
+        for (int i = 0; i < len; i++) {
+            diff |= a[i] ^ b[i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Nombre de bytes que resulten de decodificar n caràcters Base64url sense
+     * farciment, o -1 si n no és una longitud vàlida.
+     */
+    private static int decodedLength(int chars) {
+        int rem = chars & 3;
+        if (rem == 1) {
+            return -1;
+        }
+        return (chars >> 2) * 3 + (rem == 0 ? 0 : rem - 1);
+    }
+
+    /**
+     * Decodifica Base64url (sense farciment) de la regió [from, to) a out.
+     *
+     * Només accepta la codificació canònica: els bits sobrants de l'últim
+     * caràcter (2 o 4) han de ser zero. Altrament una mateixa signatura
+     * tindria diverses representacions vàlides i un token revocat es podria
+     * tornar a presentar canviant-ne l'últim caràcter (RevocationIndex
+     * identifica els tokens pel text de la signatura).
+     *
+     * @return Nombre de bytes escrits, o -1 si hi ha algun caràcter invàlid o
+     * la codificació no és canònica
+     */
+    private static int decode(CharSequence s, int from, int to, byte[] out) {
+        int o = 0;
+        int acc = 0;
+        int bits = 0;
+        for (int i = from; i < to; i++) {
+            char ch = s.charAt(i);
+            int v = ch < 128 ? DECODE[ch] : -1;
+            if (v < 0) {
+                return -1;
+            }
+            acc = (acc << 6) | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[o++] = (byte) (acc >> bits);
+            }
+        }
+        if ((acc & ((1 << bits) - 1)) != 0) {
+            return -1;
+        }
+        return o;
+    }
+
+    /**
+     * Llegeix alg i kid de la capçalera.
+     *
+     * @return Índex de la clau indicada per kid, o -1 si l'algorisme no és
+     * HS256 o la clau no està configurada
+     */
+    private int scanHeader(Claims c, int len) {
+        byte[] b = c.header;
+        boolean algOk = false;
+        int keyIndex = -1;
+
+        int p = skipWs(b, 0, len);
+        if (p >= len || b[p] != '{') {
+            return -1;
+        }
+        p++;
+        while (true) {
+            p = skipWs(b, p, len);
+            if (p < len && b[p] == '}') {
+                break;
+            }
+            // clau
+            p = readString(c, b, p, len);
+            if (p < 0) {
+                return -1;
+            }
+            int keyOff = c.valueOff;
+            int keyLen = c.valueLen;
+            p = skipWs(b, p, len);
+            if (p >= len || b[p] != ':') {
+                return -1;
+            }
+            p = skipWs(b, p + 1, len);
+            // valor
+            if (p < len && b[p] == '"') {
+                p = readString(c, b, p, len);
+                if (p < 0) {
+                    return -1;
+                }
+                if (matches(b, keyOff, keyLen, KEY_ALG)) {
+                    algOk = !c.valueEscaped && matches(b, c.valueOff, c.valueLen, HS256);
+                } else if (matches(b, keyOff, keyLen, KEY_KID) && !c.valueEscaped) {
+                    keyIndex = keys.indexOf(b, c.valueOff, c.valueLen);
+                }
+            } else {
+                p = skipValue(b, p, len);
+                if (p < 0) {
+                    return -1;
+                }
+            }
+            p = skipWs(b, p, len);
+            if (p < len && b[p] == ',') {
+                p++;
+            } else if (p >= len || b[p] != '}') {
+                return -1;
+            }
+        }
+        return algOk ? keyIndex : -1;
+    }
+
+    /**
+     * Llegeix els claims sub, role i exp del payload.
+     *
+     * @return false si el payload no és un objecte JSON ben format
+     */
+    private static boolean scanPayload(Claims c, int len) {
+        byte[] b = c.payload;
+        int p = skipWs(b, 0, len);
+        if (p >= len || b[p] != '{') {
+            return false;
+        }
+        p++;
+        while (true) {
+            p = skipWs(b, p, len);
+            if (p < len && b[p] == '}') {
+                return true;
+            }
+            p = readString(c, b, p, len);
+            if (p < 0) {
+                return false;
+            }
+            int keyOff = c.valueOff;
+            int keyLen = c.valueLen;
+            p = skipWs(b, p, len);
+            if (p >= len || b[p] != ':') {
+                return false;
+            }
+            p = skipWs(b, p + 1, len);
+            if (p >= len) {
+                return false;
+            }
+
+            if (b[p] == '"') {
+                p = readString(c, b, p, len);
+                if (p < 0) {
+                    return false;
+                }
+                if (matches(b, keyOff, keyLen, KEY_SUB)) {
+                    c.subOff = c.valueOff;
+                    c.subLen = c.valueLen;
+                    c.subEscaped = c.valueEscaped;
+                } else if (matches(b, keyOff, keyLen, KEY_ROLE)) {
+                    c.roleOff = c.valueOff;
+                    c.roleLen = c.valueLen;
+                    c.roleEscaped = c.valueEscaped;
+                }
+            } else if (matches(b, keyOff, keyLen, KEY_EXP)) {
+                p = readLong(c, b, p, len);
+                if (p < 0 || c.number < 0 || c.number > Long.MAX_VALUE / 1000) {
+                    return false;
+                }
+                c.expiresAt = c.number * 1000;
+            } else {
+                p = skipValue(b, p, len);
+                if (p < 0) {
+                    return false;
+                }
+            }
+
+            p = skipWs(b, p, len);
+            if (p < len && b[p] == ',') {
+                p++;
+            } else if (p >= len || b[p] != '}') {
+                return false;
+            }
+        }
+    }
+
+    private static int skipWs(byte[] b, int p, int len) {
+        while (p < len && (b[p] == ' ' || b[p] == '\t' || b[p] == '\n' || b[p] == '\r')) {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Llegeix un String JSON que comença a p i en deixa la posició del
+     * contingut a valueOff/valueLen.
+     *
+     * @return Posició just després de les cometes finals, o -1 si és invàlid
+     */
+    private static int readString(Claims c, byte[] b, int p, int len) {
+        if (p >= len || b[p] != '"') {
+            return -1;
+        }
+        int start = ++p;
+        boolean escaped = false;
+        while (p < len) {
+            byte ch = b[p];
+            if (ch == '\\') {
+                escaped = true;
+                p += 2;
+            } else if (ch == '"') {
+                c.valueOff = start;
+                c.valueLen = p - start;
+                c.valueEscaped = escaped;
+                return p + 1;
+            } else {
+                p++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Llegeix un enter JSON sense decimals a number.
+     *
+     * @return Posició just després del número, o -1 si és invàlid
+     */
+    private static int readLong(Claims c, byte[] b, int p, int len) {
+        boolean negative = p < len && b[p] == '-';
+        if (negative) {
+            p++;
+        }
+        int start = p;
+        long value = 0;
+        while (p < len && b[p] >= '0' && b[p] <= '9') {
+            if (value > (Long.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            value = value * 10 + (b[p] - '0');
+            p++;
+        }
+        if (p == start || (p < len && (b[p] == '.' || b[p] == 'e' || b[p] == 'E'))) {
+            return -1;
+        }
+        c.number = negative ? -value : value;
+        return p;
+    }
+
+    /**
+     * Salta un valor JSON que no interessa (número, literal, objecte o
+     * array).
+     *
+     * @return Posició just després del valor, o -1 si és invàlid
+     */
+    private static int skipValue(byte[] b, int p, int len) {
+        int depth = 0;
+        while (p < len) {
+            byte ch = b[p];
+            if (ch == '"') {
+                p++;
+                while (p < len && b[p] != '"') {
+                    p += b[p] == '\\' ? 2 : 1;
+                }
+                if (p >= len) {
+                    return -1;
+                }
+                p++;
+                if (depth == 0) {
+                    return p;
+                }
+                continue;
+            }
+            if (ch == '{' || ch == '[') {
+                depth++;
+            } else if (ch == '}' || ch == ']') {
+                if (depth == 0) {
+                    return p;
+                }
+                if (--depth == 0) {
+                    return p + 1;
+                }
+            } else if (ch == ',' && depth == 0) {
+                return p;
+            }
+            p++;
+        }
+        return depth == 0 ? p : -1;
+    }
+
+    private static boolean matches(byte[] b, int off, int len, byte[] expected) {
+        if (len != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (b[off + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodifica les seqüències d'escapament JSON d'un String. Només s'usa
+     * quan el claim en porta, que no és el cas habitual.
+     */
+    private static String unescape(byte[] b, int off, int len) {
+        String raw = new String(b, off, len, StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char ch = raw.charAt(i);
+            if (ch != '\\' || i + 1 >= raw.length()) {
+                sb.append(ch);
+                continue;
+            }
+            char next = raw.charAt(++i);
+            switch (next) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 < raw.length()) {
+                        sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    break;
+                default:
+                    sb.append(next);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.rgbconsulting.jwt.token;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Claus HMAC configurades per signar i verificar tokens.
+ *
+ * Es llegeixen de "jwt.signing.keys" en format "kid:secret,kid2:secret2". Es
+ * signa sempre amb la clau "jwt.signing.active-key-id" i es verifica amb la
+ * clau indicada a la capçalera "kid" de cada token. Les claus es guarden en
+ * arrays indexats per poder-les consultar sense crear objectes.
+ *
+ * No hi ha cap clau per defecte: amb "jwt.token.mode=signed" l'aplicació no
+ * arrenca si "jwt.signing.keys" no està configurada o conté la clau
+ * d'exemple de versions anteriors, que és pública i permetria falsificar
+ * tokens ADMIN. En mode "uuid" les claus no es fan servir i poden faltar.
+ *
+ * @author sergi
+ */
+@Component
+public class SigningKeys {
+
+    /**
+     * Secret d'exemple que es distribuïa com a valor per defecte.
+     */
+    static final String PLACEHOLDER_SECRET = "change-me-please-change-me-please";
+
+    private final String[] ids;
+    private final byte[][] idBytes;
+    private final byte[][] secrets;
+    private final int active;
+
+    public SigningKeys(@Value("${jwt.signing.keys:}") String keys,
+            @Value("${jwt.signing.active-key-id:k1}") String activeKeyId,
+            @Value("${jwt.token.mode:uuid}") String tokenMode) {
+        boolean signedMode = "signed".equalsIgnoreCase(tokenMode);
+        List<String> idList = new ArrayList<>();
+        List<byte[]> secretList = new ArrayList<>();
+        if (keys.isBlank() && signedMode) {
+            throw new IllegalStateException("jwt.token.mode=signed requereix jwt.signing.keys");
+        }
+        for (String pair : keys.isBlank() ? new String[0] : keys.split(",")) {
+            int sep = pair.indexOf(':');
+            if (sep <= 0 || sep == pair.length() - 1) {
+                throw new IllegalArgumentException("Clau de signatura mal formada: " + pair);
+            }
+            String secret = pair.substring(sep + 1).strip();
+            if (signedMode && secret.equals(PLACEHOLDER_SECRET)) {
+                throw new IllegalStateException("La clau de signatura " + pair.substring(0, sep).strip()
+                        + " és la clau d'exemple; configureu un secret propi a jwt.signing.keys");
+            }
+            idList.add(pair.substring(0, sep).strip());
+            secretList.add(secret.getBytes(StandardCharsets.UTF_8));
+        }
+
+        this.ids = idList.toArray(new String[0]);
+        this.secrets = secretList.toArray(new byte[0][]);
+        this.idBytes = new byte[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            idBytes[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+        }
+        this.active = idList.indexOf(activeKeyId);
+        if (active < 0 && !idList.isEmpty()) {
+            throw new IllegalArgumentException("La clau activa no està configurada: " + activeKeyId);
+        }
+    }
+
+    /**
+     * @return Nombre de claus configurades
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return Índex de la clau activa
+     * @throws IllegalStateException si no hi ha cap clau configurada
+     */
+    public int activeIndex() {
+        if (active < 0) {
+            throw new IllegalStateException("No hi ha cap clau de signatura configurada (jwt.signing.keys)");
+        }
+        return active;
+    }
+
+    public String id(int index) {
+        return ids[index];
+    }
+
+    public byte[] secret(int index) {
+        return secrets[index];
+    }
+
+    /**
+     * Cerca una clau pel seu identificador sense crear cap String.
+     *
+     * @param buf Buffer que conté l'identificador
+     * @param off Posició inicial de l'identificador
+     * @param len Longitud de l'identificador
+     * @return Índex de la clau, o -1 si no està configurada
+     */
+    public int indexOf(byte[] buf, int off, int len) {
+        for (int i = 0; i < idBytes.length; i++) {
+            byte[] id = idBytes[i];
+            if (id.length != len) {
+                continue;
+            }
+            int j = 0;
+            while (j < len && id[j] == buf[off + j]) {
+                j++;
+            }
+            if (j == len) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
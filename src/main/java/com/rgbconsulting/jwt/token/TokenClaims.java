@@ -0,0 +1,34 @@
+package com.rgbconsulting.jwt.token;
+
+/**
+ * Claims d'un token signat que ha superat la verificació de la signatura.
+ *
+ * @author sergi
+ */
+public class TokenClaims {
+
+    private final String username;
+    private final String role;
+    private final long expiresAt;
+
+    public TokenClaims(String username, String role, long expiresAt) {
+        this.username = username;
+        this.role = role;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    /**
+     * @return Timestamp d'expiració en mil·lisegons (claim "exp" × 1000)
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+}
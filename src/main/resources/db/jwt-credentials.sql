@@ -0,0 +1,24 @@
+-- Hashes de contrasenya dels usuaris (vegeu PasswordHasher).
+--
+-- password_hash té el format "$pbkdf2-sha256$i=iteracions$sal$hash" i porta
+-- el cost amb què es va calcular: quan s'augmenta
+-- jwt.credentials.pbkdf2.iterations, CredentialVerifier el recalcula en el
+-- proper login correcte. La taula "jwt" ja no guarda cap contrasenya.
+
+CREATE TABLE jwt_credentials (
+    username      VARCHAR(255) PRIMARY KEY,
+    password_hash VARCHAR(255) NOT NULL,
+    updated_at    BIGINT NOT NULL
+);
+
+-- Per defecte (jwt.credentials.enroll-unknown=false) només poden fer login
+-- els usuaris que tenen un hash en aquesta taula. Per donar-ne d'alta un,
+-- calculeu el hash amb les mateixes iteracions que l'aplicació:
+--   echo -n 'contrasenya' | java -cp target/classes com.rgbconsulting.jwt.credential.PasswordHasher 600000
+-- i inseriu-lo:
+--   INSERT INTO jwt_credentials (username, password_hash, updated_at)
+--   VALUES ('sergi', '$pbkdf2-sha256$i=600000$...', 0);
+
+-- Les taules "jwt" creades abans tenien una columna "password" amb la
+-- contrasenya en clar; ja no s'hi escriu i s'ha d'eliminar:
+-- ALTER TABLE jwt DROP COLUMN password;
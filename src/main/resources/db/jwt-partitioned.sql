@@ -0,0 +1,32 @@
+-- Taula "jwt" particionada per franges de time_generated.
+--
+-- Cada partició cobreix una franja de jwt.reaper.partition-ms mil·lisegons i
+-- s'anomena jwt_p<inici>, on <inici> és el primer time_generated de la franja.
+-- TokenReaper (jwt.reaper.mode=partition) crea la partició actual i les
+-- futures en arrencar i a cada execució, i elimina amb DROP TABLE les que ja
+-- només contenen tokens expirats, en lloc d'esborrar-los fila a fila. Un refresh actualitza time_generated i
+-- PostgreSQL mou la fila a la partició que li correspon.
+--
+-- Per migrar una taula existent: renombrar-la, crear aquesta, i copiar les
+-- files encara vàlides (INSERT INTO jwt SELECT ... WHERE time_generated > ...).
+
+CREATE TABLE jwt (
+    id             BIGSERIAL,
+    username       VARCHAR(255),
+    acces_token    VARCHAR(1024) NOT NULL,
+    expires_in     INTEGER,
+    time_generated BIGINT NOT NULL,
+    role           VARCHAR(32)
+) PARTITION BY RANGE (time_generated);
+
+-- les consultes per token es resolen amb l'índex de cada partició
+CREATE INDEX jwt_acces_token_idx ON jwt (acces_token);
+
+-- files fora de qualsevol franja creada: quan es crea la partició de la seva
+-- franja s'hi mouen, i les que expiren aquí les esborra el reaper per lots
+CREATE TABLE jwt_default PARTITION OF jwt DEFAULT;
+CREATE INDEX jwt_default_time_generated_idx ON jwt_default (time_generated);
+
+-- En mode delete (taula sense particionar) cal un índex per time_generated
+-- perquè l'esborrat per lots no recorri tota la taula:
+-- CREATE INDEX jwt_time_generated_idx ON jwt (time_generated);
@@ -0,0 +1,16 @@
+-- Tokens revocats (logout i revocació per l'administrador).
+--
+-- token_id és la signatura del token en mode signat o el token sencer en mode
+-- uuid (vegeu RevocationIndex). Cada node en manté un filtre de Bloom en
+-- memòria que recarrega per revoked_at, i només consulta aquesta taula quan
+-- el filtre dona positiu. Les files amb expires_at passat ja no calen:
+-- TokenReaper les elimina.
+
+CREATE TABLE jwt_revoked (
+    token_id   VARCHAR(1024) PRIMARY KEY,
+    revoked_at BIGINT NOT NULL,
+    expires_at BIGINT NOT NULL
+);
+
+-- recàrrega incremental del filtre
+CREATE INDEX jwt_revoked_revoked_at_idx ON jwt_revoked (revoked_at);
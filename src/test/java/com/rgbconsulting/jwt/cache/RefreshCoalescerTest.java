@@ -0,0 +1,66 @@
+package com.rgbconsulting.jwt.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Agrupació de refrescos concurrents del mateix token.
+ *
+ * @author sergi
+ */
+class RefreshCoalescerTest {
+
+    private final RefreshCoalescer coalescer = new RefreshCoalescer(5000, 2000);
+
+    @Test
+    void failedLeaderIsNotRemembered() {
+        long now = System.currentTimeMillis();
+
+        assertThatThrownBy(() -> coalescer.refresh("old", now, () -> {
+            throw new IllegalStateException("store down");
+        })).isInstanceOf(IllegalStateException.class);
+
+        assertThat(coalescer.refresh("old", now, () -> "new")).isEqualTo("new");
+    }
+
+    @Test
+    void leaderErrorReachesWaitersAndIsNotRemembered() throws Exception {
+        long now = System.currentTimeMillis();
+        CountDownLatch leading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = executor.submit(() -> coalescer.refresh("old", now, () -> {
+                leading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new StackOverflowError();
+            }));
+            assertThat(leading.await(5, TimeUnit.SECONDS)).isTrue();
+            Future<String> waiter = executor.submit(() -> coalescer.refresh("old", now, () -> "unused"));
+            while (coalescer.getCoalesced() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            // el que espera rep el mateix Error, sense esperar wait-ms
+            assertThatThrownBy(waiter::get).hasCauseInstanceOf(StackOverflowError.class);
+            assertThatThrownBy(leader::get).hasCauseInstanceOf(StackOverflowError.class);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(coalescer.refresh("old", now, () -> "new")).isEqualTo("new");
+        assertThat(coalescer.getMetrics()).containsEntry("failures", 1L);
+    }
+}
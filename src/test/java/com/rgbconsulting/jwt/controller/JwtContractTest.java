@@ -0,0 +1,470 @@
+package com.rgbconsulting.jwt.controller;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rgbconsulting.jwt.credential.PasswordHasher;
+import com.rgbconsulting.jwt.model.Jwt;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+/**
+ * Contracte HTTP comú de JwtController (servlet) i ReactiveJwtController
+ * (perfil "reactive").
+ *
+ * Cada subclasse arrenca l'aplicació amb una de les dues variants sobre una
+ * base de dades H2 en memòria i executa aquests mateixos tests contra el
+ * servidor real, de manera que qualsevol diferència de comportament entre
+ * els dos controladors fa fallar una de les dues.
+ *
+ * @author sergi
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+    "jwt.datasource.username=sa",
+    "jwt.datasource.password=",
+    "jwt.token.mode=uuid",
+    "jwt.reaper.mode=off",
+    "jwt.cache.invalidation.enabled=false",
+    "jwt.cache.warmup.enabled=false",
+    "jwt.credentials.pbkdf2.iterations=1000",
+    "jwt.audit.dir=target/audit-test",
+    "jwt.introspect.max-batch=10",
+    "server.http2.enabled=false"
+})
+abstract class JwtContractTest {
+
+    static final String PASSWORD = "contrasenya-de-prova";
+
+    /**
+     * Hash de PASSWORD amb les iteracions dels tests.
+     */
+    private static final String PASSWORD_HASH = new PasswordHasher(1000).hash(PASSWORD);
+
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    @Autowired
+    WebTestClient client;
+
+    @Autowired
+    MeterRegistry registry;
+
+    /**
+     * Crea les taules a una base de dades H2 en memòria que es manté oberta
+     * fins que acaba la JVM.
+     *
+     * @param name Nom de la base de dades
+     */
+    static void createSchema(String name) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl(name), "sa", "");
+                Statement statement = connection.createStatement()) {
+            statement.execute("RUNSCRIPT FROM 'classpath:/db/jwt-h2.sql'");
+        }
+    }
+
+    static String jdbcUrl(String name) {
+        return "jdbc:h2:mem:" + name + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+    }
+
+    /**
+     * @return Nom de la base de dades H2 de la subclasse
+     */
+    abstract String databaseName();
+
+    /**
+     * Dona d'alta un usuari amb la contrasenya PASSWORD, com es fa a
+     * producció (jwt.credentials.enroll-unknown=false).
+     */
+    void enroll(String username) {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl(databaseName()), "sa", "");
+                PreparedStatement statement = connection.prepareStatement(
+                        "MERGE INTO jwt_credentials (username, password_hash, updated_at) KEY (username) VALUES (?, ?, 0)")) {
+            statement.setString(1, username);
+            statement.setString(2, PASSWORD_HASH);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Desa directament a la taula "jwt" un token generat a time_generated,
+     * sense passar pel login.
+     *
+     * @return Token desat
+     */
+    String storeToken(String username, long timeGenerated) {
+        String token = UUID.randomUUID().toString();
+        try (Connection connection = DriverManager.getConnection(jdbcUrl(databaseName()), "sa", "");
+                PreparedStatement statement = connection.prepareStatement(
+                        "INSERT INTO jwt (username, acces_token, expires_in, time_generated, role) VALUES (?, ?, ?, ?, ?)")) {
+            statement.setString(1, username);
+            statement.setString(2, token);
+            statement.setInt(3, 30 * 1000);
+            statement.setLong(4, timeGenerated);
+            statement.setString(5, "USER");
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return token;
+    }
+
+    /**
+     * @return Nom d'usuari que cap altre test ha fet servir (el LoginLimiter
+     * limita els logins per usuari)
+     */
+    static String newUser() {
+        return "user" + USERS.incrementAndGet();
+    }
+
+    Jwt login(String username) {
+        enroll(username);
+        Jwt response = client.post().uri("/jwt/auth/login")
+                .bodyValue(Map.of("username", username, "password", PASSWORD))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(Jwt.class).returnResult().getResponseBody();
+        assertThat(response).isNotNull();
+        return response;
+    }
+
+    String refresh(String token) {
+        return client.post().uri("/jwt/auth/refresh")
+                .bodyValue(Map.of("access_token", token))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).returnResult().getResponseBody();
+    }
+
+    WebTestClient.ResponseSpec securePing(String token) {
+        return client.get().uri("/jwt/secure/ping")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .exchange();
+    }
+
+    String adminTest(String token) {
+        return client.get().uri("/jwt/admin/test")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).returnResult().getResponseBody();
+    }
+
+    long metric(String path, String key) {
+        Map<String, Object> metrics = client.get().uri(path).exchange()
+                .expectStatus().isOk()
+                .expectBody(new ParameterizedTypeReference<Map<String, Object>>() {
+                }).returnResult().getResponseBody();
+        assertThat(metrics).containsKey(key);
+        return ((Number) metrics.get(key)).longValue();
+    }
+
+    @Test
+    void publicPingNeedsNoToken() {
+        client.get().uri("/jwt/public/ping").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("ok: true, user: unknown");
+    }
+
+    @Test
+    void loginIssuesTokenWithUserRole() {
+        String username = newUser();
+        Jwt response = login(username);
+
+        assertThat(response.getAccess_token()).isNotBlank();
+        assertThat(response.getUsername()).isEqualTo(username);
+        assertThat(response.getRole()).isEqualTo("USER");
+        assertThat(response.getExpires_in()).isEqualTo(30000);
+        assertThat(response.getTime_generated()).isPositive();
+    }
+
+    @Test
+    void loginAssignsAdminRoleToSergi() {
+        assertThat(login("sergi").getRole()).isEqualTo("ADMIN");
+    }
+
+    @Test
+    void loginRejectsWrongPassword() {
+        String username = newUser();
+        enroll(username);
+
+        client.post().uri("/jwt/auth/login")
+                .bodyValue(Map.of("username", username, "password", "una-altra-contrasenya"))
+                .exchange()
+                .expectStatus().isUnauthorized();
+    }
+
+    @Test
+    void loginRejectsUnknownUser() {
+        client.post().uri("/jwt/auth/login")
+                .bodyValue(Map.of("username", newUser(), "password", PASSWORD))
+                .exchange()
+                .expectStatus().isUnauthorized();
+    }
+
+    @Test
+    void securePingAcceptsIssuedToken() {
+        String username = newUser();
+        String token = login(username).getAccess_token();
+
+        securePing(token).expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("ok: true, user: " + username);
+    }
+
+    @Test
+    void securePingRejectsUnknownToken() {
+        securePing("00000000-0000-0000-0000-000000000000").expectStatus().isUnauthorized();
+    }
+
+    @Test
+    void securePingRejectsOtherSchemes() {
+        client.get().uri("/jwt/secure/ping")
+                .header(HttpHeaders.AUTHORIZATION, "Basic dXNlcjpwYXNz")
+                .exchange()
+                .expectStatus().isUnauthorized();
+    }
+
+    @Test
+    void expiredTokenIsRejected() {
+        // generat fa més de MAXTIMEXPIRES (30 s)
+        String token = storeToken(newUser(), System.currentTimeMillis() - 60 * 1000);
+
+        securePing(token).expectStatus().isUnauthorized();
+        client.post().uri("/jwt/auth/introspect")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .bodyValue("token=" + token)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.active").isEqualTo(false)
+                .jsonPath("$.username").doesNotExist();
+    }
+
+    @Test
+    void validationsAreCountedByResult() {
+        String token = login(newUser()).getAccess_token();
+        String expired = storeToken(newUser(), System.currentTimeMillis() - 60 * 1000);
+        double valid = validations("valid");
+        double expiredCount = validations("expired");
+        double unknown = validations("unknown");
+
+        securePing(token).expectStatus().isOk();
+        securePing(expired).expectStatus().isUnauthorized();
+        securePing("00000000-0000-0000-0000-000000000000").expectStatus().isUnauthorized();
+        client.post().uri("/jwt/auth/introspect")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(List.of(token, expired, "unknown-token"))
+                .exchange()
+                .expectStatus().isOk();
+
+        assertThat(validations("valid")).isEqualTo(valid + 2);
+        assertThat(validations("expired")).isEqualTo(expiredCount + 2);
+        assertThat(validations("unknown")).isEqualTo(unknown + 2);
+    }
+
+    double validations(String result) {
+        return registry.get("jwt.token.validations").tag("result", result).counter().count();
+    }
+
+    @Test
+    void adminTestReportsRoleInBody() {
+        assertThat(adminTest(login("sergi").getAccess_token())).contains("202 ACCEPTED");
+        assertThat(adminTest(login(newUser()).getAccess_token())).contains("401 UNAUTHORIZED");
+    }
+
+    @Test
+    void refreshIssuesWorkingToken() {
+        String username = newUser();
+        String oldToken = login(username).getAccess_token();
+        String newToken = refresh(oldToken);
+
+        assertThat(newToken).isNotBlank().isNotEqualTo(oldToken);
+        securePing(newToken).expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("ok: true, user: " + username);
+    }
+
+    @Test
+    void refreshRejectsUnknownToken() {
+        client.post().uri("/jwt/auth/refresh")
+                .bodyValue(Map.of("access_token", "00000000-0000-0000-0000-000000000000"))
+                .exchange()
+                .expectStatus().isUnauthorized();
+    }
+
+    @Test
+    void repeatedRefreshWithinGraceReturnsSameToken() {
+        String oldToken = login(newUser()).getAccess_token();
+        String first = refresh(oldToken);
+
+        assertThat(refresh(oldToken)).isEqualTo(first);
+        securePing(oldToken).expectStatus().isOk();
+    }
+
+    @Test
+    void concurrentRefreshesShareOneToken() throws Exception {
+        String oldToken = login(newUser()).getAccess_token();
+        long updates = metric("/jwt/metrics/refresh", "updates");
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<String>> calls = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                calls.add(() -> refresh(oldToken));
+            }
+            Set<String> tokens = new HashSet<>();
+            for (Future<String> result : executor.invokeAll(calls)) {
+                tokens.add(result.get());
+            }
+            assertThat(tokens).hasSize(1);
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(metric("/jwt/metrics/refresh", "updates")).isEqualTo(updates + 1);
+    }
+
+    @Test
+    void batchIntrospectionResolvesEachToken() {
+        String username = newUser();
+        String token = login(username).getAccess_token();
+
+        client.post().uri("/jwt/auth/introspect")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(List.of(token, "unknown-token"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(2)
+                .jsonPath("$[0].active").isEqualTo(true)
+                .jsonPath("$[0].username").isEqualTo(username)
+                .jsonPath("$[0].role").isEqualTo("USER")
+                .jsonPath("$[1].active").isEqualTo(false)
+                .jsonPath("$[1].username").doesNotExist();
+    }
+
+    @Test
+    void batchIntrospectionRejectsOversizedBatch() {
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 11; i++) {
+            tokens.add("token-" + i);
+        }
+        client.post().uri("/jwt/auth/introspect")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(tokens)
+                .exchange()
+                .expectStatus().isEqualTo(413);
+    }
+
+    @Test
+    void tokenIntrospectionIsCacheableUntilExpiry() {
+        String token = login(newUser()).getAccess_token();
+
+        String etag = client.get().uri("/jwt/auth/introspect")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueMatches(HttpHeaders.CACHE_CONTROL, ".*max-age=\\d+.*")
+                .expectBody()
+                .jsonPath("$.active").isEqualTo(true)
+                .returnResult().getResponseHeaders().getETag();
+        assertThat(etag).isNotBlank();
+
+        client.get().uri("/jwt/auth/introspect")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .header(HttpHeaders.IF_NONE_MATCH, etag)
+                .exchange()
+                .expectStatus().isNotModified();
+    }
+
+    @Test
+    void inactiveTokenIntrospectionIsNotCached() {
+        client.post().uri("/jwt/auth/introspect")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .bodyValue("token=unknown-token")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().cacheControl(CacheControl.noStore())
+                .expectBody()
+                .jsonPath("$.active").isEqualTo(false);
+    }
+
+    @Test
+    void logoutRevokesToken() {
+        String token = login(newUser()).getAccess_token();
+        securePing(token).expectStatus().isOk();
+
+        client.post().uri("/jwt/auth/logout")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .exchange()
+                .expectStatus().isNoContent();
+
+        securePing(token).expectStatus().isUnauthorized();
+        client.post().uri("/jwt/auth/refresh")
+                .bodyValue(Map.of("access_token", token))
+                .exchange()
+                .expectStatus().isUnauthorized();
+    }
+
+    @Test
+    void adminRevokesOtherUsersToken() {
+        String admin = login("sergi").getAccess_token();
+        String user = login(newUser()).getAccess_token();
+
+        client.post().uri("/jwt/admin/revoke")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + user)
+                .bodyValue(Map.of("access_token", admin))
+                .exchange()
+                .expectStatus().isForbidden();
+        client.post().uri("/jwt/admin/revoke")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + admin)
+                .bodyValue(Map.of("access_token", "unknown-token"))
+                .exchange()
+                .expectStatus().isNotFound();
+        client.post().uri("/jwt/admin/revoke")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + admin)
+                .bodyValue(Map.of("access_token", user))
+                .exchange()
+                .expectStatus().isNoContent();
+
+        securePing(user).expectStatus().isUnauthorized();
+        client.post().uri("/jwt/auth/introspect")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(List.of(user))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$[0].active").isEqualTo(false);
+    }
+
+    @Test
+    void loginsRefreshesAndDenialsAreAudited() {
+        long appended = metric("/jwt/metrics/audit", "appended");
+
+        String token = login(newUser()).getAccess_token();
+        refresh(token);
+        securePing("unknown-token").expectStatus().isUnauthorized();
+
+        assertThat(metric("/jwt/metrics/audit", "appended")).isEqualTo(appended + 3);
+    }
+}
@@ -0,0 +1,27 @@
+package com.rgbconsulting.jwt.controller;
+
+import java.sql.SQLException;
+import org.junit.jupiter.api.BeforeAll;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Contracte de JwtController: Tomcat i JdbcTokenStore sobre H2.
+ *
+ * @author sergi
+ */
+@TestPropertySource(properties = {
+    "jwt.store=jdbc",
+    "jwt.datasource.url=jdbc:h2:mem:jwt_servlet;MODE=PostgreSQL;DB_CLOSE_DELAY=-1"
+})
+class JwtControllerContractTest extends JwtContractTest {
+
+    @BeforeAll
+    static void database() throws SQLException {
+        createSchema("jwt_servlet");
+    }
+
+    @Override
+    String databaseName() {
+        return "jwt_servlet";
+    }
+}
@@ -0,0 +1,31 @@
+package com.rgbconsulting.jwt.controller;
+
+import java.sql.SQLException;
+import org.junit.jupiter.api.BeforeAll;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Contracte de ReactiveJwtController: perfil "reactive" (Netty) i
+ * R2dbcTokenStore sobre H2.
+ *
+ * @author sergi
+ */
+@ActiveProfiles("reactive")
+@TestPropertySource(properties = {
+    "spring.main.web-application-type=reactive",
+    "jwt.store=r2dbc",
+    "jwt.r2dbc.url=r2dbc:h2:mem:///jwt_reactive?options=MODE=PostgreSQL;DB_CLOSE_DELAY=-1"
+})
+class ReactiveJwtControllerContractTest extends JwtContractTest {
+
+    @BeforeAll
+    static void database() throws SQLException {
+        createSchema("jwt_reactive");
+    }
+
+    @Override
+    String databaseName() {
+        return "jwt_reactive";
+    }
+}
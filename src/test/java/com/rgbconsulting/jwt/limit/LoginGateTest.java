@@ -0,0 +1,37 @@
+package com.rgbconsulting.jwt.limit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+/**
+ * Alliberament del permís del LoginLimiter a loginAsync().
+ *
+ * @author sergi
+ */
+class LoginGateTest {
+
+    private final LoginLimiter limiter = new LoginLimiter(10, 20, 500, 1000, 50, 1024);
+    private final LoginGate gate = new LoginGate(Optional.of(limiter), Optional.empty());
+
+    @Test
+    void permitIsReleasedWhenIssueCompletes() {
+        String token = gate.loginAsync("user", "password", "127.0.0.1", () -> Mono.just("token")).block();
+
+        assertThat(token).isEqualTo("token");
+        assertThat(limiter.getInFlight()).isZero();
+    }
+
+    @Test
+    void permitIsReleasedWhenIssueThrowsBeforeReturningMono() {
+        Mono<String> login = gate.loginAsync("user", "password", "127.0.0.1", () -> {
+            throw new IllegalStateException("store down");
+        });
+
+        assertThatThrownBy(login::block).isInstanceOf(IllegalStateException.class);
+        assertThat(limiter.getInFlight()).isZero();
+    }
+}
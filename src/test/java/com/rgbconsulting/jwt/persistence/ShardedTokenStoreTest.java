@@ -0,0 +1,252 @@
+package com.rgbconsulting.jwt.persistence;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.rgbconsulting.jwt.model.Jwt;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * ShardedTokenStore sobre diverses bases de dades H2 en memòria, una per
+ * shard.
+ *
+ * @author sergi
+ */
+class ShardedTokenStoreTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private final List<ShardedTokenStore> stores = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        stores.forEach(ShardedTokenStore::close);
+    }
+
+    /**
+     * Crea un shard amb una base de dades H2 nova i l'esquema dels tests.
+     */
+    private static ShardedTokenStore.Shard shard() throws SQLException {
+        String url = "jdbc:h2:mem:jwt_shard_" + DATABASES.incrementAndGet() + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(url);
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        dataSource.setMaximumPoolSize(4);
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("RUNSCRIPT FROM 'classpath:/db/jwt-h2.sql'");
+        }
+        return new ShardedTokenStore.Shard(url, dataSource, new JdbcBulkhead(4, 2000),
+                new LoginWriteBehind(dataSource, "sync", 1000, 200, 5, 100),
+                new TokenReaper(dataSource, "off", 60_000, 5000, 100, 3_600_000, 2, true));
+    }
+
+    private ShardedTokenStore store(List<ShardedTokenStore.Shard> shards, int rebalanceBatchSize) {
+        ShardedTokenStore store = new ShardedTokenStore(shards, 128, Optional.empty(), rebalanceBatchSize);
+        stores.add(store);
+        return store;
+    }
+
+    private static List<String> tokens(ShardedTokenStore.Shard shard) throws SQLException {
+        return column(shard, "SELECT acces_token FROM jwt");
+    }
+
+    private static List<String> column(ShardedTokenStore.Shard shard, String query) throws SQLException {
+        List<String> values = new ArrayList<>();
+        try (Connection connection = DriverManager.getConnection(shard.getId(), "sa", "");
+                PreparedStatement statement = connection.prepareStatement(query);
+                ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                values.add(resultSet.getString(1));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return Token nou que l'anell assigna al shard indicat (o a un altre, si
+     * "same" és false)
+     */
+    private static String tokenOn(ShardedTokenStore store, ShardedTokenStore.Shard shard, boolean same) {
+        while (true) {
+            String token = UUID.randomUUID().toString();
+            if ((store.shardFor(token) == shard) == same) {
+                return token;
+            }
+        }
+    }
+
+    @Test
+    void loginIsStoredOnlyOnOwnerShard() throws SQLException {
+        ShardedTokenStore store = store(List.of(shard(), shard(), shard()), 1000);
+        List<String> issued = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            String token = UUID.randomUUID().toString();
+            store.saveLogin("user" + i, token, 30, System.currentTimeMillis(), "USER");
+            issued.add(token);
+        }
+
+        int total = 0;
+        for (ShardedTokenStore.Shard shard : store.getShards()) {
+            List<String> stored = tokens(shard);
+            assertThat(stored).allMatch(token -> store.shardFor(token) == shard);
+            total += stored.size();
+        }
+        assertThat(total).isEqualTo(issued.size());
+        assertThat(store.findByTokens(issued)).hasSize(issued.size());
+        assertThat(store.findByToken(issued.get(0)).getUsername()).isEqualTo("user0");
+    }
+
+    @Test
+    void refreshMovesRecordToNewTokensShard() throws SQLException {
+        ShardedTokenStore store = store(List.of(shard(), shard()), 1000);
+        String oldToken = UUID.randomUUID().toString();
+        store.saveLogin("sergi", oldToken, 30, 1000L, "ADMIN");
+        ShardedTokenStore.Shard source = store.shardFor(oldToken);
+        String newToken = tokenOn(store, source, false);
+
+        assertThat(store.updateToken(oldToken, newToken, 2000L)).isEqualTo(newToken);
+
+        ShardedTokenStore.Shard target = store.shardFor(newToken);
+        assertThat(tokens(source)).doesNotContain(oldToken, newToken);
+        assertThat(tokens(target)).containsExactly(newToken);
+        Jwt moved = store.findByToken(newToken);
+        assertThat(moved.getUsername()).isEqualTo("sergi");
+        assertThat(moved.getRole()).isEqualTo("ADMIN");
+        assertThat(moved.getTime_generated()).isEqualTo(2000L);
+        assertThat(store.findByToken(oldToken)).isNull();
+        assertThat(store.getMetrics()).containsEntry("moves", 1L);
+
+        // el token antic ja no es pot refrescar, ni tampoc deixa còpies
+        String other = tokenOn(store, target, false);
+        assertThat(store.updateToken(oldToken, other, 3000L)).isNull();
+        assertThat(tokens(store.shardFor(other))).doesNotContain(other);
+    }
+
+    @Test
+    void refreshReportsStoreFailureInsteadOfUnknownToken() throws SQLException {
+        ShardedTokenStore store = store(List.of(shard(), shard()), 1000);
+        String oldToken = UUID.randomUUID().toString();
+        store.saveLogin("user", oldToken, 30, 1000L, "USER");
+        ShardedTokenStore.Shard source = store.shardFor(oldToken);
+        ShardedTokenStore.Shard target = store.getShards().get(0) == source ? store.getShards().get(1) : store.getShards().get(0);
+
+        // el shard del token nou no accepta escriptures: el moviment falla
+        execute(target, "ALTER TABLE jwt RENAME TO jwt_offline");
+        assertThatThrownBy(() -> store.updateToken(oldToken, tokenOn(store, target, true), 2000L))
+                .isInstanceOf(StoreBusyException.class);
+        execute(target, "ALTER TABLE jwt_offline RENAME TO jwt");
+        assertThat(store.findByToken(oldToken)).isNotNull();
+
+        // en el mateix shard l'UPDATE també ho reporta
+        execute(source, "ALTER TABLE jwt RENAME TO jwt_offline");
+        assertThatThrownBy(() -> store.updateToken(oldToken, tokenOn(store, source, true), 2000L))
+                .isInstanceOf(StoreBusyException.class);
+        execute(source, "ALTER TABLE jwt_offline RENAME TO jwt");
+
+        assertThat(store.updateToken(UUID.randomUUID().toString(), UUID.randomUUID().toString(), 2000L)).isNull();
+    }
+
+    @Test
+    void refreshWithinShardUpdatesInPlace() throws SQLException {
+        ShardedTokenStore store = store(List.of(shard(), shard()), 1000);
+        String oldToken = UUID.randomUUID().toString();
+        store.saveLogin("user", oldToken, 30, 1000L, "USER");
+        ShardedTokenStore.Shard source = store.shardFor(oldToken);
+        String newToken = tokenOn(store, source, true);
+
+        assertThat(store.updateToken(oldToken, newToken, 2000L)).isEqualTo(newToken);
+        assertThat(tokens(source)).containsExactly(newToken);
+        assertThat(store.getMetrics()).containsEntry("moves", 0L);
+    }
+
+    @Test
+    void rebalanceMovesMisplacedTokensAndRevocationsInPages() throws SQLException {
+        ShardedTokenStore.Shard first = shard();
+        ShardedTokenStore.Shard second = shard();
+        // abans d'afegir el segon shard tot era al primer
+        // (sense tancar-lo: els shards són del magatzem de dos shards)
+        ShardedTokenStore single = new ShardedTokenStore(List.of(first), 128, Optional.empty(), 1000);
+        List<String> issued = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String token = UUID.randomUUID().toString();
+            single.saveLogin("user" + i, token, 30, 1000L + i, "USER");
+            assertThat(single.revoke("rev-" + token, 1000L, Long.MAX_VALUE)).isTrue();
+            issued.add(token);
+        }
+
+        // pàgines de 7 registres: la taula es recorre en diverses consultes
+        ShardedTokenStore store = store(List.of(first, second), 7);
+        long misplaced = issued.stream().filter(token -> store.shardFor(token) == second).count()
+                + issued.stream().filter(token -> store.shardFor("rev-" + token) == second).count();
+        assertThat(misplaced).isPositive();
+
+        assertThat(store.rebalance()).isEqualTo(misplaced);
+
+        for (ShardedTokenStore.Shard shard : List.of(first, second)) {
+            assertThat(tokens(shard)).allMatch(token -> store.shardFor(token) == shard);
+            assertThat(column(shard, "SELECT token_id FROM jwt_revoked")).allMatch(id -> store.shardFor(id) == shard);
+        }
+        assertThat(tokens(first).size() + tokens(second).size()).isEqualTo(issued.size());
+        assertThat(store.findByTokens(issued)).hasSize(issued.size());
+        assertThat(issued).allMatch(token -> store.isRevoked("rev-" + token));
+        assertThat(store.isRebalancing()).isFalse();
+
+        // un segon rebalanceig no troba res per moure
+        assertThat(store.rebalance()).isZero();
+    }
+
+    @Test
+    void failedSourceReadKeepsRebalancingUntilRetrySucceeds() throws SQLException {
+        ShardedTokenStore.Shard first = shard();
+        ShardedTokenStore.Shard second = shard();
+        ShardedTokenStore single = new ShardedTokenStore(List.of(first), 128, Optional.empty(), 1000);
+        List<String> issued = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String token = UUID.randomUUID().toString();
+            single.saveLogin("user" + i, token, 30, 1000L + i, "USER");
+            assertThat(single.revoke(token, 1000L, Long.MAX_VALUE)).isTrue();
+            issued.add(token);
+        }
+        ShardedTokenStore store = store(List.of(first, second), 7);
+        List<String> misplaced = issued.stream().filter(token -> store.shardFor(token) == second).toList();
+        assertThat(misplaced).isNotEmpty();
+
+        // les revocacions del primer shard no es poden llegir
+        execute(first, "ALTER TABLE jwt_revoked RENAME TO jwt_revoked_offline");
+        store.rebalance();
+        assertThat(store.isRebalancing()).isTrue();
+        assertThat(store.getMetrics()).containsEntry("rebalance_pending", true);
+        execute(first, "ALTER TABLE jwt_revoked_offline RENAME TO jwt_revoked");
+
+        // les revocacions que no s'han mogut continuen sent visibles
+        assertThat(misplaced).allMatch(store::isRevoked);
+        assertThat(store.findByTokens(issued)).hasSize(issued.size());
+
+        store.retryRebalance();
+        assertThat(store.isRebalancing()).isFalse();
+        assertThat(store.getMetrics()).containsEntry("rebalance_pending", false);
+        assertThat(column(first, "SELECT token_id FROM jwt_revoked")).noneMatch(misplaced::contains);
+        assertThat(misplaced).allMatch(store::isRevoked);
+    }
+
+    private static void execute(ShardedTokenStore.Shard shard, String sql) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(shard.getId(), "sa", "");
+                Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.rgbconsulting.jwt.token;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Verificació dels tokens signats sense arrencar l'aplicació.
+ *
+ * @author sergi
+ */
+class SignedTokenVerifierTest {
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+    private final SigningKeys keys = new SigningKeys("k1:secret-de-prova-secret-de-prova", "k1", "signed");
+    private final SignedTokenVerifier verifier = new SignedTokenVerifier(keys);
+    private final SignedTokenService service = new SignedTokenService(keys, verifier);
+
+    private String issue() {
+        long now = System.currentTimeMillis();
+        return service.issue("sergi", "ADMIN", now, now + 30000);
+    }
+
+    @Test
+    void acceptsIssuedToken() {
+        String token = issue();
+        SignedTokenVerifier.Claims claims = verifier.verify(token, 0, token.length());
+
+        assertThat(claims).isNotNull();
+        assertThat(claims.getUsername()).isEqualTo("sergi");
+        assertThat(claims.hasRole("ADMIN")).isTrue();
+    }
+
+    @Test
+    void rejectsSignatureWithNonCanonicalTrailingBits() {
+        String token = issue();
+        // l'últim caràcter de la signatura (43 caràcters) porta 2 bits sobrants
+        char last = token.charAt(token.length() - 1);
+        char other = ALPHABET.charAt(ALPHABET.indexOf(last) ^ 1);
+        String tampered = token.substring(0, token.length() - 1) + other;
+
+        assertThat(verifier.verify(tampered, 0, tampered.length())).isNull();
+    }
+
+    @Test
+    void rejectsTamperedSignature() {
+        String token = issue();
+        char last = token.charAt(token.length() - 1);
+        char other = ALPHABET.charAt(ALPHABET.indexOf(last) ^ 4);
+        String tampered = token.substring(0, token.length() - 1) + other;
+
+        assertThat(verifier.verify(tampered, 0, tampered.length())).isNull();
+    }
+}
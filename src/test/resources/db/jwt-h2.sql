@@ -0,0 +1,24 @@
+-- Esquema dels tests sobre H2 (mode PostgreSQL): les mateixes taules que a
+-- PostgreSQL, vegeu jwt-credentials.sql i jwt-revoked.sql.
+
+CREATE TABLE IF NOT EXISTS jwt (
+    username       VARCHAR(255),
+    acces_token    VARCHAR(512),
+    expires_in     INTEGER,
+    time_generated BIGINT,
+    role           VARCHAR(50)
+);
+
+CREATE INDEX IF NOT EXISTS jwt_acces_token_idx ON jwt (acces_token);
+
+CREATE TABLE IF NOT EXISTS jwt_credentials (
+    username      VARCHAR(255) PRIMARY KEY,
+    password_hash VARCHAR(255) NOT NULL,
+    updated_at    BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS jwt_revoked (
+    token_id   VARCHAR(1024) PRIMARY KEY,
+    revoked_at BIGINT NOT NULL,
+    expires_at BIGINT NOT NULL
+);